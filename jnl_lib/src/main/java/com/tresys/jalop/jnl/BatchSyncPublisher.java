@@ -0,0 +1,63 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl;
+
+import java.util.List;
+
+import javax.xml.soap.MimeHeaders;
+
+/**
+ * An optional extension of the {@link Publisher} interface for applications
+ * that can handle the nonces of a whole digest exchange at once. When sync
+ * batching is enabled on both sides (see
+ * {@link com.tresys.jalop.jnl.impl.ContextImpl#setSyncBatching(boolean)}),
+ * the remote JALoP Network Store syncs all the records it confirmed in a
+ * digest-response with a single "sync-batch" message, rather than sending a
+ * "sync" message for each of them.
+ * <p>
+ * When the registered {@link Publisher} implements this interface, the
+ * library calls {@link #syncBatch(PublisherSession, List, MimeHeaders)}
+ * once per "sync-batch" message. Otherwise it calls
+ * {@link Publisher#sync(PublisherSession, String, MimeHeaders)} for each
+ * nonce of the message, in order.
+ */
+public interface BatchSyncPublisher extends Publisher {
+
+	/**
+	 * The library executes this method when it receives a "sync-batch"
+	 * message from the remote JALoP Network Store.
+	 *
+	 * @param sess
+	 *            The {@link PublisherSession} that received the message.
+	 * @param nonces
+	 *            The nonces indicated in the message, in the order they
+	 *            were sent.
+	 * @param headers
+	 *            Any addition MIME headers in the message.
+	 * @return <tt>true</tt> to continue sending records on this session,
+	 *         <tt>false</tt> otherwise.
+	 */
+	boolean syncBatch(final PublisherSession sess, final List<String> nonces,
+			final MimeHeaders headers);
+}
@@ -0,0 +1,67 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An optional extension of the {@link SourceRecord} interface for
+ * {@link Publisher}s that keep the sections of their records in memory. For
+ * each section that has a {@link ByteBuffer}, the library sends the bytes
+ * between the position and the limit of the buffer instead of going through
+ * the {@link java.io.InputStream}. When the buffer has an accessible backing
+ * array, the array is handed to the BEEP channel and digested in place,
+ * without being copied. The bytes of a direct buffer are digested in place,
+ * and copied once into pooled buffers to be sent.
+ * <p>
+ * The library never changes the position, limit or content of the buffers,
+ * and the application must not change their content until the record has
+ * been sent.
+ * <p>
+ * The {@link java.io.InputStream} of a section is only requested when its
+ * buffer is <tt>null</tt>.
+ *
+ * @see ByteArraySourceRecord
+ * @see ByteBufferSourceRecord
+ */
+public interface BufferSourceRecord extends SourceRecord {
+
+	/**
+	 * @return a {@link ByteBuffer} holding the system meta-data, or
+	 *         <tt>null</tt> to use {@link SourceRecord#getSysMetadata()}.
+	 */
+	ByteBuffer getSysMetadataBuffer();
+
+	/**
+	 * @return a {@link ByteBuffer} holding the application meta-data, or
+	 *         <tt>null</tt> to use {@link SourceRecord#getAppMetadata()}.
+	 */
+	ByteBuffer getAppMetadataBuffer();
+
+	/**
+	 * @return a {@link ByteBuffer} holding the whole payload, or
+	 *         <tt>null</tt> to use {@link SourceRecord#getPayload()}.
+	 */
+	ByteBuffer getPayloadBuffer();
+}
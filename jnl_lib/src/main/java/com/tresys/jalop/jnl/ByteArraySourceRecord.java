@@ -0,0 +1,85 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link SourceRecord} whose sections are held in byte arrays. The arrays
+ * are not copied: the library hands them to the BEEP channel and digests
+ * them in place (see {@link BufferSourceRecord}).
+ * <p>
+ * The content of the arrays must not be changed until the record has been
+ * sent.
+ */
+public class ByteArraySourceRecord extends ByteBufferSourceRecord {
+
+	/**
+	 * Create a new {@link ByteArraySourceRecord}.
+	 *
+	 * @param nonce
+	 *            The nonce of the record.
+	 * @param recordType
+	 *            The type of the record.
+	 * @param sysMetadata
+	 *            The system meta-data, may be <tt>null</tt>.
+	 * @param appMetadata
+	 *            The application meta-data, may be <tt>null</tt>.
+	 * @param payload
+	 *            The payload, may be <tt>null</tt>.
+	 */
+	public ByteArraySourceRecord(final String nonce, final RecordType recordType,
+			final byte[] sysMetadata, final byte[] appMetadata,
+			final byte[] payload) {
+		this(nonce, recordType, sysMetadata, appMetadata, payload, 0);
+	}
+
+	/**
+	 * Create a new {@link ByteArraySourceRecord} for a journal record that
+	 * is resumed from an offset.
+	 *
+	 * @param nonce
+	 *            The nonce of the record.
+	 * @param recordType
+	 *            The type of the record.
+	 * @param sysMetadata
+	 *            The system meta-data, may be <tt>null</tt>.
+	 * @param appMetadata
+	 *            The application meta-data, may be <tt>null</tt>.
+	 * @param payload
+	 *            The whole payload, may be <tt>null</tt>.
+	 * @param offset
+	 *            The number of bytes of the payload the remote already has.
+	 */
+	public ByteArraySourceRecord(final String nonce, final RecordType recordType,
+			final byte[] sysMetadata, final byte[] appMetadata,
+			final byte[] payload, final long offset) {
+		super(nonce, recordType, wrap(sysMetadata), wrap(appMetadata),
+				wrap(payload), offset);
+	}
+
+	private static ByteBuffer wrap(final byte[] data) {
+		return data != null ? ByteBuffer.wrap(data) : null;
+	}
+}
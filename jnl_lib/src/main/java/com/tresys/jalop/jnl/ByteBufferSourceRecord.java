@@ -0,0 +1,217 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link SourceRecord} whose sections are held in {@link ByteBuffer}s. The
+ * buffers are not copied: the record keeps a view of the bytes between the
+ * position and the limit each buffer had when the record was created, and
+ * the library sends and digests those bytes directly (see
+ * {@link BufferSourceRecord}).
+ * <p>
+ * The content of the buffers must not be changed until the record has been
+ * sent.
+ */
+public class ByteBufferSourceRecord implements BufferSourceRecord {
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private final String nonce;
+	private final RecordType recordType;
+	private final long offset;
+	private final ByteBuffer sysMetadata;
+	private final ByteBuffer appMetadata;
+	private final ByteBuffer payload;
+
+	/**
+	 * Create a new {@link ByteBufferSourceRecord}.
+	 *
+	 * @param nonce
+	 *            The nonce of the record.
+	 * @param recordType
+	 *            The type of the record.
+	 * @param sysMetadata
+	 *            The system meta-data, may be <tt>null</tt>.
+	 * @param appMetadata
+	 *            The application meta-data, may be <tt>null</tt>.
+	 * @param payload
+	 *            The payload, may be <tt>null</tt>.
+	 */
+	public ByteBufferSourceRecord(final String nonce, final RecordType recordType,
+			final ByteBuffer sysMetadata, final ByteBuffer appMetadata,
+			final ByteBuffer payload) {
+		this(nonce, recordType, sysMetadata, appMetadata, payload, 0);
+	}
+
+	/**
+	 * Create a new {@link ByteBufferSourceRecord} for a journal record that
+	 * is resumed from an offset.
+	 *
+	 * @param nonce
+	 *            The nonce of the record.
+	 * @param recordType
+	 *            The type of the record.
+	 * @param sysMetadata
+	 *            The system meta-data, may be <tt>null</tt>.
+	 * @param appMetadata
+	 *            The application meta-data, may be <tt>null</tt>.
+	 * @param payload
+	 *            The whole payload, may be <tt>null</tt>.
+	 * @param offset
+	 *            The number of bytes of the payload the remote already has.
+	 */
+	public ByteBufferSourceRecord(final String nonce, final RecordType recordType,
+			final ByteBuffer sysMetadata, final ByteBuffer appMetadata,
+			final ByteBuffer payload, final long offset) {
+
+		if (nonce == null) {
+			throw new IllegalArgumentException("'nonce' cannot be null.");
+		}
+
+		if (recordType == null) {
+			throw new IllegalArgumentException("'recordType' cannot be null.");
+		}
+
+		if (offset < 0) {
+			throw new IllegalArgumentException("'offset' must be 0 or greater.");
+		}
+
+		this.nonce = nonce;
+		this.recordType = recordType;
+		this.offset = offset;
+		this.sysMetadata = view(sysMetadata);
+		this.appMetadata = view(appMetadata);
+		this.payload = view(payload);
+	}
+
+	private static ByteBuffer view(final ByteBuffer buf) {
+		return buf != null ? buf.slice() : EMPTY;
+	}
+
+	@Override
+	public String getNonce() {
+		return this.nonce;
+	}
+
+	@Override
+	public long getOffset() {
+		return this.offset;
+	}
+
+	@Override
+	public RecordType getRecordType() {
+		return this.recordType;
+	}
+
+	@Override
+	public long getSysMetaLength() {
+		return this.sysMetadata.remaining();
+	}
+
+	@Override
+	public long getAppMetaLength() {
+		return this.appMetadata.remaining();
+	}
+
+	@Override
+	public long getPayloadLength() {
+		return this.payload.remaining();
+	}
+
+	@Override
+	public ByteBuffer getSysMetadataBuffer() {
+		return this.sysMetadata.duplicate();
+	}
+
+	@Override
+	public ByteBuffer getAppMetadataBuffer() {
+		return this.appMetadata.duplicate();
+	}
+
+	@Override
+	public ByteBuffer getPayloadBuffer() {
+		return this.payload.duplicate();
+	}
+
+	@Override
+	public InputStream getSysMetadata() {
+		return new BufferInputStream(getSysMetadataBuffer());
+	}
+
+	@Override
+	public InputStream getAppMetadata() {
+		return new BufferInputStream(getAppMetadataBuffer());
+	}
+
+	@Override
+	public InputStream getPayload() {
+		return new BufferInputStream(getPayloadBuffer());
+	}
+
+	/**
+	 * An {@link InputStream} that reads a {@link ByteBuffer} from its
+	 * position to its limit.
+	 */
+	private static final class BufferInputStream extends InputStream {
+
+		private final ByteBuffer buf;
+
+		BufferInputStream(final ByteBuffer buf) {
+			this.buf = buf;
+		}
+
+		@Override
+		public int read() {
+			return this.buf.hasRemaining() ? this.buf.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (!this.buf.hasRemaining()) {
+				return -1;
+			}
+			final int n = Math.min(len, this.buf.remaining());
+			this.buf.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public long skip(final long n) {
+			final int skipped = (int) Math.max(0, Math.min(n, this.buf.remaining()));
+			this.buf.position(this.buf.position() + skipped);
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return this.buf.remaining();
+		}
+	}
+}
@@ -0,0 +1,50 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl;
+
+/**
+ * An optional extension of the {@link SourceRecord} interface for
+ * {@link Publisher}s that keep {@link DigestCheckpoint}s of their journal
+ * records. When a record is resumed from an offset, the library restores
+ * the digest from the checkpoint, skips the payload bytes the checkpoint
+ * covers, and only hashes the bytes between the checkpoint and the offset.
+ * <p>
+ * A checkpoint covers the system meta-data, the application meta-data and
+ * the first {@link DigestCheckpoint#getPayloadOffset()} bytes of the
+ * payload. One may be created with
+ * {@link com.tresys.jalop.jnl.impl.Sha2Digest#checkpoint(long)}.
+ */
+public interface CheckpointedSourceRecord extends SourceRecord {
+
+	/**
+	 * The library will call this method when sending a record from a
+	 * non-zero offset. The checkpoint is ignored if it uses a different
+	 * digest algorithm than the session, or if its payload offset is larger
+	 * than {@link RecordInfo#getOffset()}.
+	 *
+	 * @return the {@link DigestCheckpoint}, or <tt>null</tt> to hash the
+	 *         payload from the start.
+	 */
+	DigestCheckpoint getDigestCheckpoint();
+}
@@ -0,0 +1,49 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl;
+
+/**
+ * An optional extension of the {@link SubscribeRequest} interface for
+ * {@link Subscriber}s that persist {@link DigestCheckpoint}s while receiving
+ * journal records. When a "journal-resume" is requested, the library
+ * restores the digest from the checkpoint and only hashes the bytes of
+ * {@link #getResumeInputStream()} that follow
+ * {@link DigestCheckpoint#getPayloadOffset()}, instead of the whole stream.
+ *
+ * @see DigestCheckpointSource
+ */
+public interface CheckpointedSubscribeRequest extends SubscribeRequest {
+
+	/**
+	 * The library will call this method when sending a "journal-resume"
+	 * message to obtain the last checkpoint of the record being resumed.
+	 * The checkpoint is ignored if it uses a different digest algorithm than
+	 * the session, or if its payload offset is larger than
+	 * {@link #getResumeOffset()}.
+	 *
+	 * @return the {@link DigestCheckpoint}, or <tt>null</tt> to hash the
+	 *         whole resume stream.
+	 */
+	DigestCheckpoint getDigestCheckpoint();
+}
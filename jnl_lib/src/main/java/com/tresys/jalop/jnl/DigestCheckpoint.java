@@ -0,0 +1,195 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * The intermediate state of a JALoP record digest, taken part way through
+ * the payload of a journal record. A {@link Subscriber} may persist
+ * checkpoints while it receives a journal record, and return the last one
+ * through a {@link CheckpointedSubscribeRequest}, so that a "journal-resume"
+ * only needs to hash the data received after the checkpoint instead of the
+ * whole resume offset. A {@link Publisher} may do the same through a
+ * {@link CheckpointedSourceRecord}.
+ * <p>
+ * The state is only meaningful to the library, which currently supports
+ * checkpoints of the SHA-256, SHA-384 and SHA-512 digests.
+ */
+public final class DigestCheckpoint implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Identifies the format written by {@link #toByteArray()}.
+	 */
+	private static final int FORMAT_VERSION = 1;
+
+	private final String algorithm;
+	private final long payloadOffset;
+	private final byte[] state;
+
+	/**
+	 * Create a new {@link DigestCheckpoint}.
+	 *
+	 * @param algorithm
+	 *            The name of the digest algorithm, i.e. "SHA-256".
+	 * @param payloadOffset
+	 *            The number of payload bytes included in the state.
+	 * @param state
+	 *            The intermediate state of the digest.
+	 */
+	public DigestCheckpoint(final String algorithm, final long payloadOffset,
+			final byte[] state) {
+
+		if (algorithm == null || algorithm.trim().length() == 0) {
+			throw new IllegalArgumentException("'algorithm' cannot be null or empty.");
+		}
+
+		if (payloadOffset < 0) {
+			throw new IllegalArgumentException("'payloadOffset' must be 0 or greater.");
+		}
+
+		if (state == null) {
+			throw new IllegalArgumentException("'state' cannot be null.");
+		}
+
+		this.algorithm = algorithm;
+		this.payloadOffset = payloadOffset;
+		this.state = state.clone();
+	}
+
+	/**
+	 * @return the name of the digest algorithm
+	 */
+	public String getAlgorithm() {
+		return this.algorithm;
+	}
+
+	/**
+	 * Get the number of payload bytes included in this checkpoint. A
+	 * checkpoint may only be used to resume a record from an offset that is
+	 * at least this large.
+	 *
+	 * @return the payloadOffset
+	 */
+	public long getPayloadOffset() {
+		return this.payloadOffset;
+	}
+
+	/**
+	 * @return a copy of the intermediate state of the digest
+	 */
+	public byte[] getState() {
+		return this.state.clone();
+	}
+
+	/**
+	 * Encode this checkpoint, so that it may be persisted.
+	 *
+	 * @return the encoded checkpoint.
+	 * @see #fromByteArray(byte[])
+	 */
+	public byte[] toByteArray() {
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream(
+				this.state.length + 32);
+		final DataOutputStream out = new DataOutputStream(bos);
+		try {
+			out.writeByte(FORMAT_VERSION);
+			out.writeUTF(this.algorithm);
+			out.writeLong(this.payloadOffset);
+			out.writeInt(this.state.length);
+			out.write(this.state);
+			out.flush();
+		} catch (final IOException e) {
+			// We should never get here
+			throw new IllegalStateException(e);
+		}
+		return bos.toByteArray();
+	}
+
+	/**
+	 * Decode a checkpoint created by {@link #toByteArray()}.
+	 *
+	 * @param encoded
+	 *            The encoded checkpoint.
+	 * @return the {@link DigestCheckpoint}
+	 * @throws IllegalArgumentException
+	 *             If <code>encoded</code> is not a valid checkpoint.
+	 */
+	public static DigestCheckpoint fromByteArray(final byte[] encoded) {
+
+		if (encoded == null) {
+			throw new IllegalArgumentException("'encoded' cannot be null.");
+		}
+
+		final DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(encoded));
+		try {
+			final int version = in.readUnsignedByte();
+			if (version != FORMAT_VERSION) {
+				throw new IllegalArgumentException(
+						"Unsupported checkpoint version: " + version);
+			}
+			final String algorithm = in.readUTF();
+			final long payloadOffset = in.readLong();
+			final int length = in.readInt();
+			if (length < 0 || length != in.available()) {
+				throw new IllegalArgumentException(
+						"'encoded' has a bad state length");
+			}
+			final byte[] state = new byte[length];
+			in.readFully(state);
+			return new DigestCheckpoint(algorithm, payloadOffset, state);
+		} catch (final IOException e) {
+			throw new IllegalArgumentException("'encoded' is truncated", e);
+		}
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof DigestCheckpoint)) {
+			return false;
+		}
+		final DigestCheckpoint other = (DigestCheckpoint) obj;
+		return this.payloadOffset == other.payloadOffset
+				&& this.algorithm.equals(other.algorithm)
+				&& Arrays.equals(this.state, other.state);
+	}
+
+	@Override
+	public int hashCode() {
+		return (this.algorithm.hashCode() * 31 + (int) (this.payloadOffset ^ (this.payloadOffset >>> 32)))
+				* 31 + Arrays.hashCode(this.state);
+	}
+}
@@ -0,0 +1,47 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl;
+
+/**
+ * Implemented by the {@link java.io.InputStream} the library passes to
+ * {@link Subscriber#notifyPayload(SubscriberSession, RecordInfo, java.io.InputStream)}
+ * for journal records. A {@link Subscriber} may take a checkpoint of the
+ * digest at any time while reading the payload, and persist it once it has
+ * stored at least {@link DigestCheckpoint#getPayloadOffset()} bytes of the
+ * payload. The library reads ahead of the application, so the payload
+ * offset of a checkpoint may be slightly larger than the number of bytes
+ * read so far.
+ *
+ * @see CheckpointedSubscribeRequest
+ */
+public interface DigestCheckpointSource {
+
+	/**
+	 * Take a checkpoint of the digest of the record being read.
+	 *
+	 * @return the {@link DigestCheckpoint}, or <tt>null</tt> if the digest
+	 *         of this record cannot be checkpointed.
+	 */
+	DigestCheckpoint getDigestCheckpoint();
+}
@@ -0,0 +1,55 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl;
+
+/**
+ * An optional extension of the {@link SourceRecord} interface for
+ * {@link Publisher}s that already know the JALoP digest of their records,
+ * for example because it was calculated when the record was written. The
+ * library sends such a record without hashing it, and reports the supplied
+ * digest through
+ * {@link Publisher#notifyDigest(PublisherSession, String, byte[])} and in
+ * the digest exchange with the remote.
+ * <p>
+ * The digest covers the system meta-data, the application meta-data and
+ * the whole payload, as it would be calculated by the library. A sample of
+ * the records is still hashed to check the supplied digests (see
+ * {@link com.tresys.jalop.jnl.impl.ContextImpl#setDigestVerifyInterval(int)}).
+ * Once a supplied digest turns out to be wrong, every later record of the
+ * session is hashed.
+ */
+public interface DigestedSourceRecord extends SourceRecord {
+
+	/**
+	 * The library will call this method before sending the record.
+	 *
+	 * @param digestMethod
+	 *            The URI of the digest method negotiated for the session,
+	 *            e.g. {@link javax.xml.crypto.dsig.DigestMethod#SHA256}.
+	 * @return the digest of the record for <tt>digestMethod</tt>, or
+	 *         <tt>null</tt> if it is not known and the library should
+	 *         calculate it.
+	 */
+	byte[] getDigest(final String digestMethod);
+}
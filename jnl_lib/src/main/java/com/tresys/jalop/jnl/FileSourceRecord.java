@@ -0,0 +1,59 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl;
+
+import java.nio.channels.FileChannel;
+
+/**
+ * An optional extension of the {@link SourceRecord} interface for
+ * {@link Publisher}s that keep the sections of their records in files. For
+ * each section that has a {@link FileChannel}, the library reads the file
+ * directly, in large blocks or through a memory mapping, instead of going
+ * through the {@link java.io.InputStream}. A section is read from position
+ * 0 to the size of the channel, and the library closes the channel once the
+ * section has been sent.
+ * <p>
+ * The {@link java.io.InputStream} of a section is only requested when its
+ * channel is <tt>null</tt>.
+ */
+public interface FileSourceRecord extends SourceRecord {
+
+	/**
+	 * @return a {@link FileChannel} for the system meta-data, or
+	 *         <tt>null</tt> to use {@link SourceRecord#getSysMetadata()}.
+	 */
+	FileChannel getSysMetadataChannel();
+
+	/**
+	 * @return a {@link FileChannel} for the application meta-data, or
+	 *         <tt>null</tt> to use {@link SourceRecord#getAppMetadata()}.
+	 */
+	FileChannel getAppMetadataChannel();
+
+	/**
+	 * @return a {@link FileChannel} for the payload, or <tt>null</tt> to use
+	 *         {@link SourceRecord#getPayload()}.
+	 */
+	FileChannel getPayloadChannel();
+}
@@ -67,6 +67,10 @@ public interface Publisher {
 	 * sends a "subscribe" message. If this function returns <tt>false</tt> then
 	 * the library will start the process to close down this
 	 * {@link PublisherSession}.
+	 * <p>
+	 * This method runs on the thread that reads the session. Unless the
+	 * {@link Publisher} is a {@link PullPublisher}, the records are sent from
+	 * inside this method.
 	 * 
 	 * @param sess
 	 *            The {@link PublisherSession} that received the "subscribe"
@@ -95,8 +99,9 @@ public interface Publisher {
 	 * @param record
 	 *            The @{link SourceRecord} that was sent. This is the same
 	 *            object that was returned from either
-	 *            {@link Publisher#getNextRecord(PublisherSession, String)} or
-	 *            {@link Publisher#onJournalResume(PublisherSession, String, long, MimeHeaders)}
+	 *            {@link PublisherSession#sendRecord(SourceRecord)},
+	 *            {@link PublisherSession#submitRecord(SourceRecord)}, or
+	 *            {@link PullPublisher#getNextRecord(PublisherSession, String)}
 	 * @return <tt>true</tt> to continue sending records on this session,
 	 *         <tt>false</tt> otherwise.
 	 */
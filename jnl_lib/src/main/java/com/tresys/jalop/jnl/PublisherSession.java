@@ -39,7 +39,23 @@ public interface PublisherSession extends Session {
 	void sendRecord(final SourceRecord rec);
 
 	/**
-	 * Called by the publishing network store to indicate it is done sending records 
+	 * The network store executes this method to give a record to the library
+	 * to be sent once the records given before it have been sent. The library
+	 * may read and digest the record in the background while earlier records
+	 * are still being sent, and only blocks the caller while too many records
+	 * are waiting to be sent. Records given to this method must not be mixed
+	 * with calls to {@link #sendRecord(SourceRecord)} until
+	 * {@link #complete()} has been called.
+	 *
+	 * @param rec
+	 *            The record to send
+	 */
+	void submitRecord(final SourceRecord rec);
+
+	/**
+	 * Called by the publishing network store to indicate it is done sending records.
+	 * This waits for every record given to {@link #submitRecord(SourceRecord)}
+	 * to be sent.
 	 */
 	void complete();
 }
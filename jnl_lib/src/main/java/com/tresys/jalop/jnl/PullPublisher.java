@@ -0,0 +1,83 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl;
+
+import javax.xml.soap.MimeHeaders;
+
+/**
+ * An optional extension of the {@link Publisher} interface for applications
+ * that want the library to drive the transfer of records. A plain
+ * {@link Publisher} sends its records from inside
+ * {@link Publisher#onSubscribe(PublisherSession, String, Mode, MimeHeaders)},
+ * which runs on the BEEP thread that reads the session, so digest and sync
+ * messages of the session are not processed until it returns.
+ * <p>
+ * When the registered {@link Publisher} implements this interface,
+ * {@link Publisher#onSubscribe(PublisherSession, String, Mode, MimeHeaders)}
+ * and
+ * {@link Publisher#onJournalResume(PublisherSession, String, long, MimeHeaders)}
+ * should only decide whether to accept the request, and must not send any
+ * records. Once they return <tt>true</tt>, the library pulls the records from
+ * the {@link PullPublisher} on a separate thread, submits them to the
+ * {@link PublisherSession} in order, and calls
+ * {@link PublisherSession#complete()} once there are no more records.
+ */
+public interface PullPublisher extends Publisher {
+
+	/**
+	 * The library executes this method to obtain the record that follows
+	 * <tt>lastNonce</tt>. It is executed on a library thread, never on the
+	 * thread that reads the session, and may block until the next record is
+	 * available.
+	 *
+	 * @param sess
+	 *            The {@link PublisherSession} the record is sent on.
+	 * @param lastNonce
+	 *            The nonce of the last record sent, or the nonce of the
+	 *            "subscribe" or "journal-resume" message if no record has
+	 *            been sent yet.
+	 * @return The next {@link SourceRecord} to send, or <tt>null</tt> if
+	 *         there are no more records to send on this session.
+	 */
+	SourceRecord getNextRecord(final PublisherSession sess,
+			final String lastNonce);
+
+	/**
+	 * The library executes this method, after
+	 * {@link Publisher#onJournalResume(PublisherSession, String, long, MimeHeaders)}
+	 * returned <tt>true</tt>, to obtain the journal record being resumed.
+	 *
+	 * @param sess
+	 *            The {@link PublisherSession} the record is sent on.
+	 * @param nonce
+	 *            The nonce of the journal record to resume.
+	 * @param offset
+	 *            The number of bytes of the payload the remote JALoP Network
+	 *            Store has already received.
+	 * @return The {@link SourceRecord} to resume, with an offset of
+	 *         <tt>offset</tt>, or <tt>null</tt> if it no longer exists.
+	 */
+	SourceRecord getResumeRecord(final PublisherSession sess,
+			final String nonce, final long offset);
+}
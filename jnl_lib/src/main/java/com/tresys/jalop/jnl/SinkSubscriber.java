@@ -0,0 +1,94 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl;
+
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An optional extension of the {@link Subscriber} interface for applications
+ * that store the sections of a record in files or other channels. Instead of
+ * reading each section from an {@link java.io.InputStream}, the application
+ * returns a {@link WritableByteChannel} and the {@link SubscriberSession}
+ * writes the section into it as it arrives, calculating the digest as it
+ * goes.
+ * <p>
+ * If any of these methods returns <tt>null</tt>, the matching
+ * {@link Subscriber} method (e.g.
+ * {@link Subscriber#notifySysMetadata(SubscriberSession, RecordInfo, java.io.InputStream)})
+ * is used for that section instead. The library never closes a returned
+ * channel; {@link Subscriber#notifyDigest(SubscriberSession, RecordInfo, byte[])}
+ * is executed once all sections of a record have been written, and is a
+ * convenient place to do so.
+ */
+public interface SinkSubscriber extends Subscriber {
+
+	/**
+	 * The {@link SubscriberSession} executes this method to obtain the
+	 * channel the system meta-data of a specific record is written to.
+	 *
+	 * @param sess
+	 *            The {@link SubscriberSession} that is receiving the data.
+	 * @param recordInfo
+	 *            Details of the record, such as the size of the system
+	 *            meta-data.
+	 * @return The {@link WritableByteChannel} to write the system meta-data
+	 *         to, or <tt>null</tt> to receive it through
+	 *         {@link Subscriber#notifySysMetadata(SubscriberSession, RecordInfo, java.io.InputStream)}.
+	 */
+	WritableByteChannel getSysMetadataSink(SubscriberSession sess,
+			final RecordInfo recordInfo);
+
+	/**
+	 * The {@link SubscriberSession} executes this method to obtain the
+	 * channel the application meta-data of a specific record is written to.
+	 *
+	 * @param sess
+	 *            The {@link SubscriberSession} that is receiving the data.
+	 * @param recordInfo
+	 *            Details of the record, such as the size of the application
+	 *            meta-data.
+	 * @return The {@link WritableByteChannel} to write the application
+	 *         meta-data to, or <tt>null</tt> to receive it through
+	 *         {@link Subscriber#notifyAppMetadata(SubscriberSession, RecordInfo, java.io.InputStream)}.
+	 */
+	WritableByteChannel getAppMetadataSink(SubscriberSession sess,
+			final RecordInfo recordInfo);
+
+	/**
+	 * The {@link SubscriberSession} executes this method to obtain the
+	 * channel the payload of a specific record is written to. When resuming
+	 * a journal record, only the bytes following
+	 * {@link RecordInfo#getOffset()} are written.
+	 *
+	 * @param sess
+	 *            The {@link SubscriberSession} that is receiving the data.
+	 * @param recordInfo
+	 *            Details of the record, such as the size of the payload.
+	 * @return The {@link WritableByteChannel} to write the payload to, or
+	 *         <tt>null</tt> to receive it through
+	 *         {@link Subscriber#notifyPayload(SubscriberSession, RecordInfo, java.io.InputStream)}.
+	 */
+	WritableByteChannel getPayloadSink(SubscriberSession sess,
+			final RecordInfo recordInfo);
+}
@@ -0,0 +1,195 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl.impl;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of reusable byte arrays, grouped into size classes. Each size class
+ * is a power of two between the minimum and maximum size of the pool, and
+ * holds at most a fixed number of free arrays. Requests for arrays larger
+ * than the maximum size are not pooled.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class BufferPool {
+
+	/**
+	 * The default size of the smallest size class.
+	 */
+	public static final int DEFAULT_MIN_SIZE = 256;
+
+	/**
+	 * The default size of the largest size class.
+	 */
+	public static final int DEFAULT_MAX_SIZE = 65536;
+
+	/**
+	 * The default number of free arrays kept in each size class.
+	 */
+	public static final int DEFAULT_MAX_FREE = 256;
+
+	private static BufferPool defaultPool;
+
+	private final int minShift;
+	private final int maxSize;
+	private final int maxFree;
+	private final ArrayDeque<byte[]>[] free;
+	private final AtomicLong allocated;
+	private final AtomicLong reused;
+
+	/**
+	 * Create a new {@link BufferPool}.
+	 *
+	 * @param minSize
+	 *            The size of the smallest size class, rounded up to a power
+	 *            of two.
+	 * @param maxSize
+	 *            The size of the largest size class, rounded up to a power
+	 *            of two.
+	 * @param maxFree
+	 *            The maximum number of free arrays kept in each size class.
+	 */
+	@SuppressWarnings("unchecked")
+	public BufferPool(final int minSize, final int maxSize, final int maxFree) {
+		if (minSize <= 0) {
+			throw new IllegalArgumentException("'minSize' must be a positive number.");
+		}
+		if (maxSize < minSize || maxSize > (1 << 30)) {
+			throw new IllegalArgumentException("'maxSize' must be between 'minSize' and 2^30.");
+		}
+		if (maxFree < 0) {
+			throw new IllegalArgumentException("'maxFree' must be 0 or greater.");
+		}
+
+		this.minShift = shiftFor(minSize);
+		final int maxShift = shiftFor(maxSize);
+		this.maxSize = 1 << maxShift;
+		this.maxFree = maxFree;
+		this.free = new ArrayDeque[maxShift - this.minShift + 1];
+		for (int i = 0; i < this.free.length; i++) {
+			this.free[i] = new ArrayDeque<byte[]>();
+		}
+		this.allocated = new AtomicLong();
+		this.reused = new AtomicLong();
+	}
+
+	/**
+	 * Get the {@link BufferPool} that is used when none was given. It is
+	 * created on first use with the default sizes.
+	 *
+	 * @return the shared {@link BufferPool}
+	 */
+	public static synchronized BufferPool getDefault() {
+		if (defaultPool == null) {
+			defaultPool = new BufferPool(DEFAULT_MIN_SIZE, DEFAULT_MAX_SIZE,
+					DEFAULT_MAX_FREE);
+		}
+		return defaultPool;
+	}
+
+	/**
+	 * Returns the smallest shift for which <code>1 << shift</code> is at
+	 * least <code>size</code>.
+	 */
+	private static int shiftFor(final int size) {
+		return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+	}
+
+	/**
+	 * Get an array of at least <code>size</code> bytes. The contents of the
+	 * array are undefined.
+	 *
+	 * @param size
+	 *            The minimum length of the array.
+	 * @return the array.
+	 */
+	public byte[] acquire(final int size) {
+		if (size < 0) {
+			throw new IllegalArgumentException("'size' must be 0 or greater.");
+		}
+		if (size > this.maxSize) {
+			this.allocated.incrementAndGet();
+			return new byte[size];
+		}
+		final int shift = Math.max(shiftFor(size), this.minShift);
+		final ArrayDeque<byte[]> list = this.free[shift - this.minShift];
+		synchronized (list) {
+			final byte[] buf = list.pollFirst();
+			if (buf != null) {
+				this.reused.incrementAndGet();
+				return buf;
+			}
+		}
+		this.allocated.incrementAndGet();
+		return new byte[1 << shift];
+	}
+
+	/**
+	 * Return an array to the pool. Arrays whose length is not one of the
+	 * size classes, or whose size class is full, are left to the garbage
+	 * collector. The array must not be used after it is released.
+	 *
+	 * @param buf
+	 *            The array to return.
+	 */
+	public void release(final byte[] buf) {
+		final int len = buf.length;
+		if (len > this.maxSize || Integer.bitCount(len) != 1) {
+			return;
+		}
+		final int shift = shiftFor(len);
+		if (shift < this.minShift) {
+			return;
+		}
+		final ArrayDeque<byte[]> list = this.free[shift - this.minShift];
+		synchronized (list) {
+			if (list.size() < this.maxFree) {
+				list.addFirst(buf);
+			}
+		}
+	}
+
+	/**
+	 * @return the size of the largest size class
+	 */
+	public int getMaxSize() {
+		return this.maxSize;
+	}
+
+	/**
+	 * @return the number of arrays that had to be allocated
+	 */
+	public long getAllocatedCount() {
+		return this.allocated.get();
+	}
+
+	/**
+	 * @return the number of requests that were served with a free array
+	 */
+	public long getReusedCount() {
+		return this.reused.get();
+	}
+}
@@ -24,6 +24,7 @@
 
 package com.tresys.jalop.jnl.impl;
 
+import java.io.File;
 import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -33,6 +34,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 import javax.xml.crypto.dsig.DigestMethod;
 
@@ -59,9 +61,11 @@ import com.tresys.jalop.jnl.Session;
 import com.tresys.jalop.jnl.Subscriber;
 import com.tresys.jalop.jnl.exceptions.ConnectionException;
 import com.tresys.jalop.jnl.exceptions.JNLException;
+import com.tresys.jalop.jnl.impl.messages.RecordBatch;
 import com.tresys.jalop.jnl.impl.messages.Utils;
 import com.tresys.jalop.jnl.impl.publisher.PublisherRequestHandler;
 import com.tresys.jalop.jnl.impl.publisher.PublisherSessionImpl;
+import com.tresys.jalop.jnl.impl.publisher.RecordPipeline;
 import com.tresys.jalop.jnl.impl.subscriber.SubscriberSessionImpl;
 
 /**
@@ -100,6 +104,24 @@ public final class ContextImpl implements Context {
 
     private final StartChannelListener sslListener;
 
+	private int dispatchThreads;
+	private int dispatchQueueDepth;
+	private int inlineDispatchThreshold;
+	private long digestOffloadThreshold;
+	private RecordDispatcher recordDispatcher;
+	private int publisherPipelineDepth = RecordPipeline.DEFAULT_DEPTH;
+	private long publisherPrefetchLimit = RecordPipeline.DEFAULT_PREFETCH_LIMIT;
+	private int digestVerifyInterval = PublisherSessionImpl.DEFAULT_DIGEST_VERIFY_INTERVAL;
+	private int publisherDigestMemoryLimit = SpillingDigestLedger.DEFAULT_MEMORY_LIMIT;
+	private File publisherDigestSpillDirectory;
+	private int publisherOutstandingDigestLimit;
+	private int coalescingLimit;
+	private boolean syncBatching;
+	private SendWindowPolicy sendWindowPolicy = SendWindowPolicy.getDefault();
+	private ReceiveWindowPolicy receiveWindowPolicy = ReceiveWindowPolicy.getDefault();
+	private DigestBatchPolicy digestBatchPolicy;
+	private Executor publisherExecutor;
+
 	/**
 	 * Create a new {@link ContextImpl}. The returned {@link Context} is in a
 	 * {@link ConnectionState#DISCONNECTED} state. If none are provided, the
@@ -201,6 +223,10 @@ public final class ContextImpl implements Context {
 			this.sslListener = null;
 		}
 		this.agent = agent;
+		this.dispatchThreads = Runtime.getRuntime().availableProcessors();
+		this.dispatchQueueDepth = RecordDispatcher.DEFAULT_QUEUE_DEPTH;
+		this.inlineDispatchThreshold = RecordDispatcher.DEFAULT_INLINE_THRESHOLD;
+		this.digestOffloadThreshold = RecordDispatcher.DEFAULT_DIGEST_OFFLOAD_THRESHOLD;
 	}
 
 	@Override
@@ -285,9 +311,7 @@ public final class ContextImpl implements Context {
 
 				final ReplyListener listener = new InitListener(addr, Role.Publisher, rt, this);
 
-				final OutputDataStream ods = Utils.createInitMessage(
-						Role.Publisher, mode, rt, this.allowedXmlEncodings,
-						this.allowedMessageDigests, this.agent);
+				final OutputDataStream ods = createInitMessage(Role.Publisher, mode, rt);
 
 				channel.sendMSG(ods, listener);
 			}
@@ -337,9 +361,7 @@ public final class ContextImpl implements Context {
 
 				final ReplyListener listener = new InitListener(addr, Role.Subscriber, rt, this);
 
-				final OutputDataStream ods = Utils.createInitMessage(
-						Role.Subscriber, mode, rt, this.allowedXmlEncodings,
-						this.allowedMessageDigests, this.agent);
+				final OutputDataStream ods = createInitMessage(Role.Subscriber, mode, rt);
 
 				channel.sendMSG(ods, listener);
 			}
@@ -528,8 +550,408 @@ public final class ContextImpl implements Context {
 
 	@Override
 	public void shutdown() {
-		// TODO Auto-generated method stub
+		synchronized (this) {
+			if (this.recordDispatcher != null) {
+				this.recordDispatcher.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * Configure the {@link RecordDispatcher} that processes the records
+	 * received by the subscriber sessions of this {@link ContextImpl}. This
+	 * must be called before the first subscriber session is created.
+	 *
+	 * @param threads
+	 *            The number of worker threads. The records of a session are
+	 *            always processed by the same thread, in order.
+	 * @param queueDepth
+	 *            The maximum number of records that may wait for a worker
+	 *            thread before the BEEP reader thread is blocked.
+	 * @param inlineThreshold
+	 *            Records that are fully received and no larger than this
+	 *            number of bytes are processed on the BEEP reader thread.
+	 *            A value of 0 disables inline processing.
+	 * @throws IllegalStateException
+	 *             If the {@link RecordDispatcher} was already created.
+	 */
+	public synchronized void setRecordDispatch(final int threads,
+			final int queueDepth, final int inlineThreshold) {
+
+		if (threads <= 0) {
+			throw new IllegalArgumentException("'threads' must be a positive number.");
+		}
+
+		if (queueDepth <= 0) {
+			throw new IllegalArgumentException("'queueDepth' must be a positive number.");
+		}
+
+		if (inlineThreshold < 0) {
+			throw new IllegalArgumentException("'inlineThreshold' must be 0 or greater.");
+		}
+
+		if (this.recordDispatcher != null) {
+			throw new IllegalStateException(
+					"The RecordDispatcher has already been created.");
+		}
+
+		this.dispatchThreads = threads;
+		this.dispatchQueueDepth = queueDepth;
+		this.inlineDispatchThreshold = inlineThreshold;
+	}
+
+	/**
+	 * Enable calculating the digest of large received records on a separate
+	 * hashing thread, so that hashing overlaps with the {@link Subscriber}
+	 * consuming the record. This must be called before the first subscriber
+	 * session is created.
+	 *
+	 * @param threshold
+	 *            The smallest record, in bytes, whose digest is calculated on
+	 *            a hashing thread. A value of 0 disables offloading.
+	 * @throws IllegalStateException
+	 *             If the {@link RecordDispatcher} was already created.
+	 */
+	public synchronized void setDigestOffloadThreshold(final long threshold) {
+
+		if (threshold < 0) {
+			throw new IllegalArgumentException("'threshold' must be 0 or greater.");
+		}
+
+		if (this.recordDispatcher != null) {
+			throw new IllegalStateException(
+					"The RecordDispatcher has already been created.");
+		}
+
+		this.digestOffloadThreshold = threshold;
+	}
+
+	/**
+	 * Get the {@link RecordDispatcher} shared by all subscriber sessions of
+	 * this {@link ContextImpl}, creating it if necessary.
+	 *
+	 * @return the recordDispatcher
+	 */
+	public synchronized RecordDispatcher getRecordDispatcher() {
+		if (this.recordDispatcher == null) {
+			this.recordDispatcher = new RecordDispatcher(this.dispatchThreads,
+					this.dispatchQueueDepth, this.inlineDispatchThreshold,
+					this.digestOffloadThreshold);
+		}
+		return this.recordDispatcher;
+	}
+
+	/**
+	 * Configure the {@link RecordPipeline} of each publisher session of this
+	 * {@link ContextImpl}. This only affects sessions whose pipeline has not
+	 * been created yet.
+	 *
+	 * @param depth
+	 *            The maximum number of records a session reads ahead of
+	 *            the record it is sending.
+	 * @param prefetchLimit
+	 *            Records larger than this number of bytes are not read ahead.
+	 *            A value of 0 disables reading ahead.
+	 */
+	public synchronized void setPublisherPipeline(final int depth,
+			final long prefetchLimit) {
+
+		if (depth <= 0) {
+			throw new IllegalArgumentException("'depth' must be a positive number.");
+		}
+
+		if (prefetchLimit < 0) {
+			throw new IllegalArgumentException("'prefetchLimit' must be 0 or greater.");
+		}
+
+		this.publisherPipelineDepth = depth;
+		this.publisherPrefetchLimit = prefetchLimit;
+	}
+
+	/**
+	 * @return the publisherPipelineDepth
+	 */
+	public synchronized int getPublisherPipelineDepth() {
+		return this.publisherPipelineDepth;
+	}
+
+	/**
+	 * @return the publisherPrefetchLimit
+	 */
+	public synchronized long getPublisherPrefetchLimit() {
+		return this.publisherPrefetchLimit;
+	}
+
+	/**
+	 * Configure how often the publisher sessions of this {@link ContextImpl}
+	 * check the digests supplied by a
+	 * {@link com.tresys.jalop.jnl.DigestedSourceRecord}. This only affects
+	 * sessions that are created afterwards.
+	 *
+	 * @param interval
+	 *            Hash one in every <code>interval</code> records that supply
+	 *            a digest, starting with the first. A value of 1 hashes every
+	 *            record, and 0 trusts every supplied digest.
+	 */
+	public synchronized void setDigestVerifyInterval(final int interval) {
+
+		if (interval < 0) {
+			throw new IllegalArgumentException("'interval' must be 0 or greater.");
+		}
+
+		this.digestVerifyInterval = interval;
+	}
+
+	/**
+	 * @return the digestVerifyInterval
+	 */
+	public synchronized int getDigestVerifyInterval() {
+		return this.digestVerifyInterval;
+	}
+
+	/**
+	 * Configure how many digests of sent records the publisher sessions of
+	 * this {@link ContextImpl} keep in memory while waiting for the remote
+	 * to confirm them. Further digests are written to a spill file. This
+	 * only affects sessions that are created afterwards.
+	 *
+	 * @param memoryLimit
+	 *            The number of digests kept in memory per session. A value
+	 *            of 0 keeps every digest in memory.
+	 * @param spillDirectory
+	 *            The directory spill files are created in, or
+	 *            <code>null</code> for the default temporary directory.
+	 */
+	public synchronized void setPublisherDigestLedger(final int memoryLimit,
+			final File spillDirectory) {
+
+		if (memoryLimit < 0) {
+			throw new IllegalArgumentException("'memoryLimit' must be 0 or greater.");
+		}
+
+		if (spillDirectory != null && !spillDirectory.isDirectory()) {
+			throw new IllegalArgumentException("'spillDirectory' must be a directory.");
+		}
+
+		this.publisherDigestMemoryLimit = memoryLimit;
+		this.publisherDigestSpillDirectory = spillDirectory;
+	}
+
+	/**
+	 * @return the publisherDigestMemoryLimit
+	 */
+	public synchronized int getPublisherDigestMemoryLimit() {
+		return this.publisherDigestMemoryLimit;
+	}
+
+	/**
+	 * @return the publisherDigestSpillDirectory, may be <code>null</code>
+	 */
+	public synchronized File getPublisherDigestSpillDirectory() {
+		return this.publisherDigestSpillDirectory;
+	}
+
+	/**
+	 * Configure how many sent records a publisher session of this
+	 * {@link ContextImpl} may have waiting for the remote to confirm their
+	 * digests. Once the limit is reached, records of a
+	 * {@link com.tresys.jalop.jnl.PullPublisher} are not sent until the
+	 * remote confirms some. This only affects sessions that are created
+	 * afterwards.
+	 *
+	 * @param limit
+	 *            The number of unconfirmed records per session. A value of 0
+	 *            never holds back records.
+	 */
+	public synchronized void setPublisherOutstandingDigestLimit(final int limit) {
+
+		if (limit < 0) {
+			throw new IllegalArgumentException("'limit' must be 0 or greater.");
+		}
+
+		this.publisherOutstandingDigestLimit = limit;
+	}
+
+	/**
+	 * @return the publisherOutstandingDigestLimit
+	 */
+	public synchronized int getPublisherOutstandingDigestLimit() {
+		return this.publisherOutstandingDigestLimit;
+	}
+
+	/**
+	 * Enable the record coalescing extension for the channels of this
+	 * {@link ContextImpl}. It is proposed in the initialize messages this
+	 * {@link ContextImpl} sends, and accepted when the remote proposes it.
+	 * Once both sides agree, a publisher packs small log and audit records
+	 * that are waiting to be sent into a single message; otherwise every
+	 * record is sent in its own message. This only affects channels that
+	 * are created afterwards.
+	 *
+	 * @param limit
+	 *            The largest record, in bytes of metadata and payload, a
+	 *            publisher coalesces, at most
+	 *            {@link RecordBatch#MAX_RECORD_SIZE}. A value of 0 disables
+	 *            the extension.
+	 */
+	public synchronized void setCoalescingLimit(final int limit) {
+
+		if (limit < 0) {
+			throw new IllegalArgumentException("'limit' must be 0 or greater.");
+		}
+
+		if (limit > RecordBatch.MAX_RECORD_SIZE) {
+			throw new IllegalArgumentException("'limit' must not be greater than "
+					+ RecordBatch.MAX_RECORD_SIZE + ".");
+		}
+
+		this.coalescingLimit = limit;
+	}
+
+	/**
+	 * @return the coalescingLimit
+	 */
+	public synchronized int getCoalescingLimit() {
+		return this.coalescingLimit;
+	}
+
+	/**
+	 * Enable the sync batching extension for the channels of this
+	 * {@link ContextImpl}. It is proposed in the initialize messages this
+	 * {@link ContextImpl} sends, and accepted when the remote proposes it.
+	 * Once both sides agree, a subscriber syncs every record confirmed by a
+	 * digest-response with a single "sync-batch" message, instead of one
+	 * "sync" message per record. This only affects channels that are
+	 * created afterwards.
+	 *
+	 * @param enabled
+	 *            Whether to use the extension.
+	 * @see com.tresys.jalop.jnl.BatchSyncPublisher
+	 */
+	public synchronized void setSyncBatching(final boolean enabled) {
+		this.syncBatching = enabled;
+	}
+
+	/**
+	 * @return whether the sync batching extension is enabled
+	 */
+	public synchronized boolean isSyncBatching() {
+		return this.syncBatching;
+	}
+
+	/**
+	 * Create the initialize message for a channel, proposing the extensions
+	 * that are enabled. When none are, the message is the same as one from
+	 * a peer that does not know about them.
+	 */
+	private OutputDataStream createInitMessage(final Role role, final Mode mode,
+			final RecordType rt) {
+		final String coalescing = getCoalescingLimit() > 0
+				? Utils.COALESCE_LENGTH_TABLE : null;
+		final String syncBatching = isSyncBatching()
+				? Utils.SYNC_BATCH_NONCE_LIST : null;
+
+		if (coalescing == null && syncBatching == null) {
+			return Utils.createInitMessage(role, mode, rt,
+					this.allowedXmlEncodings, this.allowedMessageDigests,
+					this.agent);
+		}
+		return Utils.createInitMessage(role, mode, rt,
+				this.allowedXmlEncodings, this.allowedMessageDigests,
+				this.agent, coalescing, syncBatching);
+	}
+
+	/**
+	 * Set the {@link Executor} the records of a
+	 * {@link com.tresys.jalop.jnl.PullPublisher} are sent on, which also runs
+	 * the stages of the {@link RecordPipeline} of every publisher session.
+	 * Each publisher session that is sending occupies a thread of the
+	 * executor for the whole transfer, and each of the three stages of its
+	 * pipeline a thread while it has records, so a bounded executor needs
+	 * four threads for every session that sends at the same time.
+	 *
+	 * @param executor
+	 *            The {@link Executor} to use, or <code>null</code> to use
+	 *            {@link RecordPipeline#getDefaultExecutor()}.
+	 */
+	public synchronized void setPublisherExecutor(final Executor executor) {
+		this.publisherExecutor = executor;
+	}
+
+	/**
+	 * @return the {@link Executor} the records of a
+	 *         {@link com.tresys.jalop.jnl.PullPublisher} are sent on
+	 */
+	public synchronized Executor getPublisherExecutor() {
+		return this.publisherExecutor != null ? this.publisherExecutor
+				: RecordPipeline.getDefaultExecutor();
+	}
+
+	/**
+	 * Configure how the publisher sessions of this {@link ContextImpl} size
+	 * the segments they send and how many they keep queued. This only
+	 * affects sessions that are created afterwards.
+	 *
+	 * @param policy
+	 *            The {@link SendWindowPolicy} to use. Use
+	 *            {@link SendWindowPolicy#fixed(int, int)} to disable
+	 *            adapting.
+	 */
+	public synchronized void setSendWindowPolicy(final SendWindowPolicy policy) {
+
+		if (policy == null) {
+			throw new IllegalArgumentException("'policy' cannot be null.");
+		}
+
+		this.sendWindowPolicy = policy;
+	}
 
+	/**
+	 * @return the sendWindowPolicy
+	 */
+	public synchronized SendWindowPolicy getSendWindowPolicy() {
+		return this.sendWindowPolicy;
+	}
+
+	/**
+	 * Configure how the subscriber sessions of this {@link ContextImpl} size
+	 * the receive windows of their data channels. This only affects sessions
+	 * that are created afterwards.
+	 *
+	 * @param policy
+	 *            The {@link ReceiveWindowPolicy} to use, or <code>null</code>
+	 *            to leave every channel at the beepcore default window.
+	 */
+	public synchronized void setReceiveWindowPolicy(final ReceiveWindowPolicy policy) {
+		this.receiveWindowPolicy = policy;
+	}
+
+	/**
+	 * @return the receiveWindowPolicy, may be <code>null</code>
+	 */
+	public synchronized ReceiveWindowPolicy getReceiveWindowPolicy() {
+		return this.receiveWindowPolicy;
+	}
+
+	/**
+	 * Configure how the subscriber sessions of this {@link ContextImpl}
+	 * batch the digests they send. This only affects sessions that are
+	 * created afterwards.
+	 *
+	 * @param policy
+	 *            The {@link DigestBatchPolicy} to use, or <code>null</code>
+	 *            to send digests once the pending digest max is reached or
+	 *            the pending digest timeout expires.
+	 */
+	public synchronized void setDigestBatchPolicy(final DigestBatchPolicy policy) {
+		this.digestBatchPolicy = policy;
+	}
+
+	/**
+	 * @return the digestBatchPolicy, may be <code>null</code>
+	 */
+	public synchronized DigestBatchPolicy getDigestBatchPolicy() {
+		return this.digestBatchPolicy;
 	}
 
 	/**
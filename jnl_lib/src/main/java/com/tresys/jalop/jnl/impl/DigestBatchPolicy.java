@@ -0,0 +1,187 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The targets the digest messages of the subscriber sessions of a
+ * {@link ContextImpl} are batched to. Without a policy a session sends its
+ * digests once it holds a fixed number of them, or after a fixed timeout.
+ * With one, each session adapts the size of its batches to the rate records
+ * arrive at and to the round trip time of its digest messages, so that a
+ * record is confirmed within the target latency while as few digest
+ * messages as possible are sent.
+ * <p>
+ * A session sends its digests once the oldest of them has waited for the
+ * target latency less the round trip time, once it holds as many digests as
+ * are expected to arrive in that time, or once its digests fill a digest
+ * message of the maximum batch size, whichever comes first. Digests that do
+ * not fit in that message are sent in the next one. See
+ * {@link DigestBatcher}.
+ * <p>
+ * The policy counts the batches sent by all of its sessions, and why each
+ * was sent. This class is thread-safe.
+ */
+public final class DigestBatchPolicy {
+
+	/**
+	 * Why a batch of digests was sent.
+	 */
+	public enum FlushReason {
+		/**
+		 * The batch reached the size the arrival rate called for.
+		 */
+		Size,
+		/**
+		 * The digests filled a digest message of the maximum batch size.
+		 */
+		Bytes,
+		/**
+		 * The oldest digest in the batch could not wait any longer.
+		 */
+		Latency
+	}
+
+	/**
+	 * The default time, in milliseconds, from a record being received to the
+	 * publisher confirming its digest.
+	 */
+	public static final long DEFAULT_TARGET_LATENCY_MILLIS = 1000;
+
+	/**
+	 * The default largest digest message, in bytes.
+	 */
+	public static final long DEFAULT_MAX_BATCH_BYTES = 1024 * 1024;
+
+	private final long targetLatencyMillis;
+	private final long maxBatchBytes;
+
+	private final AtomicLong[] flushCounts;
+	private final AtomicLong batchCount;
+	private final AtomicLong digestCount;
+	private final AtomicLong largestBatch;
+
+	/**
+	 * Create a new {@link DigestBatchPolicy}.
+	 *
+	 * @param targetLatencyMillis
+	 *            The time, in milliseconds, from a record being received to
+	 *            the publisher confirming its digest.
+	 * @param maxBatchBytes
+	 *            The largest body, in bytes, of a digest message. A single
+	 *            digest is always sent, even if it is larger.
+	 */
+	public DigestBatchPolicy(final long targetLatencyMillis, final long maxBatchBytes) {
+
+		if (targetLatencyMillis <= 0) {
+			throw new IllegalArgumentException("'targetLatencyMillis' must be a positive number.");
+		}
+
+		if (maxBatchBytes <= 0) {
+			throw new IllegalArgumentException("'maxBatchBytes' must be a positive number.");
+		}
+
+		this.targetLatencyMillis = targetLatencyMillis;
+		this.maxBatchBytes = maxBatchBytes;
+		this.flushCounts = new AtomicLong[FlushReason.values().length];
+		for (int i = 0; i < this.flushCounts.length; i++) {
+			this.flushCounts[i] = new AtomicLong();
+		}
+		this.batchCount = new AtomicLong();
+		this.digestCount = new AtomicLong();
+		this.largestBatch = new AtomicLong();
+	}
+
+	/**
+	 * Start batching the digests of a subscriber session.
+	 *
+	 * @return the {@link DigestBatcher} of the session
+	 */
+	public DigestBatcher open() {
+		return new DigestBatcher(this, System.nanoTime());
+	}
+
+	/**
+	 * Count a batch that was sent.
+	 */
+	void recordFlush(final FlushReason reason, final int size) {
+		this.flushCounts[reason.ordinal()].incrementAndGet();
+		this.batchCount.incrementAndGet();
+		this.digestCount.addAndGet(size);
+		for (;;) {
+			final long largest = this.largestBatch.get();
+			if (size <= largest || this.largestBatch.compareAndSet(largest, size)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return the targetLatencyMillis
+	 */
+	public long getTargetLatencyMillis() {
+		return this.targetLatencyMillis;
+	}
+
+	/**
+	 * @return the maxBatchBytes
+	 */
+	public long getMaxBatchBytes() {
+		return this.maxBatchBytes;
+	}
+
+	/**
+	 * @param reason
+	 *            The {@link FlushReason} to count.
+	 * @return the number of batches that were sent for <code>reason</code>
+	 */
+	public long getFlushCount(final FlushReason reason) {
+		if (reason == null) {
+			throw new IllegalArgumentException("'reason' cannot be null.");
+		}
+		return this.flushCounts[reason.ordinal()].get();
+	}
+
+	/**
+	 * @return the number of batches that were sent
+	 */
+	public long getBatchCount() {
+		return this.batchCount.get();
+	}
+
+	/**
+	 * @return the number of digests that were sent in all batches
+	 */
+	public long getDigestCount() {
+		return this.digestCount.get();
+	}
+
+	/**
+	 * @return the number of digests in the largest batch that was sent
+	 */
+	public long getLargestBatch() {
+		return this.largestBatch.get();
+	}
+}
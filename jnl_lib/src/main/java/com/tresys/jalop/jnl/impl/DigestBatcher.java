@@ -0,0 +1,299 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl.impl;
+
+import com.tresys.jalop.jnl.impl.DigestBatchPolicy.FlushReason;
+
+/**
+ * Decides when a single subscriber session sends its digests. See
+ * {@link DigestBatchPolicy}.
+ * <p>
+ * The batcher keeps a smoothed rate digests are added at, sampled over the
+ * time between two batches, and a smoothed round trip time of the digest
+ * messages. A digest may wait for the target latency less the round trip
+ * time, but never less than {@link #MIN_WAIT_FRACTION} of the target
+ * latency, so that a slow link does not degrade to one digest per message.
+ * The size of a batch is the number of digests expected to arrive in that
+ * time: in a burst the batch fills before the oldest digest is due, and in
+ * quiet periods the batch is sent as soon as its oldest digest is due.
+ * <p>
+ * A batch is never larger than {@link DigestBatchPolicy#getMaxBatchBytes()}:
+ * the sending thread takes only as many digests as fit, see
+ * {@link #flushed(FlushReason, int, long, long)}, and the rest wait for the
+ * next message. Digests that are sent again because the publisher did not
+ * answer them are added with {@link #requeue(int, long, long)}, so they are
+ * not mistaken for new arrivals.
+ * <p>
+ * All times are given in nanoseconds from {@link System#nanoTime()}. This
+ * class is thread-safe.
+ */
+public final class DigestBatcher {
+
+	/**
+	 * The weight of a new sample in the smoothed rates.
+	 */
+	static final double SMOOTHING = 0.25;
+
+	/**
+	 * The smallest fraction of the target latency a digest may wait.
+	 */
+	static final double MIN_WAIT_FRACTION = 0.1;
+
+	/**
+	 * Intervals between batches that are shorter than this, in nanoseconds,
+	 * are too noisy to sample the arrival rate from.
+	 */
+	static final long MIN_SAMPLE_NANOS = 1000 * 1000;
+
+	private final DigestBatchPolicy policy;
+
+	private double arrivalRate;
+	private double roundTripNanos;
+	private long waitNanos;
+	private int targetBatch;
+
+	private long intervalStart;
+	private long intervalDigests;
+	private long oldest;
+	private int pending;
+	private long pendingBytes;
+	private int lastBatch;
+
+	DigestBatcher(final DigestBatchPolicy policy, final long now) {
+		this.policy = policy;
+		this.intervalStart = now;
+		retarget();
+	}
+
+	/**
+	 * Count digests that were added to the batch.
+	 *
+	 * @param count
+	 *            The number of digests.
+	 * @param bytes
+	 *            The number of bytes they take in a digest message.
+	 * @param now
+	 *            The current time.
+	 * @return true if the thread sending the batches should check the batch
+	 *         again, either because it was empty or because it should now be
+	 *         sent.
+	 */
+	public synchronized boolean add(final int count, final long bytes, final long now) {
+		if (count > 0) {
+			this.intervalDigests += count;
+		}
+		return requeue(count, bytes, now);
+	}
+
+	/**
+	 * Count digests that were added to the batch again because the
+	 * publisher did not answer them. Unlike {@link #add(int, long, long)}
+	 * they do not count towards the arrival rate.
+	 *
+	 * @param count
+	 *            The number of digests.
+	 * @param bytes
+	 *            The number of bytes they take in a digest message.
+	 * @param now
+	 *            The current time.
+	 * @return true if the thread sending the batches should check the batch
+	 *         again, either because it was empty or because it should now be
+	 *         sent.
+	 */
+	public synchronized boolean requeue(final int count, final long bytes, final long now) {
+		if (count <= 0) {
+			return false;
+		}
+		final boolean wasEmpty = this.pending == 0;
+		if (wasEmpty) {
+			this.oldest = now;
+		}
+		this.pending += count;
+		this.pendingBytes += bytes;
+		return wasEmpty || getFlushReason(now) != null;
+	}
+
+	/**
+	 * @param now
+	 *            The current time.
+	 * @return why the batch should be sent now, or <code>null</code> if it
+	 *         can wait.
+	 */
+	public synchronized FlushReason getFlushReason(final long now) {
+		if (this.pending == 0) {
+			return null;
+		}
+		if (this.pendingBytes >= this.policy.getMaxBatchBytes()) {
+			return FlushReason.Bytes;
+		}
+		if (this.pending >= this.targetBatch) {
+			return FlushReason.Size;
+		}
+		if (now - this.oldest >= this.waitNanos) {
+			return FlushReason.Latency;
+		}
+		return null;
+	}
+
+	/**
+	 * @param now
+	 *            The current time.
+	 * @return the number of milliseconds, at least 1, until the oldest
+	 *         digest is due, or {@link Long#MAX_VALUE} if the batch is empty.
+	 */
+	public synchronized long getWaitMillis(final long now) {
+		if (this.pending == 0) {
+			return Long.MAX_VALUE;
+		}
+		final long remaining = this.oldest + this.waitNanos - now;
+		return Math.max(1, (remaining + 999999) / 1000000);
+	}
+
+	/**
+	 * Record that the whole batch was sent, and adapt the size of the next
+	 * one to the rate digests arrived at.
+	 *
+	 * @param reason
+	 *            Why the batch was sent.
+	 * @param now
+	 *            The current time.
+	 */
+	public synchronized void flushed(final FlushReason reason, final long now) {
+		flushed(reason, this.pending, this.pendingBytes, now);
+	}
+
+	/**
+	 * Record that part of the batch was sent, and adapt the size of the next
+	 * one to the rate digests arrived at. The digests that were not sent
+	 * stay in the batch, and keep the time the oldest digest was added.
+	 *
+	 * @param reason
+	 *            Why the batch was sent.
+	 * @param count
+	 *            The number of digests that were sent.
+	 * @param bytes
+	 *            The number of bytes they took in the digest message.
+	 * @param now
+	 *            The current time.
+	 */
+	public synchronized void flushed(final FlushReason reason, final int count,
+			final long bytes, final long now) {
+		if (reason == null) {
+			throw new IllegalArgumentException("'reason' cannot be null.");
+		}
+
+		// batches sent in quick succession are sampled together
+		final long elapsed = now - this.intervalStart;
+		if (elapsed >= MIN_SAMPLE_NANOS) {
+			final double rate = this.intervalDigests * 1e9 / elapsed;
+			this.arrivalRate = this.arrivalRate == 0 ? rate
+					: this.arrivalRate + (rate - this.arrivalRate) * SMOOTHING;
+			this.intervalStart = now;
+			this.intervalDigests = 0;
+		}
+
+		final int sent = Math.min(Math.max(count, 0), this.pending);
+		this.policy.recordFlush(reason, sent);
+		this.lastBatch = sent;
+		this.pending -= sent;
+		this.pendingBytes = this.pending == 0 ? 0
+				: Math.max(0, this.pendingBytes - bytes);
+		retarget();
+	}
+
+	/**
+	 * Adapt the batch to the time it took the publisher to answer a digest
+	 * message.
+	 *
+	 * @param nanos
+	 *            The time from sending the digest message to receiving the
+	 *            whole digest-response.
+	 */
+	public synchronized void updateRoundTrip(final long nanos) {
+		if (nanos <= 0) {
+			return;
+		}
+		this.roundTripNanos = this.roundTripNanos == 0 ? nanos
+				: this.roundTripNanos + (nanos - this.roundTripNanos) * SMOOTHING;
+		retarget();
+	}
+
+	private void retarget() {
+		final long latencyNanos = this.policy.getTargetLatencyMillis() * 1000000;
+		this.waitNanos = Math.max((long) (latencyNanos * MIN_WAIT_FRACTION),
+				latencyNanos - (long) this.roundTripNanos);
+
+		// until the rate is known only the latency and size limits apply
+		if (this.arrivalRate == 0) {
+			this.targetBatch = Integer.MAX_VALUE;
+		} else {
+			this.targetBatch = (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+					Math.ceil(this.arrivalRate * this.waitNanos / 1e9)));
+		}
+	}
+
+	/**
+	 * @return the smoothed rate, in digests per second, digests are added at
+	 */
+	public synchronized long getArrivalRate() {
+		return (long) this.arrivalRate;
+	}
+
+	/**
+	 * @return the smoothed round trip time, in milliseconds, of the digest
+	 *         messages
+	 */
+	public synchronized long getRoundTripMillis() {
+		return (long) (this.roundTripNanos / 1000000);
+	}
+
+	/**
+	 * @return the number of digests the next batch is sent at, or
+	 *         {@link Integer#MAX_VALUE} until the arrival rate is known
+	 */
+	public synchronized int getTargetBatch() {
+		return this.targetBatch;
+	}
+
+	/**
+	 * @return the number of digests in the last batch that was sent
+	 */
+	public synchronized int getLastBatch() {
+		return this.lastBatch;
+	}
+
+	/**
+	 * @return the largest body, in bytes, of a digest message
+	 */
+	public long getMaxBatchBytes() {
+		return this.policy.getMaxBatchBytes();
+	}
+
+	/**
+	 * @return the number of digests waiting to be sent
+	 */
+	public synchronized int getPending() {
+		return this.pending;
+	}
+}
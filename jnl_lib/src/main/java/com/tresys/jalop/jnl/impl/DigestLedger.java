@@ -0,0 +1,584 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl.impl;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tracks the digests of records, by nonce, until they are confirmed by the
+ * remote peer. The digests are kept as raw bytes in a single array, with a
+ * fixed width per entry, and are only converted to hex when they are written
+ * to a digest message.
+ * <p>
+ * Nonces that are canonical decimal numbers (which is what the JALoP
+ * publishers generate) are kept as <code>long</code> values in an
+ * open-addressing table, so looking them up does not create any objects.
+ * Any other nonce is kept as a {@link String}.
+ * <p>
+ * Entries are stored densely and may be visited by index, from 0 to
+ * {@link #size()} - 1. Removing an entry moves the last entry into its place,
+ * so the order of the entries is not preserved.
+ * <p>
+ * This class is not thread safe.
+ */
+public final class DigestLedger {
+
+	private static final Charset UTF_8 = Charset.forName("utf-8");
+
+	private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6',
+			'7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+
+	/**
+	 * The longest nonce that is kept as a number. 18 digits always fits in
+	 * a <code>long</code>.
+	 */
+	private static final int MAX_NUMERIC_DIGITS = 18;
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final int digestLength;
+
+	private int size;
+
+	/** The numeric value of each nonce, or -1 if the nonce is in names. */
+	private long[] numbers;
+
+	/** The nonces that are not canonical numbers, by entry. */
+	private String[] names;
+
+	/** The UTF-8 encoding of the entries in names. */
+	private byte[][] nameBytes;
+
+	/** The digest of entry i is at i * digestLength. */
+	private byte[] digests;
+
+	/** Open-addressing index of the numeric nonces. */
+	private long[] tableKeys;
+
+	/** Entry index + 1 for each slot in tableKeys, 0 if the slot is free. */
+	private int[] tableEntries;
+
+	/** Index of the nonces that are not canonical numbers. */
+	private final Map<String, Integer> nameIndex;
+
+	/**
+	 * Create a new, empty {@link DigestLedger}.
+	 *
+	 * @param digestLength
+	 *            The length, in bytes, of every digest in this ledger.
+	 */
+	public DigestLedger(final int digestLength) {
+
+		if (digestLength <= 0) {
+			throw new IllegalArgumentException("'digestLength' must be a positive number.");
+		}
+
+		this.digestLength = digestLength;
+		this.numbers = new long[INITIAL_CAPACITY];
+		this.names = new String[INITIAL_CAPACITY];
+		this.nameBytes = new byte[INITIAL_CAPACITY][];
+		this.digests = new byte[INITIAL_CAPACITY * digestLength];
+		this.tableKeys = new long[INITIAL_CAPACITY * 2];
+		this.tableEntries = new int[INITIAL_CAPACITY * 2];
+		this.nameIndex = new HashMap<String, Integer>();
+	}
+
+	/**
+	 * @return the length, in bytes, of every digest in this ledger
+	 */
+	public int getDigestLength() {
+		return this.digestLength;
+	}
+
+	/**
+	 * @return the number of entries
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * @return true if there are no entries
+	 */
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	/**
+	 * Add a digest, replacing the digest of the nonce if it is already
+	 * present.
+	 *
+	 * @param nonce
+	 *            The nonce of the record.
+	 * @param digest
+	 *            The digest of the record, which must be exactly
+	 *            {@link #getDigestLength()} bytes. It is copied.
+	 * @return true if the nonce was not already present.
+	 */
+	public boolean put(final String nonce, final byte[] digest) {
+
+		if (nonce == null || nonce.length() == 0) {
+			throw new IllegalArgumentException("'nonce' cannot be null or empty.");
+		}
+
+		if (digest == null || digest.length != this.digestLength) {
+			throw new IllegalArgumentException("'digest' must be "
+					+ this.digestLength + " bytes.");
+		}
+
+		final long number = parseNonce(nonce);
+		int idx = indexOf(nonce, number);
+		final boolean added = idx < 0;
+		if (added) {
+			idx = append(nonce, number);
+		}
+		System.arraycopy(digest, 0, this.digests, idx * this.digestLength,
+				this.digestLength);
+		return added;
+	}
+
+	/**
+	 * Add every entry of another ledger to this one, replacing the digests
+	 * of any nonces already present.
+	 *
+	 * @param other
+	 *            The {@link DigestLedger} to copy the entries from.
+	 */
+	public void putAll(final DigestLedger other) {
+
+		if (other.digestLength != this.digestLength) {
+			throw new IllegalArgumentException("'other' must hold digests of "
+					+ this.digestLength + " bytes.");
+		}
+
+		for (int i = 0; i < other.size; i++) {
+			final long number = other.numbers[i];
+			final String name = other.names[i];
+			int idx = number >= 0 ? find(number) : indexOfName(name);
+			if (idx < 0) {
+				idx = append(name, number);
+				if (name != null) {
+					this.nameBytes[idx] = other.nameBytes[i];
+				}
+			}
+			System.arraycopy(other.digests, i * this.digestLength,
+					this.digests, idx * this.digestLength, this.digestLength);
+		}
+	}
+
+	/**
+	 * Move the entries from <code>index</code> on to a new ledger, so that
+	 * this one keeps the first <code>index</code> entries.
+	 *
+	 * @param index
+	 *            The index of the first entry to move, from 0 to
+	 *            {@link #size()}.
+	 * @return a {@link DigestLedger} that holds the moved entries, in order.
+	 */
+	public DigestLedger splitAt(final int index) {
+		if (index < 0 || index > this.size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + this.size);
+		}
+
+		final DigestLedger ret = new DigestLedger(this.digestLength);
+		for (int i = index; i < this.size; i++) {
+			final int idx = ret.append(this.names[i], this.numbers[i]);
+			System.arraycopy(this.digests, i * this.digestLength,
+					ret.digests, idx * this.digestLength, this.digestLength);
+		}
+		// removing the last entry does not move any other
+		while (this.size > index) {
+			removeAt(this.size - 1);
+		}
+		return ret;
+	}
+
+	/**
+	 * @param nonce
+	 *            The nonce to look for.
+	 * @return true if there is a digest for the nonce.
+	 */
+	public boolean contains(final String nonce) {
+		return nonce != null && indexOf(nonce, parseNonce(nonce)) >= 0;
+	}
+
+	/**
+	 * Get a copy of the digest of a nonce.
+	 *
+	 * @param nonce
+	 *            The nonce to look for.
+	 * @return the digest, or <code>null</code> if the nonce is not present.
+	 */
+	public byte[] get(final String nonce) {
+		if (nonce == null) {
+			return null;
+		}
+		final int idx = indexOf(nonce, parseNonce(nonce));
+		return idx < 0 ? null : copyDigest(idx);
+	}
+
+	/**
+	 * Remove a nonce and return its digest.
+	 *
+	 * @param nonce
+	 *            The nonce to remove.
+	 * @return the digest, or <code>null</code> if the nonce was not present.
+	 */
+	public byte[] take(final String nonce) {
+		if (nonce == null) {
+			return null;
+		}
+		final int idx = indexOf(nonce, parseNonce(nonce));
+		if (idx < 0) {
+			return null;
+		}
+		final byte[] ret = copyDigest(idx);
+		removeAt(idx);
+		return ret;
+	}
+
+	/**
+	 * Remove a nonce.
+	 *
+	 * @param nonce
+	 *            The nonce to remove.
+	 * @return true if the nonce was present.
+	 */
+	public boolean remove(final String nonce) {
+		if (nonce == null) {
+			return false;
+		}
+		final int idx = indexOf(nonce, parseNonce(nonce));
+		if (idx < 0) {
+			return false;
+		}
+		removeAt(idx);
+		return true;
+	}
+
+	/**
+	 * Remove every entry.
+	 */
+	public void clear() {
+		Arrays.fill(this.names, 0, this.size, null);
+		Arrays.fill(this.nameBytes, 0, this.size, null);
+		Arrays.fill(this.tableEntries, 0);
+		this.nameIndex.clear();
+		this.size = 0;
+	}
+
+	/**
+	 * @param index
+	 *            The index of the entry, from 0 to {@link #size()} - 1.
+	 * @return the nonce of the entry.
+	 */
+	public String getNonce(final int index) {
+		checkIndex(index);
+		final String name = this.names[index];
+		return name != null ? name : Long.toString(this.numbers[index]);
+	}
+
+	/**
+	 * @param index
+	 *            The index of the entry, from 0 to {@link #size()} - 1.
+	 * @return the number of bytes {@link #writeNonce(int, byte[], int)}
+	 *         writes for the entry.
+	 */
+	public int getNonceLength(final int index) {
+		checkIndex(index);
+		if (this.names[index] != null) {
+			return this.nameBytes[index].length;
+		}
+		return digitCount(this.numbers[index]);
+	}
+
+	/**
+	 * Write the UTF-8 encoding of the nonce of an entry.
+	 *
+	 * @param index
+	 *            The index of the entry, from 0 to {@link #size()} - 1.
+	 * @param dst
+	 *            The array to write to.
+	 * @param off
+	 *            The offset in <code>dst</code> to start writing at.
+	 * @return the offset following the last byte written.
+	 */
+	public int writeNonce(final int index, final byte[] dst, final int off) {
+		checkIndex(index);
+		if (this.names[index] != null) {
+			final byte[] b = this.nameBytes[index];
+			System.arraycopy(b, 0, dst, off, b.length);
+			return off + b.length;
+		}
+		long n = this.numbers[index];
+		final int end = off + digitCount(n);
+		int pos = end;
+		do {
+			dst[--pos] = (byte) ('0' + (int) (n % 10));
+			n /= 10;
+		} while (n != 0);
+		return end;
+	}
+
+	/**
+	 * Write the digest of an entry as lower case hex, 2 *
+	 * {@link #getDigestLength()} bytes.
+	 *
+	 * @param index
+	 *            The index of the entry, from 0 to {@link #size()} - 1.
+	 * @param dst
+	 *            The array to write to.
+	 * @param off
+	 *            The offset in <code>dst</code> to start writing at.
+	 * @return the offset following the last byte written.
+	 */
+	public int writeHex(final int index, final byte[] dst, final int off) {
+		checkIndex(index);
+		int pos = off;
+		final int start = index * this.digestLength;
+		for (int i = start; i < start + this.digestLength; i++) {
+			final int b = this.digests[i] & 0xff;
+			dst[pos++] = HEX[b >>> 4];
+			dst[pos++] = HEX[b & 0x0f];
+		}
+		return pos;
+	}
+
+	/**
+	 * Convert a hex string to bytes. A string with an odd number of
+	 * characters is treated as if it had a leading zero.
+	 *
+	 * @param hex
+	 *            The hex string, in upper or lower case.
+	 * @return the bytes.
+	 * @throws IllegalArgumentException
+	 *             If the string contains a character that is not a hex digit.
+	 */
+	public static byte[] decodeHex(final CharSequence hex) {
+		final int len = hex.length();
+		final byte[] ret = new byte[(len + 1) / 2];
+		int pos = ret.length - 1;
+		for (int i = len - 1; i >= 0; i -= 2) {
+			int b = hexValue(hex.charAt(i));
+			if (i > 0) {
+				b |= hexValue(hex.charAt(i - 1)) << 4;
+			}
+			ret[pos--] = (byte) b;
+		}
+		return ret;
+	}
+
+	private static int hexValue(final char c) {
+		if (c >= '0' && c <= '9') {
+			return c - '0';
+		}
+		if (c >= 'a' && c <= 'f') {
+			return c - 'a' + 10;
+		}
+		if (c >= 'A' && c <= 'F') {
+			return c - 'A' + 10;
+		}
+		throw new IllegalArgumentException("'" + c + "' is not a hex digit.");
+	}
+
+	/**
+	 * Returns the value of a nonce that is a canonical decimal number (no
+	 * sign and no leading zeros), or -1 if it must be kept as a string.
+	 */
+	private static long parseNonce(final String nonce) {
+		final int len = nonce.length();
+		if (len == 0 || len > MAX_NUMERIC_DIGITS
+				|| (len > 1 && nonce.charAt(0) == '0')) {
+			return -1;
+		}
+		long ret = 0;
+		for (int i = 0; i < len; i++) {
+			final char c = nonce.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			ret = ret * 10 + (c - '0');
+		}
+		return ret;
+	}
+
+	private static int digitCount(long n) {
+		int ret = 1;
+		while (n >= 10) {
+			n /= 10;
+			ret++;
+		}
+		return ret;
+	}
+
+	private static int hash(final long key) {
+		final long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private void checkIndex(final int index) {
+		if (index < 0 || index >= this.size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + this.size);
+		}
+	}
+
+	private byte[] copyDigest(final int idx) {
+		final byte[] ret = new byte[this.digestLength];
+		System.arraycopy(this.digests, idx * this.digestLength, ret, 0,
+				this.digestLength);
+		return ret;
+	}
+
+	private int indexOf(final String nonce, final long number) {
+		return number >= 0 ? find(number) : indexOfName(nonce);
+	}
+
+	private int indexOfName(final String name) {
+		final Integer idx = this.nameIndex.get(name);
+		return idx == null ? -1 : idx.intValue();
+	}
+
+	private int find(final long key) {
+		final int mask = this.tableKeys.length - 1;
+		int slot = hash(key) & mask;
+		while (this.tableEntries[slot] != 0) {
+			if (this.tableKeys[slot] == key) {
+				return this.tableEntries[slot] - 1;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private int append(final String nonce, final long number) {
+		if (this.size == this.numbers.length) {
+			grow();
+		}
+		final int idx = this.size++;
+		if (number >= 0) {
+			this.numbers[idx] = number;
+			insert(number, idx);
+		} else {
+			this.numbers[idx] = -1;
+			this.names[idx] = nonce;
+			this.nameBytes[idx] = nonce.getBytes(UTF_8);
+			this.nameIndex.put(nonce, Integer.valueOf(idx));
+		}
+		return idx;
+	}
+
+	private void insert(final long key, final int idx) {
+		final int mask = this.tableKeys.length - 1;
+		int slot = hash(key) & mask;
+		while (this.tableEntries[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		this.tableKeys[slot] = key;
+		this.tableEntries[slot] = idx + 1;
+	}
+
+	/**
+	 * Point the index entry of a nonce at a new entry index.
+	 */
+	private void reindex(final int from, final int to) {
+		final long number = this.numbers[to];
+		if (number < 0) {
+			this.nameIndex.put(this.names[to], Integer.valueOf(to));
+			return;
+		}
+		final int mask = this.tableKeys.length - 1;
+		int slot = hash(number) & mask;
+		while (this.tableEntries[slot] != from + 1) {
+			slot = (slot + 1) & mask;
+		}
+		this.tableEntries[slot] = to + 1;
+	}
+
+	private void removeAt(final int idx) {
+		final long number = this.numbers[idx];
+		if (number >= 0) {
+			unindex(number);
+		} else {
+			this.nameIndex.remove(this.names[idx]);
+		}
+
+		final int last = --this.size;
+		if (idx != last) {
+			this.numbers[idx] = this.numbers[last];
+			this.names[idx] = this.names[last];
+			this.nameBytes[idx] = this.nameBytes[last];
+			System.arraycopy(this.digests, last * this.digestLength,
+					this.digests, idx * this.digestLength, this.digestLength);
+			reindex(last, idx);
+		}
+		this.names[last] = null;
+		this.nameBytes[last] = null;
+	}
+
+	/**
+	 * Remove a key from the open-addressing table, shifting back the
+	 * entries that follow it so that no tombstones are needed.
+	 */
+	private void unindex(final long key) {
+		final int mask = this.tableKeys.length - 1;
+		int slot = hash(key) & mask;
+		while (this.tableKeys[slot] != key || this.tableEntries[slot] == 0) {
+			slot = (slot + 1) & mask;
+		}
+
+		int free = slot;
+		int next = (free + 1) & mask;
+		while (this.tableEntries[next] != 0) {
+			final int home = hash(this.tableKeys[next]) & mask;
+			// move the entry back if its home slot is not between the free
+			// slot and its current slot
+			if (((next - home) & mask) >= ((next - free) & mask)) {
+				this.tableKeys[free] = this.tableKeys[next];
+				this.tableEntries[free] = this.tableEntries[next];
+				free = next;
+			}
+			next = (next + 1) & mask;
+		}
+		this.tableEntries[free] = 0;
+	}
+
+	private void grow() {
+		final int capacity = this.numbers.length * 2;
+		this.numbers = Arrays.copyOf(this.numbers, capacity);
+		this.names = Arrays.copyOf(this.names, capacity);
+		this.nameBytes = Arrays.copyOf(this.nameBytes, capacity);
+		this.digests = Arrays.copyOf(this.digests, capacity * this.digestLength);
+
+		this.tableKeys = new long[capacity * 2];
+		this.tableEntries = new int[capacity * 2];
+		for (int i = 0; i < this.size; i++) {
+			if (this.numbers[i] >= 0) {
+				insert(this.numbers[i], i);
+			}
+		}
+	}
+}
@@ -23,14 +23,15 @@
  */
 package com.tresys.jalop.jnl.impl;
 
-import java.util.Map;
-import java.util.HashMap;
-import java.util.Set;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.beepcore.beep.core.AbortChannelException;
 import org.beepcore.beep.core.BEEPException;
+import org.beepcore.beep.core.Channel;
 import org.beepcore.beep.core.InputDataStreamAdapter;
 import org.beepcore.beep.core.Message;
 import org.beepcore.beep.core.OutputDataStream;
@@ -39,25 +40,55 @@ import org.beepcore.beep.core.ReplyListener;
 import com.tresys.jalop.jnl.DigestStatus;
 import com.tresys.jalop.jnl.exceptions.MissingMimeHeaderException;
 import com.tresys.jalop.jnl.exceptions.UnexpectedMimeValueException;
-import com.tresys.jalop.jnl.impl.messages.DigestResponse;
+import com.tresys.jalop.jnl.impl.messages.DigestResponseParser;
 import com.tresys.jalop.jnl.impl.messages.Utils;
 import com.tresys.jalop.jnl.impl.subscriber.SubscriberSessionImpl;
 
-import java.io.IOException;
-
 /**
  * Listener class to be used for digest messages. This will
  * listen for replies after a message is sent.
+ * <p>
+ * A new {@link DigestListener} is created for every digest message, so it
+ * holds the state of a single digest-response. The response is parsed as
+ * its frames arrive, and each nonce is handled as soon as its status has
+ * been received.
+ * <p>
+ * When sync batching was negotiated for the session, the nonces that are
+ * confirmed are collected instead of synced one at a time, and synced with a
+ * single "sync-batch" message once the whole digest-response has been
+ * processed.
  */
 public class DigestListener implements ReplyListener {
 
 	private final static Logger log = Logger.getLogger(DigestListener.class);
 
+	/**
+	 * The size of the buffer used to read the digest-response.
+	 */
+	static final int BUFFER_SIZE = 4096;
+
 	private final SubscriberSessionImpl subscriberSession;
-	private final Map<String, String> digestsSent;
+	private final DigestLedger digestsSent;
 
-	// Map of partially received payloads, with key being associated data channel
-	private static Map<String, String> messagePayload = new HashMap<String, String>();
+	/**
+	 * When the digest message was sent, to measure its round trip.
+	 */
+	private final long sentNanos;
+
+	/**
+	 * Parses the digest-response, or <code>null</code> before its first
+	 * frame has been received.
+	 */
+	private DigestResponseParser parser;
+	private int msgno;
+	private int expectedCount;
+	private byte[] buffer;
+
+	/**
+	 * The confirmed nonces that still need to be synced, or
+	 * <code>null</code> when each nonce is synced as it is confirmed.
+	 */
+	private List<String> confirmed;
 
 	/**
 	 * Create a new {@link DigestListener}.
@@ -65,11 +96,12 @@ public class DigestListener implements ReplyListener {
 	 * @param subscriberSession
 	 *            The {@link SubscriberSessionImpl} associated with this listener.
 	 * @param digestsSent
-	 *  		  A Map of nonces to digests that have been sent to the publisher.
+	 *  		  A {@link DigestLedger} of nonces to digests that have been sent to the publisher.
 	 */
-	public DigestListener(final SubscriberSessionImpl subscriberSession, final Map<String, String> digestsSent) {
+	public DigestListener(final SubscriberSessionImpl subscriberSession, final DigestLedger digestsSent) {
 		this.subscriberSession = subscriberSession;
 		this.digestsSent = digestsSent;
+		this.sentNanos = System.nanoTime();
 	}
 
 	@Override
@@ -78,80 +110,86 @@ public class DigestListener implements ReplyListener {
 		final InputDataStreamAdapter data = message.getDataStream().getInputStream();
 
 		try {
-			// Read the avaialable payload
-			final int numLeft = data.available();
-			final int digestChannel = message.getChannel().getNumber();
-			final int msgno = message.getMsgno();
-			final String key = digestChannel + "-" + msgno;
-			String newPayload = new String("");
-
-			log.debug("receiveRPY for channel " + digestChannel + ", msgno " + msgno + ", isComplete " + data.isComplete() + ", numLeft " + numLeft);
-			try {
-				newPayload = data.readMessage();
-			} catch (final IOException e) {
-				e.printStackTrace();
+			if (this.parser == null || this.msgno != message.getMsgno()) {
+				this.msgno = message.getMsgno();
+				this.expectedCount = Utils.processDigestResponseCount(data);
+				final Channel channel = message.getChannel();
+				this.parser = new DigestResponseParser(new DigestResponseParser.Handler() {
+					@Override
+					public void handle(final String nonce, final DigestStatus status)
+							throws BEEPException {
+						handleStatus(channel, nonce, status);
+					}
+				});
+				this.buffer = new byte[BUFFER_SIZE];
+				this.confirmed = this.subscriberSession.isSyncBatching()
+						? new ArrayList<String>() : null;
 			}
-			log.trace("[" + newPayload + "]");
-
-			if (this.messagePayload.containsKey(key)) {
-				// Append payload to any previous partially received payloads and save
-				final String previousPayload = this.messagePayload.get(key); 
-				this.messagePayload.put(key, previousPayload + newPayload);
-			} else {
-				// Otherwise save the new payload
-				this.messagePayload.put(key, newPayload);
+
+			// everything that is available once the message is complete is
+			// the rest of the message
+			final boolean complete = data.isComplete();
+			int available;
+			while ((available = data.available()) > 0) {
+				final int n = data.read(this.buffer, 0, Math.min(available, this.buffer.length));
+				if (n < 0) {
+					break;
+				}
+				this.parser.update(this.buffer, 0, n);
 			}
 
-			if (data.isComplete() == true) {
-				final DigestResponse msg = Utils.processDigestResponse(data, this.messagePayload.get(key)); 
-				final Map<String, DigestStatus> statusMap = msg.getMap();
-
-				final Set<String> nonces = statusMap.keySet();
-
-				for(final String nonce : nonces) {
-					log.trace("Processing: " + nonce);
-					if(this.digestsSent.containsKey(nonce)) {
-						// Execute the notify digest callback which will take care of moving the record from temp to perm
-						if (this.subscriberSession.getSubscriber().notifyDigestResponse(this.subscriberSession, nonce, statusMap.get(nonce))) {
-							// For a confirmed digest, send a sync message and remove the nonce from the sent queue 																  
-							if(statusMap.get(nonce) == DigestStatus.Confirmed) {
-								final OutputDataStream ods = Utils.createSyncMessage(nonce);
-								message.getChannel().sendMSG(ods, this);
-							}
-							else {
-								log.warn("Non-confirmed digest received: " + nonce + ", " + statusMap.get(nonce));
-							}
-							// As long as we didn't get a fatal response, remove the digest from the sent list.
-							log.trace("Removing from digestsSent: " + nonce);
-							this.digestsSent.remove(nonce);
-
-						}
-						else {
-							log.error("notifyDigestResponse failure: " + nonce + ", " + statusMap.get(nonce));
-							throw new AbortChannelException("Unrecoverable error in notifyDigestResponse");
-						}
-					}
-					else {
-						log.debug("Digest not found in digestsSent list: " + nonce);
-					}
+			if (!complete) {
+				if (log.isDebugEnabled()) {
+					log.debug("Partial RPY for channel " + message.getChannel().getNumber()
+							+ ", msgno " + message.getMsgno() + ", " + this.parser.getCount()
+							+ " digest statuses so far");
 				}
-				// Add back in any digests that were sent but didn't receive a response
-				if(!this.digestsSent.isEmpty()) {
-					log.debug("Reading digests with no response.");
-					this.subscriberSession.addAllDigests(this.digestsSent);
+				return;
+			}
+
+			if (this.parser.finish() != this.expectedCount) {
+				throw new IllegalArgumentException("The data provided does not match the count or is poorly formed");
+			}
+			this.parser = null;
+			this.buffer = null;
+
+			final long roundTrip = System.nanoTime() - this.sentNanos;
+			final DigestBatcher batcher = this.subscriberSession.getDigestBatcher();
+			if (batcher != null) {
+				batcher.updateRoundTrip(roundTrip);
+			}
+			final ReceiveWindow window = this.subscriberSession.getReceiveWindow();
+			if (window != null) {
+				window.updateRoundTrip(roundTrip);
+			}
+
+			if (this.confirmed != null) {
+				final int size = this.confirmed.size();
+				for (int i = 0; i < size; i += Utils.MAX_SYNC_BATCH_NONCES) {
+					final OutputDataStream ods = Utils.createSyncBatchMessage(this.confirmed.subList(
+							i, Math.min(size, i + Utils.MAX_SYNC_BATCH_NONCES)));
+					message.getChannel().sendMSG(ods, this);
 				}
-				// Complete message processed, so clear out the received message payload storage for this channel.
-				this.messagePayload.remove(key);
 			}
-			else {
-				log.debug("Partial RPY for channel " + digestChannel + ", msgno " + msgno + ", [" + this.messagePayload.get(key) + "]");
-				return;
+			this.confirmed = null;
+
+			// Add back in any digests that were sent but didn't receive a response
+			if(!this.digestsSent.isEmpty()) {
+				log.debug("Reading digests with no response.");
+				this.subscriberSession.addAllDigests(this.digestsSent);
 			}
+		} catch (final AbortChannelException e) {
+			throw e;
 		} catch (final BEEPException e) {
 			if(log.isEnabledFor(Level.ERROR)) {
 				log.error("Error receiving reply: " + e.getMessage());
 			}
 			throw new AbortChannelException(e.getMessage());
+		} catch (final IOException e) {
+			if(log.isEnabledFor(Level.ERROR)) {
+				log.error("Error receiving reply: " + e.getMessage());
+			}
+			throw new AbortChannelException(e.getMessage());
 		} catch (final MissingMimeHeaderException e) {
 			if(log.isEnabledFor(Level.ERROR)) {
 				log.error("Error - Missing Mime Header: " + e.getMessage());
@@ -162,6 +200,47 @@ public class DigestListener implements ReplyListener {
 				log.error("Error - Unexpected value: " + e.getMessage());
 			}
 			throw new AbortChannelException(e.getMessage());
+		} catch (final IllegalArgumentException e) {
+			if(log.isEnabledFor(Level.ERROR)) {
+				log.error("Error - Malformed digest-response: " + e.getMessage());
+			}
+			throw new AbortChannelException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Handle the status the publisher assigned to a single digest.
+	 */
+	private void handleStatus(final Channel channel, final String nonce,
+			final DigestStatus status) throws BEEPException {
+		log.trace("Processing: " + nonce);
+		if(this.digestsSent.contains(nonce)) {
+			// Execute the notify digest callback which will take care of moving the record from temp to perm
+			if (this.subscriberSession.getSubscriber().notifyDigestResponse(this.subscriberSession, nonce, status)) {
+				// For a confirmed digest, send a sync message and remove the nonce from the sent queue
+				if(status == DigestStatus.Confirmed) {
+					if (this.confirmed != null) {
+						this.confirmed.add(nonce);
+					} else {
+						final OutputDataStream ods = Utils.createSyncMessage(nonce);
+						channel.sendMSG(ods, this);
+					}
+				}
+				else {
+					log.warn("Non-confirmed digest received: " + nonce + ", " + status);
+				}
+				// As long as we didn't get a fatal response, remove the digest from the sent list.
+				log.trace("Removing from digestsSent: " + nonce);
+				this.digestsSent.remove(nonce);
+
+			}
+			else {
+				log.error("notifyDigestResponse failure: " + nonce + ", " + status);
+				throw new AbortChannelException("Unrecoverable error in notifyDigestResponse");
+			}
+		}
+		else {
+			log.debug("Digest not found in digestsSent list: " + nonce);
 		}
 	}
 
@@ -0,0 +1,183 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl.impl;
+
+import java.security.MessageDigest;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.tresys.jalop.jnl.impl.messages.Utils;
+
+/**
+ * Calculates a digest on a separate thread while the data is being consumed.
+ * Data is placed into a small ring of reusable buffers; each buffer is handed
+ * to the hashing stage once it is filled, and is only handed out again once
+ * the hashing stage is done with it. The buffers are hashed in the order
+ * they were filled.
+ */
+final class DigestPipeline {
+
+	/**
+	 * The number of buffers in the ring.
+	 */
+	static final int BUFFER_COUNT = 4;
+
+	/**
+	 * The size of each buffer in the ring.
+	 */
+	static final int BUFFER_SIZE = 65536;
+
+	private final MessageDigest md;
+	private final Executor executor;
+	private final byte[][] buffers;
+	private final int[] lengths;
+	private final byte[] scratch;
+
+	private long filled;
+	private long hashed;
+	private boolean running;
+	private RuntimeException failure;
+
+	private final Runnable drain = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	/**
+	 * Create a new {@link DigestPipeline}.
+	 *
+	 * @param md
+	 *            The {@link MessageDigest} to update. It must not be used by
+	 *            any other thread until {@link #join()} returns.
+	 * @param executor
+	 *            The {@link Executor} to run the hashing stage on.
+	 */
+	DigestPipeline(final MessageDigest md, final Executor executor) {
+		this.md = md;
+		this.executor = executor;
+		this.buffers = new byte[BUFFER_COUNT][BUFFER_SIZE];
+		this.lengths = new int[BUFFER_COUNT];
+		this.scratch = new byte[Utils.BREAK_BYTES.length];
+	}
+
+	/**
+	 * Get the next buffer to fill, waiting for the hashing stage to release
+	 * it if necessary. The previous buffer returned by this method must no
+	 * longer be written to.
+	 *
+	 * @return the buffer to fill.
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for the hashing stage.
+	 */
+	synchronized byte[] acquire() throws InterruptedException {
+		while (this.filled - this.hashed >= BUFFER_COUNT && this.failure == null) {
+			this.wait();
+		}
+		if (this.failure != null) {
+			throw this.failure;
+		}
+		return this.buffers[(int) (this.filled % BUFFER_COUNT)];
+	}
+
+	/**
+	 * Hand the buffer last returned by {@link #acquire()} to the hashing
+	 * stage.
+	 *
+	 * @param len
+	 *            The number of bytes, starting at offset 0, to hash.
+	 */
+	void submit(final int len) {
+		synchronized (this) {
+			this.lengths[(int) (this.filled % BUFFER_COUNT)] = len;
+			this.filled++;
+			if (this.running) {
+				return;
+			}
+			this.running = true;
+		}
+		try {
+			this.executor.execute(this.drain);
+		} catch (final RejectedExecutionException e) {
+			// the executor has been shut down, hash on this thread instead
+			drain();
+		}
+	}
+
+	/**
+	 * Get a buffer, large enough to hold the BREAK marker, that is never
+	 * handed to the hashing stage.
+	 *
+	 * @return the scratch buffer.
+	 */
+	byte[] scratch() {
+		return this.scratch;
+	}
+
+	/**
+	 * Wait for the hashing stage to finish with every submitted buffer.
+	 *
+	 * @throws InterruptedException
+	 *             If interrupted while waiting.
+	 */
+	synchronized void join() throws InterruptedException {
+		while (this.hashed < this.filled && this.failure == null) {
+			this.wait();
+		}
+		if (this.failure != null) {
+			throw this.failure;
+		}
+	}
+
+	private void drain() {
+		while (true) {
+			final int idx;
+			synchronized (this) {
+				if (this.hashed == this.filled) {
+					this.running = false;
+					this.notifyAll();
+					return;
+				}
+				idx = (int) (this.hashed % BUFFER_COUNT);
+			}
+
+			try {
+				this.md.update(this.buffers[idx], 0, this.lengths[idx]);
+			} catch (final RuntimeException e) {
+				synchronized (this) {
+					this.failure = e;
+					this.running = false;
+					this.notifyAll();
+				}
+				return;
+			}
+
+			synchronized (this) {
+				this.hashed++;
+				this.notifyAll();
+			}
+		}
+	}
+}
@@ -24,12 +24,11 @@
 
 package com.tresys.jalop.jnl.impl;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
-import javax.xml.bind.DatatypeConverter;
-
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.beepcore.beep.core.BEEPException;
@@ -38,13 +37,16 @@ import org.beepcore.beep.core.MessageMSG;
 import org.beepcore.beep.core.OutputDataStream;
 import org.beepcore.beep.core.RequestHandler;
 
+import com.tresys.jalop.jnl.BatchSyncPublisher;
 import com.tresys.jalop.jnl.DigestPair;
 import com.tresys.jalop.jnl.DigestStatus;
 import com.tresys.jalop.jnl.Publisher;
 import com.tresys.jalop.jnl.RecordType;
 import com.tresys.jalop.jnl.exceptions.MissingMimeHeaderException;
 import com.tresys.jalop.jnl.exceptions.UnexpectedMimeValueException;
-import com.tresys.jalop.jnl.impl.messages.DigestMessage;
+import com.tresys.jalop.jnl.impl.messages.DigestMessageDecoder;
+import com.tresys.jalop.jnl.impl.messages.HeaderCodec;
+import com.tresys.jalop.jnl.impl.messages.SyncBatchMessage;
 import com.tresys.jalop.jnl.impl.messages.SyncMessage;
 import com.tresys.jalop.jnl.impl.messages.Utils;
 import com.tresys.jalop.jnl.impl.publisher.PublisherSessionImpl;
@@ -55,12 +57,17 @@ import com.tresys.jalop.jnl.impl.publisher.PublisherSessionImpl;
 public class DigestRequestHandler implements RequestHandler {
 
 	static Logger log = Logger.getLogger(DigestRequestHandler.class);
-	static final String LEADING_ZERO = "0";
 
 	RecordType recordType;
 	ContextImpl contextImpl;
 	PublisherSessionImpl sess;
 
+	/**
+	 * The {@link SegmentPool} digest responses are written into, created
+	 * for the channel of the first digest message.
+	 */
+	private SegmentPool segmentPool;
+
 	/**
 	 * Create a new {@link DigestRequestHandler}.
 	 *
@@ -90,45 +97,72 @@ public class DigestRequestHandler implements RequestHandler {
 		try {
 			final Publisher publisher = this.contextImpl.getPublisher();
 
-			if(Utils.MSG_DIGEST.equals(data.getHeaderValue(Utils.HDRS_MESSAGE))) {
+			final int msgType = HeaderCodec.lookupMessage(data.getHeaderValue(Utils.HDRS_MESSAGE));
+			if(msgType == HeaderCodec.MSG_DIGEST) {
 
 				if (log.isDebugEnabled()) {
 					log.debug("Received digest message.");
 				}
 
-				final DigestMessage msg = Utils.processDigestMessage(data);
+				final int count = Utils.processDigestMessageCount(data);
 				final Map<String, DigestStatus> digestStatusMap = new HashMap<String, DigestStatus>();
 				final Map<String, DigestPair> digestPairMap = new HashMap<String, DigestPair>();
 
-				for(final String nonce : msg.getMap().keySet()) {
-
-					final byte[] localDigest = this.sess.fetchAndRemoveDigest(nonce);
-
-					String digest = msg.getMap().get(nonce);
-					// Digest must be an even length to be converted to byte[]
-					if(digest.length() % 2 == 1) {
-						digest = LEADING_ZERO + digest;
+				// each digest is compared as soon as it has been decoded
+				final DigestMessageDecoder decoder = new DigestMessageDecoder(
+						new DigestMessageDecoder.Handler() {
+							@Override
+							public void handle(final String nonce, final byte[] peerDigest) {
+								final byte[] localDigest = DigestRequestHandler.this.sess.fetchAndRemoveDigest(nonce);
+
+								DigestStatus ds;
+								if(Arrays.equals(localDigest, peerDigest)) {
+									ds = DigestStatus.Confirmed;
+								} else {
+									ds = DigestStatus.Invalid;
+								}
+
+								final DigestPair dp = new DigestPairImpl(nonce, localDigest, peerDigest, ds);
+								digestPairMap.put(nonce, dp);
+								digestStatusMap.put(nonce, ds);
+							}
+						});
+				try {
+					if (decoder.decode(data) != count && log.isEnabledFor(Level.WARN)) {
+						log.warn("Digest message holds " + decoder.getCount()
+								+ " digests, expected " + count);
 					}
-
-					final byte[] peerDigest =  DatatypeConverter.parseHexBinary(digest);
-
-					DigestStatus ds;
-					if(Arrays.equals(localDigest, peerDigest)) {
-						ds = DigestStatus.Confirmed;
-					} else {
-						ds = DigestStatus.Invalid;
+				} catch (final IllegalArgumentException e) {
+					// still answer for the digests that were compared, they
+					// have been removed from the session
+					if (log.isEnabledFor(Level.ERROR)) {
+						log.error("Error - Malformed digest message: " + e.getMessage());
 					}
-
-					final DigestPair dp = new DigestPairImpl(nonce, localDigest, peerDigest, ds);
-					digestPairMap.put(nonce, dp);
-					digestStatusMap.put(nonce, ds);
 				}
 
 				publisher.notifyPeerDigest(this.sess, digestPairMap);
 
-				final OutputDataStream ods = Utils.createDigestResponse(digestStatusMap);
+				final OutputDataStream ods = Utils.createDigestResponse(
+						digestStatusMap, getSegmentPool(message.getChannel()));
 				message.sendRPY(ods);
 
+			} else if (msgType == HeaderCodec.MSG_SYNC_BATCH) {
+
+				if (log.isDebugEnabled()) {
+					log.debug("Received sync-batch message.");
+				}
+
+				final SyncBatchMessage msg = Utils.processSyncBatchMessage(data);
+				if (publisher instanceof BatchSyncPublisher) {
+					((BatchSyncPublisher) publisher).syncBatch(sess, msg.getNonces(),
+							msg.getOtherHeaders());
+				} else {
+					for (final String nonce : msg.getNonces()) {
+						publisher.sync(sess, nonce, msg.getOtherHeaders());
+					}
+				}
+				message.sendNUL();
+
 			} else {
 
 				if (log.isDebugEnabled()) {
@@ -144,6 +178,10 @@ public class DigestRequestHandler implements RequestHandler {
 			if (log.isEnabledFor(Level.ERROR)) {
 				log.error("Error receiving message: " + e.getMessage());
 			}
+		} catch (final IOException e) {
+			if (log.isEnabledFor(Level.ERROR)) {
+				log.error("Error receiving message: " + e.getMessage());
+			}
 		} catch (final MissingMimeHeaderException e) {
 			if (log.isEnabledFor(Level.ERROR)) {
 				log.error("Error - Missing Mime Header: " + e.getMessage());
@@ -152,7 +190,21 @@ public class DigestRequestHandler implements RequestHandler {
 			if (log.isEnabledFor(Level.ERROR)) {
 				log.error("Error - Unexpected value: " + e.getMessage());
 			}
+		} catch (final IllegalArgumentException e) {
+			if (log.isEnabledFor(Level.ERROR)) {
+				log.error("Error - Malformed message: " + e.getMessage());
+			}
 		}
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Get the {@link SegmentPool} for the channel digest responses are sent
+	 * on.
+	 */
+	private synchronized SegmentPool getSegmentPool(final Object channel) {
+		if (this.segmentPool == null || this.segmentPool.getSendLock() != channel) {
+			this.segmentPool = new SegmentPool(BufferPool.getDefault(), channel);
+		}
+		return this.segmentPool;
+	}
+}
@@ -38,6 +38,7 @@ import org.beepcore.beep.core.Message;
 import org.beepcore.beep.core.OutputDataStream;
 import org.beepcore.beep.core.ReplyListener;
 
+import com.tresys.jalop.jnl.CheckpointedSubscribeRequest;
 import com.tresys.jalop.jnl.ConnectionHandler.ConnectError;
 import com.tresys.jalop.jnl.Mode;
 import com.tresys.jalop.jnl.Publisher;
@@ -117,10 +118,26 @@ public class InitListener implements ReplyListener {
 						this.address, this.recordType, subscriber, msg.getDigest(),
 						msg.getEncoding(), contextImpl.getDefaultDigestTimeout(),
 						contextImpl.getDefaultPendingDigestMax(), message.getChannel().getNumber(),
-						message.getChannel().getSession());
+						message.getChannel().getSession(), contextImpl.getRecordDispatcher());
+
+				// the remote accepted the sync batching that was proposed
+				if (contextImpl.isSyncBatching()
+						&& Utils.SYNC_BATCH_NONCE_LIST.equalsIgnoreCase(msg.getSyncBatching())) {
+					sessionImpl.setSyncBatching(true);
+				}
 
 				this.contextImpl.addSession(message.getChannel().getSession(), sessionImpl);
 
+				final ReceiveWindowPolicy windowPolicy = contextImpl.getReceiveWindowPolicy();
+				if (windowPolicy != null) {
+					sessionImpl.setReceiveWindow(windowPolicy.open(message.getChannel()));
+				}
+
+				final DigestBatchPolicy batchPolicy = contextImpl.getDigestBatchPolicy();
+				if (batchPolicy != null) {
+					sessionImpl.setDigestBatcher(batchPolicy.open());
+				}
+
 				final SubscribeRequest request = subscriber.getSubscribeRequest(sessionImpl);
 				final OutputDataStream ods;
 				if(request.getResumeOffset() > 0 && RecordType.Journal.equals(this.recordType)) {
@@ -130,6 +147,10 @@ public class InitListener implements ReplyListener {
 					final InputStream resumeInputStream = request.getResumeInputStream();
 					sessionImpl.setJournalResumeIS(resumeInputStream);
 					sessionImpl.setJournalResumeOffset(request.getResumeOffset());
+					if (request instanceof CheckpointedSubscribeRequest) {
+						sessionImpl.setJournalResumeCheckpoint(
+								((CheckpointedSubscribeRequest) request).getDigestCheckpoint());
+					}
 					ods = Utils.createJournalResumeMessage(request.getNonce(), request.getResumeOffset());
 				} else {
 					ods = Utils.createSubscribeMessage();
@@ -147,6 +168,13 @@ public class InitListener implements ReplyListener {
 						msg.getEncoding(), message.getChannel().getNumber(),
 						message.getChannel().getSession(), this.contextImpl);
 
+				// the remote accepted the record coalescing that was proposed
+				final int coalescingLimit = contextImpl.getCoalescingLimit();
+				if (coalescingLimit > 0
+						&& Utils.COALESCE_LENGTH_TABLE.equalsIgnoreCase(msg.getCoalescing())) {
+					sessionImpl.setCoalescingLimit(coalescingLimit);
+				}
+
 				this.contextImpl.addSession(message.getChannel().getSession(),
 						sessionImpl);
 
@@ -24,6 +24,9 @@
 
 package com.tresys.jalop.jnl.impl;
 
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.beepcore.beep.core.MimeHeaders;
@@ -34,13 +37,109 @@ import org.beepcore.beep.util.BufferSegment;
  * Extension of the {@link OutputDataStream} class to limit the number of
  * {@link BufferSegment}s that can be added. Once the maximum number of buffers
  * has been reached this will wait until one had been removed to allow more additions.
+ * <p>
+ * The segments that have been added and not yet fully handed to beepcore are
+ * tracked in a bounded ring that has a single producer, the thread adding
+ * segments, and a single consumer, the beepcore thread writing frames. The
+ * producer and consumer only share the volatile head and tail of the ring, so
+ * the consumer does not signal the producer unless it is parked waiting for
+ * room. A waiting producer spins briefly before parking.
+ * <p>
+ * A stream can be cancelled, for instance when its session fails. A cancelled
+ * stream stops waiting, discards any segment added to it, and is never
+ * completed.
  */
 public class JNLOutputDataStream extends OutputDataStream {
 
 	static Logger log = Logger.getLogger(JNLOutputDataStream.class);
 
+	/**
+	 * The largest number of segments a stream holds, regardless of the
+	 * maximum number of buffers it was created with.
+	 */
+	static final int MAX_CAPACITY = 1024;
+
+	/**
+	 * The number of times a waiting producer checks for room before it
+	 * parks.
+	 */
+	static final int SPIN_TRIES = 64;
+
+	/**
+	 * The longest time, in nanoseconds, a producer parks before it checks
+	 * for room again.
+	 */
+	static final long PARK_NANOS = 10 * 1000 * 1000;
+
 	private final int maxBuffers;
 
+	/**
+	 * The {@link SegmentPool} pooled buffers are returned to, or
+	 * <code>null</code>.
+	 */
+	private final SegmentPool segmentPool;
+
+	/**
+	 * The segments that were added and have not been fully handed to
+	 * beepcore, in the order they were added.
+	 */
+	private final BufferSegment[] segments;
+
+	/**
+	 * The pooled buffer of each segment in {@link #segments}, or
+	 * <code>null</code> if the segment was not pooled.
+	 */
+	private final byte[][] pooled;
+
+	private final int mask;
+
+	/**
+	 * The number of segments that have been added, only written by the
+	 * producer.
+	 */
+	private volatile long tail;
+
+	/**
+	 * The number of segments that have been fully handed out, only written
+	 * by the consumer.
+	 */
+	private volatile long head;
+
+	/**
+	 * The number of bytes of the segment at the head of the ring that have
+	 * been handed out.
+	 */
+	private int headSent;
+
+	private volatile Thread waiter;
+	private volatile boolean cancelled;
+
+	private volatile int peakQueueDepth;
+	private volatile long bytesSent;
+	private volatile long firstSendNanos;
+	private volatile long lastSendNanos;
+	private final AtomicLong waitCount = new AtomicLong();
+	private final AtomicLong waitNanos = new AtomicLong();
+
+	/**
+	 * Whether a segment was still queued when beepcore last took one, only
+	 * used by the consumer.
+	 */
+	private boolean queuedAtLastSend;
+
+	/**
+	 * The longest time beepcore left a queued segment alone. beepcore only
+	 * does that while it waits for the remote to open its window, which
+	 * takes a round trip.
+	 */
+	private volatile long stallNanos;
+
+	/**
+	 * The number of segments added to an empty queue after the stream had
+	 * been full, only written by the producer.
+	 */
+	private volatile long underrunCount;
+
 	/**
 	 * Create a JNLOutputDataStream with the given headers.
 	 *
@@ -48,32 +147,261 @@ public class JNLOutputDataStream extends OutputDataStream {
 	 * 				The {@link MimeHeaders} for this stream.
 	 */
 	public JNLOutputDataStream (final MimeHeaders headers, final int maxBuffers) {
-		super(headers);
-		this.maxBuffers = maxBuffers;
+		this(headers.getBufferSegment(), maxBuffers, null);
+	}
+
+	/**
+	 * Create a JNLOutputDataStream whose MIME headers are already encoded.
+	 *
+	 * @param headers
+	 * 				The {@link BufferSegment} that holds the encoded MIME
+	 * 				headers, including the blank line that ends them.
+	 */
+	public JNLOutputDataStream (final BufferSegment headers, final int maxBuffers) {
+		this(headers, maxBuffers, null);
+	}
+
+	/**
+	 * Create a JNLOutputDataStream whose MIME headers are already encoded,
+	 * and that returns the buffers added with {@link #addPooled(byte[], int)}
+	 * to a {@link SegmentPool}.
+	 *
+	 * @param headers
+	 * 				The {@link BufferSegment} that holds the encoded MIME
+	 * 				headers, including the blank line that ends them.
+	 * @param maxBuffers
+	 * 				The maximum number of segments, including the headers,
+	 * 				held at once. At most {@link #MAX_CAPACITY} are held.
+	 * @param segmentPool
+	 * 				The {@link SegmentPool} the buffers were taken from.
+	 */
+	public JNLOutputDataStream (final BufferSegment headers, final int maxBuffers,
+			final SegmentPool segmentPool) {
+		super();
+		if (maxBuffers <= 0) {
+			throw new IllegalArgumentException("'maxBuffers' must be a positive number.");
+		}
+		final int capacity = Integer.highestOneBit(
+				Math.min(maxBuffers, MAX_CAPACITY) * 2 - 1);
+		this.maxBuffers = Math.min(maxBuffers, capacity);
+		this.segmentPool = segmentPool;
+		this.segments = new BufferSegment[capacity];
+		this.pooled = new byte[capacity][];
+		this.mask = capacity - 1;
+		// the headers are always accepted
+		offer(headers, null);
 	}
 
 	@Override
 	protected BufferSegment getNextSegment(final int maxLength) {
 		final BufferSegment toReturn = super.getNextSegment(maxLength);
-		synchronized(this) {
-			this.notifyAll();
+
+		final long now = System.nanoTime();
+		if (this.bytesSent == 0) {
+			this.firstSendNanos = now;
+		} else if (this.queuedAtLastSend && now - this.lastSendNanos > this.stallNanos) {
+			this.stallNanos = now - this.lastSendNanos;
+		}
+		this.lastSendNanos = now;
+		this.bytesSent += toReturn.getLength();
+
+		// only the consumer moves the head, and beepcore never hands out
+		// more than one segment at a time
+		final long h = this.head;
+		final int idx = (int) (h & this.mask);
+		this.headSent += toReturn.getLength();
+		if (this.headSent >= this.segments[idx].getLength()) {
+			final byte[] buf = this.pooled[idx];
+			this.segments[idx] = null;
+			this.pooled[idx] = null;
+			this.headSent = 0;
+			this.head = h + 1;
+			if (buf != null) {
+				this.segmentPool.consumed(buf);
+			}
+			final Thread w = this.waiter;
+			if (w != null) {
+				LockSupport.unpark(w);
+			}
 		}
+		this.queuedAtLastSend = this.tail != this.head;
 		return toReturn;
 	}
 
+	/**
+	 * Add a buffer that was taken from the {@link SegmentPool} of this
+	 * stream. The buffer is returned to the pool once it has been sent, and
+	 * must not be modified after it is added.
+	 *
+	 * @param buf
+	 * 				The buffer.
+	 * @param length
+	 * 				The number of bytes, starting at offset 0, to send.
+	 */
+	public void addPooled(final byte[] buf, final int length) {
+		if (this.segmentPool == null) {
+			throw new IllegalStateException("This stream has no SegmentPool.");
+		}
+		if (!awaitRoom()) {
+			this.segmentPool.recycle(buf);
+			return;
+		}
+		offer(new BufferSegment(buf, 0, length), buf);
+	}
+
 	@Override
 	public void add(final BufferSegment segment) {
-		synchronized(this) {
-			while (this.getNumSegments() >= this.maxBuffers) {
-				try {
-					this.wait();
-				} catch (final InterruptedException e) {
-					if (log.isEnabledFor(Level.ERROR)) {
-						log.error("Error: " + e.getMessage());
+		if (awaitRoom()) {
+			offer(segment, null);
+		}
+	}
+
+	@Override
+	public void setComplete() {
+		if (!this.cancelled) {
+			super.setComplete();
+		}
+	}
+
+	/**
+	 * Stop waiting for room, and discard every segment added from now on.
+	 * This may be called from any thread.
+	 */
+	public void cancel() {
+		this.cancelled = true;
+		final Thread w = this.waiter;
+		if (w != null) {
+			LockSupport.unpark(w);
+		}
+	}
+
+	/**
+	 * @return whether this stream was cancelled
+	 */
+	public boolean isCancelled() {
+		return this.cancelled;
+	}
+
+	/**
+	 * @return the number of segments that have been added and not yet fully
+	 *         handed to beepcore
+	 */
+	public int getQueueDepth() {
+		return (int) (this.tail - this.head);
+	}
+
+	/**
+	 * @return the largest number of segments held at once
+	 */
+	public int getPeakQueueDepth() {
+		return this.peakQueueDepth;
+	}
+
+	/**
+	 * @return the number of times adding a segment had to wait for room
+	 */
+	public long getWaitCount() {
+		return this.waitCount.get();
+	}
+
+	/**
+	 * @return the time, in nanoseconds, spent waiting for room
+	 */
+	public long getWaitNanos() {
+		return this.waitNanos.get();
+	}
+
+	/**
+	 * @return the longest time, in nanoseconds, beepcore waited before
+	 *         taking a segment that was already queued, which is the round
+	 *         trip of a window update if beepcore ran out of window, or 0.
+	 */
+	public long getStallNanos() {
+		return this.stallNanos;
+	}
+
+	/**
+	 * @return the number of times beepcore took every queued segment of a
+	 *         stream that had been full, so that it was waiting for more.
+	 *         A larger queue would have let it send more at once.
+	 */
+	public long getUnderrunCount() {
+		return this.underrunCount;
+	}
+
+	/**
+	 * @return the number of bytes handed to beepcore
+	 */
+	public long getBytesSent() {
+		return this.bytesSent;
+	}
+
+	/**
+	 * @return the time, in nanoseconds, between beepcore taking the first
+	 *         and the last bytes of this stream
+	 */
+	public long getSendNanos() {
+		return this.lastSendNanos - this.firstSendNanos;
+	}
+
+	/**
+	 * Wait until there is room for another segment.
+	 *
+	 * @return <code>false</code> if the stream was cancelled.
+	 */
+	private boolean awaitRoom() {
+		if (this.tail - this.head < this.maxBuffers || this.cancelled) {
+			return !this.cancelled;
+		}
+
+		this.waitCount.incrementAndGet();
+		final long start = System.nanoTime();
+		try {
+			for (int i = 0; i < SPIN_TRIES; i++) {
+				if (this.tail - this.head < this.maxBuffers || this.cancelled) {
+					return !this.cancelled;
+				}
+				Thread.yield();
+			}
+
+			this.waiter = Thread.currentThread();
+			try {
+				// check again now the consumer can see the waiter
+				while (this.tail - this.head >= this.maxBuffers && !this.cancelled) {
+					LockSupport.parkNanos(this, PARK_NANOS);
+					if (Thread.interrupted()) {
+						if (log.isEnabledFor(Level.ERROR)) {
+							log.error("Interrupted while waiting to send, cancelling the stream");
+						}
+						Thread.currentThread().interrupt();
+						cancel();
 					}
 				}
+			} finally {
+				this.waiter = null;
 			}
+			return !this.cancelled;
+		} finally {
+			this.waitNanos.addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Put a segment in the ring and hand it to beepcore.
+	 */
+	private void offer(final BufferSegment segment, final byte[] buf) {
+		final long t = this.tail;
+		if (t == this.head && this.waitCount.get() > 0) {
+			this.underrunCount++;
 		}
-        super.add(segment);
-    }
+		final int idx = (int) (t & this.mask);
+		this.segments[idx] = segment;
+		this.pooled[idx] = buf;
+		this.tail = t + 1;
+		final int depth = (int) (t + 1 - this.head);
+		if (depth > this.peakQueueDepth) {
+			this.peakQueueDepth = depth;
+		}
+		super.add(segment);
+	}
 }
@@ -49,6 +49,7 @@ import org.beepcore.beep.profile.Profile;
 import org.beepcore.beep.profile.ProfileConfiguration;
 import org.beepcore.beep.transport.tcp.TCPSession;
 
+import com.tresys.jalop.jnl.CheckpointedSubscribeRequest;
 import com.tresys.jalop.jnl.ConnectionHandler.ConnectError;
 import com.tresys.jalop.jnl.Mode;
 import com.tresys.jalop.jnl.Publisher;
@@ -102,6 +103,21 @@ public class ListenerProfile implements Profile, StartChannelListener, RequestHa
 		if(log.isDebugEnabled()) {
 			log.debug("Closing channel number: " + channel.getNumber());
 		}
+
+		try {
+			if (this.role == Role.Subscriber) {
+				this.contextImpl.findSubscriberSession(channel.getSession(),
+						channel.getNumber()).release();
+			} else if (this.role == Role.Publisher) {
+				this.contextImpl.findPublisherSession(channel.getSession(),
+						channel.getNumber()).release();
+			}
+		} catch (final JNLException e) {
+			// Only the data channel of a session has anything to release.
+			if (log.isDebugEnabled()) {
+				log.debug(e.getMessage());
+			}
+		}
 	}
 
 	@Override
@@ -188,8 +204,20 @@ public class ListenerProfile implements Profile, StartChannelListener, RequestHa
 				commonEncodings.retainAll(this.contextImpl.getAllowedXmlEncodings());
 				connRequest.setSelectedXmlEncoding(commonEncodings.get(0));
 
+				// only coalesce records when both sides have it enabled
+				final int coalescingLimit = this.contextImpl.getCoalescingLimit();
+				final String coalescing = coalescingLimit > 0
+						&& msg.getAcceptCoalescing().contains(Utils.COALESCE_LENGTH_TABLE)
+						? Utils.COALESCE_LENGTH_TABLE : null;
+
+				// only batch syncs when both sides have it enabled
+				final String syncBatching = this.contextImpl.isSyncBatching()
+						&& msg.getAcceptSyncBatching().contains(Utils.SYNC_BATCH_NONCE_LIST)
+						? Utils.SYNC_BATCH_NONCE_LIST : null;
+
 				OutputDataStream subscriberOds = null;
 				ReplyListener subscriberListener = null;
+				SubscriberSessionImpl subscriberSession = null;
 
 				if(msg.getRole() == Role.Publisher) {
 					if(log.isDebugEnabled()) {
@@ -203,13 +231,23 @@ public class ListenerProfile implements Profile, StartChannelListener, RequestHa
 							this.address, msg.getRecordType(), subscriber, connRequest.getSelectedXmlDigest(),
 							connRequest.getSelectedXmlEncoding(), this.contextImpl.getDefaultDigestTimeout(),
 							this.contextImpl.getDefaultPendingDigestMax(), message.getChannel().getNumber(),
-							message.getChannel().getSession());
+							message.getChannel().getSession(), this.contextImpl.getRecordDispatcher());
+
+					if (syncBatching != null) {
+						sessionImpl.setSyncBatching(true);
+					}
+
+					final DigestBatchPolicy batchPolicy = this.contextImpl.getDigestBatchPolicy();
+					if (batchPolicy != null) {
+						sessionImpl.setDigestBatcher(batchPolicy.open());
+					}
 
 					this.contextImpl.addSession(message.getChannel().getSession(), sessionImpl);
 
 					final SubscribeRequest request = subscriber.getSubscribeRequest(sessionImpl);
 
 					subscriberListener = sessionImpl.getListener();
+					subscriberSession = sessionImpl;
 
 					if(request.getResumeOffset() > 0 && RecordType.Journal.equals(msg.getRecordType())) {
 						if(log.isDebugEnabled()) {
@@ -218,6 +256,10 @@ public class ListenerProfile implements Profile, StartChannelListener, RequestHa
 						final InputStream resumeInputStream = request.getResumeInputStream();
 						sessionImpl.setJournalResumeIS(resumeInputStream);
 						sessionImpl.setJournalResumeOffset(request.getResumeOffset());
+						if (request instanceof CheckpointedSubscribeRequest) {
+							sessionImpl.setJournalResumeCheckpoint(
+									((CheckpointedSubscribeRequest) request).getDigestCheckpoint());
+						}
 						subscriberOds = Utils.createJournalResumeMessage(request.getNonce(), request.getResumeOffset());
 					} else {
 						subscriberOds = Utils.createSubscribeMessage();
@@ -237,12 +279,20 @@ public class ListenerProfile implements Profile, StartChannelListener, RequestHa
 							connRequest.getSelectedXmlEncoding(), message.getChannel().getNumber(),
 							message.getChannel().getSession(), this.contextImpl);
 					sessionImpl.setMode(msg.getMode());
+					if (coalescing != null) {
+						sessionImpl.setCoalescingLimit(coalescingLimit);
+					}
 
 					this.contextImpl.addSession(message.getChannel().getSession(),
 							sessionImpl);
 				}
 
-				ods = Utils.createInitAckMessage(connRequest.getSelectedXmlDigest(), connRequest.getSelectedXmlEncoding());
+				if (coalescing != null || syncBatching != null) {
+					ods = Utils.createInitAckMessage(connRequest.getSelectedXmlDigest(),
+							connRequest.getSelectedXmlEncoding(), coalescing, syncBatching);
+				} else {
+					ods = Utils.createInitAckMessage(connRequest.getSelectedXmlDigest(), connRequest.getSelectedXmlEncoding());
+				}
 
 				if(msg.getRole() == Role.Subscriber) {
 					message.getChannel().setRequestHandler(new PublisherRequestHandler(msg.getRecordType(), this.contextImpl));
@@ -251,6 +301,10 @@ public class ListenerProfile implements Profile, StartChannelListener, RequestHa
 				message.sendRPY(ods);
 
 				if(msg.getRole() == Role.Publisher) {
+					final ReceiveWindowPolicy windowPolicy = this.contextImpl.getReceiveWindowPolicy();
+					if (windowPolicy != null) {
+						subscriberSession.setReceiveWindow(windowPolicy.open(message.getChannel()));
+					}
 					message.getChannel().sendMSG(subscriberOds, subscriberListener);
 				}
 
@@ -0,0 +1,193 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl.impl;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of {@link MessageDigest} engines for a single algorithm. A
+ * {@link MessageDigest} keeps the state of the data hashed so far, so an
+ * engine must only be used for one record at a time. Each record acquires
+ * its own engine and releases it once its digest has been calculated, which
+ * lets several records of the same session be hashed at the same time.
+ * <p>
+ * Looking up an algorithm through the security providers is comparatively
+ * expensive, so released engines are reset and kept for reuse, up to a
+ * fixed number per algorithm.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class MessageDigestPool {
+
+	/**
+	 * The default number of idle engines kept per algorithm.
+	 */
+	public static final int DEFAULT_MAX_IDLE = 16;
+
+	private static final ConcurrentMap<String, MessageDigestPool> POOLS =
+			new ConcurrentHashMap<String, MessageDigestPool>();
+
+	private final String algorithm;
+	private final int digestLength;
+	private final int maxIdle;
+	private final ArrayDeque<MessageDigest> idle;
+	private final AtomicLong createdCount;
+
+	/**
+	 * Create a new {@link MessageDigestPool}.
+	 *
+	 * @param algorithm
+	 *            The name of the algorithm, as passed to
+	 *            {@link MessageDigest#getInstance(String)}.
+	 * @param maxIdle
+	 *            The number of released engines to keep for reuse.
+	 * @throws NoSuchAlgorithmException
+	 *             If no provider supports the algorithm.
+	 */
+	public MessageDigestPool(final String algorithm, final int maxIdle)
+			throws NoSuchAlgorithmException {
+
+		if (maxIdle < 0) {
+			throw new IllegalArgumentException("'maxIdle' must be 0 or greater.");
+		}
+
+		final MessageDigest first = MessageDigest.getInstance(algorithm);
+		this.algorithm = algorithm;
+		this.digestLength = first.getDigestLength();
+		this.maxIdle = maxIdle;
+		this.idle = new ArrayDeque<MessageDigest>();
+		this.createdCount = new AtomicLong(1);
+		if (maxIdle > 0) {
+			this.idle.push(first);
+		}
+	}
+
+	/**
+	 * Get the shared {@link MessageDigestPool} of an algorithm, creating it
+	 * on first use.
+	 *
+	 * @param algorithm
+	 *            The name of the algorithm, as passed to
+	 *            {@link MessageDigest#getInstance(String)}.
+	 * @return the shared {@link MessageDigestPool}
+	 * @throws NoSuchAlgorithmException
+	 *             If no provider supports the algorithm.
+	 */
+	public static MessageDigestPool forAlgorithm(final String algorithm)
+			throws NoSuchAlgorithmException {
+		MessageDigestPool pool = POOLS.get(algorithm);
+		if (pool == null) {
+			pool = new MessageDigestPool(algorithm, DEFAULT_MAX_IDLE);
+			final MessageDigestPool prev = POOLS.putIfAbsent(algorithm, pool);
+			if (prev != null) {
+				pool = prev;
+			}
+		}
+		return pool;
+	}
+
+	/**
+	 * Take an engine from the pool, creating one if none is idle. The engine
+	 * is in its initial state.
+	 *
+	 * @return the {@link MessageDigest}
+	 */
+	public MessageDigest acquire() {
+		synchronized (this.idle) {
+			final MessageDigest md = this.idle.poll();
+			if (md != null) {
+				return md;
+			}
+		}
+		try {
+			final MessageDigest md = MessageDigest.getInstance(this.algorithm);
+			this.createdCount.incrementAndGet();
+			return md;
+		} catch (final NoSuchAlgorithmException e) {
+			// the algorithm was available when the pool was created
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Return an engine to the pool. It is reset, and must no longer be used
+	 * by the caller.
+	 *
+	 * @param md
+	 *            The {@link MessageDigest} returned by {@link #acquire()}.
+	 */
+	public void release(final MessageDigest md) {
+		if (md == null || !this.algorithm.equals(md.getAlgorithm())) {
+			return;
+		}
+		md.reset();
+		synchronized (this.idle) {
+			if (this.idle.size() < this.maxIdle) {
+				this.idle.push(md);
+			}
+		}
+	}
+
+	/**
+	 * @return the algorithm
+	 */
+	public String getAlgorithm() {
+		return this.algorithm;
+	}
+
+	/**
+	 * @return the length, in bytes, of the digests of the algorithm
+	 */
+	public int getDigestLength() {
+		return this.digestLength;
+	}
+
+	/**
+	 * @return the maxIdle
+	 */
+	public int getMaxIdle() {
+		return this.maxIdle;
+	}
+
+	/**
+	 * @return the number of idle engines
+	 */
+	public int getIdleCount() {
+		synchronized (this.idle) {
+			return this.idle.size();
+		}
+	}
+
+	/**
+	 * @return the number of engines this pool has created
+	 */
+	public long getCreatedCount() {
+		return this.createdCount.get();
+	}
+}
@@ -0,0 +1,235 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl.impl;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.beepcore.beep.core.Channel;
+
+/**
+ * The receive window of a single data channel, adapted to the amount of
+ * data received per round trip. See {@link ReceiveWindowPolicy}.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class ReceiveWindow {
+
+	/**
+	 * The weight of a new sample in the smoothed round trip time.
+	 */
+	static final double SMOOTHING = 0.25;
+
+	/**
+	 * The fraction of the window that must be received in a round trip for
+	 * the window to count as saturated, meaning the remote was waiting for
+	 * window updates.
+	 */
+	static final double SATURATION = 0.75;
+
+	/**
+	 * A window that is not saturated is only shrunk when the target is less
+	 * than this fraction below it, so that window updates are not sent for
+	 * every sample.
+	 */
+	static final double HYSTERESIS = 0.25;
+
+	static Logger log = Logger.getLogger(ReceiveWindow.class);
+
+	private final ReceiveWindowPolicy policy;
+	private final Channel channel;
+
+	private int size;
+	private double roundTripNanos;
+	private long receiveRate;
+	private boolean closed;
+
+	/**
+	 * When the current sample started, and the number of bytes received
+	 * since.
+	 */
+	private long sampleStart;
+	private long sampleBytes;
+
+	/**
+	 * The number of bytes this window took from the shared budget.
+	 */
+	private long reserved;
+
+	ReceiveWindow(final ReceiveWindowPolicy policy, final Channel channel) {
+		this.policy = policy;
+		this.channel = channel;
+		this.size = ReceiveWindowPolicy.BEEP_DEFAULT_WINDOW;
+	}
+
+	/**
+	 * @return the current size, in bytes, of the window
+	 */
+	public synchronized int getSize() {
+		return this.size;
+	}
+
+	/**
+	 * @return the rate, in bytes per second, data was received at during
+	 *         the last sample
+	 */
+	public synchronized long getReceiveRate() {
+		return this.receiveRate;
+	}
+
+	/**
+	 * @return the smoothed round trip time, in milliseconds, or 0 until one
+	 *         has been measured
+	 */
+	public synchronized long getRoundTripMillis() {
+		return (long) (this.roundTripNanos / 1000000);
+	}
+
+	/**
+	 * Add a measurement of the round trip time of the session, such as the
+	 * time a digest message took to be answered.
+	 *
+	 * @param nanos
+	 *            The round trip time, in nanoseconds.
+	 */
+	public synchronized void updateRoundTrip(final long nanos) {
+		if (nanos <= 0) {
+			return;
+		}
+		this.roundTripNanos = this.roundTripNanos == 0 ? nanos
+				: this.roundTripNanos + (nanos - this.roundTripNanos) * SMOOTHING;
+	}
+
+	/**
+	 * Count data taken off the channel.
+	 *
+	 * @param bytes
+	 *            The number of bytes.
+	 */
+	public void received(final long bytes) {
+		received(bytes, System.nanoTime());
+	}
+
+	/**
+	 * Count data taken off the channel at <code>now</code>, and adapt the
+	 * window once a round trip has passed since the last time. A window
+	 * that was filled during the round trip is doubled. Otherwise the link
+	 * or the {@link com.tresys.jalop.jnl.Subscriber} is the bottleneck, and
+	 * the window is brought down to twice what was received.
+	 */
+	synchronized void received(final long bytes, final long now) {
+		if (this.closed) {
+			return;
+		}
+		if (this.sampleStart == 0) {
+			this.sampleStart = now;
+		}
+		this.sampleBytes += bytes;
+
+		// until the round trip is known the window keeps its initial size
+		final long elapsed = now - this.sampleStart;
+		if (this.roundTripNanos == 0 || elapsed < this.roundTripNanos) {
+			return;
+		}
+		final double perRoundTrip = this.sampleBytes * this.roundTripNanos / elapsed;
+		this.receiveRate = (long) (this.sampleBytes * 1e9 / elapsed);
+		this.sampleStart = now;
+		this.sampleBytes = 0;
+
+		if (perRoundTrip >= this.size * SATURATION) {
+			if (this.size < this.policy.getMaxWindow()) {
+				resize((int) Math.min(this.policy.getMaxWindow(), 2L * this.size));
+			}
+		} else {
+			final long target = Math.max(this.policy.getInitialWindow(),
+					(long) (2 * perRoundTrip));
+			if (target < this.size * (1 - HYSTERESIS)) {
+				resize((int) target);
+			}
+		}
+	}
+
+	/**
+	 * Stop tuning the window and return what it took from the shared
+	 * budget. The window of the channel is left as it is.
+	 */
+	public synchronized void close() {
+		if (!this.closed) {
+			this.closed = true;
+			this.policy.release(this.reserved);
+			this.reserved = 0;
+		}
+	}
+
+	/**
+	 * Set the window to <code>target</code>, or as close to it as the shared
+	 * budget allows.
+	 */
+	synchronized void resize(final int target) {
+		final long wanted = target - ReceiveWindowPolicy.BEEP_DEFAULT_WINDOW;
+		long held = this.reserved;
+		if (wanted > held) {
+			held += this.policy.reserve(wanted - held);
+		}
+		final int newSize = (int) (ReceiveWindowPolicy.BEEP_DEFAULT_WINDOW + Math.min(wanted, held));
+		if (newSize != this.size && apply(this.channel, newSize)) {
+			this.size = newSize;
+		}
+		final long used = this.size - ReceiveWindowPolicy.BEEP_DEFAULT_WINDOW;
+		this.policy.release(held - used);
+		this.reserved = used;
+	}
+
+	/**
+	 * Set the receive window of a channel. beepcore only offers this on its
+	 * package private channel class, so the method is looked up on the
+	 * class of the channel.
+	 *
+	 * @return <code>false</code> if the window could not be changed.
+	 */
+	static boolean apply(final Channel channel, final int size) {
+		try {
+			final Method m = channel.getClass().getMethod("setReceiveBufferSize", int.class);
+			m.setAccessible(true);
+			m.invoke(channel, size);
+			return true;
+		} catch (final NoSuchMethodException e) {
+			if (log.isDebugEnabled()) {
+				log.debug("Channel does not support setting the receive window");
+			}
+		} catch (final IllegalAccessException e) {
+			if (log.isEnabledFor(Level.WARN)) {
+				log.warn("Cannot set the receive window: " + e.getMessage());
+			}
+		} catch (final InvocationTargetException e) {
+			// the channel is closing, or more than the new size is in use
+			if (log.isDebugEnabled()) {
+				log.debug("Cannot set the receive window: " + e.getCause().getMessage());
+			}
+		}
+		return false;
+	}
+}
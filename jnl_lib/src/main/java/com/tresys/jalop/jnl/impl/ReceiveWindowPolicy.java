@@ -0,0 +1,189 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl.impl;
+
+import org.beepcore.beep.core.Channel;
+
+/**
+ * The limits within which the receive windows of the data channels of a
+ * {@link ContextImpl} are sized. beepcore gives every channel a 4096 byte
+ * receive window, so a remote publisher has to wait for a window update
+ * after every 4 KB it sends. After the initialize-ack, the data channel of a
+ * subscriber session is given the initial window of this policy. Once the
+ * round trip time of the session has been measured from its digest messages,
+ * the window is doubled every round trip in which the remote filled it, and
+ * is brought down to twice the data received per round trip when the link or
+ * the subscriber cannot keep up with it.
+ * <p>
+ * The receive window is the amount of data the remote may send before the
+ * subscriber has consumed it, so each window is memory the subscriber may
+ * have to buffer. The part of each window above the beepcore default is
+ * taken from a budget shared by every window of the policy. Digest channels
+ * are never tuned and keep the default window.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class ReceiveWindowPolicy {
+
+	/**
+	 * The receive window beepcore gives every channel.
+	 */
+	public static final int BEEP_DEFAULT_WINDOW = 4096;
+
+	/**
+	 * The default window, in bytes, a data channel starts with.
+	 */
+	public static final int DEFAULT_INITIAL_WINDOW = 65536;
+
+	/**
+	 * The default largest window, in bytes.
+	 */
+	public static final int DEFAULT_MAX_WINDOW = 4 * 1024 * 1024;
+
+	/**
+	 * The default budget, in bytes, shared by all windows.
+	 */
+	public static final long DEFAULT_GLOBAL_LIMIT = 64L * 1024 * 1024;
+
+	private static ReceiveWindowPolicy defaultPolicy;
+
+	private final int initialWindow;
+	private final int maxWindow;
+	private final long globalLimit;
+
+	private long reserved;
+
+	/**
+	 * Create a new {@link ReceiveWindowPolicy}.
+	 *
+	 * @param initialWindow
+	 *            The window, in bytes, a data channel starts with. A window
+	 *            never shrinks below it.
+	 * @param maxWindow
+	 *            The largest window, in bytes.
+	 * @param globalLimit
+	 *            The number of bytes, beyond the beepcore default, that all
+	 *            windows together may use.
+	 */
+	public ReceiveWindowPolicy(final int initialWindow, final int maxWindow,
+			final long globalLimit) {
+
+		if (initialWindow < BEEP_DEFAULT_WINDOW) {
+			throw new IllegalArgumentException("'initialWindow' must be at least "
+					+ BEEP_DEFAULT_WINDOW + ".");
+		}
+
+		if (maxWindow < initialWindow) {
+			throw new IllegalArgumentException("'maxWindow' must not be less than 'initialWindow'.");
+		}
+
+		if (globalLimit < 0) {
+			throw new IllegalArgumentException("'globalLimit' must be 0 or greater.");
+		}
+
+		this.initialWindow = initialWindow;
+		this.maxWindow = maxWindow;
+		this.globalLimit = globalLimit;
+	}
+
+	/**
+	 * Get the {@link ReceiveWindowPolicy} that is used by contexts which were
+	 * not given one. It is created on first use with the default limits.
+	 *
+	 * @return the shared {@link ReceiveWindowPolicy}
+	 */
+	public static synchronized ReceiveWindowPolicy getDefault() {
+		if (defaultPolicy == null) {
+			defaultPolicy = new ReceiveWindowPolicy(DEFAULT_INITIAL_WINDOW,
+					DEFAULT_MAX_WINDOW, DEFAULT_GLOBAL_LIMIT);
+		}
+		return defaultPolicy;
+	}
+
+	/**
+	 * Start tuning the receive window of a data channel, giving it as much
+	 * of the initial window as the shared budget allows.
+	 *
+	 * @param channel
+	 *            The data channel.
+	 * @return the {@link ReceiveWindow} of the channel
+	 */
+	public ReceiveWindow open(final Channel channel) {
+		if (channel == null) {
+			throw new IllegalArgumentException("'channel' cannot be null.");
+		}
+		final ReceiveWindow window = new ReceiveWindow(this, channel);
+		window.resize(this.initialWindow);
+		return window;
+	}
+
+	/**
+	 * Take up to <code>bytes</code> from the shared budget.
+	 *
+	 * @return the number of bytes taken.
+	 */
+	synchronized long reserve(final long bytes) {
+		final long granted = Math.min(bytes, this.globalLimit - this.reserved);
+		if (granted <= 0) {
+			return 0;
+		}
+		this.reserved += granted;
+		return granted;
+	}
+
+	/**
+	 * Return bytes to the shared budget.
+	 */
+	synchronized void release(final long bytes) {
+		this.reserved -= bytes;
+	}
+
+	/**
+	 * @return the number of bytes of the shared budget in use
+	 */
+	public synchronized long getReserved() {
+		return this.reserved;
+	}
+
+	/**
+	 * @return the initialWindow
+	 */
+	public int getInitialWindow() {
+		return this.initialWindow;
+	}
+
+	/**
+	 * @return the maxWindow
+	 */
+	public int getMaxWindow() {
+		return this.maxWindow;
+	}
+
+	/**
+	 * @return the globalLimit
+	 */
+	public long getGlobalLimit() {
+		return this.globalLimit;
+	}
+}
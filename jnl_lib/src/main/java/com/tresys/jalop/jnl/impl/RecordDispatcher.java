@@ -0,0 +1,451 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl.impl;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.beepcore.beep.core.InputDataStream;
+
+/**
+ * Executes the processing of received JALoP records on a bounded number of
+ * worker threads. Each worker thread (a lane) drains its own queue in order.
+ * Every {@link SubscriberANSHandler} is pinned to a single lane by
+ * {@link #register()}, which keeps the records of a session in order while
+ * spreading the sessions of a {@link ContextImpl} across the lanes.
+ * <p>
+ * When a lane's queue is full the BEEP reader thread that is dispatching a
+ * record is blocked until the lane catches up. While the lane is itself
+ * waiting for frames of a record that has not been fully received, which
+ * only a reader thread can deliver, readers may queue up to the same number
+ * of records again before they are blocked.
+ * <p>
+ * Records that have been fully received and are no larger than the inline
+ * threshold may be processed directly on the reader thread, provided there
+ * is no earlier record of the same session still waiting in the lane.
+ */
+public final class RecordDispatcher {
+
+	/**
+	 * The default maximum number of records that may wait in each lane.
+	 */
+	public static final int DEFAULT_QUEUE_DEPTH = 64;
+
+	/**
+	 * The default inline threshold, 0 disables inline processing.
+	 */
+	public static final int DEFAULT_INLINE_THRESHOLD = 0;
+
+	/**
+	 * The default digest offload threshold, 0 disables offloading.
+	 */
+	public static final long DEFAULT_DIGEST_OFFLOAD_THRESHOLD = 0;
+
+	/**
+	 * How long, in milliseconds, a blocked reader waits before checking the
+	 * state of the lane again.
+	 */
+	static final long BACKPRESSURE_POLL_MILLIS = 10;
+
+	static Logger log = Logger.getLogger(RecordDispatcher.class);
+
+	private static RecordDispatcher defaultDispatcher;
+
+	private final Lane[] lanes;
+	private final int queueDepth;
+	private final int inlineThreshold;
+	private final long digestOffloadThreshold;
+	private final ThreadPoolExecutor digestExecutor;
+	private final AtomicInteger nextLane;
+	private final AtomicLong inlineCount;
+	private final AtomicLong backpressureCount;
+
+	/**
+	 * Create a new {@link RecordDispatcher}.
+	 *
+	 * @param threads
+	 *            The number of worker threads (lanes).
+	 * @param queueDepth
+	 *            The maximum number of records that may wait in a lane before
+	 *            the dispatching thread is blocked.
+	 * @param inlineThreshold
+	 *            The largest record, in bytes, that may be processed on the
+	 *            dispatching thread. A value of 0 disables inline processing.
+	 */
+	public RecordDispatcher(final int threads, final int queueDepth,
+			final int inlineThreshold) {
+		this(threads, queueDepth, inlineThreshold, DEFAULT_DIGEST_OFFLOAD_THRESHOLD);
+	}
+
+	/**
+	 * Create a new {@link RecordDispatcher} that calculates the digest of
+	 * large records on a separate hashing thread, so that hashing overlaps
+	 * with the application consuming the record.
+	 *
+	 * @param threads
+	 *            The number of worker threads (lanes).
+	 * @param queueDepth
+	 *            The maximum number of records that may wait in a lane before
+	 *            the dispatching thread is blocked.
+	 * @param inlineThreshold
+	 *            The largest record, in bytes, that may be processed on the
+	 *            dispatching thread. A value of 0 disables inline processing.
+	 * @param digestOffloadThreshold
+	 *            The smallest record, in bytes, whose digest is calculated on
+	 *            a hashing thread. A value of 0 disables offloading.
+	 */
+	public RecordDispatcher(final int threads, final int queueDepth,
+			final int inlineThreshold, final long digestOffloadThreshold) {
+
+		if (threads <= 0) {
+			throw new IllegalArgumentException("'threads' must be a positive number.");
+		}
+
+		if (queueDepth <= 0) {
+			throw new IllegalArgumentException("'queueDepth' must be a positive number.");
+		}
+
+		if (inlineThreshold < 0) {
+			throw new IllegalArgumentException("'inlineThreshold' must be 0 or greater.");
+		}
+
+		if (digestOffloadThreshold < 0) {
+			throw new IllegalArgumentException("'digestOffloadThreshold' must be 0 or greater.");
+		}
+
+		this.queueDepth = queueDepth;
+		this.inlineThreshold = inlineThreshold;
+		this.digestOffloadThreshold = digestOffloadThreshold;
+		// each lane hashes at most one record at a time
+		this.digestExecutor = new ThreadPoolExecutor(threads, threads, 60L,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new DaemonThreadFactory("jnl-digest-"));
+		this.digestExecutor.allowCoreThreadTimeOut(true);
+		this.nextLane = new AtomicInteger();
+		this.inlineCount = new AtomicLong();
+		this.backpressureCount = new AtomicLong();
+		this.lanes = new Lane[threads];
+		for (int i = 0; i < threads; i++) {
+			this.lanes[i] = new Lane(i);
+		}
+	}
+
+	/**
+	 * Get the {@link RecordDispatcher} that is used by handlers which were not
+	 * given one. It is created on first use with one lane per available
+	 * processor.
+	 *
+	 * @return the shared {@link RecordDispatcher}
+	 */
+	public static synchronized RecordDispatcher getDefault() {
+		if (defaultDispatcher == null) {
+			defaultDispatcher = new RecordDispatcher(
+					Runtime.getRuntime().availableProcessors(),
+					DEFAULT_QUEUE_DEPTH, DEFAULT_INLINE_THRESHOLD);
+		}
+		return defaultDispatcher;
+	}
+
+	/**
+	 * Pin a new session queue to the next lane in round robin order.
+	 *
+	 * @return the {@link SessionQueue} records of a single session should be
+	 *         dispatched through.
+	 */
+	public SessionQueue register() {
+		final int idx = (this.nextLane.getAndIncrement() & Integer.MAX_VALUE)
+				% this.lanes.length;
+		return new SessionQueue(this.lanes[idx]);
+	}
+
+	/**
+	 * Stop all lanes. Records that are already queued are still processed.
+	 */
+	public void shutdown() {
+		for (final Lane lane : this.lanes) {
+			lane.executor.shutdown();
+		}
+		this.digestExecutor.shutdown();
+	}
+
+	/**
+	 * @return the number of lanes
+	 */
+	public int getThreads() {
+		return this.lanes.length;
+	}
+
+	/**
+	 * @return the queueDepth
+	 */
+	public int getQueueDepth() {
+		return this.queueDepth;
+	}
+
+	/**
+	 * @return the inlineThreshold
+	 */
+	public int getInlineThreshold() {
+		return this.inlineThreshold;
+	}
+
+	/**
+	 * @return the digestOffloadThreshold
+	 */
+	public long getDigestOffloadThreshold() {
+		return this.digestOffloadThreshold;
+	}
+
+	/**
+	 * @return the {@link Executor} the hashing stage of large records runs on
+	 */
+	Executor getDigestExecutor() {
+		return this.digestExecutor;
+	}
+
+	/**
+	 * @return the number of records processed on the dispatching thread
+	 */
+	public long getInlineCount() {
+		return this.inlineCount.get();
+	}
+
+	/**
+	 * @return the number of times a dispatching thread had to wait for room
+	 *         in a lane
+	 */
+	public long getBackpressureCount() {
+		return this.backpressureCount.get();
+	}
+
+	/**
+	 * The records of a single session. All records dispatched through the
+	 * same {@link SessionQueue} are processed in the order they were
+	 * dispatched.
+	 */
+	public final class SessionQueue {
+
+		private final Lane lane;
+
+		/**
+		 * The number of records of this session that are queued or running
+		 * in the lane.
+		 */
+		private final AtomicInteger outstanding;
+
+		SessionQueue(final Lane lane) {
+			this.lane = lane;
+			this.outstanding = new AtomicInteger();
+		}
+
+		/**
+		 * Process a record, either on the calling thread or on the lane of
+		 * this session.
+		 *
+		 * @param ds
+		 *            The {@link InputDataStream} the record is read from.
+		 * @param task
+		 *            The {@link Runnable} that processes the record.
+		 * @throws InterruptedException
+		 *             If the calling thread is interrupted while waiting for
+		 *             room in the lane.
+		 */
+		public void dispatch(final InputDataStream ds, final Runnable task)
+				throws InterruptedException {
+
+			if (inlineThreshold > 0 && this.outstanding.get() == 0
+					&& ds.isComplete() && ds.available() <= inlineThreshold) {
+				inlineCount.incrementAndGet();
+				task.run();
+				return;
+			}
+
+			this.outstanding.incrementAndGet();
+			try {
+				this.lane.submit(ds, new Runnable() {
+					@Override
+					public void run() {
+						try {
+							task.run();
+						} finally {
+							SessionQueue.this.outstanding.decrementAndGet();
+						}
+					}
+				});
+			} catch (final InterruptedException e) {
+				this.outstanding.decrementAndGet();
+				throw e;
+			} catch (final RuntimeException e) {
+				this.outstanding.decrementAndGet();
+				throw e;
+			}
+		}
+
+		/**
+		 * @return the number of records queued or running for this session
+		 */
+		public int getOutstanding() {
+			return this.outstanding.get();
+		}
+
+		/**
+		 * @return the index of the lane this session is pinned to
+		 */
+		public int getLaneIndex() {
+			return this.lane.index;
+		}
+	}
+
+	/**
+	 * A single worker thread and its queue.
+	 * <p>
+	 * A record takes a slot of the lane before it is queued, and gives it
+	 * back once the worker starts processing it, so at most
+	 * <code>queueDepth</code> records wait in the lane. While the worker is
+	 * waiting for frames of the record it is processing, the dispatching
+	 * thread may be the one that has to deliver them, so it is never
+	 * blocked; the records it dispatches take a slot of a separate stall
+	 * allowance of the same size instead. A lane therefore never holds more
+	 * than twice <code>queueDepth</code> waiting records.
+	 */
+	private final class Lane {
+
+		private final int index;
+		private final ThreadPoolExecutor executor;
+		private final Semaphore slots;
+		private final Semaphore stallSlots;
+
+		/**
+		 * The stream of the record the worker is currently processing.
+		 */
+		private volatile InputDataStream active;
+
+		Lane(final int index) {
+			this.index = index;
+			this.executor = new ThreadPoolExecutor(1, 1, 0L,
+					TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+					new DaemonThreadFactory("jnl-dispatch-" + index + "-"));
+			this.slots = new Semaphore(queueDepth);
+			this.stallSlots = new Semaphore(queueDepth);
+		}
+
+		/**
+		 * Returns true if the worker is blocked waiting for more frames of
+		 * the record it is processing.
+		 */
+		private boolean isStalled() {
+			final InputDataStream cur = this.active;
+			return cur != null && !cur.isComplete();
+		}
+
+		/**
+		 * Take a slot for a record, waiting for one if the lane is full.
+		 *
+		 * @return the {@link Semaphore} the slot was taken from, or
+		 *         <code>null</code> if the lane was shut down while waiting.
+		 */
+		private Semaphore acquire() throws InterruptedException {
+			if (this.slots.tryAcquire()) {
+				return this.slots;
+			}
+			if (isStalled() && this.stallSlots.tryAcquire()) {
+				return this.stallSlots;
+			}
+
+			backpressureCount.incrementAndGet();
+			if (log.isDebugEnabled()) {
+				log.debug("Dispatch lane " + this.index + " is full, waiting");
+			}
+			while (!this.executor.isShutdown()) {
+				if (isStalled() && this.stallSlots.tryAcquire()) {
+					return this.stallSlots;
+				}
+				if (this.slots.tryAcquire(BACKPRESSURE_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+					return this.slots;
+				}
+			}
+			return null;
+		}
+
+		void submit(final InputDataStream ds, final Runnable task)
+				throws InterruptedException {
+
+			final Semaphore slot = acquire();
+			try {
+				this.executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						if (slot != null) {
+							slot.release();
+						}
+						Lane.this.active = ds;
+						try {
+							task.run();
+						} catch (final RuntimeException e) {
+							if (log.isEnabledFor(Level.ERROR)) {
+								log.error("Error processing record: " + e.getMessage(), e);
+							}
+						} finally {
+							Lane.this.active = null;
+						}
+					}
+				});
+			} catch (final RuntimeException e) {
+				if (slot != null) {
+					slot.release();
+				}
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Creates named daemon threads, so that the dispatcher never keeps the
+	 * JVM alive.
+	 */
+	private static final class DaemonThreadFactory implements ThreadFactory {
+
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		DaemonThreadFactory(final String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(final Runnable r) {
+			final Thread t = new Thread(r, this.prefix + this.count.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
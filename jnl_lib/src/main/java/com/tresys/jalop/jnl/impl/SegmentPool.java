@@ -0,0 +1,132 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl.impl;
+
+import java.util.ArrayList;
+
+/**
+ * Hands out {@link BufferPool} buffers for the records sent on a single BEEP
+ * channel, and takes them back once beepcore is done with them.
+ * <p>
+ * A buffer is only safe to reuse once the frame it was copied into has been
+ * written. Beepcore builds and writes each frame while holding the lock of
+ * the channel, so a {@link JNLOutputDataStream} only marks its buffers as
+ * consumed, and they are returned to the {@link BufferPool} by
+ * {@link #acquire(int)} after it has taken that same lock.
+ */
+public final class SegmentPool {
+
+	private final BufferPool pool;
+	private final Object sendLock;
+	private ArrayList<byte[]> consumed;
+
+	/**
+	 * Create a new {@link SegmentPool}.
+	 *
+	 * @param pool
+	 *            The {@link BufferPool} to take buffers from.
+	 * @param sendLock
+	 *            The object beepcore holds while sending frames, which is
+	 *            the channel the records are sent on.
+	 */
+	public SegmentPool(final BufferPool pool, final Object sendLock) {
+		if (pool == null) {
+			throw new IllegalArgumentException("'pool' cannot be null.");
+		}
+		if (sendLock == null) {
+			throw new IllegalArgumentException("'sendLock' cannot be null.");
+		}
+		this.pool = pool;
+		this.sendLock = sendLock;
+		this.consumed = new ArrayList<byte[]>();
+	}
+
+	/**
+	 * @return the object this pool synchronizes with before reusing buffers
+	 */
+	public Object getSendLock() {
+		return this.sendLock;
+	}
+
+	/**
+	 * Get a buffer of at least <code>size</code> bytes, first returning any
+	 * buffers beepcore is done with to the {@link BufferPool}.
+	 *
+	 * @param size
+	 *            The minimum length of the buffer.
+	 * @return the buffer.
+	 */
+	public byte[] acquire(final int size) {
+		final boolean pending;
+		synchronized (this) {
+			pending = !this.consumed.isEmpty();
+		}
+		if (pending) {
+			reclaim();
+		}
+		return this.pool.acquire(size);
+	}
+
+	/**
+	 * Return a buffer that was never handed to beepcore.
+	 *
+	 * @param buf
+	 *            The buffer.
+	 */
+	public void recycle(final byte[] buf) {
+		this.pool.release(buf);
+	}
+
+	/**
+	 * Return every consumed buffer to the {@link BufferPool}.
+	 */
+	public void reclaim() {
+		// several threads may send on the channel, so each takes the buffers
+		// it returns out of the pool before letting go of the lock
+		final ArrayList<byte[]> reclaimed;
+		synchronized (this.sendLock) {
+			synchronized (this) {
+				if (this.consumed.isEmpty()) {
+					return;
+				}
+				reclaimed = this.consumed;
+				this.consumed = new ArrayList<byte[]>();
+			}
+		}
+		for (final byte[] buf : reclaimed) {
+			this.pool.release(buf);
+		}
+	}
+
+	/**
+	 * Called by a {@link JNLOutputDataStream}, while beepcore holds the send
+	 * lock, once the last part of a buffer was handed to beepcore.
+	 *
+	 * @param buf
+	 *            The buffer.
+	 */
+	synchronized void consumed(final byte[] buf) {
+		this.consumed.add(buf);
+	}
+}
@@ -0,0 +1,185 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl.impl;
+
+/**
+ * The segment size and number of queued segments a single publisher session
+ * uses, adapted to the rate its channel drains at and the round trip time of
+ * its window updates. See {@link SendWindowPolicy}.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class SendWindow {
+
+	/**
+	 * The weight of a new sample in the smoothed drain rate and round trip
+	 * time.
+	 */
+	static final double SMOOTHING = 0.25;
+
+	/**
+	 * Samples that took less time than this, in nanoseconds, to drain are
+	 * too noisy to use.
+	 */
+	static final long MIN_SAMPLE_NANOS = 1000 * 1000;
+
+	private final SendWindowPolicy policy;
+	private final long minBytes;
+
+	private int segmentSize;
+	private int buffers;
+	private double drainRate;
+	private double roundTripNanos;
+
+	/**
+	 * The number of bytes this window took from the shared budget.
+	 */
+	private long reserved;
+
+	SendWindow(final SendWindowPolicy policy) {
+		this.policy = policy;
+		this.segmentSize = policy.getMinSegmentSize();
+		this.buffers = policy.getMinBuffers();
+		this.minBytes = (long) this.segmentSize * this.buffers;
+	}
+
+	/**
+	 * @return the size, in bytes, of the segments to send
+	 */
+	public synchronized int getSegmentSize() {
+		return this.segmentSize;
+	}
+
+	/**
+	 * @return the number of segments that may be queued
+	 */
+	public synchronized int getMaxBuffers() {
+		return this.buffers;
+	}
+
+	/**
+	 * @return the smoothed drain rate, in bytes per second
+	 */
+	public synchronized long getDrainRate() {
+		return (long) this.drainRate;
+	}
+
+	/**
+	 * @return the smoothed round trip time, in milliseconds, of the window
+	 *         updates of the channel, or 0 until one has been measured
+	 */
+	public synchronized long getRoundTripMillis() {
+		return (long) (this.roundTripNanos / 1000000);
+	}
+
+	/**
+	 * Add a measurement of the round trip time of the window updates of the
+	 * channel, such as {@link JNLOutputDataStream#getStallNanos()}.
+	 *
+	 * @param nanos
+	 *            The round trip time, in nanoseconds, or 0 if none was
+	 *            measured.
+	 */
+	public synchronized void updateRoundTrip(final long nanos) {
+		if (nanos <= 0) {
+			return;
+		}
+		this.roundTripNanos = this.roundTripNanos == 0 ? nanos
+				: this.roundTripNanos + (nanos - this.roundTripNanos) * SMOOTHING;
+	}
+
+	/**
+	 * Adapt the window to how fast a stream was drained. Once the round trip
+	 * time is known, the window holds what the channel drains in two round
+	 * trips, so a whole window of the remote is queued when its update
+	 * arrives. A saturated window is doubled, whether or not the round trip
+	 * time is known.
+	 *
+	 * @param bytes
+	 *            The number of bytes beepcore took from the stream.
+	 * @param nanos
+	 *            The time, in nanoseconds, between beepcore taking the first
+	 *            and the last of those bytes.
+	 * @param saturated
+	 *            Whether beepcore took everything the full window held and
+	 *            had to wait for more, see
+	 *            {@link JNLOutputDataStream#getUnderrunCount()}.
+	 */
+	public synchronized void update(final long bytes, final long nanos,
+			final boolean saturated) {
+		if (bytes < this.policy.getMinSegmentSize() || nanos < MIN_SAMPLE_NANOS) {
+			return;
+		}
+
+		final double rate = bytes * 1e9 / nanos;
+		this.drainRate = this.drainRate == 0 ? rate
+				: this.drainRate + (rate - this.drainRate) * SMOOTHING;
+
+		final long current = (long) this.segmentSize * this.buffers;
+		long wantedTotal = this.roundTripNanos == 0 ? current
+				: (long) (2 * this.drainRate * this.roundTripNanos / 1e9);
+		if (saturated) {
+			wantedTotal = Math.max(wantedTotal, 2 * current);
+		}
+		final long maxBytes = (long) this.policy.getMaxSegmentSize() * this.policy.getMaxBuffers();
+		final long target = Math.max(this.minBytes, Math.min(maxBytes, wantedTotal));
+
+		// grant as much of the growth as the shared budget allows
+		final long wanted = target - this.minBytes;
+		long held = this.reserved;
+		if (wanted > held) {
+			held += this.policy.reserve(wanted - held);
+		}
+		final long total = this.minBytes + Math.min(wanted, held);
+
+		final int seg = clamp(Integer.highestOneBit((int) Math.min(Integer.MAX_VALUE,
+				total / this.policy.getMinBuffers())),
+				this.policy.getMinSegmentSize(), this.policy.getMaxSegmentSize());
+		final int bufs = clamp((int) (total / seg), this.policy.getMinBuffers(),
+				this.policy.getMaxBuffers());
+
+		this.segmentSize = seg;
+		this.buffers = bufs;
+		final long used = (long) seg * bufs - this.minBytes;
+		this.policy.release(held - used);
+		this.reserved = used;
+	}
+
+	/**
+	 * Shrink the window back to the minimum and return what it took from
+	 * the shared budget. The window adapts again with the next update.
+	 */
+	public synchronized void reset() {
+		this.policy.release(this.reserved);
+		this.reserved = 0;
+		this.segmentSize = this.policy.getMinSegmentSize();
+		this.buffers = this.policy.getMinBuffers();
+		this.drainRate = 0;
+		this.roundTripNanos = 0;
+	}
+
+	private static int clamp(final int value, final int min, final int max) {
+		return value < min ? min : value > max ? max : value;
+	}
+}
@@ -0,0 +1,225 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl.impl;
+
+/**
+ * The limits within which the publisher sessions of a {@link ContextImpl}
+ * size the segments they send and the number of segments they keep queued
+ * for a BEEP channel. Each session gets its own {@link SendWindow}, which
+ * follows the bandwidth-delay product of its channel: the rate the channel
+ * has been draining at multiplied by the round trip time beepcore waits for
+ * window updates of the remote. A window that beepcore empties faster than
+ * it is refilled is doubled.
+ * <p>
+ * Every window may always use the minimum segment size and number of
+ * buffers. The memory a window uses beyond that minimum is taken from a
+ * budget shared by every window of the policy, so the total memory the
+ * sessions queue stays bounded.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class SendWindowPolicy {
+
+	/**
+	 * The default size, in bytes, of the smallest segment.
+	 */
+	public static final int DEFAULT_MIN_SEGMENT_SIZE = 4096;
+
+	/**
+	 * The default size, in bytes, of the largest segment.
+	 */
+	public static final int DEFAULT_MAX_SEGMENT_SIZE = BufferPool.DEFAULT_MAX_SIZE;
+
+	/**
+	 * The default smallest number of queued segments.
+	 */
+	public static final int DEFAULT_MIN_BUFFERS = 10;
+
+	/**
+	 * The default largest number of queued segments.
+	 */
+	public static final int DEFAULT_MAX_BUFFERS = 256;
+
+	/**
+	 * The default budget, in bytes, shared by all windows.
+	 */
+	public static final long DEFAULT_GLOBAL_LIMIT = 64L * 1024 * 1024;
+
+	private static SendWindowPolicy defaultPolicy;
+
+	private final int minSegmentSize;
+	private final int maxSegmentSize;
+	private final int minBuffers;
+	private final int maxBuffers;
+	private final long globalLimit;
+
+	private long reserved;
+
+	/**
+	 * Create a new {@link SendWindowPolicy}.
+	 *
+	 * @param minSegmentSize
+	 *            The size, in bytes, of the smallest segment.
+	 * @param maxSegmentSize
+	 *            The size, in bytes, of the largest segment.
+	 * @param minBuffers
+	 *            The smallest number of queued segments.
+	 * @param maxBuffers
+	 *            The largest number of queued segments.
+	 * @param globalLimit
+	 *            The number of bytes, beyond their minimum, that all windows
+	 *            together may use.
+	 */
+	public SendWindowPolicy(final int minSegmentSize, final int maxSegmentSize,
+			final int minBuffers, final int maxBuffers, final long globalLimit) {
+
+		if (minSegmentSize <= 0) {
+			throw new IllegalArgumentException("'minSegmentSize' must be a positive number.");
+		}
+
+		if (maxSegmentSize < minSegmentSize) {
+			throw new IllegalArgumentException("'maxSegmentSize' must not be less than 'minSegmentSize'.");
+		}
+
+		if (minBuffers <= 1) {
+			throw new IllegalArgumentException("'minBuffers' must be greater than 1.");
+		}
+
+		if (maxBuffers < minBuffers || maxBuffers > JNLOutputDataStream.MAX_CAPACITY) {
+			throw new IllegalArgumentException("'maxBuffers' must be between 'minBuffers' and "
+					+ JNLOutputDataStream.MAX_CAPACITY + ".");
+		}
+
+		if (globalLimit < 0) {
+			throw new IllegalArgumentException("'globalLimit' must be 0 or greater.");
+		}
+
+		this.minSegmentSize = minSegmentSize;
+		this.maxSegmentSize = maxSegmentSize;
+		this.minBuffers = minBuffers;
+		this.maxBuffers = maxBuffers;
+		this.globalLimit = globalLimit;
+	}
+
+	/**
+	 * Create a {@link SendWindowPolicy} that never adapts.
+	 *
+	 * @param segmentSize
+	 *            The size, in bytes, of every segment.
+	 * @param buffers
+	 *            The number of queued segments.
+	 * @return the policy
+	 */
+	public static SendWindowPolicy fixed(final int segmentSize, final int buffers) {
+		return new SendWindowPolicy(segmentSize, segmentSize, buffers, buffers, 0);
+	}
+
+	/**
+	 * Get the {@link SendWindowPolicy} that is used by contexts which were
+	 * not given one. It is created on first use with the default limits.
+	 *
+	 * @return the shared {@link SendWindowPolicy}
+	 */
+	public static synchronized SendWindowPolicy getDefault() {
+		if (defaultPolicy == null) {
+			defaultPolicy = new SendWindowPolicy(DEFAULT_MIN_SEGMENT_SIZE,
+					DEFAULT_MAX_SEGMENT_SIZE, DEFAULT_MIN_BUFFERS,
+					DEFAULT_MAX_BUFFERS, DEFAULT_GLOBAL_LIMIT);
+		}
+		return defaultPolicy;
+	}
+
+	/**
+	 * Create a {@link SendWindow} for a single session, starting at the
+	 * minimum segment size and number of buffers.
+	 *
+	 * @return the new window
+	 */
+	public SendWindow newWindow() {
+		return new SendWindow(this);
+	}
+
+	/**
+	 * Take up to <code>bytes</code> from the shared budget.
+	 *
+	 * @return the number of bytes taken.
+	 */
+	synchronized long reserve(final long bytes) {
+		final long granted = Math.min(bytes, this.globalLimit - this.reserved);
+		if (granted <= 0) {
+			return 0;
+		}
+		this.reserved += granted;
+		return granted;
+	}
+
+	/**
+	 * Return bytes to the shared budget.
+	 */
+	synchronized void release(final long bytes) {
+		this.reserved -= bytes;
+	}
+
+	/**
+	 * @return the number of bytes of the shared budget in use
+	 */
+	public synchronized long getReserved() {
+		return this.reserved;
+	}
+
+	/**
+	 * @return the minSegmentSize
+	 */
+	public int getMinSegmentSize() {
+		return this.minSegmentSize;
+	}
+
+	/**
+	 * @return the maxSegmentSize
+	 */
+	public int getMaxSegmentSize() {
+		return this.maxSegmentSize;
+	}
+
+	/**
+	 * @return the minBuffers
+	 */
+	public int getMinBuffers() {
+		return this.minBuffers;
+	}
+
+	/**
+	 * @return the maxBuffers
+	 */
+	public int getMaxBuffers() {
+		return this.maxBuffers;
+	}
+
+	/**
+	 * @return the globalLimit
+	 */
+	public long getGlobalLimit() {
+		return this.globalLimit;
+	}
+}
@@ -115,6 +115,15 @@ public abstract class SessionImpl implements Session {
 	@Override
 	public void setErrored() {
 		this.errored = true;
+		release();
+	}
+
+	/**
+	 * Release the resources this session holds for its data channel. This is
+	 * called when the session errors, when its thread ends and when its data
+	 * channel is closed, so it may be called more than once.
+	 */
+	public void release() {
 	}
 
 	@Override
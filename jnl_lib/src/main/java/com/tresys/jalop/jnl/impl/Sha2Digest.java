@@ -0,0 +1,476 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl.impl;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.tresys.jalop.jnl.DigestCheckpoint;
+
+/**
+ * An implementation of the SHA-256, SHA-384 and SHA-512 digests whose
+ * intermediate state can be exported as a {@link DigestCheckpoint} and
+ * restored later, so that a partially hashed journal record does not have
+ * to be hashed again from the start.
+ */
+public final class Sha2Digest extends MessageDigest implements Cloneable {
+
+	public static final String SHA256 = "SHA-256";
+	public static final String SHA384 = "SHA-384";
+	public static final String SHA512 = "SHA-512";
+
+	private static final int[] K256 = {
+			0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5,
+			0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+			0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3,
+			0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+			0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc,
+			0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+			0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7,
+			0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+			0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13,
+			0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+			0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3,
+			0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+			0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5,
+			0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+			0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208,
+			0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+	};
+
+	private static final long[] K512 = {
+			0x428a2f98d728ae22L, 0x7137449123ef65cdL,
+			0xb5c0fbcfec4d3b2fL, 0xe9b5dba58189dbbcL,
+			0x3956c25bf348b538L, 0x59f111f1b605d019L,
+			0x923f82a4af194f9bL, 0xab1c5ed5da6d8118L,
+			0xd807aa98a3030242L, 0x12835b0145706fbeL,
+			0x243185be4ee4b28cL, 0x550c7dc3d5ffb4e2L,
+			0x72be5d74f27b896fL, 0x80deb1fe3b1696b1L,
+			0x9bdc06a725c71235L, 0xc19bf174cf692694L,
+			0xe49b69c19ef14ad2L, 0xefbe4786384f25e3L,
+			0x0fc19dc68b8cd5b5L, 0x240ca1cc77ac9c65L,
+			0x2de92c6f592b0275L, 0x4a7484aa6ea6e483L,
+			0x5cb0a9dcbd41fbd4L, 0x76f988da831153b5L,
+			0x983e5152ee66dfabL, 0xa831c66d2db43210L,
+			0xb00327c898fb213fL, 0xbf597fc7beef0ee4L,
+			0xc6e00bf33da88fc2L, 0xd5a79147930aa725L,
+			0x06ca6351e003826fL, 0x142929670a0e6e70L,
+			0x27b70a8546d22ffcL, 0x2e1b21385c26c926L,
+			0x4d2c6dfc5ac42aedL, 0x53380d139d95b3dfL,
+			0x650a73548baf63deL, 0x766a0abb3c77b2a8L,
+			0x81c2c92e47edaee6L, 0x92722c851482353bL,
+			0xa2bfe8a14cf10364L, 0xa81a664bbc423001L,
+			0xc24b8b70d0f89791L, 0xc76c51a30654be30L,
+			0xd192e819d6ef5218L, 0xd69906245565a910L,
+			0xf40e35855771202aL, 0x106aa07032bbd1b8L,
+			0x19a4c116b8d2d0c8L, 0x1e376c085141ab53L,
+			0x2748774cdf8eeb99L, 0x34b0bcb5e19b48a8L,
+			0x391c0cb3c5c95a63L, 0x4ed8aa4ae3418acbL,
+			0x5b9cca4f7763e373L, 0x682e6ff3d6b2b8a3L,
+			0x748f82ee5defb2fcL, 0x78a5636f43172f60L,
+			0x84c87814a1f0ab72L, 0x8cc702081a6439ecL,
+			0x90befffa23631e28L, 0xa4506cebde82bde9L,
+			0xbef9a3f7b2c67915L, 0xc67178f2e372532bL,
+			0xca273eceea26619cL, 0xd186b8c721c0c207L,
+			0xeada7dd6cde0eb1eL, 0xf57d4f7fee6ed178L,
+			0x06f067aa72176fbaL, 0x0a637dc5a2c898a6L,
+			0x113f9804bef90daeL, 0x1b710b35131c471bL,
+			0x28db77f523047d84L, 0x32caab7b40c72493L,
+			0x3c9ebe0a15c9bebcL, 0x431d67c49c100d4cL,
+			0x4cc5d4becb3e42b6L, 0x597f299cfc657e2aL,
+			0x5fcb6fab3ad6faecL, 0x6c44198c4a475817L
+	};
+
+	private static final int[] IV256 = {
+			0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a,
+			0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+	};
+
+	private static final long[] IV384 = {
+			0xcbbb9d5dc1059ed8L, 0x629a292a367cd507L,
+			0x9159015a3070dd17L, 0x152fecd8f70e5939L,
+			0x67332667ffc00b31L, 0x8eb44a8768581511L,
+			0xdb0c2e0d64f98fa7L, 0x47b5481dbefa4fa4L
+	};
+
+	private static final long[] IV512 = {
+			0x6a09e667f3bcc908L, 0xbb67ae8584caa73bL,
+			0x3c6ef372fe94f82bL, 0xa54ff53a5f1d36f1L,
+			0x510e527fade682d1L, 0x9b05688c2b3e6c1fL,
+			0x1f83d9abfb41bd6bL, 0x5be0cd19137e2179L
+	};
+
+	/**
+	 * True for SHA-384 and SHA-512, which work on 64 bit words.
+	 */
+	private final boolean wide;
+	private final int blockSize;
+	private final int digestLength;
+
+	private int[] h32;
+	private long[] h64;
+	private int[] w32;
+	private long[] w64;
+
+	/**
+	 * Data that does not yet fill a whole block.
+	 */
+	private byte[] block;
+
+	/**
+	 * The total number of bytes hashed since the last reset.
+	 */
+	private long count;
+
+	private Sha2Digest(final String algorithm) {
+		super(algorithm);
+		this.wide = !SHA256.equals(algorithm);
+		this.blockSize = this.wide ? 128 : 64;
+		this.digestLength = SHA256.equals(algorithm) ? 32
+				: SHA384.equals(algorithm) ? 48 : 64;
+		this.block = new byte[this.blockSize];
+		if (this.wide) {
+			this.h64 = new long[8];
+			this.w64 = new long[80];
+		} else {
+			this.h32 = new int[8];
+			this.w32 = new int[64];
+		}
+		engineReset();
+	}
+
+	/**
+	 * Create a new {@link Sha2Digest}.
+	 *
+	 * @param algorithm
+	 *            One of {@link #SHA256}, {@link #SHA384} or {@link #SHA512}.
+	 * @return the {@link Sha2Digest}
+	 * @throws NoSuchAlgorithmException
+	 *             If <code>algorithm</code> is not a supported digest.
+	 */
+	public static Sha2Digest create(final String algorithm)
+			throws NoSuchAlgorithmException {
+		if (!isSupported(algorithm)) {
+			throw new NoSuchAlgorithmException(algorithm);
+		}
+		return new Sha2Digest(algorithm);
+	}
+
+	/**
+	 * @param algorithm
+	 *            The name of a digest algorithm.
+	 * @return true if {@link #create(String)} supports the algorithm.
+	 */
+	public static boolean isSupported(final String algorithm) {
+		return SHA256.equals(algorithm) || SHA384.equals(algorithm)
+				|| SHA512.equals(algorithm);
+	}
+
+	/**
+	 * Create a new {@link Sha2Digest} that continues from a checkpoint.
+	 *
+	 * @param checkpoint
+	 *            The {@link DigestCheckpoint} to restore.
+	 * @return the {@link Sha2Digest}
+	 * @throws NoSuchAlgorithmException
+	 *             If the algorithm of the checkpoint is not supported.
+	 * @throws IllegalArgumentException
+	 *             If the state of the checkpoint is not valid.
+	 */
+	public static Sha2Digest fromCheckpoint(final DigestCheckpoint checkpoint)
+			throws NoSuchAlgorithmException {
+
+		final Sha2Digest ret = create(checkpoint.getAlgorithm());
+		final byte[] state = checkpoint.getState();
+		final int words = ret.wide ? 64 : 32;
+		if (state.length < 8 + words) {
+			throw new IllegalArgumentException("'checkpoint' has a bad state length");
+		}
+
+		final long count = readLong(state, 0);
+		final int pending = (int) (count % ret.blockSize);
+		if (count < 0 || state.length != 8 + words + pending) {
+			throw new IllegalArgumentException("'checkpoint' has a bad state length");
+		}
+
+		ret.count = count;
+		for (int i = 0; i < 8; i++) {
+			if (ret.wide) {
+				ret.h64[i] = readLong(state, 8 + i * 8);
+			} else {
+				ret.h32[i] = readInt(state, 8 + i * 4);
+			}
+		}
+		System.arraycopy(state, 8 + words, ret.block, 0, pending);
+		return ret;
+	}
+
+	/**
+	 * Export the current state of this digest.
+	 *
+	 * @param payloadOffset
+	 *            The number of payload bytes the state includes.
+	 * @return the {@link DigestCheckpoint}
+	 */
+	public DigestCheckpoint checkpoint(final long payloadOffset) {
+		final int words = this.wide ? 64 : 32;
+		final int pending = (int) (this.count % this.blockSize);
+		final byte[] state = new byte[8 + words + pending];
+		writeLong(this.count, state, 0);
+		for (int i = 0; i < 8; i++) {
+			if (this.wide) {
+				writeLong(this.h64[i], state, 8 + i * 8);
+			} else {
+				writeInt(this.h32[i], state, 8 + i * 4);
+			}
+		}
+		System.arraycopy(this.block, 0, state, 8 + words, pending);
+		return new DigestCheckpoint(getAlgorithm(), payloadOffset, state);
+	}
+
+	/**
+	 * @return the number of bytes hashed since the last reset
+	 */
+	public long getByteCount() {
+		return this.count;
+	}
+
+	@Override
+	protected int engineGetDigestLength() {
+		return this.digestLength;
+	}
+
+	@Override
+	protected void engineUpdate(final byte input) {
+		this.block[(int) (this.count % this.blockSize)] = input;
+		this.count++;
+		if (this.count % this.blockSize == 0) {
+			compress(this.block, 0);
+		}
+	}
+
+	@Override
+	protected void engineUpdate(final byte[] input, int offset, int len) {
+		int pending = (int) (this.count % this.blockSize);
+		this.count += len;
+
+		if (pending > 0) {
+			final int n = Math.min(len, this.blockSize - pending);
+			System.arraycopy(input, offset, this.block, pending, n);
+			offset += n;
+			len -= n;
+			pending += n;
+			if (pending < this.blockSize) {
+				return;
+			}
+			compress(this.block, 0);
+		}
+
+		while (len >= this.blockSize) {
+			compress(input, offset);
+			offset += this.blockSize;
+			len -= this.blockSize;
+		}
+
+		System.arraycopy(input, offset, this.block, 0, len);
+	}
+
+	@Override
+	protected byte[] engineDigest() {
+		final long bits = this.count << 3;
+		final int lengthBytes = this.wide ? 16 : 8;
+		int pending = (int) (this.count % this.blockSize);
+
+		this.block[pending++] = (byte) 0x80;
+		if (pending > this.blockSize - lengthBytes) {
+			while (pending < this.blockSize) {
+				this.block[pending++] = 0;
+			}
+			compress(this.block, 0);
+			pending = 0;
+		}
+		while (pending < this.blockSize - 8) {
+			this.block[pending++] = 0;
+		}
+		if (this.wide) {
+			// the high word of the 128 bit length
+			writeLong(this.count >>> 61, this.block, this.blockSize - 16);
+		}
+		writeLong(bits, this.block, this.blockSize - 8);
+		compress(this.block, 0);
+
+		final byte[] ret = new byte[this.digestLength];
+		for (int i = 0; i < this.digestLength; i += this.wide ? 8 : 4) {
+			if (this.wide) {
+				writeLong(this.h64[i / 8], ret, i);
+			} else {
+				writeInt(this.h32[i / 4], ret, i);
+			}
+		}
+		engineReset();
+		return ret;
+	}
+
+	@Override
+	protected void engineReset() {
+		this.count = 0;
+		if (!this.wide) {
+			System.arraycopy(IV256, 0, this.h32, 0, 8);
+		} else if (this.digestLength == 48) {
+			System.arraycopy(IV384, 0, this.h64, 0, 8);
+		} else {
+			System.arraycopy(IV512, 0, this.h64, 0, 8);
+		}
+	}
+
+	@Override
+	public Object clone() throws CloneNotSupportedException {
+		final Sha2Digest ret = (Sha2Digest) super.clone();
+		ret.block = this.block.clone();
+		if (this.wide) {
+			ret.h64 = this.h64.clone();
+			ret.w64 = new long[80];
+		} else {
+			ret.h32 = this.h32.clone();
+			ret.w32 = new int[64];
+		}
+		return ret;
+	}
+
+	private void compress(final byte[] in, final int off) {
+		if (this.wide) {
+			compress512(in, off);
+		} else {
+			compress256(in, off);
+		}
+	}
+
+	private void compress256(final byte[] in, final int off) {
+		final int[] w = this.w32;
+		for (int t = 0; t < 16; t++) {
+			w[t] = readInt(in, off + t * 4);
+		}
+		for (int t = 16; t < 64; t++) {
+			final int w15 = w[t - 15];
+			final int w2 = w[t - 2];
+			final int s0 = Integer.rotateRight(w15, 7) ^ Integer.rotateRight(w15, 18) ^ (w15 >>> 3);
+			final int s1 = Integer.rotateRight(w2, 17) ^ Integer.rotateRight(w2, 19) ^ (w2 >>> 10);
+			w[t] = w[t - 16] + s0 + w[t - 7] + s1;
+		}
+
+		final int[] h = this.h32;
+		int a = h[0], b = h[1], c = h[2], d = h[3];
+		int e = h[4], f = h[5], g = h[6], hh = h[7];
+		for (int t = 0; t < 64; t++) {
+			final int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+			final int ch = (e & f) ^ (~e & g);
+			final int t1 = hh + s1 + ch + K256[t] + w[t];
+			final int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+			final int maj = (a & b) ^ (a & c) ^ (b & c);
+			hh = g;
+			g = f;
+			f = e;
+			e = d + t1;
+			d = c;
+			c = b;
+			b = a;
+			a = t1 + s0 + maj;
+		}
+		h[0] += a;
+		h[1] += b;
+		h[2] += c;
+		h[3] += d;
+		h[4] += e;
+		h[5] += f;
+		h[6] += g;
+		h[7] += hh;
+	}
+
+	private void compress512(final byte[] in, final int off) {
+		final long[] w = this.w64;
+		for (int t = 0; t < 16; t++) {
+			w[t] = readLong(in, off + t * 8);
+		}
+		for (int t = 16; t < 80; t++) {
+			final long w15 = w[t - 15];
+			final long w2 = w[t - 2];
+			final long s0 = Long.rotateRight(w15, 1) ^ Long.rotateRight(w15, 8) ^ (w15 >>> 7);
+			final long s1 = Long.rotateRight(w2, 19) ^ Long.rotateRight(w2, 61) ^ (w2 >>> 6);
+			w[t] = w[t - 16] + s0 + w[t - 7] + s1;
+		}
+
+		final long[] h = this.h64;
+		long a = h[0], b = h[1], c = h[2], d = h[3];
+		long e = h[4], f = h[5], g = h[6], hh = h[7];
+		for (int t = 0; t < 80; t++) {
+			final long s1 = Long.rotateRight(e, 14) ^ Long.rotateRight(e, 18) ^ Long.rotateRight(e, 41);
+			final long ch = (e & f) ^ (~e & g);
+			final long t1 = hh + s1 + ch + K512[t] + w[t];
+			final long s0 = Long.rotateRight(a, 28) ^ Long.rotateRight(a, 34) ^ Long.rotateRight(a, 39);
+			final long maj = (a & b) ^ (a & c) ^ (b & c);
+			hh = g;
+			g = f;
+			f = e;
+			e = d + t1;
+			d = c;
+			c = b;
+			b = a;
+			a = t1 + s0 + maj;
+		}
+		h[0] += a;
+		h[1] += b;
+		h[2] += c;
+		h[3] += d;
+		h[4] += e;
+		h[5] += f;
+		h[6] += g;
+		h[7] += hh;
+	}
+
+	private static int readInt(final byte[] b, final int off) {
+		return (b[off] << 24) | ((b[off + 1] & 0xff) << 16)
+				| ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+	}
+
+	private static long readLong(final byte[] b, final int off) {
+		long ret = 0;
+		for (int i = 0; i < 8; i++) {
+			ret = (ret << 8) | (b[off + i] & 0xff);
+		}
+		return ret;
+	}
+
+	private static void writeLong(final long v, final byte[] b, final int off) {
+		for (int i = 0; i < 8; i++) {
+			b[off + i] = (byte) (v >>> (56 - i * 8));
+		}
+	}
+
+	private static void writeInt(final int v, final byte[] b, final int off) {
+		b[off] = (byte) (v >>> 24);
+		b[off + 1] = (byte) (v >>> 16);
+		b[off + 2] = (byte) (v >>> 8);
+		b[off + 3] = (byte) v;
+	}
+}
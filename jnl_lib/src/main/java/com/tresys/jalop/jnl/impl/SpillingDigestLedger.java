@@ -0,0 +1,470 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl.impl;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * Tracks the digests of sent records, by nonce, until the remote confirms
+ * them, keeping at most a fixed number of entries in memory. Once the
+ * memory limit is reached, further entries are appended to a spill file,
+ * and entries are read back from it, oldest first, as confirmed entries
+ * make room in memory. Since the remote confirms records in roughly the
+ * order they were sent, a confirmed nonce is almost always in memory by the
+ * time it is looked up. The nonces in the spill file are indexed by their
+ * position in it, so a nonce that is confirmed out of order is read
+ * straight from its entry, and an unknown nonce costs no disk access.
+ * <p>
+ * The spill file is created in the given directory when it is first needed
+ * and is deleted once every entry in it has been read back, or when the
+ * ledger is cleared or closed.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class SpillingDigestLedger {
+
+	/**
+	 * The default number of entries kept in memory.
+	 */
+	public static final int DEFAULT_MEMORY_LIMIT = 100000;
+
+	/**
+	 * The size of the buffers the spill file is written and read through.
+	 */
+	static final int IO_BUFFER_SIZE = 65536;
+
+	private static final Charset UTF_8 = Charset.forName("utf-8");
+
+	static Logger log = Logger.getLogger(SpillingDigestLedger.class);
+
+	private final int digestLength;
+	private final int memoryLimit;
+	private final File directory;
+	private final DigestLedger memory;
+
+	/**
+	 * The file position of every entry in the spill file that has not been
+	 * read back or taken yet.
+	 */
+	private final Map<String, Long> spillIndex;
+
+	private File spillFile;
+	private FileChannel spill;
+	private ByteBuffer writeBuffer;
+	private ByteBuffer readBuffer;
+
+	/** The file position of the first byte of readBuffer, -1 if empty. */
+	private long readBufferPos;
+
+	/** The file position the write buffer is flushed to. */
+	private long writePos;
+
+	/** The file position of the oldest entry not read back yet. */
+	private long readPos;
+
+	/**
+	 * The number of entries in the spill file not read back yet, including
+	 * the ones taken out of order.
+	 */
+	private int spilled;
+
+	private long spillCount;
+
+	private boolean closed;
+
+	/** The length of the entry last read by readEntry. */
+	private int entryLength;
+
+	/**
+	 * Create a new, empty {@link SpillingDigestLedger}.
+	 *
+	 * @param digestLength
+	 *            The length, in bytes, of every digest in this ledger.
+	 * @param memoryLimit
+	 *            The number of entries to keep in memory. A value of 0 keeps
+	 *            every entry in memory.
+	 * @param directory
+	 *            The directory to create the spill file in, or
+	 *            <code>null</code> for the default temporary directory.
+	 */
+	public SpillingDigestLedger(final int digestLength, final int memoryLimit,
+			final File directory) {
+
+		if (memoryLimit < 0) {
+			throw new IllegalArgumentException("'memoryLimit' must be 0 or greater.");
+		}
+
+		this.memory = new DigestLedger(digestLength);
+		this.digestLength = digestLength;
+		this.memoryLimit = memoryLimit;
+		this.directory = directory;
+		this.spillIndex = new HashMap<String, Long>();
+		this.readBufferPos = -1;
+	}
+
+	/**
+	 * @return the length, in bytes, of every digest in this ledger
+	 */
+	public int getDigestLength() {
+		return this.digestLength;
+	}
+
+	/**
+	 * @return the memoryLimit
+	 */
+	public int getMemoryLimit() {
+		return this.memoryLimit;
+	}
+
+	/**
+	 * @return the number of entries, in memory and in the spill file
+	 */
+	public synchronized int size() {
+		return this.memory.size() + this.spillIndex.size();
+	}
+
+	/**
+	 * @return the number of entries in memory
+	 */
+	public synchronized int getMemorySize() {
+		return this.memory.size();
+	}
+
+	/**
+	 * @return the number of entries in the spill file
+	 */
+	public synchronized int getSpilledSize() {
+		return this.spillIndex.size();
+	}
+
+	/**
+	 * @return the number of entries ever written to a spill file
+	 */
+	public synchronized long getSpillCount() {
+		return this.spillCount;
+	}
+
+	/**
+	 * @param nonce
+	 *            The nonce to look for.
+	 * @return true if there is a digest for the nonce in memory.
+	 */
+	public synchronized boolean contains(final String nonce) {
+		return this.memory.contains(nonce);
+	}
+
+	/**
+	 * Get a copy of the digest of a nonce that is in memory.
+	 *
+	 * @param nonce
+	 *            The nonce to look for.
+	 * @return the digest, or <code>null</code> if the nonce is not in
+	 *         memory.
+	 */
+	public synchronized byte[] get(final String nonce) {
+		return this.memory.get(nonce);
+	}
+
+	/**
+	 * Add a digest, unless the nonce is already present. If the memory
+	 * limit has been reached, or earlier entries are still in the spill
+	 * file, the entry is appended to the spill file. If the spill file
+	 * cannot be written, or the ledger is closed, the entry is kept in
+	 * memory.
+	 *
+	 * @param nonce
+	 *            The nonce of the record.
+	 * @param digest
+	 *            The digest of the record, which must be exactly
+	 *            {@link #getDigestLength()} bytes. It is copied.
+	 * @return false if the nonce was already present.
+	 */
+	public synchronized boolean putIfAbsent(final String nonce, final byte[] digest) {
+
+		if (nonce == null || nonce.length() == 0) {
+			throw new IllegalArgumentException("'nonce' cannot be null or empty.");
+		}
+
+		if (digest == null || digest.length != this.digestLength) {
+			throw new IllegalArgumentException("'digest' must be "
+					+ this.digestLength + " bytes.");
+		}
+
+		if (this.memory.contains(nonce) || this.spillIndex.containsKey(nonce)) {
+			return false;
+		}
+
+		// once anything is spilled, later entries follow it so the file
+		// stays in the order the records were sent
+		if (this.memoryLimit > 0 && !this.closed
+				&& (this.spilled > 0 || this.memory.size() >= this.memoryLimit)
+				&& spill(nonce, digest)) {
+			return true;
+		}
+		this.memory.put(nonce, digest);
+		return true;
+	}
+
+	/**
+	 * Remove a nonce and return its digest.
+	 *
+	 * @param nonce
+	 *            The nonce to remove.
+	 * @return the digest, or <code>null</code> if the nonce was not present.
+	 */
+	public synchronized byte[] take(final String nonce) {
+		if (nonce == null) {
+			return null;
+		}
+		byte[] ret = this.memory.take(nonce);
+		if (ret == null && this.spilled > 0) {
+			try {
+				if (this.memory.size() < this.memoryLimit) {
+					refill();
+					ret = this.memory.take(nonce);
+				}
+				if (ret == null) {
+					ret = takeFromSpill(nonce);
+				}
+			} catch (final IOException e) {
+				if (log.isEnabledFor(Level.ERROR)) {
+					log.error("Error reading the digest spill file: " + e.getMessage());
+				}
+			}
+		}
+		if (ret != null) {
+			this.notifyAll();
+		}
+		return ret;
+	}
+
+	/**
+	 * Wait until there are fewer than <code>limit</code> entries.
+	 *
+	 * @param limit
+	 *            The number of entries to wait to drop below.
+	 * @param timeoutMillis
+	 *            The longest time, in milliseconds, to wait.
+	 * @return true if there are fewer than <code>limit</code> entries.
+	 * @throws InterruptedException
+	 *             If interrupted while waiting.
+	 */
+	public synchronized boolean awaitBelow(final int limit,
+			final long timeoutMillis) throws InterruptedException {
+		final long deadline = System.nanoTime() + timeoutMillis * 1000 * 1000;
+		long remaining = timeoutMillis;
+		while (size() >= limit && remaining > 0) {
+			this.wait(remaining);
+			remaining = (deadline - System.nanoTime()) / (1000 * 1000);
+		}
+		return size() < limit;
+	}
+
+	/**
+	 * Remove every entry and delete the spill file.
+	 */
+	public synchronized void clear() {
+		this.memory.clear();
+		discardSpill();
+		this.notifyAll();
+	}
+
+	/**
+	 * Remove every entry and delete the spill file, and keep any entry added
+	 * afterwards in memory. This is called once the session the ledger
+	 * belongs to has ended, so no spill file outlives it.
+	 */
+	public synchronized void close() {
+		this.closed = true;
+		clear();
+	}
+
+	/**
+	 * Append an entry to the spill file.
+	 *
+	 * @return false if the entry could not be spilled.
+	 */
+	private boolean spill(final String nonce, final byte[] digest) {
+		final byte[] nonceBytes = nonce.getBytes(UTF_8);
+		final int len = 2 + nonceBytes.length + this.digestLength;
+		if (len > IO_BUFFER_SIZE) {
+			return false;
+		}
+		try {
+			if (this.spill == null) {
+				openSpill();
+			}
+			if (this.writeBuffer.remaining() < len) {
+				flushWrites();
+			}
+			this.spillIndex.put(nonce, this.writePos + this.writeBuffer.position());
+			this.writeBuffer.putShort((short) nonceBytes.length);
+			this.writeBuffer.put(nonceBytes);
+			this.writeBuffer.put(digest);
+		} catch (final IOException e) {
+			if (log.isEnabledFor(Level.ERROR)) {
+				log.error("Error writing the digest spill file: " + e.getMessage());
+			}
+			return false;
+		}
+		this.spilled++;
+		this.spillCount++;
+		return true;
+	}
+
+	/**
+	 * Move the oldest spilled entries into memory, until memory is full or
+	 * the spill file has been read back.
+	 */
+	private void refill() throws IOException {
+		flushWrites();
+		final byte[] digest = new byte[this.digestLength];
+		while (this.spilled > 0 && this.memory.size() < this.memoryLimit) {
+			final long pos = this.readPos;
+			final String nonce = readEntry(pos, digest);
+			this.readPos += this.entryLength;
+			this.spilled--;
+			// entries taken out of order are no longer in the index, and if
+			// the nonce was added again it is indexed at its new entry
+			final Long indexed = this.spillIndex.get(nonce);
+			if (indexed != null && indexed.longValue() == pos) {
+				this.spillIndex.remove(nonce);
+				this.memory.put(nonce, digest);
+			}
+		}
+		if (this.spilled == 0) {
+			discardSpill();
+		}
+	}
+
+	/**
+	 * Read the entry of a nonce from the spill file, and remove it from the
+	 * index so it is skipped when the file is read back.
+	 */
+	private byte[] takeFromSpill(final String nonce) throws IOException {
+		final Long pos = this.spillIndex.get(nonce);
+		if (pos == null) {
+			return null;
+		}
+		if (pos >= this.writePos) {
+			flushWrites();
+		}
+		final byte[] digest = new byte[this.digestLength];
+		readEntry(pos, digest);
+		this.spillIndex.remove(nonce);
+		if (this.spillIndex.isEmpty()) {
+			discardSpill();
+		}
+		return digest;
+	}
+
+	/**
+	 * Read the entry at <code>pos</code>, and set {@link #entryLength} to
+	 * its length in the file.
+	 *
+	 * @return the nonce of the entry.
+	 */
+	private String readEntry(final long pos, final byte[] digest) throws IOException {
+		fill(pos, 2);
+		final int nonceLength = this.readBuffer.getShort((int) (pos - this.readBufferPos)) & 0xffff;
+		this.entryLength = 2 + nonceLength + this.digestLength;
+		fill(pos, this.entryLength);
+		final int off = (int) (pos - this.readBufferPos) + 2;
+		final String nonce = new String(this.readBuffer.array(), off, nonceLength, UTF_8);
+		System.arraycopy(this.readBuffer.array(), off + nonceLength, digest, 0,
+				this.digestLength);
+		return nonce;
+	}
+
+	/**
+	 * Make sure the read buffer holds the <code>len</code> bytes at
+	 * <code>pos</code>.
+	 */
+	private void fill(final long pos, final int len) throws IOException {
+		if (this.readBufferPos >= 0 && pos >= this.readBufferPos
+				&& pos + len <= this.readBufferPos + this.readBuffer.limit()) {
+			return;
+		}
+		this.readBuffer.clear();
+		this.readBufferPos = pos;
+		while (this.readBuffer.position() < len) {
+			if (this.spill.read(this.readBuffer, pos + this.readBuffer.position()) < 0) {
+				this.readBufferPos = -1;
+				throw new EOFException("Digest spill file is truncated");
+			}
+		}
+		this.readBuffer.flip();
+	}
+
+	private void openSpill() throws IOException {
+		this.spillFile = File.createTempFile("jnl-digests-", ".spill", this.directory);
+		this.spill = new RandomAccessFile(this.spillFile, "rw").getChannel();
+		if (this.writeBuffer == null) {
+			this.writeBuffer = ByteBuffer.allocate(IO_BUFFER_SIZE);
+			this.readBuffer = ByteBuffer.allocate(IO_BUFFER_SIZE);
+		}
+		this.writeBuffer.clear();
+		this.readBufferPos = -1;
+		this.writePos = 0;
+		this.readPos = 0;
+	}
+
+	private void flushWrites() throws IOException {
+		this.writeBuffer.flip();
+		while (this.writeBuffer.hasRemaining()) {
+			this.writePos += this.spill.write(this.writeBuffer, this.writePos);
+		}
+		this.writeBuffer.clear();
+	}
+
+	private void discardSpill() {
+		if (this.spill != null) {
+			try {
+				this.spill.close();
+			} catch (final IOException e) {
+				if (log.isDebugEnabled()) {
+					log.debug("Error closing the digest spill file: " + e.getMessage());
+				}
+			}
+			if (!this.spillFile.delete() && log.isDebugEnabled()) {
+				log.debug("Could not delete " + this.spillFile);
+			}
+			this.spill = null;
+			this.spillFile = null;
+		}
+		this.spilled = 0;
+		this.spillIndex.clear();
+	}
+}
@@ -23,12 +23,16 @@
  */
 package com.tresys.jalop.jnl.impl;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.List;
 
@@ -43,11 +47,16 @@ import org.beepcore.beep.core.InputDataStreamAdapter;
 import org.beepcore.beep.core.Message;
 import org.beepcore.beep.core.ReplyListener;
 
+import com.tresys.jalop.jnl.DigestCheckpoint;
+import com.tresys.jalop.jnl.DigestCheckpointSource;
 import com.tresys.jalop.jnl.IncompleteRecordException;
 import com.tresys.jalop.jnl.RecordInfo;
 import com.tresys.jalop.jnl.RecordType;
+import com.tresys.jalop.jnl.SinkSubscriber;
 import com.tresys.jalop.jnl.Subscriber;
 import com.tresys.jalop.jnl.exceptions.UnexpectedMimeValueException;
+import com.tresys.jalop.jnl.impl.messages.HeaderCodec;
+import com.tresys.jalop.jnl.impl.messages.RecordBatch;
 import com.tresys.jalop.jnl.impl.messages.Utils;
 import com.tresys.jalop.jnl.impl.subscriber.SubscriberSessionImpl;
 
@@ -58,10 +67,6 @@ import com.tresys.jalop.jnl.impl.subscriber.SubscriberSessionImpl;
  */
 public class SubscriberANSHandler implements ReplyListener {
 
-	private static final String[] KNOWN_HEADERS = { Utils.HDRS_APP_META_LEN.toLowerCase(),
-			Utils.HDRS_SYS_META_LEN.toLowerCase(), Utils.HDRS_LOG_LEN.toLowerCase(), Utils.HDRS_AUDIT_LEN.toLowerCase(), Utils.HDRS_JOURNAL_LEN.toLowerCase(),
-			Utils.HDRS_CONTENT_TYPE.toLowerCase(), Utils.HDRS_MESSAGE.toLowerCase(), Utils.HDRS_NONCE.toLowerCase() };
-
 	static final int BUFFER_SIZE = 4096;
 
 	/**
@@ -70,6 +75,17 @@ public class SubscriberANSHandler implements ReplyListener {
 	private final MessageDigest md;
 
 	private final SubscriberSessionImpl subsess;
+
+	/**
+	 * The queue records of this session are dispatched through.
+	 */
+	private final RecordDispatcher.SessionQueue dispatchQueue;
+
+	/**
+	 * The {@link RecordDispatcher} records are processed on.
+	 */
+	private final RecordDispatcher dispatcher;
+
 	static Logger log = Logger.getLogger(SubscriberANSHandler.class);
 
 	/**
@@ -84,9 +100,31 @@ public class SubscriberANSHandler implements ReplyListener {
 	 */
 	public SubscriberANSHandler(final MessageDigest md,
 			final SubscriberSessionImpl subsess) {
+		this(md, subsess, null);
+	}
+
+	/**
+	 * Create a SubscriberANSHandler that processes records using the given
+	 * {@link RecordDispatcher}.
+	 *
+	 * @param md
+	 *            the {@link MessageDigest} that should be used for digest
+	 *            calculations.
+	 * @param subsess
+	 *            the {@link SubscriberSessionImpl} the records belong to.
+	 * @param dispatcher
+	 *            the {@link RecordDispatcher} to process records on. If this
+	 *            is <code>null</code>, the default dispatcher is used.
+	 */
+	public SubscriberANSHandler(final MessageDigest md,
+			final SubscriberSessionImpl subsess,
+			final RecordDispatcher dispatcher) {
 		super();
 		this.md = md;
 		this.subsess = subsess;
+		this.dispatcher = dispatcher != null ? dispatcher
+				: RecordDispatcher.getDefault();
+		this.dispatchQueue = this.dispatcher.register();
 	}
 
 	/**
@@ -107,7 +145,7 @@ public class SubscriberANSHandler implements ReplyListener {
 		String hdr = "";
 		while (headers.hasMoreElements()) {
 			hdr = headers.nextElement();
-			if (!Arrays.asList(KNOWN_HEADERS).contains(hdr.toLowerCase()))
+			if (!HeaderCodec.contains(HeaderCodec.RECORD_HEADERS, hdr))
 				ret.add(new MimeHeader(hdr, dsa.getHeaderValue(hdr)));
 		}
 		return ret;
@@ -143,12 +181,26 @@ public class SubscriberANSHandler implements ReplyListener {
 		private final InputDataStream ds;
 
 		/**
-		 * The MessageDigest to use for calculating the JALoP digest.
+		 * The MessageDigest to use for calculating the JALoP digest. It is
+		 * replaced when a journal record is resumed from a checkpoint.
 		 */
-		private final MessageDigest md;
+		private MessageDigest md;
 
 		private JalopDataStream js;
 
+		/**
+		 * Buffer shared by the {@link JalopDataStream}s of this record. When
+		 * the digest is calculated by a {@link DigestPipeline}, this is the
+		 * ring buffer currently being consumed.
+		 */
+		private byte[] buffer;
+
+		/**
+		 * Calculates the digest of a large record on a separate thread, or
+		 * <code>null</code> if the digest is calculated as data is read.
+		 */
+		private DigestPipeline pipeline;
+
 		/**
 		 * A boolean indicating whether the payload size was what was expected. This
 		 * is used so that MessageDigest is able to know whether or not to send an
@@ -162,6 +214,7 @@ public class SubscriberANSHandler implements ReplyListener {
 			this.md = md;
 			this.payloadCorrect = true;
 			this.payloadComplete = false;
+			this.buffer = new byte[BUFFER_SIZE];
 		}
 
 		/**
@@ -186,6 +239,25 @@ public class SubscriberANSHandler implements ReplyListener {
 
 	        this.md.reset();
 			final InputDataStreamAdapter dsa = ds.getInputStream();
+			final int messageType;
+			try {
+				messageType = HeaderCodec.lookupMessage(dsa.getHeaderValue(Utils.HDRS_MESSAGE));
+			} catch (final BEEPException e) {
+				if(log.isEnabledFor(Level.ERROR)) {
+					log.error(e.getMessage());
+				}
+				return;
+			}
+			if (messageType == HeaderCodec.MSG_RECORD_BATCH) {
+				try {
+					receiveBatch(dsa);
+				} catch (final BEEPException e) {
+					if(log.isEnabledFor(Level.ERROR)) {
+						log.error(e.getMessage());
+					}
+				}
+				return;
+			}
 			final long sysMetadataSize;
 			final long appMetadataSize;
 			final long payloadSize;
@@ -193,21 +265,25 @@ public class SubscriberANSHandler implements ReplyListener {
 			final RecordType recType;
 			// Get the segment lengths from the header
 			try {
-				sysMetadataSize = new Long(dsa
-						.getHeaderValue(Utils.HDRS_SYS_META_LEN)).longValue();
-				appMetadataSize = new Long(dsa.getHeaderValue(Utils.HDRS_APP_META_LEN)).longValue();
+				sysMetadataSize = HeaderCodec.parseLength(dsa
+						.getHeaderValue(Utils.HDRS_SYS_META_LEN));
+				appMetadataSize = HeaderCodec.parseLength(dsa.getHeaderValue(Utils.HDRS_APP_META_LEN));
 
 				payloadType = dsa.getHeaderValue(Utils.HDRS_MESSAGE);
-				if (payloadType.equalsIgnoreCase("log-record")) {
-					payloadSize = new Long(dsa.getHeaderValue(Utils.HDRS_LOG_LEN)).longValue();
+				switch (HeaderCodec.lookupMessage(payloadType)) {
+				case HeaderCodec.MSG_LOG:
+					payloadSize = HeaderCodec.parseLength(dsa.getHeaderValue(Utils.HDRS_LOG_LEN));
 					recType = RecordType.Log;
-				} else if (payloadType.equalsIgnoreCase("audit-record")) {
-					payloadSize = new Long(dsa.getHeaderValue(Utils.HDRS_AUDIT_LEN)).longValue();
+					break;
+				case HeaderCodec.MSG_AUDIT:
+					payloadSize = HeaderCodec.parseLength(dsa.getHeaderValue(Utils.HDRS_AUDIT_LEN));
 					recType = RecordType.Audit;
-				} else if (payloadType.equalsIgnoreCase("journal-record")) {
-					payloadSize = new Long(dsa.getHeaderValue(Utils.HDRS_JOURNAL_LEN)).longValue();
+					break;
+				case HeaderCodec.MSG_JOURNAL:
+					payloadSize = HeaderCodec.parseLength(dsa.getHeaderValue(Utils.HDRS_JOURNAL_LEN));
 					recType = RecordType.Journal;
-				} else {
+					break;
+				default:
 					throw new AbortChannelException(
 							"Did not receive appropriate headers");
 				}
@@ -215,6 +291,12 @@ public class SubscriberANSHandler implements ReplyListener {
 				return;
 			}
 
+			final long offloadThreshold = dispatcher.getDigestOffloadThreshold();
+			if (offloadThreshold > 0
+					&& sysMetadataSize + appMetadataSize + payloadSize >= offloadThreshold) {
+				this.pipeline = new DigestPipeline(this.md, dispatcher.getDigestExecutor());
+			}
+
 			final Subscriber sub = subsess.getSubscriber();
 			try {
 				final RecordInfo recInfo = new RecordInfo() {
@@ -256,14 +338,22 @@ public class SubscriberANSHandler implements ReplyListener {
 					}
 				};
 
+				final SinkSubscriber sinkSub = sub instanceof SinkSubscriber ? (SinkSubscriber) sub : null;
+
 				this.js = new JalopDataStream(sysMetadataSize, this.ds);
-				if (!sub.notifySysMetadata(subsess, recInfo, js)) {
+				final WritableByteChannel sysSink = sinkSub != null ? sinkSub.getSysMetadataSink(subsess, recInfo) : null;
+				if (sysSink != null) {
+					this.js.transferTo(sysSink);
+				} else if (!sub.notifySysMetadata(subsess, recInfo, js)) {
 					throw new AbortChannelException("Error in notifySysMetadata");
 				}
 				this.js.flush();
 
 				this.js = new JalopDataStream(appMetadataSize, this.ds);
-				if (!sub.notifyAppMetadata(subsess, recInfo, js)) {
+				final WritableByteChannel appSink = sinkSub != null ? sinkSub.getAppMetadataSink(subsess, recInfo) : null;
+				if (appSink != null) {
+					this.js.transferTo(appSink);
+				} else if (!sub.notifyAppMetadata(subsess, recInfo, js)) {
 					throw new AbortChannelException("Error in notifyAppMetadata");
 				}
 				this.js.flush();
@@ -272,12 +362,16 @@ public class SubscriberANSHandler implements ReplyListener {
 				if(subsess.getJournalResumeOffset() > 0) {
 
 					//calculate already received payload before resuming
+					// the pipeline must be idle before the digest is updated here
+					joinDigest();
 					final InputStream resumeInputStream = subsess.getJournalResumeIS();
-					final byte[] buffer =  new byte[BUFFER_SIZE];
+					final long checkpointOffset = restoreCheckpoint(subsess.getJournalResumeCheckpoint(),
+							subsess.getJournalResumeOffset());
+					skipFully(resumeInputStream, checkpointOffset);
 					int bytesRead = 0;
 
-					while((bytesRead = resumeInputStream.read(buffer)) > -1) {
-						md.update(buffer, 0, bytesRead);
+					while((bytesRead = resumeInputStream.read(this.buffer)) > -1) {
+						md.update(this.buffer, 0, bytesRead);
 					}
 
 					if(log.isDebugEnabled()) {
@@ -286,13 +380,20 @@ public class SubscriberANSHandler implements ReplyListener {
 					payloadSizeToRead -= subsess.getJournalResumeOffset();
 				}
 				this.js = new JalopDataStream(payloadSizeToRead, this.ds);
-				if (!sub.notifyPayload(subsess, recInfo, js)) {
+				if (RecordType.Journal.equals(recType)) {
+					this.js.checkpointBase = subsess.getJournalResumeOffset();
+				}
+				final WritableByteChannel payloadSink = sinkSub != null ? sinkSub.getPayloadSink(subsess, recInfo) : null;
+				if (payloadSink != null) {
+					this.js.transferTo(payloadSink);
+				} else if (!sub.notifyPayload(subsess, recInfo, js)) {
 					throw new AbortChannelException("Error in notifyPayload");
 				}
 				this.js.flush();
 				// only the first record is a journal resume, subsequent records are normal
 				subsess.setJournalResumeOffset(0);
 				subsess.setJournalResumeIS(null);
+				subsess.setJournalResumeCheckpoint(null);
 
 				if (this.ds.getInputStream().read() != -1) {
 					throw new IOException(
@@ -300,17 +401,13 @@ public class SubscriberANSHandler implements ReplyListener {
 				}
 				this.payloadComplete = true;
 
+				joinDigest();
 				final byte [] digest = getRecordDigest(this.md);
 				if (!sub.notifyDigest(subsess, recInfo, digest)) {
 					throw new AbortChannelException("Error in notifyDigest");
 				}
 
-				String hexDgst = "";
-				for (byte b : digest) {
-				    hexDgst = hexDgst + String.format("%02x",b);
-				}
-
-				subsess.addDigest(recInfo.getNonce(), hexDgst);
+				subsess.addDigest(recInfo.getNonce(), digest);
 			} catch (final BEEPException e) {
 				if(log.isEnabledFor(Level.ERROR)) {
 					log.error(e.getMessage());
@@ -334,6 +431,167 @@ public class SubscriberANSHandler implements ReplyListener {
 			}
 		}
 
+		/**
+		 * Receive a record-batch message, which carries several small records
+		 * of the session's type behind a table of their lengths. Each record
+		 * is delivered to the {@link Subscriber} exactly as if it had been
+		 * sent on its own.
+		 */
+		private void receiveBatch(final InputDataStreamAdapter dsa) throws BEEPException {
+			final Subscriber sub = subsess.getSubscriber();
+			final SinkSubscriber sinkSub = sub instanceof SinkSubscriber ? (SinkSubscriber) sub : null;
+			try {
+				final String countHeader = dsa.getHeaderValue(Utils.HDRS_COUNT);
+				if (countHeader == null) {
+					throw new IOException("Missing record count");
+				}
+				final int count;
+				try {
+					count = Integer.parseInt(countHeader.trim());
+				} catch (final NumberFormatException e) {
+					throw new IOException("Invalid record count: " + e.getMessage());
+				}
+
+				final List<RecordBatch.Entry> entries = RecordBatch.readTable(dsa,
+						count, subsess.getRecordType());
+				for (final RecordBatch.Entry recInfo : entries) {
+					final byte[] sys = new byte[(int) recInfo.getSysMetaLength()];
+					final byte[] app = new byte[(int) recInfo.getAppMetaLength()];
+					final byte[] payload = new byte[(int) recInfo.getPayloadLength()];
+					RecordBatch.readFully(dsa, sys);
+					RecordBatch.readFully(dsa, app);
+					RecordBatch.readFully(dsa, payload);
+					received(sys.length + app.length + payload.length);
+
+					this.md.reset();
+					this.md.update(sys);
+					this.md.update(app);
+					this.md.update(payload);
+					final byte[] digest = this.md.digest();
+
+					final WritableByteChannel sysSink = sinkSub != null ? sinkSub.getSysMetadataSink(subsess, recInfo) : null;
+					if (sysSink != null) {
+						writeFully(sysSink, sys);
+					} else if (!sub.notifySysMetadata(subsess, recInfo, new ByteArrayInputStream(sys))) {
+						throw new AbortChannelException("Error in notifySysMetadata");
+					}
+					final WritableByteChannel appSink = sinkSub != null ? sinkSub.getAppMetadataSink(subsess, recInfo) : null;
+					if (appSink != null) {
+						writeFully(appSink, app);
+					} else if (!sub.notifyAppMetadata(subsess, recInfo, new ByteArrayInputStream(app))) {
+						throw new AbortChannelException("Error in notifyAppMetadata");
+					}
+					final WritableByteChannel payloadSink = sinkSub != null ? sinkSub.getPayloadSink(subsess, recInfo) : null;
+					if (payloadSink != null) {
+						writeFully(payloadSink, payload);
+					} else if (!sub.notifyPayload(subsess, recInfo, new ByteArrayInputStream(payload))) {
+						throw new AbortChannelException("Error in notifyPayload");
+					}
+
+					if (!sub.notifyDigest(subsess, recInfo, digest)) {
+						throw new AbortChannelException("Error in notifyDigest");
+					}
+					subsess.addDigest(recInfo.getNonce(), digest);
+				}
+
+				if (dsa.read() != -1) {
+					throw new IOException(
+							"Additional data exists when none is expected");
+				}
+			} catch (final IOException e) {
+				if(log.isEnabledFor(Level.ERROR)) {
+					log.error(e.getMessage());
+				}
+			}
+		}
+
+		/**
+		 * Count data taken off the channel towards the receive window, as it
+		 * is taken rather than once the record has been delivered, so that
+		 * the window is tuned in the middle of large records.
+		 */
+		private void received(final long bytes) {
+			final ReceiveWindow window = subsess.getReceiveWindow();
+			if (window != null) {
+				window.received(bytes);
+			}
+		}
+
+		private void writeFully(final WritableByteChannel sink, final byte[] data)
+				throws IOException {
+			final ByteBuffer buf = ByteBuffer.wrap(data);
+			while (buf.hasRemaining()) {
+				sink.write(buf);
+			}
+		}
+
+		/**
+		 * Wait for the {@link DigestPipeline}, if any, to finish hashing the
+		 * data read so far.
+		 */
+		private void joinDigest() throws IOException {
+			if (this.pipeline != null) {
+				try {
+					this.pipeline.join();
+				} catch (final InterruptedException e) {
+					throw new InterruptedIOException(e.getMessage());
+				}
+			}
+		}
+
+		/**
+		 * Replace the digest with the state saved in a checkpoint, if the
+		 * checkpoint can be used to resume from <code>resumeOffset</code>.
+		 *
+		 * @return the number of payload bytes the digest now includes.
+		 */
+		private long restoreCheckpoint(final DigestCheckpoint checkpoint,
+				final long resumeOffset) {
+			if (checkpoint == null
+					|| !checkpoint.getAlgorithm().equals(this.md.getAlgorithm())
+					|| checkpoint.getPayloadOffset() > resumeOffset) {
+				return 0;
+			}
+
+			// the metadata has already been hashed into this.md, but it is
+			// also covered by the checkpoint
+			try {
+				this.md = Sha2Digest.fromCheckpoint(checkpoint);
+			} catch (final NoSuchAlgorithmException e) {
+				return 0;
+			} catch (final IllegalArgumentException e) {
+				if (log.isEnabledFor(Level.WARN)) {
+					log.warn("Ignoring digest checkpoint: " + e.getMessage());
+				}
+				return 0;
+			}
+			if (this.pipeline != null) {
+				this.pipeline = new DigestPipeline(this.md, dispatcher.getDigestExecutor());
+			}
+			if (log.isDebugEnabled()) {
+				log.debug("Resuming digest from checkpoint at " + checkpoint.getPayloadOffset());
+			}
+			return checkpoint.getPayloadOffset();
+		}
+
+		/**
+		 * Skip exactly <code>n</code> bytes of <code>is</code>.
+		 */
+		private void skipFully(final InputStream is, long n) throws IOException {
+			while (n > 0) {
+				long skipped = is.skip(n);
+				if (skipped <= 0) {
+					// skip may not be able to tell the end of the stream
+					// apart from a stream that cannot skip
+					skipped = is.read(this.buffer, 0, (int) Math.min(n, this.buffer.length));
+					if (skipped < 0) {
+						throw new IOException("Journal resume data is shorter than the digest checkpoint");
+					}
+				}
+				n -= skipped;
+			}
+		}
+
 		/*
 		 * This function is only used for testing purposes. It returns a {@link
 		 * JalopDataStream}
@@ -346,19 +604,54 @@ public class SubscriberANSHandler implements ReplyListener {
 			return new JalopDataStream(size, ds);
 		}
 
-		private class JalopDataStream extends InputStream {
+		/**
+		 * An {@link InputStream} over a single section (system metadata,
+		 * application metadata or payload) of a record. Data is pulled from
+		 * the {@link InputDataStreamAdapter} in bulk into the buffer of the
+		 * {@link Dispatcher} and added to the digest as it is pulled, so
+		 * reading one byte at a time does not update the digest one byte at a
+		 * time. The trailing BREAK marker is verified in place.
+		 */
+		private class JalopDataStream extends InputStream implements DigestCheckpointSource {
 			private boolean finishedReading;
 			InputDataStreamAdapter dsa;
 			InputDataStream ds;
 			private final long dataSize;
+
+			/**
+			 * The number of bytes returned to (or skipped by) the caller.
+			 */
 			private long bytesRead;
 
+			/**
+			 * The number of bytes of this section pulled from the adapter.
+			 */
+			private long bytesFilled;
+
+			/**
+			 * Whether the BREAK marker has been read and verified.
+			 */
+			private boolean breakChecked;
+
+			private int pos;
+			private int limit;
+
+			/**
+			 * The payload offset of the first byte of this section, or -1 if
+			 * checkpoints are not available for this section.
+			 */
+			long checkpointBase = -1;
+
 			public JalopDataStream(final long dataSize, final InputDataStream ds) throws IOException,
 					BEEPException, UnexpectedMimeValueException {
 				this.finishedReading = false;
 				this.dsa = ds.getInputStream();
 				this.ds = ds;
 				this.bytesRead = 0;
+				this.bytesFilled = 0;
+				this.breakChecked = false;
+				this.pos = 0;
+				this.limit = 0;
 				if (dataSize < 0) {
 					throw new IllegalArgumentException(
 							"dataSize must be 0 or greater");
@@ -366,34 +659,107 @@ public class SubscriberANSHandler implements ReplyListener {
 				this.dataSize = dataSize;
 			}
 
+			/**
+			 * Read exactly <code>len</code> bytes from the adapter.
+			 */
+			private void readFully(final byte[] b, final int off, final int len) throws IOException {
+				int total = 0;
+				while (total < len) {
+					final int n = this.dsa.read(b, off + total, len - total);
+					if (n > 0) {
+						total += n;
+						received(n);
+					} else if (this.ds.isComplete()) {
+						// Shouldn't get to state where expecting more data
+						// but the DataStream has been completed (processed last BEEP Frame)
+						throw new IOException("Could not read data of requested length");
+					} else {
+						// continue waiting for bytes from DataStreamAdapter
+						log.error("DataStreamAdapter return -1 on read from SubscriberANSHandler");
+					}
+				}
+			}
+
+			/**
+			 * Compare the bytes at <code>off</code> against the BREAK marker.
+			 */
+			private void checkBreak(final byte[] b, final int off) throws IOException {
+				for (int i = 0; i < Utils.BREAK_BYTES.length; i++) {
+					if (b[off + i] != Utils.BREAK_BYTES[i]) {
+						payloadCorrect = false;
+						throw new IOException("BREAK string is not where it is expected");
+					}
+				}
+				payloadCorrect = true;
+				this.breakChecked = true;
+			}
+
+			/**
+			 * Refill the buffer with the next chunk of this section. If the
+			 * rest of the section and the BREAK marker fit in the buffer,
+			 * they are pulled together.
+			 */
+			private void fill() throws IOException {
+				if (pipeline != null) {
+					try {
+						buffer = pipeline.acquire();
+					} catch (final InterruptedException e) {
+						throw new InterruptedIOException(e.getMessage());
+					}
+				}
+
+				final long remaining = this.dataSize - this.bytesFilled;
+				final int chunk = (int) Math.min(buffer.length, remaining);
+				final boolean withBreak = remaining + Utils.BREAK_BYTES.length <= buffer.length;
+
+				readFully(buffer, 0, withBreak ? chunk + Utils.BREAK_BYTES.length : chunk);
+				if (pipeline != null) {
+					pipeline.submit(chunk);
+				} else {
+					md.update(buffer, 0, chunk);
+				}
+				this.bytesFilled += chunk;
+				this.pos = 0;
+				this.limit = chunk;
+				if (withBreak) {
+					checkBreak(buffer, chunk);
+				}
+			}
+
+			/**
+			 * Called once all of the section has been consumed.
+			 */
+			private void finish() throws IOException {
+				if (!this.breakChecked) {
+					// the buffer has been fully consumed, so it can hold the
+					// marker, unless it may still be in use by the pipeline
+					final byte[] dst = pipeline != null ? pipeline.scratch() : buffer;
+					readFully(dst, 0, Utils.BREAK_BYTES.length);
+					this.pos = 0;
+					this.limit = 0;
+					checkBreak(dst, 0);
+				}
+				this.finishedReading = true;
+			}
+
 			@Override
 			public int read() throws IOException {
 				if (this.finishedReading == true)
 					return -1;
 
-				int ret = 0;
-				// only read if data is expected
-				if (this.dataSize != 0) {
-					ret = this.dsa.read();
-					if (ret == -1) {
-						throw new IOException();
-					}
+				if (this.bytesRead == this.dataSize) {
+					finish();
+					return -1;
+				}
 
-					md.update((byte) ret);
-					this.bytesRead++;
+				if (this.pos == this.limit) {
+					fill();
 				}
 
+				final int ret = buffer[this.pos++] & 0xff;
+				this.bytesRead++;
 				if (this.bytesRead == this.dataSize) {
-					// we should be done. Try to read the BREAK string
-					final byte b[] = new byte[5];
-					this.dsa.read(b, 0, 5);
-					if (!Arrays.equals("BREAK".getBytes("utf-8"), b)) {
-						payloadCorrect = false;
-						throw new IOException("BREAK string is not where it is expected");
-					} else {
-						payloadCorrect = true;
-					}
-					this.finishedReading = true;
+					finish();
 				}
 				return ret;
 			}
@@ -408,57 +774,137 @@ public class SubscriberANSHandler implements ReplyListener {
 				if (this.finishedReading == true)
 					return -1;
 
-				int bytesRead = 0;
-
-				// Calculate number of bytes to be read
-				// If last frame, get remaining bytes
-				// otherwise, full buffer
-				int new_len = len;
-				if ((len + this.bytesRead) > this.dataSize) {
-					new_len = (int) (this.dataSize - this.bytesRead);
+				if (this.bytesRead == this.dataSize) {
+					finish();
+					return -1;
 				}
 
-				// Keep reading until requested amount is finished
-				while (bytesRead < new_len) {
-					int n = this.dsa.read(b, off + bytesRead, new_len - bytesRead);
-					if ( n > 0 ) {
-						bytesRead += n;
-						this.bytesRead += n;
-					} else if (this.ds.isComplete()) {
-						// Shouldn't get to state where expecting more data
-						// but the DataStream has been completed (processed last BEEP Frame)
-						throw new IOException("Could not read data of requested length");
+				// Only read as much data as remains in this section
+				final int toRead = (int) Math.min(len, this.dataSize - this.bytesRead);
+				int copied = 0;
+
+				while (copied < toRead) {
+					final int buffered = this.limit - this.pos;
+					if (buffered > 0) {
+						final int n = Math.min(buffered, toRead - copied);
+						System.arraycopy(buffer, this.pos, b, off + copied, n);
+						this.pos += n;
+						copied += n;
+					} else if (pipeline == null && toRead - copied >= buffer.length) {
+						// large reads go straight into the caller's array
+						final int n = (int) Math.min(toRead - copied,
+								this.dataSize - this.bytesFilled);
+						readFully(b, off + copied, n);
+						md.update(b, off + copied, n);
+						this.bytesFilled += n;
+						copied += n;
 					} else {
-						// continue waiting for bytes from DataStreamAdapter
-						log.error("DataStreamAdapter return -1 on read from SubscriberANSHandler");
+						fill();
 					}
 				}
 
-				md.update(b, off, new_len);
+				this.bytesRead += copied;
 				if (this.bytesRead == this.dataSize) {
-					// check for break string
-					final byte brk[] = new byte[5];
-					this.dsa.read(brk, 0, 5);
-					if (!Arrays.equals("BREAK".getBytes("utf-8"), brk)) {
-						payloadCorrect = false;
-						throw new IOException("BREAK string is not where it is expected");
-					} else {
-						payloadCorrect = true;
+					finish();
+				}
+				return copied;
+			}
+
+			@Override
+			public long skip(final long n) throws IOException {
+				if (this.finishedReading || n <= 0) {
+					return 0;
+				}
+
+				final long toSkip = Math.min(n, this.dataSize - this.bytesRead);
+				long skipped = 0;
+				while (skipped < toSkip) {
+					if (this.pos == this.limit) {
+						fill();
+					}
+					final int step = (int) Math.min(this.limit - this.pos, toSkip - skipped);
+					this.pos += step;
+					skipped += step;
+				}
+
+				this.bytesRead += skipped;
+				if (this.bytesRead == this.dataSize) {
+					finish();
+				}
+				return skipped;
+			}
+
+			@Override
+			public int available() throws IOException {
+				if (this.finishedReading) {
+					return 0;
+				}
+
+				final long pending = Math.min(this.dsa.available(),
+						this.dataSize - this.bytesFilled);
+				return (int) Math.min(Integer.MAX_VALUE, (this.limit - this.pos) + pending);
+			}
+
+			/**
+			 * Write the rest of this section to <code>sink</code>, using the
+			 * buffer of the {@link Dispatcher} as the source of each write.
+			 *
+			 * @param sink
+			 *            the {@link WritableByteChannel} to write to.
+			 * @return the number of bytes written.
+			 * @throws IOException
+			 *             If the section could not be read, or written to
+			 *             <code>sink</code>.
+			 */
+			public long transferTo(final WritableByteChannel sink) throws IOException {
+				ByteBuffer bb = ByteBuffer.wrap(buffer);
+				long written = 0;
+				while (!this.finishedReading) {
+					if (this.bytesRead == this.dataSize) {
+						finish();
+						break;
+					}
+					if (this.pos == this.limit) {
+						fill();
+					}
+					if (bb.array() != buffer) {
+						bb = ByteBuffer.wrap(buffer);
+					}
+					bb.limit(this.limit);
+					bb.position(this.pos);
+					while (bb.hasRemaining()) {
+						sink.write(bb);
+					}
+					written += this.limit - this.pos;
+					this.bytesRead += this.limit - this.pos;
+					this.pos = this.limit;
+					if (this.bytesRead == this.dataSize) {
+						finish();
 					}
-					this.finishedReading = true;
 				}
-				return bytesRead;
+				return written;
+			}
+
+			@Override
+			public DigestCheckpoint getDigestCheckpoint() {
+				if (this.checkpointBase < 0 || !(md instanceof Sha2Digest)) {
+					return null;
+				}
+				try {
+					joinDigest();
+				} catch (final IOException e) {
+					Thread.currentThread().interrupt();
+					return null;
+				}
+				return ((Sha2Digest) md).checkpoint(this.checkpointBase + this.bytesFilled);
 			}
 
 			public void flush() throws IOException {
-				if (!this.finishedReading) {
-					int ret = read();
-					while (ret != -1) {
-						ret = read();
+				while (!this.finishedReading) {
+					if (skip(this.dataSize - this.bytesRead) == 0 && !this.finishedReading) {
+						finish();
 					}
 				}
-
-				return;
 			}
 		}
 	}
@@ -467,11 +913,13 @@ public class SubscriberANSHandler implements ReplyListener {
 	public void receiveANS(final Message message) throws AbortChannelException {
 		try {
 			final MessageDigest mdClone = (MessageDigest) this.md.clone();
-			final Thread t = new Thread(new Dispatcher(message.getDataStream(), mdClone));
-			t.start();
+			final InputDataStream ds = message.getDataStream();
+			this.dispatchQueue.dispatch(ds, new Dispatcher(ds, mdClone));
 
 		} catch (final CloneNotSupportedException e) {
 			throw new AbortChannelException(e.getMessage());
+		} catch (final InterruptedException e) {
+			throw new AbortChannelException(e.getMessage());
 		}
 	}
 
@@ -480,7 +928,8 @@ public class SubscriberANSHandler implements ReplyListener {
 		if (log.isDebugEnabled()) {
 			log.debug("SubscriberANSHandler received NUL");
 		}
-		//do nothing
+
+		this.subsess.release();
 	}
 
 }
@@ -34,7 +34,7 @@ public class DigestMessage extends Message {
 	/**
 	 * Maps nonces to digests
 	 */
-	private Map<String, String> digestMap;
+	private Map<String, byte[]> digestMap;
 
 	/**
 	 * Create a new {@link DigestMessage}
@@ -44,7 +44,7 @@ public class DigestMessage extends Message {
 	 * @param otherHeaders
 	 *            Any additional headers sent as part of this message.
 	 */
-	DigestMessage(Map<String, String> map, MimeHeaders otherHeaders) {
+	DigestMessage(Map<String, byte[]> map, MimeHeaders otherHeaders) {
 		super(otherHeaders);
 		this.digestMap = map;
 	}
@@ -54,7 +54,7 @@ public class DigestMessage extends Message {
 	 * 
 	 * @return the map
 	 */
-	public Map<String, String> getMap() {
+	public Map<String, byte[]> getMap() {
 		return digestMap;
 	}
 }
@@ -0,0 +1,146 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl.impl.messages;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.beepcore.beep.core.BEEPException;
+
+/**
+ * Decodes the body of a digest message as it is received. The body is a
+ * list of <code>digest=nonce</code> pairs, where the digest is written in
+ * hex, separated by whitespace (normally CRLF). The hex digest of each pair
+ * is decoded straight into a byte array, and the pair is passed to a
+ * {@link Handler} as soon as the whitespace that ends it has been seen, so
+ * the body never has to be held in memory as a whole.
+ * <p>
+ * A {@link DigestMessageDecoder} holds the state of a single message and is
+ * not thread safe.
+ */
+public final class DigestMessageDecoder extends PairParser {
+
+	/**
+	 * The size of the buffer {@link #decode(InputStream)} reads with.
+	 */
+	static final int BUFFER_SIZE = 4096;
+
+	/**
+	 * Receives the pairs of a digest message.
+	 */
+	public interface Handler {
+		/**
+		 * Called for each pair, in the order they were received.
+		 *
+		 * @param nonce
+		 *            The nonce of the record.
+		 * @param digest
+		 *            The digest the remote calculated for the record. An
+		 *            odd number of hex digits is treated as having a leading
+		 *            zero.
+		 * @throws BEEPException
+		 *             If the pair cannot be handled; decoding stops.
+		 */
+		void handle(String nonce, byte[] digest) throws BEEPException;
+	}
+
+	private final Handler handler;
+
+	/**
+	 * Create a new {@link DigestMessageDecoder}.
+	 *
+	 * @param handler
+	 *            The {@link Handler} to pass each pair to.
+	 */
+	public DigestMessageDecoder(final Handler handler) {
+		if (handler == null) {
+			throw new IllegalArgumentException("'handler' cannot be null.");
+		}
+		this.handler = handler;
+	}
+
+	/**
+	 * Decode the rest of a body, reading until the end of the stream. When
+	 * the stream is the body of a BEEP message this blocks until its last
+	 * frame has been received, so it must not be called on the thread that
+	 * reads from the session.
+	 *
+	 * @param in
+	 *            The stream to read.
+	 * @return the number of pairs in the body.
+	 * @throws IOException
+	 *             If the stream cannot be read.
+	 * @throws BEEPException
+	 *             If a pair cannot be handled.
+	 * @throws IllegalArgumentException
+	 *             If a pair is malformed.
+	 */
+	public int decode(final InputStream in) throws IOException, BEEPException {
+		final byte[] buf = new byte[BUFFER_SIZE];
+		int n;
+		// beepcore streams never return 0 for a non-empty read
+		while ((n = in.read(buf, 0, buf.length)) > 0) {
+			update(buf, 0, n);
+		}
+		return finish();
+	}
+
+	@Override
+	void pair(final byte[] buf, final int eq, final int len) throws BEEPException {
+		if (eq == 0) {
+			throw new IllegalArgumentException("'" + Utils.MSG_DIGEST
+					+ "' must contain non-whitespace characaters");
+		}
+		if (eq == len - 1) {
+			throw new IllegalArgumentException("'" + Utils.NONCE
+					+ "' must contain non-whitespace characaters");
+		}
+
+		final byte[] digest = new byte[(eq + 1) / 2];
+		int pos = digest.length - 1;
+		for (int i = eq - 1; i >= 0; i -= 2) {
+			int b = hexValue(buf[i]);
+			if (i > 0) {
+				b |= hexValue(buf[i - 1]) << 4;
+			}
+			digest[pos--] = (byte) b;
+		}
+
+		this.handler.handle(new String(buf, eq + 1, len - eq - 1, UTF_8), digest);
+	}
+
+	private static int hexValue(final byte c) {
+		if (c >= '0' && c <= '9') {
+			return c - '0';
+		}
+		if (c >= 'a' && c <= 'f') {
+			return c - 'a' + 10;
+		}
+		if (c >= 'A' && c <= 'F') {
+			return c - 'A' + 10;
+		}
+		throw new IllegalArgumentException("'" + (char) (c & 0xff)
+				+ "' is not a hex digit.");
+	}
+}
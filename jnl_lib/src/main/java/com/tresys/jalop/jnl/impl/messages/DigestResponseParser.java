@@ -0,0 +1,115 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl.impl.messages;
+
+import org.beepcore.beep.core.BEEPException;
+
+import com.tresys.jalop.jnl.DigestStatus;
+
+/**
+ * Parses the body of a digest-response message as it is received. The body
+ * is a list of <code>status=nonce</code> pairs separated by whitespace
+ * (normally CRLF). Each pair is passed to a {@link Handler} as soon as the
+ * whitespace that ends it has been seen, so the body never has to be held in
+ * memory as a whole.
+ * <p>
+ * A {@link DigestResponseParser} holds the state of a single message and is
+ * not thread safe.
+ */
+public final class DigestResponseParser extends PairParser {
+
+	private static final byte[] CONFIRMED = Utils.CONFIRMED.getBytes(UTF_8);
+	private static final byte[] INVALID = Utils.INVALID.getBytes(UTF_8);
+	private static final byte[] UNKNOWN = Utils.UNKNOWN.getBytes(UTF_8);
+
+	/**
+	 * Receives the pairs of a digest-response message.
+	 */
+	public interface Handler {
+		/**
+		 * Called for each pair, in the order they were received.
+		 *
+		 * @param nonce
+		 *            The nonce of the record.
+		 * @param status
+		 *            The status the remote assigned to the digest.
+		 * @throws BEEPException
+		 *             If the pair cannot be handled; parsing stops.
+		 */
+		void handle(String nonce, DigestStatus status) throws BEEPException;
+	}
+
+	private final Handler handler;
+
+	/**
+	 * Create a new {@link DigestResponseParser}.
+	 *
+	 * @param handler
+	 *            The {@link Handler} to pass each pair to.
+	 */
+	public DigestResponseParser(final Handler handler) {
+		if (handler == null) {
+			throw new IllegalArgumentException("'handler' cannot be null.");
+		}
+		this.handler = handler;
+	}
+
+	@Override
+	void pair(final byte[] buf, final int eq, final int len) throws BEEPException {
+		final DigestStatus status;
+		if (eq == 0) {
+			throw new IllegalArgumentException("'" + Utils.STATUS
+					+ "' must contain non-whitespace characaters");
+		} else if (matches(buf, CONFIRMED, eq)) {
+			status = DigestStatus.Confirmed;
+		} else if (matches(buf, INVALID, eq)) {
+			status = DigestStatus.Invalid;
+		} else if (matches(buf, UNKNOWN, eq)) {
+			status = DigestStatus.Unknown;
+		} else {
+			throw new IllegalArgumentException("'" + new String(buf, 0, eq, UTF_8)
+					+ "' must be confirmed, invalid, or unknown");
+		}
+		if (eq == len - 1) {
+			throw new IllegalArgumentException("'" + Utils.NONCE
+					+ "' must contain non-whitespace characaters");
+		}
+
+		this.handler.handle(new String(buf, eq + 1, len - eq - 1, UTF_8), status);
+	}
+
+	private static boolean matches(final byte[] buf, final byte[] expected,
+			final int len) {
+		if (len != expected.length) {
+			return false;
+		}
+		for (int i = 0; i < len; i++) {
+			// the expected values are lower case ASCII
+			if ((buf[i] | 0x20) != expected[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
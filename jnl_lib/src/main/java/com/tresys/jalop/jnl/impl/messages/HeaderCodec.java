@@ -0,0 +1,378 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl.impl.messages;
+
+/**
+ * Recognizes the MIME header names and message values used by JALoP, and
+ * parses and formats the numeric header values, without creating any
+ * temporary objects.
+ * <p>
+ * Every known header name, and every known value of the JAL-Message and
+ * JAL-Mode headers, is given a small integer identifier. Names are looked up
+ * case-insensitively through a table indexed by the length of the name, so
+ * a lookup compares against at most a few candidates. Sets of header
+ * identifiers are represented as a <code>long</code> bit mask.
+ */
+public final class HeaderCodec {
+
+	/**
+	 * Returned by the lookup methods for names that are not recognized.
+	 */
+	public static final int UNKNOWN = -1;
+
+	public static final int ACCEPT_DIGEST = 0;
+	public static final int ACCEPT_ENCODING = 1;
+	public static final int AGENT = 2;
+	public static final int APP_META_LEN = 3;
+	public static final int AUDIT_LEN = 4;
+	public static final int CONTENT_TXFR_ENCODING = 5;
+	public static final int CONTENT_TYPE = 6;
+	public static final int COUNT = 7;
+	public static final int DATA_CLASS = 8;
+	public static final int DIGEST = 9;
+	public static final int ENCODING = 10;
+	public static final int JOURNAL_LEN = 11;
+	public static final int JOURNAL_OFFSET = 12;
+	public static final int LOG_LEN = 13;
+	public static final int MESSAGE = 14;
+	public static final int MODE = 15;
+	public static final int NONCE = 16;
+	public static final int SYS_META_LEN = 17;
+	public static final int UNAUTHORIZED_MODE = 18;
+	public static final int UNSUPPORTED_DIGEST = 19;
+	public static final int UNSUPPORTED_ENCODING = 20;
+	public static final int UNSUPPORTED_MODE = 21;
+	public static final int UNSUPPORTED_VERSION = 22;
+	public static final int ACCEPT_COALESCING = 23;
+	public static final int COALESCING = 24;
+	public static final int ACCEPT_SYNC_BATCHING = 25;
+	public static final int SYNC_BATCHING = 26;
+
+	public static final int MSG_AUDIT = 0;
+	public static final int MSG_DIGEST = 1;
+	public static final int MSG_DIGEST_RESP = 2;
+	public static final int MSG_INIT = 3;
+	public static final int MSG_INIT_ACK = 4;
+	public static final int MSG_INIT_NACK = 5;
+	public static final int MSG_JOURNAL = 6;
+	public static final int MSG_JOURNAL_RESUME = 7;
+	public static final int MSG_LOG = 8;
+	public static final int MSG_SYNC = 9;
+	public static final int MSG_PUBLISH = 10;
+	public static final int MSG_SUBSCRIBE = 11;
+	public static final int MSG_PUBLISH_LIVE = 12;
+	public static final int MSG_SUBSCRIBE_LIVE = 13;
+	public static final int MSG_PUBLISH_ARCHIVE = 14;
+	public static final int MSG_SUBSCRIBE_ARCHIVE = 15;
+	public static final int MSG_RECORD_BATCH = 16;
+	public static final int MSG_SYNC_BATCH = 17;
+
+	/**
+	 * The canonical header names, indexed by header identifier.
+	 */
+	private static final String[] HEADER_NAMES = { Utils.HDRS_ACCEPT_DIGEST,
+			Utils.HDRS_ACCEPT_ENCODING, Utils.HDRS_AGENT,
+			Utils.HDRS_APP_META_LEN, Utils.HDRS_AUDIT_LEN,
+			Utils.HDRS_CONTENT_TXFR_ENCODING, Utils.HDRS_CONTENT_TYPE,
+			Utils.HDRS_COUNT, Utils.HDRS_DATA_CLASS, Utils.HDRS_DIGEST,
+			Utils.HDRS_ENCODING, Utils.HDRS_JOURNAL_LEN,
+			Utils.HDRS_JOURNAL_OFFSET, Utils.HDRS_LOG_LEN, Utils.HDRS_MESSAGE,
+			Utils.HDRS_MODE, Utils.HDRS_NONCE, Utils.HDRS_SYS_META_LEN,
+			Utils.HDRS_UNAUTHORIZED_MODE, Utils.HDRS_UNSUPPORTED_DIGEST,
+			Utils.HDRS_UNSUPPORTED_ENCODING, Utils.HDRS_UNSUPPORTED_MODE,
+			Utils.HDRS_UNSUPPORTED_VERSION, Utils.HDRS_ACCEPT_COALESCING,
+			Utils.HDRS_COALESCING, Utils.HDRS_ACCEPT_SYNC_BATCHING,
+			Utils.HDRS_SYNC_BATCHING };
+
+	/**
+	 * The canonical message values, indexed by message identifier.
+	 */
+	private static final String[] MESSAGE_NAMES = { Utils.MSG_AUDIT,
+			Utils.MSG_DIGEST, Utils.MSG_DIGEST_RESP, Utils.MSG_INIT,
+			Utils.MSG_INIT_ACK, Utils.MSG_INIT_NACK, Utils.MSG_JOURNAL,
+			Utils.MSG_JOURNAL_RESUME, Utils.MSG_LOG, Utils.MSG_SYNC,
+			Utils.MSG_PUBLISH, Utils.MSG_SUBSCRIBE, Utils.MSG_PUBLISH_LIVE,
+			Utils.MSG_SUBSCRIBE_LIVE, Utils.MSG_PUBLISH_ARCHIVE,
+			Utils.MSG_SUBSCRIBE_ARCHIVE, Utils.MSG_RECORD_BATCH,
+			Utils.MSG_SYNC_BATCH };
+
+	private static final int[][] HEADERS_BY_LENGTH = index(HEADER_NAMES);
+	private static final int[][] MESSAGES_BY_LENGTH = index(MESSAGE_NAMES);
+
+	/**
+	 * The headers that are always treated as expected by
+	 * {@link Utils#splitHeaders(org.beepcore.beep.core.InputDataStreamAdapter, long)}.
+	 */
+	public static final long CONTENT_HEADERS = mask(CONTENT_TYPE)
+			| mask(CONTENT_TXFR_ENCODING);
+
+	/**
+	 * The headers that carry the framing of a JALoP record.
+	 */
+	public static final long RECORD_HEADERS = mask(APP_META_LEN)
+			| mask(SYS_META_LEN) | mask(LOG_LEN) | mask(AUDIT_LEN)
+			| mask(JOURNAL_LEN) | mask(CONTENT_TYPE) | mask(MESSAGE)
+			| mask(NONCE);
+
+	/**
+	 * Decimal strings of the values below this are cached.
+	 */
+	static final int DECIMAL_CACHE_SIZE = 4096;
+
+	private static final String[] DECIMALS = new String[DECIMAL_CACHE_SIZE];
+
+	static {
+		for (int i = 0; i < DECIMAL_CACHE_SIZE; i++) {
+			DECIMALS[i] = Integer.toString(i);
+		}
+	}
+
+	private HeaderCodec() {
+	}
+
+	private static int[][] index(final String[] names) {
+		int max = 0;
+		for (final String name : names) {
+			max = Math.max(max, name.length());
+		}
+		final int[][] table = new int[max + 1][];
+		for (int id = 0; id < names.length; id++) {
+			final int len = names[id].length();
+			final int[] bucket = table[len];
+			if (bucket == null) {
+				table[len] = new int[] { id };
+			} else {
+				final int[] grown = new int[bucket.length + 1];
+				System.arraycopy(bucket, 0, grown, 0, bucket.length);
+				grown[bucket.length] = id;
+				table[len] = grown;
+			}
+		}
+		return table;
+	}
+
+	private static int find(final int[][] table, final String[] names,
+			final String name) {
+		if (name == null) {
+			return UNKNOWN;
+		}
+		final int len = name.length();
+		if (len >= table.length || table[len] == null) {
+			return UNKNOWN;
+		}
+		for (final int id : table[len]) {
+			final String candidate = names[id];
+			if (candidate == name
+					|| candidate.regionMatches(true, 0, name, 0, len)) {
+				return id;
+			}
+		}
+		return UNKNOWN;
+	}
+
+	/**
+	 * Look up a MIME header name, ignoring case.
+	 *
+	 * @param name
+	 *            The header name, may be <code>null</code>.
+	 * @return the header identifier, or {@link #UNKNOWN}.
+	 */
+	public static int lookupHeader(final String name) {
+		return find(HEADERS_BY_LENGTH, HEADER_NAMES, name);
+	}
+
+	/**
+	 * Look up the value of a JAL-Message or JAL-Mode header, ignoring case.
+	 *
+	 * @param value
+	 *            The header value, may be <code>null</code>.
+	 * @return the message identifier, or {@link #UNKNOWN}.
+	 */
+	public static int lookupMessage(final String value) {
+		return find(MESSAGES_BY_LENGTH, MESSAGE_NAMES, value);
+	}
+
+	/**
+	 * @param id
+	 *            A header identifier.
+	 * @return the canonical name of the header.
+	 */
+	public static String headerName(final int id) {
+		return HEADER_NAMES[id];
+	}
+
+	/**
+	 * @param id
+	 *            A message identifier.
+	 * @return the canonical message value.
+	 */
+	public static String messageName(final int id) {
+		return MESSAGE_NAMES[id];
+	}
+
+	/**
+	 * @param id
+	 *            A header identifier.
+	 * @return the bit mask that contains only <code>id</code>.
+	 */
+	public static long mask(final int id) {
+		return 1L << id;
+	}
+
+	/**
+	 * Build the bit mask for a list of header names.
+	 *
+	 * @param names
+	 *            The header names.
+	 * @return the bit mask of the header identifiers.
+	 * @throws IllegalArgumentException
+	 *             If one of the names is not a known header.
+	 */
+	public static long maskOf(final String... names) {
+		long ret = 0;
+		for (final String name : names) {
+			final int id = lookupHeader(name);
+			if (id == UNKNOWN) {
+				throw new IllegalArgumentException("'" + name
+						+ "' is not a known header.");
+			}
+			ret |= mask(id);
+		}
+		return ret;
+	}
+
+	/**
+	 * Check if the header named <code>name</code> is in <code>mask</code>.
+	 *
+	 * @param mask
+	 *            A bit mask of header identifiers.
+	 * @param name
+	 *            The header name.
+	 * @return <code>true</code> if the header is known and in the mask.
+	 */
+	public static boolean contains(final long mask, final String name) {
+		final int id = lookupHeader(name);
+		return id != UNKNOWN && (mask & mask(id)) != 0;
+	}
+
+	/**
+	 * Parse the value of a length or offset header. Leading and trailing
+	 * whitespace is ignored, everything else must be a decimal digit.
+	 *
+	 * @param value
+	 *            The header value.
+	 * @return the parsed value, which is never negative.
+	 * @throws NumberFormatException
+	 *             If <code>value</code> is <code>null</code>, empty, is
+	 *             not a decimal number, or does not fit in a
+	 *             <code>long</code>.
+	 */
+	public static long parseLength(final String value) {
+		if (value == null) {
+			throw new NumberFormatException("null");
+		}
+		int start = 0;
+		int end = value.length();
+		while (start < end && Character.isWhitespace(value.charAt(start))) {
+			start++;
+		}
+		while (end > start && Character.isWhitespace(value.charAt(end - 1))) {
+			end--;
+		}
+		if (start == end) {
+			throw new NumberFormatException("For input string: \"" + value + "\"");
+		}
+		long ret = 0;
+		for (int i = start; i < end; i++) {
+			final int digit = value.charAt(i) - '0';
+			if (digit < 0 || digit > 9 || ret > (Long.MAX_VALUE - digit) / 10) {
+				throw new NumberFormatException("For input string: \"" + value + "\"");
+			}
+			ret = ret * 10 + digit;
+		}
+		return ret;
+	}
+
+	/**
+	 * Get the number of ASCII characters needed for the decimal
+	 * representation of <code>value</code>.
+	 *
+	 * @param value
+	 *            The value to measure.
+	 * @return the length of the decimal representation, including a
+	 *         leading '-' for negative values.
+	 */
+	public static int decimalLength(final long value) {
+		// work with negative numbers so Long.MIN_VALUE does not overflow
+		long v = value < 0 ? value : -value;
+		int len = value < 0 ? 2 : 1;
+		while (v <= -10) {
+			v /= 10;
+			len++;
+		}
+		return len;
+	}
+
+	/**
+	 * Write the decimal representation of <code>value</code> as ASCII.
+	 *
+	 * @param value
+	 *            The value to write.
+	 * @param dst
+	 *            The array to write to.
+	 * @param off
+	 *            The offset to start writing at. There must be room for
+	 *            {@link #decimalLength(long)} bytes.
+	 * @return the offset just past the last byte written.
+	 */
+	public static int writeDecimal(final long value, final byte[] dst,
+			final int off) {
+		final int end = off + decimalLength(value);
+		int pos = end;
+		long v = value < 0 ? value : -value;
+		do {
+			dst[--pos] = (byte) ('0' - (v % 10));
+			v /= 10;
+		} while (v != 0);
+		if (value < 0) {
+			dst[--pos] = '-';
+		}
+		return end;
+	}
+
+	/**
+	 * Format the value of a length, offset, or count header. Small values
+	 * are served from a cache.
+	 *
+	 * @param value
+	 *            The value to format.
+	 * @return the decimal representation of <code>value</code>.
+	 */
+	public static String formatLength(final long value) {
+		if (value >= 0 && value < DECIMAL_CACHE_SIZE) {
+			return DECIMALS[(int) value];
+		}
+		return Long.toString(value);
+	}
+}
@@ -34,6 +34,10 @@ public class InitAckMessage extends Message {
 	private final String encoding;
 	/** The message digest (sha256, sha512, etc). */
 	private final String digest;
+	/** The record coalescing format, or null. */
+	private final String coalescing;
+	/** The sync batching format, or null. */
+	private final String syncBatching;
 
 	/**
 	 * Create a new InitAckMessage for the given XML encoding and message
@@ -48,9 +52,53 @@ public class InitAckMessage extends Message {
 	 */
 	public InitAckMessage(final String encoding, final String digest,
 			final MimeHeaders unknownHeaders) {
+		this(encoding, digest, null, unknownHeaders);
+	}
+
+	/**
+	 * Create a new InitAckMessage for the given XML encoding, message digest
+	 * and record coalescing format.
+	 * 
+	 * @param encoding
+	 *            The XML encoding.
+	 * @param digest
+	 *            The message digest.
+	 * @param coalescing
+	 *            The selected record coalescing format, or <code>null</code>
+	 *            if records are not coalesced.
+	 * @param unknownHeaders
+	 *            Any additional headers sent in the message.
+	 */
+	public InitAckMessage(final String encoding, final String digest,
+			final String coalescing, final MimeHeaders unknownHeaders) {
+		this(encoding, digest, coalescing, null, unknownHeaders);
+	}
+
+	/**
+	 * Create a new InitAckMessage for the given XML encoding, message
+	 * digest, record coalescing format and sync batching format.
+	 * 
+	 * @param encoding
+	 *            The XML encoding.
+	 * @param digest
+	 *            The message digest.
+	 * @param coalescing
+	 *            The selected record coalescing format, or <code>null</code>
+	 *            if records are not coalesced.
+	 * @param syncBatching
+	 *            The selected sync batching format, or <code>null</code>
+	 *            if every nonce is synced in its own message.
+	 * @param unknownHeaders
+	 *            Any additional headers sent in the message.
+	 */
+	public InitAckMessage(final String encoding, final String digest,
+			final String coalescing, final String syncBatching,
+			final MimeHeaders unknownHeaders) {
 		super(unknownHeaders);
 		this.encoding = encoding;
 		this.digest = digest;
+		this.coalescing = coalescing;
+		this.syncBatching = syncBatching;
 	}
 
 	/**
@@ -71,4 +119,23 @@ public class InitAckMessage extends Message {
 		return this.encoding;
 	}
 
+	/**
+	 * Get the selected record coalescing format.
+	 * 
+	 * @return the format, or <code>null</code> if records are not coalesced
+	 */
+	public String getCoalescing() {
+		return this.coalescing;
+	}
+
+	/**
+	 * Get the selected sync batching format.
+	 * 
+	 * @return the format, or <code>null</code> if every nonce is synced in
+	 *         its own message
+	 */
+	public String getSyncBatching() {
+		return this.syncBatching;
+	}
+
 }
@@ -47,6 +47,16 @@ public class InitMessage extends Message {
 	 */
 	private final List<String> acceptEncodings;
 
+	/**
+	 * Stores the list of proposed record coalescing formats.
+	 */
+	private final List<String> acceptCoalescing;
+
+	/**
+	 * Stores the list of proposed sync batching formats.
+	 */
+	private final List<String> acceptSyncBatching;
+
 	/**
 	 * Stores the JAL-Agent string (if any).
 	 */
@@ -85,8 +95,70 @@ public class InitMessage extends Message {
 	 * @param otherHeaders
 	 *            Any additional (unrecognized) headers
 	 */
+	public InitMessage(final RecordType recordType, final Role role, final Mode mode,
+			final String[] encodingsArray, final String[] digestsArray, final String agent,
+			final MimeHeaders otherHeaders) {
+		this(recordType, role, mode, encodingsArray, digestsArray, agent,
+				null, otherHeaders);
+	}
+
+	/**
+	 * Create an {@link InitMessage} object that may propose the record
+	 * coalescing extension.
+	 * 
+	 * @param recordType
+	 *            The type of record to transfer over this connection
+	 * @param role
+	 *            The role indicated in the message
+	 * @param mode
+	 *            The mode indicated in the message
+	 * @param encodingsArray
+	 *            The list of proposed encodings.
+	 * @param digestsArray
+	 *            The list of proposed digest algorithms.
+	 * @param agent
+	 *            The JALoP Agent string
+	 * @param coalescingArray
+	 *            The values of the JAL-Accept-Coalescing headers, each a
+	 *            comma separated list of formats, or <code>null</code>.
+	 * @param otherHeaders
+	 *            Any additional (unrecognized) headers
+	 */
+	public InitMessage(final RecordType recordType, final Role role, final Mode mode,
+			final String[] encodingsArray, final String[] digestsArray, final String agent,
+			final String[] coalescingArray, final MimeHeaders otherHeaders) {
+		this(recordType, role, mode, encodingsArray, digestsArray, agent,
+				coalescingArray, null, otherHeaders);
+	}
+
+	/**
+	 * Create an {@link InitMessage} object that may propose the record
+	 * coalescing and sync batching extensions.
+	 * 
+	 * @param recordType
+	 *            The type of record to transfer over this connection
+	 * @param role
+	 *            The role indicated in the message
+	 * @param mode
+	 *            The mode indicated in the message
+	 * @param encodingsArray
+	 *            The list of proposed encodings.
+	 * @param digestsArray
+	 *            The list of proposed digest algorithms.
+	 * @param agent
+	 *            The JALoP Agent string
+	 * @param coalescingArray
+	 *            The values of the JAL-Accept-Coalescing headers, each a
+	 *            comma separated list of formats, or <code>null</code>.
+	 * @param syncBatchingArray
+	 *            The values of the JAL-Accept-Sync-Batching headers, each a
+	 *            comma separated list of formats, or <code>null</code>.
+	 * @param otherHeaders
+	 *            Any additional (unrecognized) headers
+	 */
 	public InitMessage(final RecordType recordType, final Role role, final Mode mode,
 			String[] encodingsArray, String[] digestsArray, final String agent,
+			final String[] coalescingArray, final String[] syncBatchingArray,
 			final MimeHeaders otherHeaders) {
 		super(otherHeaders);
 		this.recordType = recordType;
@@ -115,6 +187,26 @@ public class InitMessage extends Message {
 		}
 		this.acceptDigests = digestList;
 
+		this.acceptCoalescing = splitFormats(coalescingArray);
+		this.acceptSyncBatching = splitFormats(syncBatchingArray);
+	}
+
+	/**
+	 * Split the values of a header that lists formats, each a comma
+	 * separated list, into a single list.
+	 */
+	private static List<String> splitFormats(final String[] values) {
+		final List<String> formats = new ArrayList<String>();
+		if (values != null) {
+			for (final String value : values) {
+				for (final String format : value.split(",")) {
+					if (format.trim().length() > 0) {
+						formats.add(format.trim());
+					}
+				}
+			}
+		}
+		return formats;
 	}
 
 	/**
@@ -135,6 +227,26 @@ public class InitMessage extends Message {
 		return this.acceptEncodings;
 	}
 
+	/**
+	 * Get the ordered list of proposed record coalescing formats.
+	 * 
+	 * @return The list of proposed formats, empty if the remote only uses
+	 *         the classic one record per message format.
+	 */
+	public List<String> getAcceptCoalescing() {
+		return this.acceptCoalescing;
+	}
+
+	/**
+	 * Get the ordered list of proposed sync batching formats.
+	 * 
+	 * @return The list of proposed formats, empty if the remote syncs every
+	 *         nonce in its own message.
+	 */
+	public List<String> getAcceptSyncBatching() {
+		return this.acceptSyncBatching;
+	}
+
 	/**
 	 * Retrieve the JAL-Agent string (if any).
 	 * 
@@ -0,0 +1,51 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl.impl.messages;
+
+import java.util.List;
+
+/**
+ * Splits the body of a sync-batch message, a list of nonces separated by
+ * whitespace (normally CRLF), into nonces as it is received.
+ */
+final class NonceListParser extends PairParser {
+
+	private final List<String> nonces;
+
+	/**
+	 * Create a new {@link NonceListParser}.
+	 *
+	 * @param nonces
+	 *            The {@link List} each nonce is added to.
+	 */
+	NonceListParser(final List<String> nonces) {
+		super(false);
+		this.nonces = nonces;
+	}
+
+	@Override
+	void pair(final byte[] buf, final int eq, final int len) {
+		this.nonces.add(new String(buf, 0, len, UTF_8));
+	}
+}
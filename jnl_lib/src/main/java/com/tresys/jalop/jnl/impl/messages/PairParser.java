@@ -0,0 +1,160 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl.impl.messages;
+
+import java.nio.charset.Charset;
+
+import org.beepcore.beep.core.BEEPException;
+
+/**
+ * Splits the body of a digest or digest-response message into
+ * <code>key=value</code> pairs as it is received. Pairs are separated by
+ * whitespace (normally CRLF), and each pair is handed to
+ * {@link #pair(byte[], int, int)} as soon as the whitespace that ends it
+ * has been seen. Only the pair being received is held in memory.
+ * <p>
+ * A parser created with <code>requireSeparator</code> set to false also
+ * accepts tokens without an '=', such as the nonces of a sync-batch message.
+ */
+abstract class PairParser {
+
+	/**
+	 * The longest <code>key=value</code> pair, in bytes, that is accepted.
+	 */
+	public static final int MAX_PAIR_LENGTH = 8192;
+
+	static final Charset UTF_8 = Charset.forName("utf-8");
+
+	private final boolean requireSeparator;
+	private byte[] pair;
+	private int length;
+	private int count;
+
+	PairParser() {
+		this(true);
+	}
+
+	PairParser(final boolean requireSeparator) {
+		this.requireSeparator = requireSeparator;
+		this.pair = new byte[64];
+	}
+
+	/**
+	 * Called for each pair, in the order they were received.
+	 *
+	 * @param buf
+	 *            Holds the pair, starting at offset 0.
+	 * @param eq
+	 *            The offset of the first '=', or <code>len</code> if there
+	 *            is none and no separator is required.
+	 * @param len
+	 *            The length of the pair.
+	 * @throws BEEPException
+	 *             If the pair cannot be handled; parsing stops.
+	 * @throws IllegalArgumentException
+	 *             If the pair is malformed.
+	 */
+	abstract void pair(byte[] buf, int eq, int len) throws BEEPException;
+
+	/**
+	 * Parse the next part of the body.
+	 *
+	 * @param b
+	 *            The buffer holding the data.
+	 * @param off
+	 *            The offset of the data in <code>b</code>.
+	 * @param len
+	 *            The number of bytes of data.
+	 * @throws BEEPException
+	 *             If a pair cannot be handled.
+	 * @throws IllegalArgumentException
+	 *             If a pair is malformed or too long.
+	 */
+	public void update(final byte[] b, final int off, final int len)
+			throws BEEPException {
+		final int end = off + len;
+		for (int i = off; i < end; i++) {
+			final byte c = b[i];
+			if (isWhitespace(c)) {
+				endPair();
+			} else {
+				if (this.length == this.pair.length) {
+					if (this.length == MAX_PAIR_LENGTH) {
+						throw new IllegalArgumentException("Pair is longer than "
+								+ MAX_PAIR_LENGTH + " bytes");
+					}
+					final byte[] grown = new byte[Math.min(this.length * 2, MAX_PAIR_LENGTH)];
+					System.arraycopy(this.pair, 0, grown, 0, this.length);
+					this.pair = grown;
+				}
+				this.pair[this.length++] = c;
+			}
+		}
+	}
+
+	/**
+	 * Parse the pair at the end of the body, which need not be followed by
+	 * whitespace.
+	 *
+	 * @return the number of pairs in the body.
+	 * @throws BEEPException
+	 *             If the pair cannot be handled.
+	 * @throws IllegalArgumentException
+	 *             If the pair is malformed.
+	 */
+	public int finish() throws BEEPException {
+		endPair();
+		return this.count;
+	}
+
+	/**
+	 * @return the number of pairs parsed so far.
+	 */
+	public int getCount() {
+		return this.count;
+	}
+
+	private void endPair() throws BEEPException {
+		if (this.length == 0) {
+			return;
+		}
+		int eq = 0;
+		while (eq < this.length && this.pair[eq] != '=') {
+			eq++;
+		}
+		if (eq == this.length && this.requireSeparator) {
+			throw new IllegalArgumentException(
+					"The data provided does not match the count or is poorly formed");
+		}
+		final int len = this.length;
+		this.length = 0;
+		this.count++;
+		pair(this.pair, eq, len);
+	}
+
+	private static boolean isWhitespace(final byte c) {
+		return c == ' ' || c == '\r' || c == '\n' || c == '\t' || c == 0x0b
+				|| c == '\f';
+	}
+}
@@ -0,0 +1,326 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl.impl.messages;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.beepcore.beep.util.BufferSegment;
+
+import com.tresys.jalop.jnl.RecordInfo;
+import com.tresys.jalop.jnl.RecordType;
+
+/**
+ * Encodes and decodes 'record-batch' ANS messages, which carry several small
+ * records of the same type when the record coalescing extension
+ * ({@link Utils#COALESCE_LENGTH_TABLE}) was negotiated.
+ * <p>
+ * The MIME headers hold the JAL-Message and the number of records in
+ * JAL-Count. The body starts with a length table that has one entry per
+ * record: the length of the UTF-8 nonce, the nonce, and the lengths of the
+ * system metadata, the application metadata and the payload. Each length is
+ * an unsigned variable-length integer of 7 bits per byte, least significant
+ * group first, with the high bit set on every byte but the last. The
+ * sections of the records follow the table, in order and without BREAK
+ * markers.
+ */
+public final class RecordBatch {
+
+	/**
+	 * The largest number of records in a batch.
+	 */
+	public static final int MAX_RECORDS = 256;
+
+	/**
+	 * The largest record, in bytes of metadata and payload, that may be
+	 * coalesced.
+	 */
+	public static final int MAX_RECORD_SIZE = 64 * 1024;
+
+	/**
+	 * The largest nonce, in bytes of UTF-8, that may be coalesced.
+	 */
+	public static final int MAX_NONCE_LENGTH = 1024;
+
+	/**
+	 * The largest number of bytes of metadata and payload a publisher puts
+	 * in one batch.
+	 */
+	public static final int MAX_BATCH_SIZE = 256 * 1024;
+
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+	private static final Charset UTF_8 = Charset.forName("utf-8");
+
+	private static final byte[] HEADERS_PREFIX = (Utils.HDRS_CONTENT_TYPE
+			+ ": " + Utils.CT_JALOP + "\r\n" + Utils.HDRS_MESSAGE + ": "
+			+ Utils.MSG_RECORD_BATCH + "\r\n" + Utils.HDRS_COUNT + ": ")
+			.getBytes(US_ASCII);
+	private static final byte[] HEADERS_SUFFIX = "\r\n\r\n".getBytes(US_ASCII);
+
+	private RecordBatch() {
+	}
+
+	/**
+	 * Check if a record may be sent in a batch.
+	 *
+	 * @param rec
+	 *            The record.
+	 * @param limit
+	 *            The largest record, in bytes of metadata and payload, to
+	 *            coalesce. It is capped at {@link #MAX_RECORD_SIZE}.
+	 * @return <code>true</code> if the record is not a journal record, is
+	 *         not resumed from an offset, and is small enough.
+	 */
+	public static boolean isCoalescable(final RecordInfo rec, final long limit) {
+		if (rec.getRecordType() == RecordType.Journal || rec.getOffset() != 0
+				|| rec.getSysMetaLength() < 0 || rec.getAppMetaLength() < 0
+				|| rec.getPayloadLength() < 0) {
+			return false;
+		}
+		final long size = rec.getSysMetaLength() + rec.getAppMetaLength()
+				+ rec.getPayloadLength();
+		return size <= Math.min(limit, MAX_RECORD_SIZE)
+				&& utf8Length(rec.getNonce()) <= MAX_NONCE_LENGTH;
+	}
+
+	/**
+	 * Encode the MIME headers of a batch.
+	 *
+	 * @param count
+	 *            The number of records in the batch.
+	 * @return a {@link BufferSegment} that holds the encoded headers,
+	 *         including the blank line that ends them.
+	 */
+	public static BufferSegment encodeHeaders(final int count) {
+		final byte[] buf = new byte[HEADERS_PREFIX.length
+				+ HeaderCodec.decimalLength(count) + HEADERS_SUFFIX.length];
+		System.arraycopy(HEADERS_PREFIX, 0, buf, 0, HEADERS_PREFIX.length);
+		final int off = HeaderCodec.writeDecimal(count, buf, HEADERS_PREFIX.length);
+		System.arraycopy(HEADERS_SUFFIX, 0, buf, off, HEADERS_SUFFIX.length);
+		return new BufferSegment(buf);
+	}
+
+	/**
+	 * Encode the length table of a batch.
+	 *
+	 * @param records
+	 *            The records of the batch, in the order their sections are
+	 *            sent.
+	 * @return a {@link BufferSegment} that holds the length table.
+	 */
+	public static BufferSegment encodeTable(final List<? extends RecordInfo> records) {
+		final byte[][] nonces = new byte[records.size()][];
+		int length = 0;
+		for (int i = 0; i < nonces.length; i++) {
+			final RecordInfo rec = records.get(i);
+			nonces[i] = rec.getNonce().getBytes(UTF_8);
+			length += varintLength(nonces[i].length) + nonces[i].length
+					+ varintLength(rec.getSysMetaLength())
+					+ varintLength(rec.getAppMetaLength())
+					+ varintLength(rec.getPayloadLength());
+		}
+
+		final byte[] buf = new byte[length];
+		int off = 0;
+		for (int i = 0; i < nonces.length; i++) {
+			final RecordInfo rec = records.get(i);
+			off = writeVarint(nonces[i].length, buf, off);
+			System.arraycopy(nonces[i], 0, buf, off, nonces[i].length);
+			off += nonces[i].length;
+			off = writeVarint(rec.getSysMetaLength(), buf, off);
+			off = writeVarint(rec.getAppMetaLength(), buf, off);
+			off = writeVarint(rec.getPayloadLength(), buf, off);
+		}
+		return new BufferSegment(buf);
+	}
+
+	/**
+	 * Read the length table of a batch.
+	 *
+	 * @param in
+	 *            The body of the message.
+	 * @param count
+	 *            The number of records, from the JAL-Count header.
+	 * @param recordType
+	 *            The type of the records.
+	 * @return the entries of the table, in order.
+	 * @throws IOException
+	 *             If the table is truncated, or describes a record or a
+	 *             nonce that is too large to have been coalesced.
+	 */
+	public static List<Entry> readTable(final InputStream in, final int count,
+			final RecordType recordType) throws IOException {
+		if (count <= 0 || count > MAX_RECORDS) {
+			throw new IOException("Record batch holds " + count + " records");
+		}
+		final List<Entry> entries = new ArrayList<Entry>(count);
+		for (int i = 0; i < count; i++) {
+			final long nonceLength = readVarint(in);
+			if (nonceLength > MAX_NONCE_LENGTH) {
+				throw new IOException("Nonce in record batch is too long");
+			}
+			final byte[] nonce = new byte[(int) nonceLength];
+			readFully(in, nonce);
+			final long sys = readVarint(in);
+			final long app = readVarint(in);
+			final long payload = readVarint(in);
+			if (sys > MAX_RECORD_SIZE || app > MAX_RECORD_SIZE
+					|| payload > MAX_RECORD_SIZE
+					|| sys + app + payload > MAX_RECORD_SIZE) {
+				throw new IOException("Record in record batch is too large");
+			}
+			entries.add(new Entry(new String(nonce, UTF_8), recordType, sys,
+					app, payload));
+		}
+		return entries;
+	}
+
+	/**
+	 * Read exactly <code>b.length</code> bytes.
+	 *
+	 * @param in
+	 *            The stream to read.
+	 * @param b
+	 *            The array to fill.
+	 * @throws IOException
+	 *             If the stream ends first.
+	 */
+	public static void readFully(final InputStream in, final byte[] b)
+			throws IOException {
+		int off = 0;
+		while (off < b.length) {
+			final int n = in.read(b, off, b.length - off);
+			if (n < 0) {
+				throw new EOFException("Record batch is truncated");
+			}
+			off += n;
+		}
+	}
+
+	static int varintLength(long value) {
+		int len = 1;
+		while ((value >>>= 7) != 0) {
+			len++;
+		}
+		return len;
+	}
+
+	static int writeVarint(long value, final byte[] dst, int off) {
+		while ((value & ~0x7fL) != 0) {
+			dst[off++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		dst[off++] = (byte) value;
+		return off;
+	}
+
+	static long readVarint(final InputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 63; shift += 7) {
+			final int b = in.read();
+			if (b < 0) {
+				throw new EOFException("Record batch is truncated");
+			}
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Length in record batch is too large");
+	}
+
+	private static int utf8Length(final String s) {
+		int len = 0;
+		for (int i = 0; i < s.length(); i++) {
+			final char c = s.charAt(i);
+			if (c < 0x80) {
+				len++;
+			} else if (c < 0x800) {
+				len += 2;
+			} else if (Character.isHighSurrogate(c)) {
+				len += 4;
+				i++;
+			} else {
+				len += 3;
+			}
+		}
+		return len;
+	}
+
+	/**
+	 * An entry of the length table.
+	 */
+	public static final class Entry implements RecordInfo {
+
+		private final String nonce;
+		private final RecordType recordType;
+		private final long sysMetaLength;
+		private final long appMetaLength;
+		private final long payloadLength;
+
+		Entry(final String nonce, final RecordType recordType,
+				final long sysMetaLength, final long appMetaLength,
+				final long payloadLength) {
+			this.nonce = nonce;
+			this.recordType = recordType;
+			this.sysMetaLength = sysMetaLength;
+			this.appMetaLength = appMetaLength;
+			this.payloadLength = payloadLength;
+		}
+
+		@Override
+		public String getNonce() {
+			return this.nonce;
+		}
+
+		@Override
+		public long getOffset() {
+			return 0;
+		}
+
+		@Override
+		public RecordType getRecordType() {
+			return this.recordType;
+		}
+
+		@Override
+		public long getSysMetaLength() {
+			return this.sysMetaLength;
+		}
+
+		@Override
+		public long getAppMetaLength() {
+			return this.appMetaLength;
+		}
+
+		@Override
+		public long getPayloadLength() {
+			return this.payloadLength;
+		}
+	}
+}
@@ -0,0 +1,170 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl.impl.messages;
+
+import java.nio.charset.Charset;
+
+import org.beepcore.beep.util.BufferSegment;
+
+import com.tresys.jalop.jnl.RecordType;
+
+/**
+ * Pre-encoded MIME header block for the ANS messages that carry JALoP
+ * records. The header names, the message type, and the separators are
+ * encoded once per {@link RecordType}; only the nonce and the three length
+ * values are written for each record.
+ * <p>
+ * The encoded block is the same as the one beepcore produces for an
+ * equivalent {@link org.beepcore.beep.core.MimeHeaders}, and is meant to be
+ * the first {@link BufferSegment} of an
+ * {@link org.beepcore.beep.core.OutputDataStream} that was created without
+ * MIME headers. Instances are immutable and may be shared.
+ */
+public final class RecordHeaderTemplate {
+
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+	private static final Charset UTF_8 = Charset.forName("utf-8");
+
+	private static final RecordHeaderTemplate LOG = new RecordHeaderTemplate(
+			Utils.MSG_LOG, Utils.HDRS_LOG_LEN);
+	private static final RecordHeaderTemplate AUDIT = new RecordHeaderTemplate(
+			Utils.MSG_AUDIT, Utils.HDRS_AUDIT_LEN);
+	private static final RecordHeaderTemplate JOURNAL = new RecordHeaderTemplate(
+			Utils.MSG_JOURNAL, Utils.HDRS_JOURNAL_LEN);
+
+	private final byte[] prefix;
+	private final byte[] payloadLen;
+	private final byte[] sysMetaLen;
+	private final byte[] appMetaLen;
+	private final byte[] suffix;
+	private final int fixedLength;
+
+	private RecordHeaderTemplate(final String messageType,
+			final String payloadLengthHeader) {
+		this.prefix = ascii(Utils.HDRS_CONTENT_TYPE + ": " + Utils.CT_JALOP
+				+ "\r\n" + Utils.HDRS_MESSAGE + ": " + messageType + "\r\n"
+				+ Utils.HDRS_NONCE + ": ");
+		this.payloadLen = ascii("\r\n" + payloadLengthHeader + ": ");
+		this.sysMetaLen = ascii("\r\n" + Utils.HDRS_SYS_META_LEN + ": ");
+		this.appMetaLen = ascii("\r\n" + Utils.HDRS_APP_META_LEN + ": ");
+		this.suffix = ascii("\r\n\r\n");
+		this.fixedLength = this.prefix.length + this.payloadLen.length
+				+ this.sysMetaLen.length + this.appMetaLen.length
+				+ this.suffix.length;
+	}
+
+	private static byte[] ascii(final String s) {
+		return s.getBytes(US_ASCII);
+	}
+
+	/**
+	 * Get the template for a type of record.
+	 *
+	 * @param recordType
+	 *            The {@link RecordType}.
+	 * @return the {@link RecordHeaderTemplate}.
+	 * @throws IllegalArgumentException
+	 *             If <code>recordType</code> is not Log, Audit, or Journal.
+	 */
+	public static RecordHeaderTemplate forType(final RecordType recordType) {
+		if (recordType != null) {
+			switch (recordType) {
+			case Log:
+				return LOG;
+			case Audit:
+				return AUDIT;
+			case Journal:
+				return JOURNAL;
+			default:
+				break;
+			}
+		}
+		throw new IllegalArgumentException("'recordType' must be Log, Audit, or Journal.");
+	}
+
+	/**
+	 * Encode the MIME headers of a single record.
+	 *
+	 * @param nonce
+	 *            The nonce of the record.
+	 * @param sysMetaLength
+	 *            The length of the system metadata.
+	 * @param appMetaLength
+	 *            The length of the application metadata.
+	 * @param payloadLength
+	 *            The length of the payload.
+	 * @return a {@link BufferSegment} that holds the encoded headers,
+	 *         including the blank line that ends them.
+	 */
+	public BufferSegment encode(final String nonce, final long sysMetaLength,
+			final long appMetaLength, final long payloadLength) {
+
+		// the buffer is handed to beepcore, which may still be sending it
+		// when the next record is encoded, so it cannot be reused
+		final int nonceLength = asciiLength(nonce);
+		final byte[] nonceBytes = nonceLength < 0 ? nonce.getBytes(UTF_8) : null;
+		final byte[] buf = new byte[this.fixedLength
+				+ (nonceBytes != null ? nonceBytes.length : nonceLength)
+				+ HeaderCodec.decimalLength(payloadLength)
+				+ HeaderCodec.decimalLength(sysMetaLength)
+				+ HeaderCodec.decimalLength(appMetaLength)];
+
+		int off = copy(this.prefix, buf, 0);
+		if (nonceBytes != null) {
+			off = copy(nonceBytes, buf, off);
+		} else {
+			for (int i = 0; i < nonceLength; i++) {
+				buf[off++] = (byte) nonce.charAt(i);
+			}
+		}
+		off = copy(this.payloadLen, buf, off);
+		off = HeaderCodec.writeDecimal(payloadLength, buf, off);
+		off = copy(this.sysMetaLen, buf, off);
+		off = HeaderCodec.writeDecimal(sysMetaLength, buf, off);
+		off = copy(this.appMetaLen, buf, off);
+		off = HeaderCodec.writeDecimal(appMetaLength, buf, off);
+		copy(this.suffix, buf, off);
+
+		return new BufferSegment(buf);
+	}
+
+	/**
+	 * Returns the length of <code>s</code>, or -1 if it contains a character
+	 * that is not ASCII.
+	 */
+	private static int asciiLength(final String s) {
+		final int len = s.length();
+		for (int i = 0; i < len; i++) {
+			if (s.charAt(i) > 0x7f) {
+				return -1;
+			}
+		}
+		return len;
+	}
+
+	private static int copy(final byte[] src, final byte[] dst, final int off) {
+		System.arraycopy(src, 0, dst, off, src.length);
+		return off + src.length;
+	}
+}
@@ -0,0 +1,268 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl.impl.messages;
+
+import java.util.ArrayList;
+
+import org.beepcore.beep.core.MimeHeaders;
+import org.beepcore.beep.core.OutputDataStream;
+import org.beepcore.beep.util.BufferSegment;
+
+import com.tresys.jalop.jnl.impl.BufferPool;
+import com.tresys.jalop.jnl.impl.JNLOutputDataStream;
+import com.tresys.jalop.jnl.impl.SegmentPool;
+
+/**
+ * Writes a message body whose exact length is known up front straight into
+ * byte arrays, without building it as a {@link String} first. The body is
+ * split into segments of a fixed size, so a large body is never held in one
+ * array. When a {@link SegmentPool} is given the arrays are taken from it,
+ * and are returned to it once beepcore has sent them.
+ * <p>
+ * Each entry of the body is written by asking for room with
+ * {@link #reserve(int)}, writing the entry into the returned array starting
+ * at {@link #position()}, and then calling {@link #commit(int)}. An entry
+ * that does not fit in the rest of a segment is written to a scratch array
+ * and copied across the segment boundary.
+ */
+final class SegmentWriter {
+
+	/**
+	 * The size of a segment of the body.
+	 */
+	static final int SEGMENT_SIZE = BufferPool.DEFAULT_MAX_SIZE;
+
+	/**
+	 * The largest number of segments a body is split into. Segments are
+	 * made larger than {@link #SEGMENT_SIZE} rather than going over this.
+	 */
+	static final int MAX_SEGMENTS = 512;
+
+	private final SegmentPool pool;
+	private final int segmentSize;
+	private final ArrayList<byte[]> buffers;
+	private final ArrayList<Integer> lengths;
+
+	/**
+	 * The number of bytes that do not have a segment yet.
+	 */
+	private long unassigned;
+
+	private byte[] buf;
+	private int pos;
+	private int limit;
+	private byte[] scratch;
+	private boolean spanning;
+
+	/**
+	 * Create a new {@link SegmentWriter}.
+	 *
+	 * @param length
+	 *            The exact length of the body.
+	 * @param pool
+	 *            The {@link SegmentPool} to take arrays from, or
+	 *            <code>null</code> to allocate them.
+	 */
+	SegmentWriter(final long length, final SegmentPool pool) {
+		if (length < 0) {
+			throw new IllegalArgumentException("'length' must be 0 or greater.");
+		}
+		this.pool = pool;
+		this.segmentSize = (int) Math.max(SEGMENT_SIZE,
+				Math.min(Integer.MAX_VALUE, (length + MAX_SEGMENTS - 1) / MAX_SEGMENTS));
+		this.buffers = new ArrayList<byte[]>();
+		this.lengths = new ArrayList<Integer>();
+		this.unassigned = length;
+		next();
+	}
+
+	private void next() {
+		this.limit = (int) Math.min(this.segmentSize, this.unassigned);
+		this.unassigned -= this.limit;
+		this.pos = 0;
+		if (this.limit == 0) {
+			this.buf = null;
+		} else if (this.pool != null) {
+			this.buf = this.pool.acquire(this.limit);
+		} else {
+			this.buf = new byte[this.limit];
+		}
+	}
+
+	private void flush() {
+		this.buffers.add(this.buf);
+		this.lengths.add(this.limit);
+		next();
+	}
+
+	/**
+	 * Get an array to write the next entry into, starting at
+	 * {@link #position()}.
+	 *
+	 * @param len
+	 *            The exact length of the entry.
+	 * @return the array to write to.
+	 */
+	byte[] reserve(final int len) {
+		if (this.limit - this.pos >= len) {
+			this.spanning = false;
+			return this.buf;
+		}
+		this.spanning = true;
+		if (this.scratch == null || this.scratch.length < len) {
+			this.scratch = new byte[len];
+		}
+		return this.scratch;
+	}
+
+	/**
+	 * @return the offset to write the entry at in the array returned by the
+	 *         last call to {@link #reserve(int)}.
+	 */
+	int position() {
+		return this.spanning ? 0 : this.pos;
+	}
+
+	/**
+	 * Finish writing an entry.
+	 *
+	 * @param end
+	 *            The offset following the last byte of the entry.
+	 */
+	void commit(final int end) {
+		if (!this.spanning) {
+			this.pos = end;
+		} else {
+			int off = 0;
+			while (off < end) {
+				if (this.buf == null) {
+					throw new IllegalStateException("The body is longer than its length.");
+				}
+				final int n = Math.min(end - off, this.limit - this.pos);
+				System.arraycopy(this.scratch, off, this.buf, this.pos, n);
+				this.pos += n;
+				off += n;
+				if (this.pos == this.limit) {
+					flush();
+				}
+			}
+		}
+		if (this.buf != null && this.pos == this.limit) {
+			flush();
+		}
+	}
+
+	/**
+	 * Create the stream that sends the body.
+	 *
+	 * @param headers
+	 *            The MIME headers of the message.
+	 * @return a complete {@link OutputDataStream}.
+	 */
+	OutputDataStream finish(final MimeHeaders headers) {
+		if (this.buf != null || this.unassigned > 0) {
+			throw new IllegalStateException("The body is shorter than its length.");
+		}
+
+		final OutputDataStream ret;
+		if (this.pool != null) {
+			final JNLOutputDataStream jods = new JNLOutputDataStream(
+					headers.getBufferSegment(), this.buffers.size() + 1, this.pool);
+			for (int i = 0; i < this.buffers.size(); i++) {
+				jods.addPooled(this.buffers.get(i), this.lengths.get(i));
+			}
+			ret = jods;
+		} else {
+			ret = new OutputDataStream(headers);
+			for (int i = 0; i < this.buffers.size(); i++) {
+				ret.add(new BufferSegment(this.buffers.get(i), 0, this.lengths.get(i)));
+			}
+			if (this.buffers.isEmpty()) {
+				ret.add(new BufferSegment(new byte[0]));
+			}
+		}
+		ret.setComplete();
+		return ret;
+	}
+
+	/**
+	 * Returns the number of bytes the UTF-8 encoding of part of a
+	 * {@link String} takes.
+	 */
+	static int utf8Length(final String s, final int start, final int end) {
+		int len = 0;
+		for (int i = start; i < end; i++) {
+			final char c = s.charAt(i);
+			if (c < 0x80) {
+				len++;
+			} else if (c < 0x800) {
+				len += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < end
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				len += 4;
+				i++;
+			} else if (Character.isSurrogate(c)) {
+				len++;
+			} else {
+				len += 3;
+			}
+		}
+		return len;
+	}
+
+	/**
+	 * Write the UTF-8 encoding of part of a {@link String}. Unpaired
+	 * surrogates are written as '?', as {@link String#getBytes(String)}
+	 * does.
+	 *
+	 * @return the offset following the last byte written.
+	 */
+	static int writeUtf8(final String s, final int start, final int end,
+			final byte[] dst, final int off) {
+		int pos = off;
+		for (int i = start; i < end; i++) {
+			final char c = s.charAt(i);
+			if (c < 0x80) {
+				dst[pos++] = (byte) c;
+			} else if (c < 0x800) {
+				dst[pos++] = (byte) (0xc0 | (c >> 6));
+				dst[pos++] = (byte) (0x80 | (c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < end
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				final int cp = Character.toCodePoint(c, s.charAt(++i));
+				dst[pos++] = (byte) (0xf0 | (cp >> 18));
+				dst[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+				dst[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+				dst[pos++] = (byte) (0x80 | (cp & 0x3f));
+			} else if (Character.isSurrogate(c)) {
+				dst[pos++] = '?';
+			} else {
+				dst[pos++] = (byte) (0xe0 | (c >> 12));
+				dst[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				dst[pos++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+		return pos;
+	}
+}
@@ -24,16 +24,13 @@
 package com.tresys.jalop.jnl.impl.messages;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.TreeSet;
 
 import javax.xml.soap.MimeHeader;
 import javax.xml.soap.MimeHeaders;
@@ -50,6 +47,8 @@ import com.tresys.jalop.jnl.Mode;
 import com.tresys.jalop.jnl.Role;
 import com.tresys.jalop.jnl.exceptions.MissingMimeHeaderException;
 import com.tresys.jalop.jnl.exceptions.UnexpectedMimeValueException;
+import com.tresys.jalop.jnl.impl.DigestLedger;
+import com.tresys.jalop.jnl.impl.SegmentPool;
 
 /**
  * Utility class for creating and parsing JALoP/BEEP messages.
@@ -59,6 +58,19 @@ public class Utils {
 	public static final String AUDIT = "audit";
 	public static final String BINARY = "binary";
 	public static final String BREAK = "BREAK";
+	public static final String COALESCE_LENGTH_TABLE = "length-table";
+	public static final String SYNC_BATCH_NONCE_LIST = "nonce-list";
+
+	/**
+	 * The largest number of nonces a single sync-batch message may hold.
+	 */
+	public static final int MAX_SYNC_BATCH_NONCES = 4096;
+
+	/**
+	 * The ASCII bytes of {@link #BREAK}. This array is shared and must not
+	 * be modified.
+	 */
+	public static final byte[] BREAK_BYTES = { 'B', 'R', 'E', 'A', 'K' };
 	public static final String CONFIRMED = "confirmed";
 	public static final String CONFIRMED_EQUALS = CONFIRMED + "=";
 	public static final String CT_JALOP = "application/beep+jalop";
@@ -72,11 +84,14 @@ public class Utils {
 	public static final String UNKNOWN = "unknown";
 	public static final String UNKNOWN_EQUALS = UNKNOWN + "=";
 
+	public static final String HDRS_ACCEPT_COALESCING = "JAL-Accept-Coalescing";
 	public static final String HDRS_ACCEPT_DIGEST = "JAL-Accept-Digest";
 	public static final String HDRS_ACCEPT_ENCODING = "JAL-Accept-Encoding";
+	public static final String HDRS_ACCEPT_SYNC_BATCHING = "JAL-Accept-Sync-Batching";
 	public static final String HDRS_AGENT = "JAL-Agent";
 	public static final String HDRS_APP_META_LEN = "JAL-Application-Metadata-Length";
 	public static final String HDRS_AUDIT_LEN = "JAL-Audit-Length";
+	public static final String HDRS_COALESCING = "JAL-Coalescing";
 	public static final String HDRS_CONTENT_TXFR_ENCODING = "Content-Transfer-Encoding";
 	public static final String HDRS_CONTENT_TYPE = "Content-Type";
 	public static final String HDRS_COUNT = "JAL-Count";
@@ -89,6 +104,7 @@ public class Utils {
 	public static final String HDRS_MESSAGE = "JAL-Message";
 	public static final String HDRS_MODE = "JAL-Mode";
 	public static final String HDRS_NONCE = "JAL-Id";
+	public static final String HDRS_SYNC_BATCHING = "JAL-Sync-Batching";
 	public static final String HDRS_SYS_META_LEN = "JAL-System-Metadata-Length";
 	public static final String HDRS_UNAUTHORIZED_MODE = "JAL-Unauthorized-Mode";
 	public static final String HDRS_UNSUPPORTED_DIGEST = "JAL-Unsupported-Digest";
@@ -105,7 +121,9 @@ public class Utils {
 	public static final String MSG_JOURNAL = "journal-record";
 	public static final String MSG_JOURNAL_RESUME = "journal-resume";
 	public static final String MSG_LOG = "log-record";
+	public static final String MSG_RECORD_BATCH = "record-batch";
 	public static final String MSG_SYNC = "sync";
+	public static final String MSG_SYNC_BATCH = "sync-batch";
 	public static final String MSG_PUBLISH = "publish";
 	public static final String MSG_SUBSCRIBE = "subscribe";
 	public static final String MSG_PUBLISH_LIVE = "publish-live";
@@ -116,6 +134,29 @@ public class Utils {
 	public static final String NONCE = "nonce";
 	public static final String STATUS = "status";
 
+	/*
+	 * The headers each type of control message expects, as a
+	 * HeaderCodec bit mask.
+	 */
+	private static final long INIT_ACK_HEADERS = HeaderCodec.maskOf(
+			HDRS_MESSAGE, HDRS_ENCODING, HDRS_DIGEST, HDRS_COALESCING,
+			HDRS_SYNC_BATCHING);
+	private static final long INIT_HEADERS = HeaderCodec.maskOf(
+			HDRS_ACCEPT_ENCODING, HDRS_MODE, HDRS_DATA_CLASS,
+			HDRS_ACCEPT_DIGEST, HDRS_AGENT, HDRS_ACCEPT_COALESCING,
+			HDRS_ACCEPT_SYNC_BATCHING);
+	private static final long SUBSCRIBE_HEADERS = HeaderCodec.maskOf(HDRS_MESSAGE);
+	private static final long INIT_NACK_HEADERS = HeaderCodec.maskOf(
+			HDRS_MESSAGE, HDRS_UNSUPPORTED_VERSION, HDRS_UNSUPPORTED_ENCODING,
+			HDRS_UNSUPPORTED_MODE, HDRS_UNAUTHORIZED_MODE,
+			HDRS_UNSUPPORTED_DIGEST);
+	private static final long JOURNAL_RESUME_HEADERS = HeaderCodec.maskOf(
+			HDRS_MESSAGE, HDRS_NONCE, HDRS_JOURNAL_OFFSET);
+	private static final long SYNC_HEADERS = HeaderCodec.maskOf(
+			HDRS_MESSAGE, HDRS_NONCE);
+	private static final long DIGEST_HEADERS = HeaderCodec.maskOf(
+			HDRS_MESSAGE, HDRS_COUNT);
+
 	/**
 	 * Utility function to perform common tasks related to parsing incoming
 	 * messages.
@@ -141,6 +182,36 @@ public class Utils {
 			final String expectedMessage, final String... expectedHeaders)
 			throws MissingMimeHeaderException, UnexpectedMimeValueException,
 			BEEPException {
+		return processMessageCommon(is, expectedMessage,
+				HeaderCodec.maskOf(expectedHeaders));
+	}
+
+	/**
+	 * Utility function to perform common tasks related to parsing incoming
+	 * messages.
+	 *
+	 * @param is
+	 *            The {@link InputDataStreamAdapter} for this message.
+	 * @param expectedMessage
+	 *            The expected message type (initialize, subscribe, etc)
+	 * @param expectedHeaders
+	 *            The {@link HeaderCodec} bit mask of expected (not
+	 *            necessarily required) MIME headers.
+	 * @return an array of 2 {@link MimeHeaders}, the first {@link MimeHeader}
+	 *         is the expected headers, the second is any remaining headers.
+	 * @throws MissingMimeHeaderException
+	 *             If the MIME headers to not contain a JAL-Message header.
+	 * @throws UnexpectedMimeValueException
+	 *             If the value of the JAL-Message header is not
+	 *             <code>expectedMessage</code>.
+	 * @throws BEEPException
+	 *             If an underlying {@link BEEPException} occurs.
+	 * @see {@link Utils#splitHeaders(InputDataStreamAdapter, long)}
+	 */
+	static MimeHeaders[] processMessageCommon(final InputDataStreamAdapter is,
+			final String expectedMessage, final long expectedHeaders)
+			throws MissingMimeHeaderException, UnexpectedMimeValueException,
+			BEEPException {
 		final String messageType = is.getHeaderValue(HDRS_MESSAGE);
 		if (messageType == null) {
 			throw new MissingMimeHeaderException(HDRS_MESSAGE);
@@ -168,8 +239,58 @@ public class Utils {
 	 *            that contains at least one non-whitespace character.
 	 * @return The {@link OutputDataStream}
 	 */
+	public static OutputDataStream createInitAckMessage(final String digest,
+			final String encoding) {
+		return createInitAckMessage(digest, encoding, null);
+	}
+
+	/**
+	 * Create an {@link OutputDataStream} for an initialize-ack message that
+	 * may accept the record coalescing extension. The returned object is
+	 * already marked as complete since an initialize-ack message carries no
+	 * payload.
+	 *
+	 * @param digest
+	 *            The selected digest algorithm. This must be a non-empty string
+	 *            that contains at least one non-whitespace character.
+	 * @param encoding
+	 *            The selected XML encoding. This must be a non-empty string
+	 *            that contains at least one non-whitespace character.
+	 * @param coalescing
+	 *            The selected record coalescing format (e.g.
+	 *            {@link #COALESCE_LENGTH_TABLE}), or <code>null</code> if
+	 *            records are not coalesced.
+	 * @return The {@link OutputDataStream}
+	 */
+	public static OutputDataStream createInitAckMessage(final String digest,
+			final String encoding, final String coalescing) {
+		return createInitAckMessage(digest, encoding, coalescing, null);
+	}
+
+	/**
+	 * Create an {@link OutputDataStream} for an initialize-ack message that
+	 * may accept the record coalescing and sync batching extensions. The
+	 * returned object is already marked as complete since an initialize-ack
+	 * message carries no payload.
+	 *
+	 * @param digest
+	 *            The selected digest algorithm. This must be a non-empty string
+	 *            that contains at least one non-whitespace character.
+	 * @param encoding
+	 *            The selected XML encoding. This must be a non-empty string
+	 *            that contains at least one non-whitespace character.
+	 * @param coalescing
+	 *            The selected record coalescing format (e.g.
+	 *            {@link #COALESCE_LENGTH_TABLE}), or <code>null</code> if
+	 *            records are not coalesced.
+	 * @param syncBatching
+	 *            The selected sync batching format (e.g.
+	 *            {@link #SYNC_BATCH_NONCE_LIST}), or <code>null</code> if
+	 *            every nonce is synced in its own message.
+	 * @return The {@link OutputDataStream}
+	 */
 	public static OutputDataStream createInitAckMessage(String digest,
-			String encoding) {
+			String encoding, final String coalescing, final String syncBatching) {
 
 		final org.beepcore.beep.core.MimeHeaders headers = new org.beepcore.beep.core.MimeHeaders(
 				CT_JALOP,
@@ -180,6 +301,12 @@ public class Utils {
 		headers.setHeader(HDRS_MESSAGE, MSG_INIT_ACK);
 		headers.setHeader(HDRS_DIGEST, digest);
 		headers.setHeader(HDRS_ENCODING, encoding);
+		if (coalescing != null) {
+			headers.setHeader(HDRS_COALESCING, checkForEmptyString(coalescing, "coalescing"));
+		}
+		if (syncBatching != null) {
+			headers.setHeader(HDRS_SYNC_BATCHING, checkForEmptyString(syncBatching, "syncBatching"));
+		}
 
 		final OutputDataStream ods = new OutputDataStream(headers, new BufferSegment(new byte[0]));
 		ods.setComplete();
@@ -215,6 +342,80 @@ public class Utils {
 	public static OutputDataStream createInitMessage(final Role role, final Mode mode,
 			final RecordType dataClass, final List<String> xmlEncodings,
 			final List<String> digestAlgorithms, final String agent) {
+		return createInitMessage(role, mode, dataClass, xmlEncodings,
+				digestAlgorithms, agent, null);
+	}
+
+	/**
+	 * Create an {@link OutputDataStream} for an initialize message that may
+	 * propose the record coalescing extension. The returned object is
+	 * already marked as complete since an initialize message carries no
+	 * payload.
+	 *
+	 * @param role
+	 *            The {@link Role} in ('JAL-Mode') to send.
+	 * @param mode
+	 *            The {@link Mode} in ('JAL-Mode') to send.
+	 * @param dataClass
+	 *            The type of records to transfer over this channel.
+	 * @param xmlEncodings
+	 *            The list of XML encodings to propose, may be
+	 *            <code>null</code> or empty.
+	 * @param digestAlgorithms
+	 *            The list of digest algorithms to propose, may be
+	 *            <code>null</code> or empty.
+	 * @param agent
+	 *            The string to send for the "JAL-Agent" header, this may be
+	 *            <code>null</code>
+	 * @param coalescing
+	 *            The record coalescing format to propose (e.g.
+	 *            {@link #COALESCE_LENGTH_TABLE}), or <code>null</code> to
+	 *            only use the classic one record per message format.
+	 * @return The {@link OutputDataStream}
+	 */
+	public static OutputDataStream createInitMessage(final Role role, final Mode mode,
+			final RecordType dataClass, final List<String> xmlEncodings,
+			final List<String> digestAlgorithms, final String agent,
+			final String coalescing) {
+		return createInitMessage(role, mode, dataClass, xmlEncodings,
+				digestAlgorithms, agent, coalescing, null);
+	}
+
+	/**
+	 * Create an {@link OutputDataStream} for an initialize message that may
+	 * propose the record coalescing and sync batching extensions. The
+	 * returned object is already marked as complete since an initialize
+	 * message carries no payload.
+	 *
+	 * @param role
+	 *            The {@link Role} in ('JAL-Mode') to send.
+	 * @param mode
+	 *            The {@link Mode} in ('JAL-Mode') to send.
+	 * @param dataClass
+	 *            The type of records to transfer over this channel.
+	 * @param xmlEncodings
+	 *            The list of XML encodings to propose, may be
+	 *            <code>null</code> or empty.
+	 * @param digestAlgorithms
+	 *            The list of digest algorithms to propose, may be
+	 *            <code>null</code> or empty.
+	 * @param agent
+	 *            The string to send for the "JAL-Agent" header, this may be
+	 *            <code>null</code>
+	 * @param coalescing
+	 *            The record coalescing format to propose (e.g.
+	 *            {@link #COALESCE_LENGTH_TABLE}), or <code>null</code> to
+	 *            only use the classic one record per message format.
+	 * @param syncBatching
+	 *            The sync batching format to propose (e.g.
+	 *            {@link #SYNC_BATCH_NONCE_LIST}), or <code>null</code> to
+	 *            sync every nonce in its own message.
+	 * @return The {@link OutputDataStream}
+	 */
+	public static OutputDataStream createInitMessage(final Role role, final Mode mode,
+			final RecordType dataClass, final List<String> xmlEncodings,
+			final List<String> digestAlgorithms, final String agent,
+			final String coalescing, final String syncBatching) {
 
 		final org.beepcore.beep.core.MimeHeaders headers = new org.beepcore.beep.core.MimeHeaders(
 				CT_JALOP,
@@ -256,6 +457,14 @@ public class Utils {
 		if (agent != null) {
 			headers.setHeader(HDRS_AGENT, agent);
 		}
+		if (coalescing != null) {
+			headers.setHeader(HDRS_ACCEPT_COALESCING,
+					checkForEmptyString(coalescing, "coalescing"));
+		}
+		if (syncBatching != null) {
+			headers.setHeader(HDRS_ACCEPT_SYNC_BATCHING,
+					checkForEmptyString(syncBatching, "syncBatching"));
+		}
 
 		final OutputDataStream ods = new OutputDataStream(headers, new BufferSegment(new byte[0]));
 
@@ -348,7 +557,7 @@ public class Utils {
 			throws BEEPException, MissingMimeHeaderException,
 			UnexpectedMimeValueException {
 		final MimeHeaders[] headers = processMessageCommon(is, MSG_INIT_ACK,
-				HDRS_MESSAGE, HDRS_ENCODING, HDRS_DIGEST);
+				INIT_ACK_HEADERS);
 
 		final MimeHeaders knownHeaders = headers[0];
 		final MimeHeaders unknownHeaders = headers[1];
@@ -366,7 +575,12 @@ public class Utils {
 		} else {
 			throw new MissingMimeHeaderException(HDRS_DIGEST);
 		}
-		return new InitAckMessage(encoding, digest, unknownHeaders);
+
+		final String[] coalescing = knownHeaders.getHeader(HDRS_COALESCING);
+		final String[] syncBatching = knownHeaders.getHeader(HDRS_SYNC_BATCHING);
+		return new InitAckMessage(encoding, digest,
+				coalescing != null ? coalescing[0].trim() : null,
+				syncBatching != null ? syncBatching[0].trim() : null, unknownHeaders);
 	}
 
 	/**
@@ -387,8 +601,7 @@ public class Utils {
 			throws BEEPException, UnexpectedMimeValueException,
 			MissingMimeHeaderException {
 		final MimeHeaders[] headers = processMessageCommon(is, MSG_INIT,
-				HDRS_ACCEPT_ENCODING, HDRS_MODE, HDRS_DATA_CLASS,
-				HDRS_ACCEPT_DIGEST, HDRS_AGENT);
+				INIT_HEADERS);
 		final MimeHeaders knownHeaders = headers[0];
 		final MimeHeaders unknownHeaders = headers[1];
 
@@ -402,19 +615,24 @@ public class Utils {
 		}
 		Role role;
 		Mode mode;
-		if (hdrsMode[0].equalsIgnoreCase(MSG_PUBLISH_LIVE)) {
+		switch (HeaderCodec.lookupMessage(hdrsMode[0])) {
+		case HeaderCodec.MSG_PUBLISH_LIVE:
 			role = Role.Publisher;
 			mode = Mode.Live;
-		} else if (hdrsMode[0].equalsIgnoreCase(MSG_PUBLISH_ARCHIVE)) {
+			break;
+		case HeaderCodec.MSG_PUBLISH_ARCHIVE:
 			role = Role.Publisher;
 			mode = Mode.Archive;
-		} else if (hdrsMode[0].equalsIgnoreCase(MSG_SUBSCRIBE_LIVE)) {
+			break;
+		case HeaderCodec.MSG_SUBSCRIBE_LIVE:
 			role = Role.Subscriber;
 			mode = Mode.Live;
-		} else if (hdrsMode[0].equalsIgnoreCase(MSG_SUBSCRIBE_ARCHIVE)) {
+			break;
+		case HeaderCodec.MSG_SUBSCRIBE_ARCHIVE:
 			role = Role.Subscriber;
 			mode = Mode.Archive;
-		} else {
+			break;
+		default:
 			throw new UnexpectedMimeValueException(HDRS_MODE, MSG_PUBLISH_LIVE + ", or "
 					+ ", or " + MSG_PUBLISH_ARCHIVE + ", or " + MSG_SUBSCRIBE_LIVE
 					+ ", or " + MSG_SUBSCRIBE_ARCHIVE, hdrsMode[0]);
@@ -442,8 +660,11 @@ public class Utils {
 			agentString = agent[0];
 		}
 
+		final String[] coalescing = knownHeaders.getHeader(HDRS_ACCEPT_COALESCING);
+		final String[] syncBatching = knownHeaders.getHeader(HDRS_ACCEPT_SYNC_BATCHING);
+
 		return new InitMessage(recordType, role, mode, encodings, digests,
-				agentString, unknownHeaders);
+				agentString, coalescing, syncBatching, unknownHeaders);
 
 	}
 
@@ -522,7 +743,7 @@ public class Utils {
 			final InputDataStreamAdapter is) throws BEEPException,
 			MissingMimeHeaderException, UnexpectedMimeValueException {
 		final MimeHeaders[] headers = processMessageCommon(is, MSG_SUBSCRIBE,
-					HDRS_MESSAGE);
+					SUBSCRIBE_HEADERS);
 	
 		final MimeHeaders knownHeaders = headers[0];
 		final MimeHeaders unknownHeaders = headers[1];
@@ -559,7 +780,7 @@ public class Utils {
 				org.beepcore.beep.core.MimeHeaders.DEFAULT_CONTENT_TRANSFER_ENCODING);
 		headers.setHeader(HDRS_MESSAGE, MSG_JOURNAL_RESUME);
 		headers.setHeader(HDRS_NONCE, nonce);
-		headers.setHeader(HDRS_JOURNAL_OFFSET, Long.toString(offset));
+		headers.setHeader(HDRS_JOURNAL_OFFSET, HeaderCodec.formatLength(offset));
 		final OutputDataStream ods = new OutputDataStream(headers, new BufferSegment(new byte[0]));
 		ods.setComplete();
 		return ods;
@@ -582,10 +803,8 @@ public class Utils {
 	static public InitNackMessage processInitNack(
 			final InputDataStreamAdapter is) throws BEEPException,
 			MissingMimeHeaderException, UnexpectedMimeValueException {
-		final MimeHeaders[] headers = processMessageCommon(is, MSG_INIT_NACK, HDRS_MESSAGE,
-				HDRS_UNSUPPORTED_VERSION, HDRS_UNSUPPORTED_ENCODING,
-				HDRS_UNSUPPORTED_MODE, HDRS_UNAUTHORIZED_MODE,
-				HDRS_UNSUPPORTED_DIGEST);
+		final MimeHeaders[] headers = processMessageCommon(is, MSG_INIT_NACK,
+				INIT_NACK_HEADERS);
 
 		final MimeHeaders knownHeaders = headers[0];
 		final MimeHeaders unknownHeaders = headers[1];
@@ -632,8 +851,7 @@ public class Utils {
 			MissingMimeHeaderException, UnexpectedMimeValueException {
 
 		final MimeHeaders[] headers = processMessageCommon(is,
-				MSG_JOURNAL_RESUME, HDRS_MESSAGE, HDRS_NONCE,
-				HDRS_JOURNAL_OFFSET);
+				MSG_JOURNAL_RESUME, JOURNAL_RESUME_HEADERS);
 
 		final MimeHeaders knownHeaders = headers[0];
 		final MimeHeaders unknownHeaders = headers[1];
@@ -659,7 +877,7 @@ public class Utils {
 		}
 		long offset = -1;
 		try {
-			offset = Long.parseLong(offsetStr);
+			offset = HeaderCodec.parseLength(offsetStr);
 		} catch (final NumberFormatException e) {
 			// Do nothing here, the following 'if' statement will generate an
 			// exception if needed.
@@ -691,7 +909,7 @@ public class Utils {
 			BEEPException {
 
 		final MimeHeaders[] headers = processMessageCommon(is, MSG_SYNC,
-				HDRS_MESSAGE, HDRS_NONCE);
+				SYNC_HEADERS);
 
 		final MimeHeaders knownHeaders = headers[0];
 		final MimeHeaders unknownHeaders = headers[1];
@@ -731,12 +949,131 @@ public class Utils {
 	}
 
 	/**
-	 * Process a Digest Message.
+	 * Process a sync-batch message. The whole body is read, so when the
+	 * message arrives over several frames this blocks until the last one has
+	 * been received.
 	 *
 	 * @param is
 	 *            The BEEP {@link InputDataStreamAdapter} that holds the
 	 *            message.
-	 * @return an {@link Map<String, String>}
+	 * @return a {@link SyncBatchMessage} that holds the nonces that are being
+	 *         synced
+	 * @throws BEEPException
+	 *             If there is an error from the underlying BEEP connection.
+	 * @throws UnexpectedMimeValueException
+	 *             If the message contains illegal values for known MIME
+	 *             headers, including a JAL-Count that is not between 1 and
+	 *             {@link #MAX_SYNC_BATCH_NONCES}.
+	 * @throws MissingMimeHeaderException
+	 *             If {@link Message} is missing a required MIME header.
+	 * @throws IllegalArgumentException
+	 *             If the body does not hold JAL-Count nonces.
+	 */
+	static public SyncBatchMessage processSyncBatchMessage(final InputDataStreamAdapter is)
+			throws MissingMimeHeaderException, UnexpectedMimeValueException,
+			BEEPException {
+
+		final MimeHeaders[] headers = processMessageCommon(is, MSG_SYNC_BATCH,
+				DIGEST_HEADERS);
+
+		final MimeHeaders knownHeaders = headers[0];
+		final MimeHeaders unknownHeaders = headers[1];
+
+		final String[] countHeader = knownHeaders.getHeader(HDRS_COUNT);
+		if (countHeader == null) {
+			throw new MissingMimeHeaderException(HDRS_COUNT);
+		}
+		final String countStr = countHeader[0].trim();
+		final int count;
+		try {
+			count = Integer.parseInt(countStr);
+		} catch (final NumberFormatException e) {
+			throw new UnexpectedMimeValueException(HDRS_COUNT,
+					"1 to " + MAX_SYNC_BATCH_NONCES, countStr);
+		}
+		// the count comes from the remote, so it only bounds the list
+		if (count < 1 || count > MAX_SYNC_BATCH_NONCES) {
+			throw new UnexpectedMimeValueException(HDRS_COUNT,
+					"1 to " + MAX_SYNC_BATCH_NONCES, countStr);
+		}
+
+		final List<String> nonces = new ArrayList<String>();
+		final NonceListParser parser = new NonceListParser(nonces);
+		final byte[] buf = new byte[DigestMessageDecoder.BUFFER_SIZE];
+		try {
+			int n;
+			while ((n = is.read(buf, 0, buf.length)) > 0) {
+				parser.update(buf, 0, n);
+				if (nonces.size() > count) {
+					throw new IllegalArgumentException("The data provided does not match the count or is poorly formed");
+				}
+			}
+		} catch (final IOException e) {
+			throw new BEEPException(e);
+		}
+		if (parser.finish() != count) {
+			throw new IllegalArgumentException("The data provided does not match the count or is poorly formed");
+		}
+
+		return new SyncBatchMessage(nonces, unknownHeaders);
+	}
+
+	/**
+	 * Create a sync-batch message, which syncs several nonces at once. It
+	 * may only be sent once the remote has accepted the
+	 * {@link #SYNC_BATCH_NONCE_LIST} sync batching format.
+	 *
+	 * @param nonces
+	 *            The nonces to sync.
+	 * @return an {@link OutputDataStream} that holds the sync-batch message
+	 * @throws IllegalArgumentException
+	 *             If <code>nonces</code> is <code>null</code>, holds an
+	 *             empty nonce, or holds more than
+	 *             {@link #MAX_SYNC_BATCH_NONCES} nonces.
+	 */
+	static public OutputDataStream createSyncBatchMessage(final List<String> nonces) {
+		if (nonces == null) {
+			throw new IllegalArgumentException("'nonces' cannot be null.");
+		}
+		if (nonces.size() > MAX_SYNC_BATCH_NONCES) {
+			throw new IllegalArgumentException("'nonces' cannot hold more than "
+					+ MAX_SYNC_BATCH_NONCES + " nonces.");
+		}
+
+		final org.beepcore.beep.core.MimeHeaders mh = new org.beepcore.beep.core.MimeHeaders();
+		mh.setContentType(CT_JALOP);
+		mh.setHeader(HDRS_MESSAGE, MSG_SYNC_BATCH);
+		mh.setHeader(HDRS_COUNT, HeaderCodec.formatLength(nonces.size()));
+
+		// each line is <nonce>\r\n
+		long length = 0;
+		for (final String nonce : nonces) {
+			length += trimmedUtf8Length(nonce, NONCE) + 2;
+		}
+
+		final SegmentWriter writer = new SegmentWriter(length, null);
+		for (final String nonce : nonces) {
+			final int start = trimmedStart(nonce);
+			final int end = trimmedEnd(nonce);
+			final byte[] buf = writer.reserve(SegmentWriter.utf8Length(nonce, start, end) + 2);
+			int pos = SegmentWriter.writeUtf8(nonce, start, end, buf, writer.position());
+			buf[pos++] = '\r';
+			buf[pos++] = '\n';
+			writer.commit(pos);
+		}
+
+		return writer.finish(mh);
+	}
+
+	/**
+	 * Process a Digest Message. The whole body is read, so when the message
+	 * arrives over several frames this blocks until the last one has been
+	 * received.
+	 *
+	 * @param is
+	 *            The BEEP {@link InputDataStreamAdapter} that holds the
+	 *            message.
+	 * @return a {@link DigestMessage} that maps each nonce to its digest.
 	 * @throws BEEPException
 	 *             If there is an error from the underlying BEEP connection.
 	 * @throws UnexpectedMimeValueException
@@ -749,32 +1086,109 @@ public class Utils {
 			UnexpectedMimeValueException, BEEPException {
 
 		final MimeHeaders[] headers = processMessageCommon(is, MSG_DIGEST,
-				HDRS_MESSAGE, HDRS_COUNT);
+				DIGEST_HEADERS);
 		final MimeHeaders knownHeaders = headers[0];
 		final MimeHeaders unknownHeaders = headers[1];
 		final int count = Integer.valueOf(knownHeaders.getHeader(HDRS_COUNT)[0]
 				.trim());
 
 		// get the digest map from the input stream
-		final Map<String, String> digestMap = new HashMap<String, String>();
-		final int numLeft = is.available();
-		final byte[] messageArray = new byte[numLeft];
+		final Map<String, byte[]> digestMap = new HashMap<String, byte[]>();
+		final DigestMessageDecoder decoder = new DigestMessageDecoder(
+				new DigestMessageDecoder.Handler() {
+					@Override
+					public void handle(final String nonce, final byte[] digest) {
+						digestMap.put(nonce, digest);
+					}
+				});
 		try {
-			is.read(messageArray);
+			if (decoder.decode(is) != count) {
+				throw new IllegalArgumentException("The data provided does not match the count or is poorly formed");
+			}
 		} catch (final IOException e) {
-			e.printStackTrace();
+			throw new BEEPException(e);
 		}
-		final String msgStr = new String(messageArray);
 
-		final String[] pairs = checkForEmptyString(msgStr, "payload").split("\\s+|=");
+		return new DigestMessage(digestMap, unknownHeaders);
+	}
+
+	/**
+	 * Process the MIME headers of a Digest Message, so that its body can be
+	 * decoded as it is received with a {@link DigestMessageDecoder}.
+	 *
+	 * @param is
+	 *            The BEEP {@link InputDataStreamAdapter} that holds the
+	 *            message.
+	 * @return the number of digests the body holds, from the JAL-Count header.
+	 * @throws BEEPException
+	 *             If there is an error from the underlying BEEP connection.
+	 * @throws UnexpectedMimeValueException
+	 *             If the message contains illegal values for known MIME headers
+	 * @throws MissingMimeHeaderException
+	 *             If {@link Message} is missing a required MIME header.
+	 */
+	static public int processDigestMessageCount(final InputDataStreamAdapter is)
+			throws MissingMimeHeaderException, UnexpectedMimeValueException, BEEPException {
+
+		final MimeHeaders[] headers = processMessageCommon(is, MSG_DIGEST,
+				DIGEST_HEADERS);
 
-		for (int x = 0; x < count * 2; x += 2) {
-			pairs[x] = checkForEmptyString(pairs[x], MSG_DIGEST);
-			pairs[x + 1] = checkForEmptyString(pairs[x + 1], NONCE);
-			digestMap.put(pairs[x + 1], pairs[x]);
+		return Integer.valueOf(headers[0].getHeader(HDRS_COUNT)[0].trim());
+	}
+
+	/**
+	 * Create a digest message from a {@link DigestLedger}. The digests are
+	 * converted to hex as the message is written.
+	 *
+	 * @param ledger
+	 *            The {@link DigestLedger} that holds the nonce to digest
+	 *            mappings
+	 * @return an {@link OutputDataStream}
+	 */
+	static public OutputDataStream createDigestMessage(
+			final DigestLedger ledger) {
+		return createDigestMessage(ledger, null);
+	}
+
+	/**
+	 * Create a digest message from a {@link DigestLedger}. The digests are
+	 * converted to hex as they are written into the segments of the body.
+	 *
+	 * @param ledger
+	 *            The {@link DigestLedger} that holds the nonce to digest
+	 *            mappings
+	 * @param pool
+	 *            The {@link SegmentPool} of the channel the message is sent
+	 *            on, or <code>null</code> to allocate the segments.
+	 * @return an {@link OutputDataStream}
+	 */
+	static public OutputDataStream createDigestMessage(
+			final DigestLedger ledger, final SegmentPool pool) {
+
+		final org.beepcore.beep.core.MimeHeaders mh = new org.beepcore.beep.core.MimeHeaders();
+		mh.setContentType(CT_JALOP);
+		mh.setHeader(HDRS_MESSAGE, MSG_DIGEST);
+		mh.setHeader(HDRS_COUNT, HeaderCodec.formatLength(ledger.size()));
+
+		// each line is <hex digest>=<nonce>\r\n
+		final int hexLength = ledger.getDigestLength() * 2;
+		long length = 0;
+		for (int i = 0; i < ledger.size(); i++) {
+			length += hexLength + ledger.getNonceLength(i) + 3;
 		}
 
-		return new DigestMessage(digestMap, unknownHeaders);
+		final SegmentWriter writer = new SegmentWriter(length, pool);
+		for (int i = 0; i < ledger.size(); i++) {
+			final byte[] buf = writer.reserve(hexLength + ledger.getNonceLength(i) + 3);
+			int pos = ledger.writeHex(i, buf, writer.position());
+			buf[pos++] = '=';
+			pos = ledger.writeNonce(i, buf, pos);
+			buf[pos++] = '\r';
+			buf[pos++] = '\n';
+			writer.commit(pos);
+		}
+
+		return writer.finish(mh);
 	}
 
 	/**
@@ -788,32 +1202,18 @@ public class Utils {
 	static public OutputDataStream createDigestMessage(
 			final Map<String, String> digestMap) {
 
-		final StringBuilder message = new StringBuilder();
 		final org.beepcore.beep.core.MimeHeaders mh = new org.beepcore.beep.core.MimeHeaders();
 		mh.setContentType(CT_JALOP);
 		mh.setHeader(HDRS_MESSAGE, MSG_DIGEST);
-		mh.setHeader(HDRS_COUNT, String.valueOf(digestMap.size()));
+		mh.setHeader(HDRS_COUNT, HeaderCodec.formatLength(digestMap.size()));
 
-		final Iterator<String> nonces = digestMap.keySet().iterator();
-		while (nonces.hasNext()) {
-			final String id = nonces.next();
-			message.append(checkForEmptyString(digestMap.get(id), MSG_DIGEST));
-			message.append("=");
-			message.append(checkForEmptyString(id, NONCE));
-			message.append("\r\n");
+		final SegmentWriter writer = new SegmentWriter(
+				bodyLength(digestMap, MSG_DIGEST), null);
+		for (final Map.Entry<String, String> entry : digestMap.entrySet()) {
+			writePair(writer, entry.getValue(), entry.getKey());
 		}
 
-		OutputDataStream ret;
-		try {
-			ret = new OutputDataStream(mh, new BufferSegment(message.toString().getBytes("utf-8")));
-		} catch (final UnsupportedEncodingException e) {
-			// We should never get here
-			e.printStackTrace();
-			return null;
-		}
-		ret.setComplete();
-
-		return ret;
+		return writer.finish(mh);
 	}
 
 	/**
@@ -839,41 +1239,58 @@ public class Utils {
 				throws MissingMimeHeaderException, UnexpectedMimeValueException, BEEPException {
 
 		final MimeHeaders[] headers = processMessageCommon(is,
-				MSG_DIGEST_RESP, HDRS_MESSAGE, HDRS_COUNT);
+				MSG_DIGEST_RESP, DIGEST_HEADERS);
 
 		final MimeHeaders knownHeaders = headers[0];
 		final MimeHeaders unknownHeaders = headers[1];
 
 		final int count = Integer.valueOf(knownHeaders.getHeader(HDRS_COUNT)[0].trim());
 
-		return new DigestResponse(getDigestStatuses(is, count, messagePayload), unknownHeaders);
+		return new DigestResponse(getDigestStatuses(count, messagePayload), unknownHeaders);
 
 	}
 
-	private static Map<String, DigestStatus> getDigestStatuses(
-			final InputDataStreamAdapter is, final int count, String messagePayload) 
-				throws BEEPException {
+	/**
+	 * Process the MIME headers of a Digest Response, so that its body can be
+	 * parsed as it is received with a {@link DigestResponseParser}.
+	 *
+	 * @param is
+	 *            The BEEP {@link InputDataStreamAdapter} that holds the
+	 *            message.
+	 * @return the number of pairs the body holds, from the JAL-Count header.
+	 * @throws BEEPException
+	 *             If there is an error from the underlying BEEP connection.
+	 * @throws UnexpectedMimeValueException
+	 *             If the message contains illegal values for known MIME headers
+	 * @throws MissingMimeHeaderException
+	 *             If {@link Message} is missing a required MIME
+	 *             header.
+	 */
+	static public int processDigestResponseCount(final InputDataStreamAdapter is)
+			throws MissingMimeHeaderException, UnexpectedMimeValueException, BEEPException {
+
+		final MimeHeaders[] headers = processMessageCommon(is,
+				MSG_DIGEST_RESP, DIGEST_HEADERS);
+
+		return Integer.valueOf(headers[0].getHeader(HDRS_COUNT)[0].trim());
+	}
+
+	private static Map<String, DigestStatus> getDigestStatuses(final int count,
+			final String messagePayload) throws BEEPException {
 		final Map<String, DigestStatus> ret = new HashMap<String, DigestStatus>();
-		ret.clear();
 
-		final String[] pairs = checkForEmptyString(messagePayload, "payload").split("\\s+|=");
-		if (pairs.length != count * 2) {
+		final DigestResponseParser parser = new DigestResponseParser(
+				new DigestResponseParser.Handler() {
+					@Override
+					public void handle(final String nonce, final DigestStatus status) {
+						ret.put(nonce, status);
+					}
+				});
+		final byte[] payload = checkForEmptyString(messagePayload, "payload").getBytes();
+		parser.update(payload, 0, payload.length);
+		if (parser.finish() != count) {
 			throw new IllegalArgumentException("The data provided does not match the count or is poorly formed");
 		}
-		for (int x = 0; x < (count * 2); x += 2) {
-			pairs[x + 1] = checkForEmptyString(pairs[x + 1], NONCE);
-			pairs[x] = checkForEmptyString(pairs[x], STATUS);
-			if (pairs[x].equalsIgnoreCase(CONFIRMED)) {
-				ret.put(pairs[x + 1], DigestStatus.Confirmed);
-			} else if (pairs[x].equalsIgnoreCase(INVALID)) {
-				ret.put(pairs[x + 1], DigestStatus.Invalid);
-			} else if (pairs[x].equalsIgnoreCase(UNKNOWN)) {
-				ret.put(pairs[x + 1], DigestStatus.Unknown);
-			} else {
-				throw new IllegalArgumentException("'" + pairs[x + 1]
-						+ "' must be confirmed, invalid, or unknown");
-			}
-		}
 
 		return ret;
 	}
@@ -886,25 +1303,115 @@ public class Utils {
 	 * @return an {@link OutputDataStream}
 	 */
 	static public OutputDataStream createDigestResponse(final Map<String, DigestStatus> statusMap) {
-		final StringBuffer message = new StringBuffer();
+		return createDigestResponse(statusMap, null);
+	}
+
+	/**
+	 * Generate a digest response from a Map<String (nonce), DigestStatus
+	 * (digest status)>, writing it straight into the segments of the body.
+	 *
+	 * @param statusMap
+	 *            The Map<String, DigestStatus> that holds the nonce to digest status mappings
+	 * @param pool
+	 *            The {@link SegmentPool} of the channel the response is sent
+	 *            on, or <code>null</code> to allocate the segments.
+	 * @return an {@link OutputDataStream}
+	 */
+	static public OutputDataStream createDigestResponse(
+			final Map<String, DigestStatus> statusMap, final SegmentPool pool) {
 		final org.beepcore.beep.core.MimeHeaders mh = new org.beepcore.beep.core.MimeHeaders();
 		mh.setContentType(CT_JALOP);
 		mh.setHeader(HDRS_MESSAGE, MSG_DIGEST_RESP);
-		mh.setHeader(HDRS_COUNT, String.valueOf(statusMap.size()));
+		mh.setHeader(HDRS_COUNT, HeaderCodec.formatLength(statusMap.size()));
 
-		final Iterator<String> nonces = statusMap.keySet().iterator();
-		while (nonces.hasNext()) {
-			final String id = nonces.next();
-			message.append(checkForEmptyString(statusMap.get(id).toString(), STATUS));
-			message.append("=");
-			message.append(checkForEmptyString(id, NONCE));
-			message.append("\r\n");
+		final SegmentWriter writer = new SegmentWriter(
+				bodyLength(statusMap, STATUS), pool);
+		for (final Map.Entry<String, DigestStatus> entry : statusMap.entrySet()) {
+			writePair(writer, entry.getValue().toString(), entry.getKey());
 		}
 
-		final OutputDataStream ret = new OutputDataStream(mh, new BufferSegment(
-				message.toString().getBytes()));
-		ret.setComplete();
-		return ret;
+		return writer.finish(mh);
+	}
+
+	/**
+	 * Returns the exact length of a body of <code>value=nonce\r\n</code>
+	 * lines, checking that no value or nonce is empty.
+	 */
+	private static long bodyLength(final Map<String, ?> map, final String valueName) {
+		long length = 0;
+		for (final Map.Entry<String, ?> entry : map.entrySet()) {
+			final String value = entry.getValue() == null ? null : entry.getValue().toString();
+			length += trimmedUtf8Length(value, valueName)
+					+ trimmedUtf8Length(entry.getKey(), NONCE) + 3;
+		}
+		return length;
+	}
+
+	/**
+	 * Write a single <code>value=nonce\r\n</code> line, leaving out any
+	 * leading or trailing whitespace of the value and nonce.
+	 */
+	private static void writePair(final SegmentWriter writer, final String value,
+			final String nonce) {
+		final int valueStart = trimmedStart(value);
+		final int valueEnd = trimmedEnd(value);
+		final int nonceStart = trimmedStart(nonce);
+		final int nonceEnd = trimmedEnd(nonce);
+
+		final byte[] buf = writer.reserve(
+				SegmentWriter.utf8Length(value, valueStart, valueEnd)
+				+ SegmentWriter.utf8Length(nonce, nonceStart, nonceEnd) + 3);
+		int pos = SegmentWriter.writeUtf8(value, valueStart, valueEnd, buf, writer.position());
+		buf[pos++] = '=';
+		pos = SegmentWriter.writeUtf8(nonce, nonceStart, nonceEnd, buf, pos);
+		buf[pos++] = '\r';
+		buf[pos++] = '\n';
+		writer.commit(pos);
+	}
+
+	/**
+	 * Does the same checks as {@link #checkForEmptyString(String, String)}
+	 * without copying <code>toCheck</code>.
+	 *
+	 * @return the length of the UTF-8 encoding of <code>toCheck</code> with
+	 *         leading/trailing whitespace removed.
+	 */
+	private static int trimmedUtf8Length(final String toCheck,
+			final String parameterName) {
+		if (toCheck == null) {
+			throw new IllegalArgumentException("'" + parameterName
+					+ "' cannot be null");
+		}
+		final int start = trimmedStart(toCheck);
+		final int end = trimmedEnd(toCheck);
+		if (start >= end) {
+			throw new IllegalArgumentException("'" + parameterName
+					+ "' must contain non-whitespace characaters");
+		}
+		return SegmentWriter.utf8Length(toCheck, start, end);
+	}
+
+	/**
+	 * Returns the index of the first character {@link String#trim()} keeps.
+	 */
+	private static int trimmedStart(final String s) {
+		int start = 0;
+		while (start < s.length() && s.charAt(start) <= ' ') {
+			start++;
+		}
+		return start;
+	}
+
+	/**
+	 * Returns the index following the last character {@link String#trim()}
+	 * keeps.
+	 */
+	private static int trimmedEnd(final String s) {
+		int end = s.length();
+		while (end > 0 && s.charAt(end - 1) <= ' ') {
+			end--;
+		}
+		return end;
 	}
 
 	/**
@@ -920,11 +1427,25 @@ public class Utils {
 	 */
 	static MimeHeaders[] splitHeaders(final InputDataStreamAdapter is,
 			final String... expectedHeaders) throws BEEPException {
-		final Set<String> ehs = new TreeSet<String>(
-				String.CASE_INSENSITIVE_ORDER);
-		ehs.addAll(Arrays.asList(expectedHeaders));
-		ehs.add(org.beepcore.beep.core.MimeHeaders.CONTENT_TYPE);
-		ehs.add(org.beepcore.beep.core.MimeHeaders.CONTENT_TRANSFER_ENCODING);
+		return splitHeaders(is, HeaderCodec.maskOf(expectedHeaders));
+	}
+
+	/**
+	 * @param is
+	 *            The BEEP {@link InputDataStreamAdapter} that holds the
+	 *            message.
+	 * @param expectedHeaders
+	 *            The {@link HeaderCodec} bit mask of expected headers. The
+	 *            Content-Type and Content-Transfer-Encoding headers are
+	 *            always expected.
+	 * @return an array of 2 {@link MimeHeaders}, the first {@link MimeHeader}
+	 *         is the expected headers, the second is any remaining headers.
+	 * @throws BEEPException
+	 *             If there is an underlying BEEP exception.
+	 */
+	static MimeHeaders[] splitHeaders(final InputDataStreamAdapter is,
+			final long expectedHeaders) throws BEEPException {
+		final long ehs = expectedHeaders | HeaderCodec.CONTENT_HEADERS;
 
 		final MimeHeaders[] toReturn = new MimeHeaders[2];
 		final MimeHeaders knownHeaders = new MimeHeaders();
@@ -935,7 +1456,7 @@ public class Utils {
 		for (@SuppressWarnings("unchecked")
 		final Enumeration<String> e = is.getHeaderNames(); e.hasMoreElements();) {
 			final String header = e.nextElement();
-			if (ehs.contains(header)) {
+			if (HeaderCodec.contains(ehs, header)) {
 				knownHeaders.addHeader(header, is.getHeaderValue(header));
 			} else {
 				otherHeaders.addHeader(header, is.getHeaderValue(header));
@@ -37,12 +37,14 @@ import org.beepcore.beep.core.RequestHandler;
 
 import com.tresys.jalop.jnl.Mode;
 import com.tresys.jalop.jnl.Publisher;
+import com.tresys.jalop.jnl.PullPublisher;
 import com.tresys.jalop.jnl.RecordType;
 import com.tresys.jalop.jnl.SourceRecord;
 import com.tresys.jalop.jnl.exceptions.JNLException;
 import com.tresys.jalop.jnl.exceptions.MissingMimeHeaderException;
 import com.tresys.jalop.jnl.exceptions.UnexpectedMimeValueException;
 import com.tresys.jalop.jnl.impl.ContextImpl;
+import com.tresys.jalop.jnl.impl.messages.HeaderCodec;
 import com.tresys.jalop.jnl.impl.messages.JournalResumeMessage;
 import com.tresys.jalop.jnl.impl.messages.SubscribeMessage;
 import com.tresys.jalop.jnl.impl.messages.Utils;
@@ -92,7 +94,10 @@ public class PublisherRequestHandler implements RequestHandler {
 			long offset = 0;
 
 			sess.msg = message;
-			if(data.getHeaderValue(Utils.HDRS_MESSAGE).startsWith(Utils.MSG_SUBSCRIBE)) {
+			final int messageType = HeaderCodec.lookupMessage(data.getHeaderValue(Utils.HDRS_MESSAGE));
+			if(messageType == HeaderCodec.MSG_SUBSCRIBE
+					|| messageType == HeaderCodec.MSG_SUBSCRIBE_LIVE
+					|| messageType == HeaderCodec.MSG_SUBSCRIBE_ARCHIVE) {
 				if(log.isDebugEnabled()) {
 					log.debug("Received a subscribe message.");
 				}
@@ -104,7 +109,10 @@ public class PublisherRequestHandler implements RequestHandler {
 					}
 					return;
 				}
-			} else if(Utils.MSG_JOURNAL_RESUME.equals(data.getHeaderValue(Utils.HDRS_MESSAGE))) {
+				if (publisher instanceof PullPublisher) {
+					startSending(sess, (PullPublisher) publisher, nonce, -1);
+				}
+			} else if(messageType == HeaderCodec.MSG_JOURNAL_RESUME) {
 				if(log.isDebugEnabled()) {
 					log.debug("Received a journal resume message.");
 				}
@@ -117,6 +125,9 @@ public class PublisherRequestHandler implements RequestHandler {
 					}
 					return;
 				}
+				if (publisher instanceof PullPublisher) {
+					startSending(sess, (PullPublisher) publisher, nonce, offset);
+				}
 			}
 		} catch (final BEEPException e) {
 			if (log.isEnabledFor(Level.ERROR)) {
@@ -141,6 +152,21 @@ public class PublisherRequestHandler implements RequestHandler {
 		}
 	}
 
+	/**
+	 * Hand the transfer of records to a send task of the session, so this
+	 * thread can return to reading the session.
+	 */
+	void startSending(final PublisherSessionImpl sess,
+			final PullPublisher publisher, final String nonce,
+			final long resumeOffset) {
+		if (!sess.startSending(publisher, nonce, resumeOffset)) {
+			if (log.isEnabledFor(Level.ERROR)) {
+				log.error("Records are already being sent on this session.");
+			}
+			sendERR(sess.msg);
+		}
+	}
+
 	public void sendERR(final MessageMSG message) {
 		try {
 			message.sendERR(new BEEPError(BEEPError.CODE_REQUESTED_ACTION_ABORTED));
@@ -0,0 +1,137 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl.impl.publisher;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import com.tresys.jalop.jnl.PullPublisher;
+import com.tresys.jalop.jnl.SourceRecord;
+
+/**
+ * Sends the records of a {@link PullPublisher} on a single
+ * {@link PublisherSessionImpl}. The task is started once the publisher has
+ * accepted a "subscribe" or "journal-resume" message, and runs on an
+ * executor thread so that the BEEP thread that delivered the message can
+ * return and go on processing the digest and sync messages of the session.
+ */
+final class PublisherSendTask implements Runnable {
+
+	static Logger log = Logger.getLogger(PublisherSendTask.class);
+
+	private final PublisherSessionImpl session;
+	private final PullPublisher publisher;
+	private final String nonce;
+	private final long resumeOffset;
+
+	private volatile String lastNonce;
+	private volatile long sentCount;
+
+	/**
+	 * Create a new {@link PublisherSendTask}.
+	 *
+	 * @param session
+	 *            The session to send the records on.
+	 * @param publisher
+	 *            The {@link PullPublisher} to pull the records from.
+	 * @param nonce
+	 *            The nonce of the "subscribe" or "journal-resume" message.
+	 * @param resumeOffset
+	 *            The offset of the journal record to resume, or -1 for a
+	 *            "subscribe" message.
+	 */
+	PublisherSendTask(final PublisherSessionImpl session,
+			final PullPublisher publisher, final String nonce,
+			final long resumeOffset) {
+		this.session = session;
+		this.publisher = publisher;
+		this.nonce = nonce;
+		this.resumeOffset = resumeOffset;
+		this.lastNonce = nonce;
+	}
+
+	@Override
+	public void run() {
+		try {
+			if (this.resumeOffset >= 0) {
+				final SourceRecord rec = this.publisher.getResumeRecord(
+						this.session, this.nonce, this.resumeOffset);
+				if (rec == null) {
+					if (log.isEnabledFor(Level.ERROR)) {
+						log.error("Journal record " + this.nonce + " cannot be resumed");
+					}
+					this.session.sendERR(this.session.msg);
+					return;
+				}
+				// the resumed record is sent on its own, before the pipeline is used
+				this.session.sendRecord(rec);
+				this.sentCount++;
+			}
+
+			while (this.session.awaitDigestCapacity()) {
+				final SourceRecord rec = this.publisher.getNextRecord(
+						this.session, this.lastNonce);
+				if (rec == null) {
+					break;
+				}
+				this.session.submitRecord(rec);
+				this.lastNonce = rec.getNonce();
+				this.sentCount++;
+			}
+
+			if (this.session.isOk()) {
+				this.session.complete();
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			if (log.isEnabledFor(Level.ERROR)) {
+				log.error("Interrupted while waiting to send records");
+			}
+			this.session.setErrored();
+			this.session.sendERR(this.session.msg);
+		} catch (final RuntimeException e) {
+			if (log.isEnabledFor(Level.ERROR)) {
+				log.error("Error sending records: " + e.getMessage());
+			}
+			this.session.setErrored();
+			this.session.sendERR(this.session.msg);
+		} finally {
+			this.session.sendTaskFinished(this);
+		}
+	}
+
+	/**
+	 * @return the nonce of the last record given to the session
+	 */
+	String getLastNonce() {
+		return this.lastNonce;
+	}
+
+	/**
+	 * @return the number of records given to the session
+	 */
+	long getSentCount() {
+		return this.sentCount;
+	}
+}
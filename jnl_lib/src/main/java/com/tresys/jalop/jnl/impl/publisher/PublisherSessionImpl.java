@@ -24,16 +24,22 @@
 
 package com.tresys.jalop.jnl.impl.publisher;
 
-import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -43,9 +49,15 @@ import org.beepcore.beep.util.BufferSegment;
 import org.beepcore.beep.core.Channel;
 import org.beepcore.beep.core.MessageMSG;
 
+import com.tresys.jalop.jnl.BufferSourceRecord;
+import com.tresys.jalop.jnl.CheckpointedSourceRecord;
+import com.tresys.jalop.jnl.DigestCheckpoint;
+import com.tresys.jalop.jnl.DigestedSourceRecord;
+import com.tresys.jalop.jnl.FileSourceRecord;
 import com.tresys.jalop.jnl.Mode;
 import com.tresys.jalop.jnl.Publisher;
 import com.tresys.jalop.jnl.PublisherSession;
+import com.tresys.jalop.jnl.PullPublisher;
 import com.tresys.jalop.jnl.RecordType;
 import com.tresys.jalop.jnl.Role;
 import com.tresys.jalop.jnl.Session;
@@ -53,10 +65,19 @@ import com.tresys.jalop.jnl.SourceRecord;
 import com.tresys.jalop.jnl.exceptions.JNLException;
 import com.tresys.jalop.jnl.exceptions.MissingMimeHeaderException;
 import com.tresys.jalop.jnl.exceptions.UnexpectedMimeValueException;
+import com.tresys.jalop.jnl.impl.BufferPool;
 import com.tresys.jalop.jnl.impl.ContextImpl;
 import com.tresys.jalop.jnl.impl.DigestRequestHandler;
 import com.tresys.jalop.jnl.impl.JNLOutputDataStream;
+import com.tresys.jalop.jnl.impl.MessageDigestPool;
+import com.tresys.jalop.jnl.impl.SegmentPool;
+import com.tresys.jalop.jnl.impl.SendWindow;
+import com.tresys.jalop.jnl.impl.SendWindowPolicy;
 import com.tresys.jalop.jnl.impl.SessionImpl;
+import com.tresys.jalop.jnl.impl.Sha2Digest;
+import com.tresys.jalop.jnl.impl.SpillingDigestLedger;
+import com.tresys.jalop.jnl.impl.messages.RecordBatch;
+import com.tresys.jalop.jnl.impl.messages.RecordHeaderTemplate;
 import com.tresys.jalop.jnl.impl.messages.Utils;
 
 /**
@@ -72,19 +93,135 @@ public class PublisherSessionImpl extends SessionImpl implements
 
 	private final Publisher publisher;
 	private final ContextImpl contextImpl;
-	private final Map<String, byte[]> digestMap;
+	private final SpillingDigestLedger digestLedger;
 	private Mode mode = Mode.Unset;
 
 	public MessageMSG msg;
 
+	/**
+	 * The size of the blocks the part of a resumed payload that is only
+	 * digested is read in.
+	 */
 	static final int BUFFER_SIZE = 4096;
-	static final int MAX_BUFFERS = 10;
 
 	/**
-	 * The MessageDigest to use for calculating the JALoP digest.
+	 * The BREAK marker that separates the sections of a record. The segment
+	 * is shared by every record and is never modified.
+	 */
+	static final BufferSegment BREAK_SEGMENT = new BufferSegment(Utils.BREAK_BYTES);
+
+	/**
+	 * The size of the blocks {@link FileSourceRecord} sections are read in.
+	 */
+	static final int CHANNEL_BUFFER_SIZE = 65536;
+
+	/**
+	 * The smallest {@link FileSourceRecord} section that is memory mapped.
+	 */
+	static final long MAP_THRESHOLD = 1024 * 1024;
+
+	/**
+	 * The largest part of a file that is mapped at once.
+	 */
+	static final long MAP_WINDOW = 64 * 1024 * 1024;
+
+	/**
+	 * By default, one in this many records that supply a digest is hashed
+	 * to check it.
+	 */
+	public static final int DEFAULT_DIGEST_VERIFY_INTERVAL = 100;
+
+	/**
+	 * How long, in milliseconds, a held back sender waits before checking
+	 * the state of the session again.
+	 */
+	static final long THROTTLE_POLL_MILLIS = 100;
+
+	/**
+	 * The MessageDigest returned by {@link #getMd()}. The library does not
+	 * use it to hash records.
 	 */
 	private final MessageDigest md;
 
+	/**
+	 * The engines records are hashed with, one per record being sent.
+	 */
+	private final MessageDigestPool digestPool;
+
+	/**
+	 * The pre-encoded MIME headers for the records of this session.
+	 */
+	private final RecordHeaderTemplate headerTemplate;
+
+	/**
+	 * The buffers records are read into, for the current channel.
+	 */
+	private SegmentPool segmentPool;
+
+	/**
+	 * The pipeline records given to {@link #submitRecord(SourceRecord)} are
+	 * sent through, created on first use.
+	 */
+	private RecordPipeline recordPipeline;
+
+	/**
+	 * The streams of the records that are being sent, which are cancelled
+	 * if this session errors.
+	 */
+	private final Set<JNLOutputDataStream> activeStreams =
+			Collections.newSetFromMap(new ConcurrentHashMap<JNLOutputDataStream, Boolean>());
+
+	/**
+	 * The segment size and number of queued segments records are sent with.
+	 */
+	private final SendWindow sendWindow;
+
+	/**
+	 * The task sending the records of a {@link PullPublisher}, or
+	 * <code>null</code> if none is running.
+	 */
+	private PublisherSendTask sendTask;
+
+	/**
+	 * One in this many records that supply a digest is hashed, 0 never
+	 * hashes them.
+	 */
+	private final int digestVerifyInterval;
+
+	/**
+	 * Set once a supplied digest did not match, after which every record is
+	 * hashed.
+	 */
+	private volatile boolean digestMismatch;
+
+	private final AtomicLong suppliedDigestCount = new AtomicLong();
+	private final AtomicLong verifiedDigestCount = new AtomicLong();
+	private final AtomicLong digestMismatchCount = new AtomicLong();
+
+	/**
+	 * The number of unconfirmed records at which sending is held back, 0
+	 * never holds it back.
+	 */
+	private final int outstandingDigestLimit;
+
+	private final AtomicLong throttleCount = new AtomicLong();
+	private final AtomicLong throttleNanos = new AtomicLong();
+
+	/**
+	 * The largest record the {@link RecordPipeline} coalesces with others
+	 * into a single message, 0 if the remote did not accept coalescing.
+	 */
+	private volatile int coalescingLimit;
+
+	private final AtomicLong batchCount = new AtomicLong();
+	private final AtomicLong coalescedCount = new AtomicLong();
+
+	/**
+	 * Set once the data channel of this session has been released, after
+	 * which nothing more is sent on it.
+	 */
+	private volatile boolean released;
+
 	/**
 	 * Create a {@link PublisherSessionImpl} object.
 	 *
@@ -119,18 +256,78 @@ public class PublisherSessionImpl extends SessionImpl implements
 
 		this.publisher = publisher;
 		this.contextImpl = contextImpl;
-		this.digestMap = new HashMap<String, byte[]>();
+		this.headerTemplate = RecordHeaderTemplate.forType(recordType);
 
 		try {
-			final MessageDigest md = MessageDigest.getInstance(getDigestType(digestMethod.trim()));
-			this.md = md;
+			this.digestPool = MessageDigestPool.forAlgorithm(getDigestType(digestMethod.trim()));
+			this.md = MessageDigest.getInstance(this.digestPool.getAlgorithm());
 		} catch (final NoSuchAlgorithmException e) {
 			throw new IllegalArgumentException(
 					"'digestMethod' must be a valid DigestMethod", e);
 		}
+		this.digestLedger = new SpillingDigestLedger(this.digestPool.getDigestLength(),
+				contextImpl != null ? contextImpl.getPublisherDigestMemoryLimit() : SpillingDigestLedger.DEFAULT_MEMORY_LIMIT,
+				contextImpl != null ? contextImpl.getPublisherDigestSpillDirectory() : null);
+		this.outstandingDigestLimit = contextImpl != null
+				? contextImpl.getPublisherOutstandingDigestLimit() : 0;
+
+		final SendWindowPolicy policy = contextImpl != null
+				? contextImpl.getSendWindowPolicy() : null;
+		this.sendWindow = (policy != null ? policy : SendWindowPolicy.getDefault()).newWindow();
+		this.digestVerifyInterval = contextImpl != null
+				? contextImpl.getDigestVerifyInterval() : DEFAULT_DIGEST_VERIFY_INTERVAL;
 
 	}
 
+	/**
+	 * Stop sending on the data channel: cancel the records that are being
+	 * sent so the sending threads do not wait for room that will never
+	 * come, drop the records waiting in the {@link RecordPipeline}, and drop
+	 * the digests still waiting for the remote along with the spill file
+	 * they may have been written to. The {@link SendWindow} gives back what
+	 * it took from the budget shared with the other sessions.
+	 */
+	@Override
+	public void release() {
+		this.released = true;
+		for (final JNLOutputDataStream ods : this.activeStreams) {
+			ods.cancel();
+		}
+		final RecordPipeline pipeline;
+		synchronized (this) {
+			pipeline = this.recordPipeline;
+		}
+		if (pipeline != null) {
+			pipeline.cancel();
+		}
+		this.digestLedger.close();
+		this.sendWindow.reset();
+	}
+
+	/**
+	 * @return whether the data channel of this session has been released
+	 */
+	public boolean isReleased() {
+		return this.released;
+	}
+
+	@Override
+	public boolean isOk() {
+		return !this.released && super.isOk();
+	}
+
+	/**
+	 * Start tracking the stream of a record that is about to be sent, so it
+	 * can be cancelled. A stream created after the data channel was released
+	 * is cancelled straight away.
+	 */
+	private void track(final JNLOutputDataStream ods) {
+		this.activeStreams.add(ods);
+		if (this.released) {
+			ods.cancel();
+		}
+	}
+
 	@Override
 	public Role getRole() {
 		return Role.Publisher;
@@ -152,13 +349,31 @@ public class PublisherSessionImpl extends SessionImpl implements
 		return this.publisher;
 	}
 
+	/**
+	 * @return the sendWindow
+	 */
+	public SendWindow getSendWindow() {
+		return this.sendWindow;
+	}
+
 	/**
 	 * @return the md
+	 * @deprecated records are hashed with engines from
+	 *             {@link #getDigestPool()}, so that several records can be
+	 *             sent at once. This engine is not used by the library.
 	 */
+	@Deprecated
 	public MessageDigest getMd() {
 		return md;
 	}
 
+	/**
+	 * @return the {@link MessageDigestPool} records are hashed with
+	 */
+	public MessageDigestPool getDigestPool() {
+		return this.digestPool;
+	}
+
 	@Override
 	public void run() {
 
@@ -185,7 +400,7 @@ public class PublisherSessionImpl extends SessionImpl implements
 
 	/**
 	 * Get the locally calculated digest associated with the given nonce and
-	 * then remove it from the map.
+	 * then remove it from the ledger.
 	 *
 	 * @param nonce
 	 * 				A String which is the nonce for the calculated digest
@@ -193,11 +408,7 @@ public class PublisherSessionImpl extends SessionImpl implements
 	 * 				The local digest associated with the nonce.
 	 */
 	public byte[] fetchAndRemoveDigest(final String nonce) {
-		synchronized(this.digestMap) {
-			final byte[] localDigest = this.digestMap.get(nonce);
-			this.digestMap.remove(nonce);
-			return localDigest;
-		}
+		return this.digestLedger.take(nonce);
 	}
 
 	/**
@@ -208,121 +419,395 @@ public class PublisherSessionImpl extends SessionImpl implements
 	 * @param localDigest
 	 * 				A byte[] which is the digest calculated locally by the publisher
 	 * @throws JNLException
-	 * 				If attempting to add a nonce that already exists in the map.
+	 * 				If attempting to add a nonce that already exists in the ledger.
 	 */
 	public void addDigest(final String nonce, final byte[] localDigest)
 			throws JNLException {
-		synchronized(this.digestMap) {
-			if (this.digestMap.containsKey(nonce)) {
-				throw new JNLException(
-						"Attempting to add multiple digests for the same nonce");
+		if (!this.digestLedger.putIfAbsent(nonce, localDigest)) {
+			throw new JNLException(
+					"Attempting to add multiple digests for the same nonce");
+		}
+	}
+
+	/**
+	 * Wait while this session has as many sent records waiting for the
+	 * remote to confirm their digests as the {@link ContextImpl} allows.
+	 *
+	 * @return false if this session stopped being usable while waiting.
+	 * @throws InterruptedException
+	 *             If interrupted while waiting.
+	 */
+	boolean awaitDigestCapacity() throws InterruptedException {
+		if (this.outstandingDigestLimit <= 0) {
+			return isOk();
+		}
+		boolean throttled = false;
+		final long start = System.nanoTime();
+		try {
+			while (isOk()) {
+				if (this.digestLedger.awaitBelow(this.outstandingDigestLimit,
+						THROTTLE_POLL_MILLIS)) {
+					return true;
+				}
+				if (!throttled) {
+					throttled = true;
+					this.throttleCount.incrementAndGet();
+					if (log.isDebugEnabled()) {
+						log.debug("Waiting for the remote to confirm digests");
+					}
+				}
+			}
+			return false;
+		} finally {
+			if (throttled) {
+				this.throttleNanos.addAndGet(System.nanoTime() - start);
 			}
-			this.digestMap.put(nonce, localDigest);
 		}
 	}
 
-	public void sendRecord(final SourceRecord rec) {
-		String messageType = null;
-		String payloadLengthHeader = null;
-		switch(this.getRecordType()) {
-		case Log:
-			messageType = Utils.MSG_LOG;
-			payloadLengthHeader = Utils.HDRS_LOG_LEN;
-			break;
-		case Audit:
-			messageType = Utils.MSG_AUDIT;
-			payloadLengthHeader = Utils.HDRS_AUDIT_LEN;
-			break;
-		case Journal:
-			messageType = Utils.MSG_JOURNAL;
-			payloadLengthHeader = Utils.HDRS_JOURNAL_LEN;
-			break;
-		default:
+	/**
+	 * @return the ledger of digests waiting for the remote to confirm them
+	 */
+	public SpillingDigestLedger getDigestLedger() {
+		return this.digestLedger;
+	}
+
+	/**
+	 * @return the number of times sending was held back until the remote
+	 *         confirmed digests
+	 */
+	public long getThrottleCount() {
+		return this.throttleCount.get();
+	}
+
+	/**
+	 * @return the time, in nanoseconds, sending was held back
+	 */
+	public long getThrottleNanos() {
+		return this.throttleNanos.get();
+	}
+
+	/**
+	 * Allow small records to be coalesced into a single message. This is
+	 * only called once the remote has accepted the record coalescing
+	 * extension.
+	 *
+	 * @param limit
+	 *            The largest record, in bytes of metadata and payload, to
+	 *            coalesce, 0 sends every record in its own message.
+	 */
+	public void setCoalescingLimit(final int limit) {
+
+		if (limit < 0) {
+			throw new IllegalArgumentException("'limit' must be 0 or greater.");
+		}
+
+		this.coalescingLimit = limit;
+	}
+
+	/**
+	 * @return the coalescingLimit
+	 */
+	public int getCoalescingLimit() {
+		return this.coalescingLimit;
+	}
+
+	/**
+	 * @return the number of messages that carried coalesced records
+	 */
+	public long getBatchCount() {
+		return this.batchCount.get();
+	}
+
+	/**
+	 * @return the number of records sent in coalesced messages
+	 */
+	public long getCoalescedCount() {
+		return this.coalescedCount.get();
+	}
+
+	@Override
+	public void submitRecord(final SourceRecord rec) {
+		try {
+			getRecordPipeline().submit(rec);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
 			if (log.isEnabledFor(Level.ERROR)) {
-				log.error("Publisher session has bad record type");
+				log.error("Interrupted while waiting to submit a record");
 			}
+		}
+	}
+
+	/**
+	 * Get the {@link RecordPipeline} of this session, creating it with the
+	 * settings of the {@link ContextImpl} if necessary.
+	 *
+	 * @return the recordPipeline
+	 */
+	public synchronized RecordPipeline getRecordPipeline() {
+		if (this.recordPipeline == null) {
+			final int depth = this.contextImpl != null
+					? this.contextImpl.getPublisherPipelineDepth()
+					: RecordPipeline.DEFAULT_DEPTH;
+			final long prefetchLimit = this.contextImpl != null
+					? this.contextImpl.getPublisherPrefetchLimit()
+					: RecordPipeline.DEFAULT_PREFETCH_LIMIT;
+			final Executor executor = this.contextImpl != null
+					? this.contextImpl.getPublisherExecutor()
+					: RecordPipeline.getDefaultExecutor();
+			this.recordPipeline = new RecordPipeline(this, executor, depth,
+					prefetchLimit);
+
+			if (this.released) {
+				this.recordPipeline.cancel();
+			}
+		}
+		return this.recordPipeline;
+	}
+
+	/**
+	 * Get the digest a {@link DigestedSourceRecord} supplies, if it can be
+	 * used without hashing the record. The first record that supplies a
+	 * digest, and one in every <code>digestVerifyInterval</code> after it, is
+	 * hashed so the supplied digest can be checked by
+	 * {@link #verifyDigest(SourceRecord, byte[])}.
+	 *
+	 * @param rec
+	 *            The record about to be sent.
+	 * @return the supplied digest, or <code>null</code> if the record must
+	 *         be hashed.
+	 */
+	byte[] getTrustedDigest(final SourceRecord rec) {
+		if (!(rec instanceof DigestedSourceRecord) || this.digestMismatch) {
+			return null;
+		}
+		final byte[] supplied = ((DigestedSourceRecord) rec).getDigest(getDigestMethod());
+		if (supplied == null || supplied.length != this.digestPool.getDigestLength()) {
+			return null;
+		}
+		final long count = this.suppliedDigestCount.getAndIncrement();
+		if (this.digestVerifyInterval > 0 && count % this.digestVerifyInterval == 0) {
+			return null;
+		}
+		return supplied.clone();
+	}
+
+	/**
+	 * Compare the digest calculated for a record with the digest it
+	 * supplies, if any. After a mismatch, no supplied digest of this session
+	 * is trusted again.
+	 *
+	 * @param rec
+	 *            The record that was hashed.
+	 * @param digest
+	 *            The digest calculated by the library.
+	 */
+	void verifyDigest(final SourceRecord rec, final byte[] digest) {
+		if (!(rec instanceof DigestedSourceRecord)) {
+			return;
+		}
+		final byte[] supplied = ((DigestedSourceRecord) rec).getDigest(getDigestMethod());
+		if (supplied == null) {
 			return;
 		}
+		this.verifiedDigestCount.incrementAndGet();
+		if (!Arrays.equals(supplied, digest)) {
+			this.digestMismatchCount.incrementAndGet();
+			this.digestMismatch = true;
+			if (log.isEnabledFor(Level.ERROR)) {
+				log.error("Supplied digest of record " + rec.getNonce()
+						+ " does not match its contents, hashing every record from now on");
+			}
+		}
+	}
 
-		final MessageDigest md = getMd();
+	/**
+	 * @return the number of records that supplied a digest for the digest
+	 *         method of this session
+	 */
+	public long getSuppliedDigestCount() {
+		return this.suppliedDigestCount.get();
+	}
 
-		final String nonce = rec.getNonce();
-		long offset = rec.getOffset();
+	/**
+	 * @return the number of supplied digests checked by hashing the record
+	 */
+	public long getVerifiedDigestCount() {
+		return this.verifiedDigestCount.get();
+	}
+
+	/**
+	 * @return the number of supplied digests that did not match the record
+	 */
+	public long getDigestMismatchCount() {
+		return this.digestMismatchCount.get();
+	}
 
+	/**
+	 * Start pulling records from a {@link PullPublisher} and sending them on
+	 * this session. The records are sent on a thread of the publisher
+	 * executor of the {@link ContextImpl}, so this returns immediately.
+	 *
+	 * @param pullPublisher
+	 *            The {@link PullPublisher} to pull the records from.
+	 * @param nonce
+	 *            The nonce of the "subscribe" or "journal-resume" message.
+	 * @param resumeOffset
+	 *            The offset of the journal record to resume, or -1 for a
+	 *            "subscribe" message.
+	 * @return <code>false</code> if records are already being sent on this
+	 *         session.
+	 */
+	public boolean startSending(final PullPublisher pullPublisher,
+			final String nonce, final long resumeOffset) {
+		final PublisherSendTask task;
+		synchronized (this) {
+			if (this.sendTask != null) {
+				return false;
+			}
+			task = new PublisherSendTask(this, pullPublisher, nonce, resumeOffset);
+			this.sendTask = task;
+		}
+		final Executor executor = this.contextImpl != null
+				? this.contextImpl.getPublisherExecutor()
+				: RecordPipeline.getDefaultExecutor();
 		try {
+			executor.execute(task);
+		} catch (final RejectedExecutionException e) {
+			// the executor has been shut down, send on this thread instead
+			task.run();
+		}
+		return true;
+	}
 
-			final org.beepcore.beep.core.MimeHeaders mh = new org.beepcore.beep.core.MimeHeaders();
-			mh.setContentType(Utils.CT_JALOP);
-			mh.setHeader(Utils.HDRS_NONCE, nonce);
-			mh.setHeader(Utils.HDRS_MESSAGE, messageType);
-			mh.setHeader(payloadLengthHeader, String.valueOf(rec.getPayloadLength()));
-			mh.setHeader(Utils.HDRS_SYS_META_LEN, String.valueOf(rec.getSysMetaLength()));
-			mh.setHeader(Utils.HDRS_APP_META_LEN, String.valueOf(rec.getAppMetaLength()));
+	/**
+	 * @return the task sending the records of a {@link PullPublisher}, or
+	 *         <code>null</code> if none is running
+	 */
+	synchronized PublisherSendTask getSendTask() {
+		return this.sendTask;
+	}
 
-			final JNLOutputDataStream ods = new JNLOutputDataStream(mh, MAX_BUFFERS);
-			msg.sendANS(ods);
+	/**
+	 * Called by a {@link PublisherSendTask} once it has stopped sending.
+	 */
+	synchronized void sendTaskFinished(final PublisherSendTask task) {
+		if (this.sendTask == task) {
+			this.sendTask = null;
+		}
+	}
 
-			int bytesRead = 0;
+	public void sendRecord(final SourceRecord rec) {
+		final String nonce = rec.getNonce();
+		long offset = rec.getOffset();
 
-			final List<InputStream> inputStreamList = new ArrayList<InputStream>();
-			inputStreamList.add(rec.getSysMetadata());
-			inputStreamList.add(new ByteArrayInputStream(Utils.BREAK.getBytes("utf-8")));
-			inputStreamList.add(rec.getAppMetadata());
-			inputStreamList.add(new ByteArrayInputStream(Utils.BREAK.getBytes("utf-8")));
-			inputStreamList.add(rec.getPayload());
-			inputStreamList.add(new ByteArrayInputStream(Utils.BREAK.getBytes("utf-8")));
+		// a supplied digest covers the whole record, so nothing is hashed
+		final byte[] suppliedDigest = getTrustedDigest(rec);
+		final MessageDigest pooledMd = suppliedDigest == null ? this.digestPool.acquire() : null;
+		MessageDigest md = pooledMd;
 
-			InputStream inStream = null;
-			boolean shouldDigest = false;
+		// a checkpoint already covers the metadata and part of the payload
+		long checkpointOffset = suppliedDigest == null ? 0 : offset;
+		if (suppliedDigest == null && offset > 0 && rec instanceof CheckpointedSourceRecord) {
+			final DigestCheckpoint checkpoint = ((CheckpointedSourceRecord) rec).getDigestCheckpoint();
+			final Sha2Digest restored = restoreCheckpoint(checkpoint, md, offset);
+			if (restored != null) {
+				checkpointOffset = checkpoint.getPayloadOffset();
+				md = restored;
+			}
+		}
 
-			while(!inputStreamList.isEmpty()) {
-				byte[] buffer =  new byte[BUFFER_SIZE];
-				inStream = inputStreamList.remove(0);
-				//every other stream is a break and shouldn't be included in the digest
-				shouldDigest = !shouldDigest;
+		JNLOutputDataStream ods = null;
+		try {
 
-				if(inStream == null) {
-					continue;
-				}
+			final SegmentPool segments = getSegmentPool();
+			final int segmentSize = this.sendWindow.getSegmentSize();
+			ods = new JNLOutputDataStream(
+					this.headerTemplate.encode(nonce, rec.getSysMetaLength(),
+							rec.getAppMetaLength(), rec.getPayloadLength()),
+					this.sendWindow.getMaxBuffers(), segments);
+			track(ods);
+			msg.sendANS(ods);
 
-				// When only one is remaining, that is the final BREAK, so we are on the payload.
-				// For Journal Resume, we may have already sent part of the payload
-				if(inputStreamList.size() == 1 && shouldDigest && offset > 0) {
-					// need to digest payload up to offset but not send that part
-					int toRead;
-					while((toRead = (int) (offset > BUFFER_SIZE ? BUFFER_SIZE : offset)) > 0) {
-						bytesRead = inStream.read(buffer, 0, toRead);
-						md.update(buffer, 0, bytesRead);
-						offset -= bytesRead;
-						buffer = new byte[BUFFER_SIZE];
-					}
-				}
+			final FileSourceRecord fileRec = rec instanceof FileSourceRecord
+					? (FileSourceRecord) rec : null;
 
-				while((bytesRead = inStream.read(buffer)) > -1) {
+			final BufferSourceRecord bufRec = rec instanceof BufferSourceRecord
+					? (BufferSourceRecord) rec : null;
 
-					if(shouldDigest) {
-						md.update(buffer, 0, bytesRead);
-					}
-					// Only add a new segment if we read some bytes.
-					if (bytesRead > 0) {
-						BufferSegment b = new BufferSegment(buffer, 0, bytesRead);
-						if (b == null) {
-							log.error("Failed to create BufferSegment.");
+			// a checkpoint already covers the metadata, so it is not digested
+			final MessageDigest metadataMd = checkpointOffset == 0 ? md : null;
+			final ByteBuffer sysBuffer = bufRec != null ? bufRec.getSysMetadataBuffer() : null;
+			final FileChannel sysChannel = sysBuffer == null && fileRec != null
+					? fileRec.getSysMetadataChannel() : null;
+			if (sysBuffer != null) {
+				sendBuffer(ods, segments, sysBuffer, 0, 0, metadataMd, segmentSize);
+			} else if (sysChannel != null) {
+				sendChannel(ods, segments, sysChannel, 0, 0, metadataMd);
+			} else {
+				sendSection(ods, segments, rec.getSysMetadata(), metadataMd, segmentSize);
+			}
+			ods.add(BREAK_SEGMENT);
+			final ByteBuffer appBuffer = bufRec != null ? bufRec.getAppMetadataBuffer() : null;
+			final FileChannel appChannel = appBuffer == null && fileRec != null
+					? fileRec.getAppMetadataChannel() : null;
+			if (appBuffer != null) {
+				sendBuffer(ods, segments, appBuffer, 0, 0, metadataMd, segmentSize);
+			} else if (appChannel != null) {
+				sendChannel(ods, segments, appChannel, 0, 0, metadataMd);
+			} else {
+				sendSection(ods, segments, rec.getAppMetadata(), metadataMd, segmentSize);
+			}
+			ods.add(BREAK_SEGMENT);
+
+			final ByteBuffer payloadBuffer = bufRec != null ? bufRec.getPayloadBuffer() : null;
+			final FileChannel payloadChannel = payloadBuffer == null && fileRec != null
+					? fileRec.getPayloadChannel() : null;
+			if (payloadBuffer != null) {
+				// the part covered by a checkpoint is neither digested nor sent
+				sendBuffer(ods, segments, payloadBuffer, checkpointOffset, offset, md, segmentSize);
+			} else if (payloadChannel != null) {
+				// the part covered by a checkpoint is neither digested nor sent
+				sendChannel(ods, segments, payloadChannel, checkpointOffset, offset, md);
+			} else {
+				final InputStream payload = rec.getPayload();
+				// For Journal Resume, we may have already sent part of the payload
+				if (payload != null && offset > 0) {
+					final byte[] buffer = segments.acquire(BUFFER_SIZE);
+					try {
+						// the part covered by a checkpoint is neither digested nor sent
+						skipFully(payload, checkpointOffset, buffer);
+						offset -= checkpointOffset;
+
+						// need to digest payload up to offset but not send that part
+						int toRead;
+						while((toRead = (int) (offset > BUFFER_SIZE ? BUFFER_SIZE : offset)) > 0) {
+							final int bytesRead = payload.read(buffer, 0, toRead);
+							if (bytesRead < 0) {
+								throw new IOException("Payload is shorter than the resume offset");
+							}
+							md.update(buffer, 0, bytesRead);
+							offset -= bytesRead;
 						}
-						// Add BufferSegment to linked list for sending
-						ods.add(b);
-						buffer = new byte[BUFFER_SIZE]; 
-					}
-					else {
-						log.debug("Zero bytes read. Skipping segement add."); 
+					} finally {
+						segments.recycle(buffer);
 					}
 				}
-				inStream.close();
+				sendSection(ods, segments, payload, md, segmentSize);
 			}
+			ods.add(BREAK_SEGMENT);
+			checkCancelled(ods);
 
 			ods.setComplete();
+			updateSendWindow(ods);
 
-			final byte[] digest = md.digest();
+			final byte[] digest;
+			if (md != null) {
+				digest = md.digest();
+				verifyDigest(rec, digest);
+			} else {
+				digest = suppliedDigest;
+			}
 
 			this.addDigest(nonce, digest);
 			publisher.notifyDigest(this, nonce, digest);
@@ -351,9 +836,469 @@ public class PublisherSessionImpl extends SessionImpl implements
 				log.error("Error reading the input: " + e.getMessage());
 			}
 			sendERR(msg);
+		} finally {
+			if (ods != null) {
+				this.activeStreams.remove(ods);
+			}
+			this.digestPool.release(pooledMd);
+		}
+	}
+
+
+	/**
+	 * Send a record whose sections were already read into pooled buffers,
+	 * and whose digest was already calculated, by a {@link RecordPipeline}.
+	 *
+	 * @param rec
+	 *            The record.
+	 * @param segments
+	 *            The sections of the record, each followed by
+	 *            {@link #BREAK_SEGMENT}. Every other segment holds a whole
+	 *            {@link BufferPool} buffer, which is returned to the pool.
+	 * @param digest
+	 *            The digest of the record.
+	 */
+	void sendPrefetched(final SourceRecord rec,
+			final List<BufferSegment> segments, final byte[] digest) {
+		final String nonce = rec.getNonce();
+		final SegmentPool pool = getSegmentPool();
+		int sent = 0;
+		JNLOutputDataStream ods = null;
+		try {
+			ods = new JNLOutputDataStream(
+					this.headerTemplate.encode(nonce, rec.getSysMetaLength(),
+							rec.getAppMetaLength(), rec.getPayloadLength()),
+					this.sendWindow.getMaxBuffers(), pool);
+			track(ods);
+			msg.sendANS(ods);
+
+			for (; sent < segments.size() && !ods.isCancelled(); sent++) {
+				final BufferSegment seg = segments.get(sent);
+				if (seg == BREAK_SEGMENT) {
+					ods.add(seg);
+				} else {
+					ods.addPooled(seg.getData(), seg.getLength());
+				}
+			}
+			if (ods.isCancelled()) {
+				if (log.isEnabledFor(Level.ERROR)) {
+					log.error("The record was cancelled");
+				}
+				sendERR(msg);
+				return;
+			}
+			ods.setComplete();
+			updateSendWindow(ods);
+			// the buffers were not taken from the segment pool, so nothing
+			// else returns them once they have been sent
+			pool.reclaim();
+
+			this.addDigest(nonce, digest);
+			publisher.notifyDigest(this, nonce, digest);
+		} catch (final BEEPException e) {
+			if (log.isEnabledFor(Level.ERROR)) {
+				log.error("Error receiving message: " + e.getMessage());
+			}
+			sendERR(msg);
+		} catch (final JNLException e) {
+			if (log.isEnabledFor(Level.ERROR)) {
+				log.error("Error getting the PublisherSession: " + e.getMessage());
+			}
+			sendERR(msg);
+		} finally {
+			if (ods != null) {
+				this.activeStreams.remove(ods);
+			}
+			for (; sent < segments.size(); sent++) {
+				final BufferSegment seg = segments.get(sent);
+				if (seg != BREAK_SEGMENT) {
+					pool.recycle(seg.getData());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Send several records that were read ahead by a {@link RecordPipeline}
+	 * in a single 'record-batch' message (see {@link RecordBatch}). Each
+	 * record must be coalescable according to
+	 * {@link RecordBatch#isCoalescable(com.tresys.jalop.jnl.RecordInfo, long)}.
+	 *
+	 * @param recs
+	 *            The records.
+	 * @param segments
+	 *            The sections of each record, as for
+	 *            {@link #sendPrefetched(SourceRecord, List, byte[])}. The
+	 *            BREAK segments are not sent.
+	 * @param digests
+	 *            The digest of each record.
+	 */
+	void sendCoalesced(final List<SourceRecord> recs,
+			final List<List<BufferSegment>> segments, final List<byte[]> digests) {
+		final SegmentPool pool = getSegmentPool();
+		int rec = 0;
+		int sent = 0;
+		JNLOutputDataStream ods = null;
+		try {
+			ods = new JNLOutputDataStream(RecordBatch.encodeHeaders(recs.size()),
+					this.sendWindow.getMaxBuffers(), pool);
+			track(ods);
+			msg.sendANS(ods);
+			ods.add(RecordBatch.encodeTable(recs));
+
+			while (rec < recs.size() && !ods.isCancelled()) {
+				final List<BufferSegment> recSegments = segments.get(rec);
+				for (; sent < recSegments.size() && !ods.isCancelled(); sent++) {
+					final BufferSegment seg = recSegments.get(sent);
+					if (seg != BREAK_SEGMENT) {
+						ods.addPooled(seg.getData(), seg.getLength());
+					}
+				}
+				if (sent == recSegments.size()) {
+					rec++;
+					sent = 0;
+				}
+			}
+			if (ods.isCancelled()) {
+				if (log.isEnabledFor(Level.ERROR)) {
+					log.error("The record batch was cancelled");
+				}
+				sendERR(msg);
+				return;
+			}
+			ods.setComplete();
+			updateSendWindow(ods);
+			// the buffers were not taken from the segment pool, so nothing
+			// else returns them once they have been sent
+			pool.reclaim();
+			this.batchCount.incrementAndGet();
+			this.coalescedCount.addAndGet(recs.size());
+
+			for (int i = 0; i < recs.size(); i++) {
+				final String nonce = recs.get(i).getNonce();
+				this.addDigest(nonce, digests.get(i));
+				publisher.notifyDigest(this, nonce, digests.get(i));
+			}
+		} catch (final BEEPException e) {
+			if (log.isEnabledFor(Level.ERROR)) {
+				log.error("Error receiving message: " + e.getMessage());
+			}
+			sendERR(msg);
+		} catch (final JNLException e) {
+			if (log.isEnabledFor(Level.ERROR)) {
+				log.error("Error getting the PublisherSession: " + e.getMessage());
+			}
+			sendERR(msg);
+		} finally {
+			if (ods != null) {
+				this.activeStreams.remove(ods);
+			}
+			for (; rec < segments.size(); rec++, sent = 0) {
+				final List<BufferSegment> recSegments = segments.get(rec);
+				for (; sent < recSegments.size(); sent++) {
+					final BufferSegment seg = recSegments.get(sent);
+					if (seg != BREAK_SEGMENT) {
+						pool.recycle(seg.getData());
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Create a digest that continues from a checkpoint supplied by the
+	 * {@link Publisher}, if the checkpoint can be used to resume from
+	 * <code>offset</code>.
+	 *
+	 * @return the restored digest, or <code>null</code> if the checkpoint
+	 *         cannot be used.
+	 */
+	private Sha2Digest restoreCheckpoint(final DigestCheckpoint checkpoint,
+			final MessageDigest md, final long offset) {
+		if (checkpoint == null
+				|| !checkpoint.getAlgorithm().equals(md.getAlgorithm())
+				|| checkpoint.getPayloadOffset() <= 0
+				|| checkpoint.getPayloadOffset() > offset) {
+			return null;
+		}
+		try {
+			return Sha2Digest.fromCheckpoint(checkpoint);
+		} catch (final NoSuchAlgorithmException e) {
+			return null;
+		} catch (final IllegalArgumentException e) {
+			if (log.isEnabledFor(Level.WARN)) {
+				log.warn("Ignoring digest checkpoint: " + e.getMessage());
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Send the rest of a section of a record, reading it into pooled
+	 * buffers.
+	 *
+	 * @param ods
+	 *            The {@link JNLOutputDataStream} to send on.
+	 * @param segments
+	 *            The {@link SegmentPool} of <code>ods</code>.
+	 * @param in
+	 *            The section, may be <code>null</code>. It is closed once
+	 *            it has been sent.
+	 * @param md
+	 *            The {@link MessageDigest} to update, or <code>null</code>.
+	 * @param segmentSize
+	 *            The size of the segments to send.
+	 * @throws IOException
+	 *             If reading the section fails.
+	 */
+	private static void sendSection(final JNLOutputDataStream ods,
+			final SegmentPool segments, final InputStream in,
+			final MessageDigest md, final int segmentSize) throws IOException {
+		if (in == null) {
+			return;
+		}
+		try {
+			while (true) {
+				final byte[] buffer = segments.acquire(segmentSize);
+				final int bytesRead = in.read(buffer, 0, segmentSize);
+				if (bytesRead <= 0) {
+					segments.recycle(buffer);
+					if (bytesRead < 0) {
+						return;
+					}
+					log.debug("Zero bytes read. Skipping segement add.");
+					continue;
+				}
+				if (md != null) {
+					md.update(buffer, 0, bytesRead);
+				}
+				ods.addPooled(buffer, bytesRead);
+				checkCancelled(ods);
+			}
+		} finally {
+			in.close();
 		}
+	}
+
+	/**
+	 * Send a section of a record that is kept in a file. Sections of at least
+	 * {@link #MAP_THRESHOLD} bytes are memory mapped, smaller ones are read
+	 * with positional reads. Since beepcore only sends byte arrays, the
+	 * bytes that are sent are copied once into pooled buffers; the bytes
+	 * that are only digested are hashed straight from the mapping.
+	 *
+	 * @param ods
+	 *            The {@link JNLOutputDataStream} to send on.
+	 * @param segments
+	 *            The {@link SegmentPool} of <code>ods</code>.
+	 * @param ch
+	 *            The {@link FileChannel} of the section. It is closed once
+	 *            the section has been sent.
+	 * @param start
+	 *            The position to start digesting at.
+	 * @param offset
+	 *            The position to start sending at, which must not be less
+	 *            than <code>start</code>.
+	 * @param md
+	 *            The {@link MessageDigest} to update, or <code>null</code>.
+	 * @throws IOException
+	 *             If reading the file fails, or the file is shorter than
+	 *             <code>offset</code>.
+	 */
+	static void sendChannel(final JNLOutputDataStream ods,
+			final SegmentPool segments, final FileChannel ch, final long start,
+			final long offset, final MessageDigest md) throws IOException {
+		try {
+			final long end = ch.size();
+			if (offset > end) {
+				throw new IOException("Payload is shorter than the resume offset");
+			}
+			if (md != null) {
+				readChannel(ch, start, offset, md, null, segments);
+			}
+			readChannel(ch, offset, end, md, ods, segments);
+		} finally {
+			ch.close();
+		}
+	}
+
+	/**
+	 * Send a section of a record that is held in memory. When the buffer has
+	 * an accessible backing array, the array is wrapped in segments and
+	 * digested in place, so the section is not copied. Any other buffer, such
+	 * as a direct one, is digested in place with
+	 * {@link MessageDigest#update(ByteBuffer)} and then copied once into
+	 * pooled buffers.
+	 *
+	 * @param ods
+	 *            The {@link JNLOutputDataStream} to send on.
+	 * @param segments
+	 *            The {@link SegmentPool} of <code>ods</code>.
+	 * @param buf
+	 *            The section, between its position and its limit. Neither is
+	 *            changed.
+	 * @param start
+	 *            The position, relative to that of <code>buf</code>, to start
+	 *            digesting at.
+	 * @param offset
+	 *            The position, relative to that of <code>buf</code>, to start
+	 *            sending at, which must not be less than <code>start</code>.
+	 * @param md
+	 *            The {@link MessageDigest} to update, or <code>null</code>.
+	 * @param segmentSize
+	 *            The size of the segments to send.
+	 * @throws IOException
+	 *             If the section is shorter than <code>offset</code>.
+	 */
+	static void sendBuffer(final JNLOutputDataStream ods,
+			final SegmentPool segments, final ByteBuffer buf, final long start,
+			final long offset, final MessageDigest md, final int segmentSize)
+			throws IOException {
+		if (offset > buf.remaining()) {
+			throw new IOException("Payload is shorter than the resume offset");
+		}
+		final ByteBuffer section = buf.duplicate();
+		final int base = section.position();
+		final int end = section.limit();
+		if (md != null && offset > start) {
+			section.position(base + (int) start);
+			section.limit(base + (int) offset);
+			md.update(section);
+			section.limit(end);
+		}
+
+		int pos = base + (int) offset;
+		while (pos < end) {
+			final int n = Math.min(end - pos, segmentSize);
+			if (section.hasArray()) {
+				final byte[] data = section.array();
+				final int off = section.arrayOffset() + pos;
+				if (md != null) {
+					md.update(data, off, n);
+				}
+				ods.add(new BufferSegment(data, off, n));
+			} else {
+				final byte[] copy = segments.acquire(n);
+				section.limit(pos + n);
+				if (md != null) {
+					section.position(pos);
+					md.update(section);
+				}
+				section.position(pos);
+				section.get(copy, 0, n);
+				section.limit(end);
+				ods.addPooled(copy, n);
+			}
+			checkCancelled(ods);
+			pos += n;
+		}
+	}
+
+	/**
+	 * Digest, and if <code>ods</code> is not <code>null</code> send, the
+	 * bytes of <code>ch</code> between <code>pos</code> and <code>end</code>.
+	 */
+	private static void readChannel(final FileChannel ch, long pos,
+			final long end, final MessageDigest md,
+			final JNLOutputDataStream ods, final SegmentPool segments)
+			throws IOException {
+		if (end - pos >= MAP_THRESHOLD) {
+			while (pos < end) {
+				final long len = Math.min(end - pos, MAP_WINDOW);
+				final MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, pos, len);
+				if (ods == null) {
+					md.update(map);
+				} else {
+					while (map.hasRemaining()) {
+						final int n = Math.min(map.remaining(), CHANNEL_BUFFER_SIZE);
+						final byte[] buf = segments.acquire(n);
+						map.get(buf, 0, n);
+						if (md != null) {
+							md.update(buf, 0, n);
+						}
+						ods.addPooled(buf, n);
+						checkCancelled(ods);
+					}
+				}
+				pos += len;
+			}
+			return;
+		}
+
+		while (pos < end) {
+			final int n = (int) Math.min(end - pos, CHANNEL_BUFFER_SIZE);
+			final byte[] buf = segments.acquire(n);
+			final ByteBuffer bb = ByteBuffer.wrap(buf, 0, n);
+			while (bb.hasRemaining()) {
+				if (ch.read(bb, pos + bb.position()) < 0) {
+					segments.recycle(buf);
+					throw new IOException("File was truncated while it was being sent");
+				}
+			}
+			if (md != null) {
+				md.update(buf, 0, n);
+			}
+			if (ods != null) {
+				ods.addPooled(buf, n);
+				checkCancelled(ods);
+			} else {
+				segments.recycle(buf);
+			}
+			pos += n;
+		}
+	}
+
+	/**
+	 * Stop reading a record whose stream was cancelled.
+	 */
+	private static void checkCancelled(final JNLOutputDataStream ods)
+			throws IOException {
+		if (ods.isCancelled()) {
+			throw new IOException("The record was cancelled");
+		}
+	}
+
+	/**
+	 * Adapt the {@link SendWindow} to how a stream that was sent in full was
+	 * drained.
+	 */
+	private void updateSendWindow(final JNLOutputDataStream ods) {
+		this.sendWindow.updateRoundTrip(ods.getStallNanos());
+		this.sendWindow.update(ods.getBytesSent(), ods.getSendNanos(),
+				ods.getUnderrunCount() > 0);
+	}
+
+	/**
+	 * Get the {@link SegmentPool} for the channel records are currently
+	 * sent on.
+	 */
+	private synchronized SegmentPool getSegmentPool() {
+		final Object channel = this.msg.getChannel();
+		if (this.segmentPool == null || this.segmentPool.getSendLock() != channel) {
+			this.segmentPool = new SegmentPool(BufferPool.getDefault(), channel);
+		}
+		return this.segmentPool;
+	}
+
+	/**
+	 * Skip exactly <code>n</code> bytes of <code>is</code>.
+	 */
+	private static void skipFully(final InputStream is, long n, final byte[] buffer)
+			throws IOException {
+		while (n > 0) {
+			long skipped = is.skip(n);
+			if (skipped <= 0) {
+				// skip may not be able to tell the end of the stream apart
+				// from a stream that cannot skip
+				skipped = is.read(buffer, 0, (int) Math.min(n, buffer.length));
+				if (skipped < 0) {
+					throw new IOException("Payload is shorter than the digest checkpoint");
+				}
+			}
+			n -= skipped;
+		}
+	}
 
-	} 
 	public void sendERR(final MessageMSG message) {
 		try {
 			message.sendERR(new BEEPError(BEEPError.CODE_REQUESTED_ACTION_ABORTED));
@@ -365,6 +1310,23 @@ public class PublisherSessionImpl extends SessionImpl implements
 	}
 
 	public void complete() {
+		final RecordPipeline pipeline;
+		synchronized (this) {
+			pipeline = this.recordPipeline;
+		}
+		if (pipeline != null) {
+			try {
+				pipeline.flush();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				if (log.isEnabledFor(Level.ERROR)) {
+					log.error("Interrupted while waiting for records to be sent");
+				}
+				return;
+			}
+		}
+		// the window grows again with the next subscription
+		this.sendWindow.reset();
 		try {
 			msg.sendNUL();
 		} catch (final BEEPException e) {
@@ -0,0 +1,659 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl.impl.publisher;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.beepcore.beep.util.BufferSegment;
+
+import com.tresys.jalop.jnl.BufferSourceRecord;
+import com.tresys.jalop.jnl.PublisherSession;
+import com.tresys.jalop.jnl.SourceRecord;
+import com.tresys.jalop.jnl.impl.BufferPool;
+import com.tresys.jalop.jnl.impl.MessageDigestPool;
+import com.tresys.jalop.jnl.impl.messages.RecordBatch;
+
+/**
+ * Sends the records given to a {@link PublisherSession} through three
+ * stages, so that reading a record from disk and calculating its digest
+ * overlap with sending the records before it:
+ * <ol>
+ * <li>the prefetch stage reads the sections of a record into pooled
+ * buffers,</li>
+ * <li>the hash stage calculates the digest of the prefetched record, unless
+ * the record supplies one that can be trusted,</li>
+ * <li>the send stage hands the record to the BEEP channel.</li>
+ * </ol>
+ * Every stage handles one record at a time, in the order the records were
+ * submitted. At most <code>depth</code> records are in the pipeline at once;
+ * {@link #submit(SourceRecord)} blocks while it is full.
+ * <p>
+ * Records that are larger than the prefetch limit, journal records that are
+ * resumed from an offset, and {@link BufferSourceRecord}s, which are already
+ * in memory, are not read ahead. They pass through the first two stages
+ * untouched and are sent by the send stage with
+ * {@link PublisherSessionImpl#sendRecord(SourceRecord)}.
+ * <p>
+ * When the session coalesces records, the send stage sends a small
+ * prefetched record together with the small records that are already
+ * waiting behind it as a single record-batch message. It never waits for
+ * more records to arrive.
+ */
+public final class RecordPipeline {
+
+	/**
+	 * The default maximum number of records in the pipeline.
+	 */
+	public static final int DEFAULT_DEPTH = 8;
+
+	/**
+	 * The default size, in bytes, of the largest record that is read ahead.
+	 */
+	public static final long DEFAULT_PREFETCH_LIMIT = 1024 * 1024;
+
+	static Logger log = Logger.getLogger(RecordPipeline.class);
+
+	private static ExecutorService defaultExecutor;
+
+	private final PublisherSessionImpl session;
+	private final MessageDigestPool digestPool;
+	private final BufferPool pool;
+	private final int depth;
+	private final long prefetchLimit;
+
+	private final Stage prefetchStage;
+	private final Stage hashStage;
+	private final Stage sendStage;
+
+	private int inFlight;
+	private long submitWaitCount;
+	private volatile boolean cancelled;
+
+	/**
+	 * Create a new {@link RecordPipeline}.
+	 *
+	 * @param session
+	 *            The {@link PublisherSessionImpl} to send the records on.
+	 * @param executor
+	 *            The {@link Executor} to run the stages on. Each stage
+	 *            occupies at most one thread, and only while it has work.
+	 * @param depth
+	 *            The maximum number of records in the pipeline.
+	 * @param prefetchLimit
+	 *            The size, in bytes, of the largest record that is read
+	 *            ahead. A value of 0 disables reading ahead.
+	 */
+	public RecordPipeline(final PublisherSessionImpl session,
+			final Executor executor, final int depth, final long prefetchLimit) {
+
+		if (session == null) {
+			throw new IllegalArgumentException("'session' cannot be null.");
+		}
+
+		if (executor == null) {
+			throw new IllegalArgumentException("'executor' cannot be null.");
+		}
+
+		if (depth <= 0) {
+			throw new IllegalArgumentException("'depth' must be a positive number.");
+		}
+
+		if (prefetchLimit < 0) {
+			throw new IllegalArgumentException("'prefetchLimit' must be 0 or greater.");
+		}
+
+		this.session = session;
+		this.digestPool = session.getDigestPool();
+		this.pool = BufferPool.getDefault();
+		this.depth = depth;
+		this.prefetchLimit = prefetchLimit;
+
+		this.sendStage = new Stage("send", executor, null) {
+			@Override
+			void process(final Entry entry) {
+				send(entry);
+			}
+
+			@Override
+			void done(final Entry entry) {
+				finished();
+			}
+		};
+		this.hashStage = new Stage("hash", executor, this.sendStage) {
+			@Override
+			void process(final Entry entry) {
+				hash(entry);
+			}
+		};
+		this.prefetchStage = new Stage("prefetch", executor, this.hashStage) {
+			@Override
+			void process(final Entry entry) {
+				prefetch(entry);
+			}
+		};
+	}
+
+	/**
+	 * Get the {@link Executor} that is used by pipelines which were not given
+	 * one. It is created on first use and starts daemon threads as needed.
+	 *
+	 * @return the shared {@link Executor}
+	 */
+	public static synchronized Executor getDefaultExecutor() {
+		if (defaultExecutor == null) {
+			defaultExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(final Runnable r) {
+					final Thread t = new Thread(r, "jnl-publish-" + this.count.getAndIncrement());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return defaultExecutor;
+	}
+
+	/**
+	 * Add a record to the pipeline, waiting for room if <code>depth</code>
+	 * records are already in it.
+	 *
+	 * @param rec
+	 *            The record to send.
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for room in the pipeline.
+	 */
+	public void submit(final SourceRecord rec) throws InterruptedException {
+		if (rec == null) {
+			throw new IllegalArgumentException("'rec' cannot be null.");
+		}
+		synchronized (this) {
+			if (this.inFlight >= this.depth && !this.cancelled) {
+				this.submitWaitCount++;
+				while (this.inFlight >= this.depth && !this.cancelled) {
+					this.wait();
+				}
+			}
+			if (this.cancelled) {
+				return;
+			}
+			this.inFlight++;
+		}
+		this.prefetchStage.enqueue(new Entry(rec));
+	}
+
+	/**
+	 * Wait until every submitted record has been sent.
+	 *
+	 * @throws InterruptedException
+	 *             If interrupted while waiting.
+	 */
+	public synchronized void flush() throws InterruptedException {
+		while (this.inFlight > 0) {
+			this.wait();
+		}
+	}
+
+	/**
+	 * Stop sending. Records submitted from now on are dropped, and the
+	 * records already in the pipeline pass through the remaining stages
+	 * without being read, hashed or sent.
+	 */
+	public synchronized void cancel() {
+		this.cancelled = true;
+		this.notifyAll();
+	}
+
+	/**
+	 * @return whether the pipeline was cancelled
+	 */
+	public boolean isCancelled() {
+		return this.cancelled;
+	}
+
+	/**
+	 * @return the maximum number of records in the pipeline
+	 */
+	public int getDepth() {
+		return this.depth;
+	}
+
+	/**
+	 * @return the size, in bytes, of the largest record that is read ahead
+	 */
+	public long getPrefetchLimit() {
+		return this.prefetchLimit;
+	}
+
+	/**
+	 * @return the number of records that have been submitted and not yet
+	 *         sent
+	 */
+	public synchronized int getInFlight() {
+		return this.inFlight;
+	}
+
+	/**
+	 * @return the number of times {@link #submit(SourceRecord)} had to wait
+	 *         for room in the pipeline
+	 */
+	public synchronized long getSubmitWaitCount() {
+		return this.submitWaitCount;
+	}
+
+	/**
+	 * @return the stage that reads records ahead
+	 */
+	public Stage getPrefetchStage() {
+		return this.prefetchStage;
+	}
+
+	/**
+	 * @return the stage that calculates digests
+	 */
+	public Stage getHashStage() {
+		return this.hashStage;
+	}
+
+	/**
+	 * @return the stage that sends records
+	 */
+	public Stage getSendStage() {
+		return this.sendStage;
+	}
+
+	private void prefetch(final Entry entry) {
+		final SourceRecord rec = entry.rec;
+		if (this.cancelled || rec instanceof BufferSourceRecord
+				|| rec.getOffset() > 0 || rec.getSysMetaLength() < 0
+				|| rec.getAppMetaLength() < 0 || rec.getPayloadLength() < 0
+				|| rec.getSysMetaLength() + rec.getAppMetaLength()
+						+ rec.getPayloadLength() > this.prefetchLimit) {
+			return;
+		}
+
+		final int segmentSize = this.session.getSendWindow().getSegmentSize();
+		final List<BufferSegment> segments = new ArrayList<BufferSegment>();
+		try {
+			readSection(rec.getSysMetadata(), segments, segmentSize);
+			segments.add(PublisherSessionImpl.BREAK_SEGMENT);
+			readSection(rec.getAppMetadata(), segments, segmentSize);
+			segments.add(PublisherSessionImpl.BREAK_SEGMENT);
+			readSection(rec.getPayload(), segments, segmentSize);
+			segments.add(PublisherSessionImpl.BREAK_SEGMENT);
+			entry.segments = segments;
+		} catch (final IOException e) {
+			release(segments);
+			entry.failure = e;
+		} catch (final RuntimeException e) {
+			release(segments);
+			entry.failure = e;
+		}
+	}
+
+	private void readSection(final InputStream in,
+			final List<BufferSegment> segments, final int segmentSize)
+			throws IOException {
+		if (in == null) {
+			return;
+		}
+		try {
+			while (true) {
+				final byte[] buffer = this.pool.acquire(segmentSize);
+				final int bytesRead = in.read(buffer, 0, segmentSize);
+				if (bytesRead <= 0) {
+					this.pool.release(buffer);
+					if (bytesRead < 0) {
+						return;
+					}
+					continue;
+				}
+				segments.add(new BufferSegment(buffer, 0, bytesRead));
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private void hash(final Entry entry) {
+		if (entry.segments == null) {
+			return;
+		}
+		if (this.cancelled) {
+			release(entry.segments);
+			entry.segments = null;
+			return;
+		}
+		try {
+			final byte[] supplied = this.session.getTrustedDigest(entry.rec);
+			if (supplied != null) {
+				entry.digest = supplied;
+				return;
+			}
+			// an engine is only held while a record is hashed
+			final MessageDigest md = this.digestPool.acquire();
+			try {
+				for (final BufferSegment seg : entry.segments) {
+					if (seg != PublisherSessionImpl.BREAK_SEGMENT) {
+						md.update(seg.getData(), seg.getOffset(), seg.getLength());
+					}
+				}
+				entry.digest = md.digest();
+			} finally {
+				this.digestPool.release(md);
+			}
+			this.session.verifyDigest(entry.rec, entry.digest);
+		} catch (final RuntimeException e) {
+			release(entry.segments);
+			entry.segments = null;
+			entry.failure = e;
+		}
+	}
+
+	private void send(final Entry entry) {
+		if (this.cancelled) {
+			if (entry.segments != null) {
+				release(entry.segments);
+			}
+		} else if (entry.failure != null) {
+			if (log.isEnabledFor(Level.ERROR)) {
+				log.error("Error reading the input: " + entry.failure.getMessage());
+			}
+			this.session.sendERR(this.session.msg);
+		} else if (entry.segments == null) {
+			this.session.sendRecord(entry.rec);
+		} else if (!coalesce(entry)) {
+			this.session.sendPrefetched(entry.rec, entry.segments, entry.digest);
+		}
+	}
+
+	/**
+	 * Send a record together with the small records already waiting behind
+	 * it, if the session coalesces records.
+	 *
+	 * @return <code>false</code> if the record still has to be sent on its
+	 *         own.
+	 */
+	private boolean coalesce(final Entry entry) {
+		final int limit = this.session.getCoalescingLimit();
+		if (limit <= 0 || !isCoalescable(entry, limit)) {
+			return false;
+		}
+
+		// only the send stage takes entries from its queue, so the entry
+		// that was looked at is the one that is taken
+		final List<Entry> batch = new ArrayList<Entry>();
+		batch.add(entry);
+		long size = size(entry.rec);
+		Entry next;
+		while (batch.size() < RecordBatch.MAX_RECORDS
+				&& (next = this.sendStage.peek()) != null
+				&& isCoalescable(next, limit)
+				&& size + size(next.rec) <= RecordBatch.MAX_BATCH_SIZE) {
+			batch.add(this.sendStage.take());
+			size += size(next.rec);
+		}
+		if (batch.size() == 1) {
+			return false;
+		}
+
+		final List<SourceRecord> recs = new ArrayList<SourceRecord>(batch.size());
+		final List<List<BufferSegment>> segments = new ArrayList<List<BufferSegment>>(batch.size());
+		final List<byte[]> digests = new ArrayList<byte[]>(batch.size());
+		for (final Entry e : batch) {
+			recs.add(e.rec);
+			segments.add(e.segments);
+			digests.add(e.digest);
+		}
+		try {
+			this.session.sendCoalesced(recs, segments, digests);
+		} finally {
+			// the first entry is finished by the stage itself
+			for (int i = 1; i < batch.size(); i++) {
+				this.sendStage.taken(batch.get(i));
+			}
+		}
+		return true;
+	}
+
+	private static boolean isCoalescable(final Entry entry, final int limit) {
+		return entry.failure == null && entry.segments != null
+				&& entry.digest != null
+				&& RecordBatch.isCoalescable(entry.rec, limit);
+	}
+
+	private static long size(final SourceRecord rec) {
+		return rec.getSysMetaLength() + rec.getAppMetaLength()
+				+ rec.getPayloadLength();
+	}
+
+	private synchronized void finished() {
+		this.inFlight--;
+		this.notifyAll();
+	}
+
+	private void release(final List<BufferSegment> segments) {
+		for (final BufferSegment seg : segments) {
+			if (seg != PublisherSessionImpl.BREAK_SEGMENT) {
+				this.pool.release(seg.getData());
+			}
+		}
+	}
+
+	/**
+	 * A record on its way through the pipeline.
+	 */
+	private static final class Entry {
+
+		private final SourceRecord rec;
+
+		/**
+		 * The prefetched sections of the record, separated by BREAK
+		 * segments, or <code>null</code> if the record is not read ahead.
+		 */
+		private List<BufferSegment> segments;
+		private byte[] digest;
+		private Exception failure;
+
+		Entry(final SourceRecord rec) {
+			this.rec = rec;
+		}
+	}
+
+	/**
+	 * A single stage of the pipeline and its queue. The stage runs on the
+	 * executor only while its queue is not empty.
+	 */
+	public abstract static class Stage {
+
+		private final String name;
+		private final Executor executor;
+		private final Stage next;
+		private final ArrayDeque<Entry> queue;
+
+		private boolean running;
+		private int peakQueueDepth;
+		private long processedCount;
+		private long busyNanos;
+
+		private final Runnable drain = new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		};
+
+		Stage(final String name, final Executor executor, final Stage next) {
+			this.name = name;
+			this.executor = executor;
+			this.next = next;
+			this.queue = new ArrayDeque<Entry>();
+		}
+
+		abstract void process(Entry entry);
+
+		/**
+		 * Called once a record has left the last stage.
+		 */
+		void done(final Entry entry) {
+			// only the last stage needs to know
+		}
+
+		void enqueue(final Entry entry) {
+			synchronized (this) {
+				this.queue.addLast(entry);
+				if (this.queue.size() > this.peakQueueDepth) {
+					this.peakQueueDepth = this.queue.size();
+				}
+				if (this.running) {
+					return;
+				}
+				this.running = true;
+			}
+			try {
+				this.executor.execute(this.drain);
+			} catch (final RejectedExecutionException e) {
+				// the executor has been shut down, run the stage on this thread instead
+				drain();
+			}
+		}
+
+		/**
+		 * @return the next record waiting for this stage, which is left in
+		 *         the queue, or <code>null</code>.
+		 */
+		synchronized Entry peek() {
+			return this.queue.peekFirst();
+		}
+
+		/**
+		 * Take the next record waiting for this stage out of the queue, so it
+		 * can be handled together with the one being processed. Once it has
+		 * been handled, {@link #taken(Entry)} must be called.
+		 *
+		 * @return the record, or <code>null</code>.
+		 */
+		synchronized Entry take() {
+			return this.queue.pollFirst();
+		}
+
+		/**
+		 * Pass on a record returned by {@link #take()} once it has been
+		 * handled.
+		 */
+		void taken(final Entry entry) {
+			synchronized (this) {
+				this.processedCount++;
+			}
+			if (this.next != null) {
+				this.next.enqueue(entry);
+			} else {
+				done(entry);
+			}
+		}
+
+		private void drain() {
+			while (true) {
+				final Entry entry;
+				synchronized (this) {
+					entry = this.queue.pollFirst();
+					if (entry == null) {
+						this.running = false;
+						return;
+					}
+				}
+
+				final long start = System.nanoTime();
+				try {
+					process(entry);
+				} catch (final RuntimeException e) {
+					if (log.isEnabledFor(Level.ERROR)) {
+						log.error("Error in the " + this.name + " stage: " + e.getMessage());
+					}
+				}
+				synchronized (this) {
+					this.processedCount++;
+					this.busyNanos += System.nanoTime() - start;
+				}
+
+				if (this.next != null) {
+					this.next.enqueue(entry);
+				} else {
+					done(entry);
+				}
+			}
+		}
+
+		/**
+		 * @return the name of the stage
+		 */
+		public String getName() {
+			return this.name;
+		}
+
+		/**
+		 * @return the number of records waiting for this stage
+		 */
+		public synchronized int getQueueDepth() {
+			return this.queue.size();
+		}
+
+		/**
+		 * @return the largest number of records that have waited for this
+		 *         stage at once
+		 */
+		public synchronized int getPeakQueueDepth() {
+			return this.peakQueueDepth;
+		}
+
+		/**
+		 * @return the number of records this stage has handled
+		 */
+		public synchronized long getProcessedCount() {
+			return this.processedCount;
+		}
+
+		/**
+		 * @return the time, in nanoseconds, this stage has spent handling
+		 *         records
+		 */
+		public synchronized long getBusyNanos() {
+			return this.busyNanos;
+		}
+	}
+}
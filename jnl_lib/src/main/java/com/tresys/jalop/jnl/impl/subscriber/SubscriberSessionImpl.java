@@ -28,8 +28,6 @@ import java.io.InputStream;
 import java.net.InetAddress;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
-import java.util.Map;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -39,14 +37,23 @@ import org.beepcore.beep.core.Channel;
 import org.beepcore.beep.core.OutputDataStream;
 import org.beepcore.beep.core.ReplyListener;
 
+import com.tresys.jalop.jnl.DigestCheckpoint;
 import com.tresys.jalop.jnl.Mode;
 import com.tresys.jalop.jnl.RecordType;
 import com.tresys.jalop.jnl.Role;
 import com.tresys.jalop.jnl.Session;
 import com.tresys.jalop.jnl.Subscriber;
 import com.tresys.jalop.jnl.SubscriberSession;
+import com.tresys.jalop.jnl.impl.BufferPool;
+import com.tresys.jalop.jnl.impl.DigestBatchPolicy.FlushReason;
+import com.tresys.jalop.jnl.impl.DigestBatcher;
+import com.tresys.jalop.jnl.impl.DigestLedger;
 import com.tresys.jalop.jnl.impl.DigestListener;
+import com.tresys.jalop.jnl.impl.ReceiveWindow;
+import com.tresys.jalop.jnl.impl.RecordDispatcher;
+import com.tresys.jalop.jnl.impl.SegmentPool;
 import com.tresys.jalop.jnl.impl.SessionImpl;
+import com.tresys.jalop.jnl.impl.Sha2Digest;
 import com.tresys.jalop.jnl.impl.SubscriberANSHandler;
 import com.tresys.jalop.jnl.impl.messages.Utils;
 
@@ -65,10 +72,14 @@ public class SubscriberSessionImpl extends SessionImpl implements
 	protected ReplyListener listener;
 	protected volatile int pendingDigestTimeoutSeconds;
 	protected volatile int pendingDigestMax;
-	protected Map<String, String> digestMap;
+	protected DigestLedger digestLedger;
 	private long journalResumeOffset;
 	private InputStream journalResumeIS;
+	private DigestCheckpoint journalResumeCheckpoint;
 	private Mode mode = Mode.Unset;
+	private volatile ReceiveWindow receiveWindow;
+	private volatile boolean syncBatching;
+	private volatile DigestBatcher digestBatcher;
 
 	/**
 	 * Create a {@link SubscriberSessionImpl} object.
@@ -94,6 +105,40 @@ public class SubscriberSessionImpl extends SessionImpl implements
 			final String digestMethod, final String xmlEncoding,
 			final int pendingDigestTimeoutSeconds, final int pendingDigestMax,
 			final int channelNum, final org.beepcore.beep.core.Session session) {
+		this(remoteAddress, recordType, subscriber, digestMethod, xmlEncoding,
+				pendingDigestTimeoutSeconds, pendingDigestMax, channelNum,
+				session, null);
+	}
+
+	/**
+	 * Create a {@link SubscriberSessionImpl} object whose records are
+	 * processed on the given {@link RecordDispatcher}.
+	 *
+	 * @param remoteAddress
+	 *            The InetAddress used for the transfers.
+	 * @param recordType
+	 *            The type of JAL records this {@link Session} transfers.
+	 * @param subscriber
+	 *            The {@link Subscriber} associated with this {@link Session}.
+	 * @param digestMethod
+	 *            The digest method to be used on this {@link Session}.
+	 * @param xmlEncoding
+	 *            The XML encoding to be used on this {@link Session}.
+	 * @param pendingDigestTimeoutSeconds
+	 *            The time to wait, in seconds before sending a "digest"
+	 *            message.
+	 * @param pendingDigestMax
+	 *            The maximum number of digests to queue.
+	 * @param dispatcher
+	 *            The {@link RecordDispatcher} to process received records on,
+	 *            or <code>null</code> to use the default dispatcher.
+	 */
+	public SubscriberSessionImpl(final InetAddress remoteAddress,
+			final RecordType recordType, final Subscriber subscriber,
+			final String digestMethod, final String xmlEncoding,
+			final int pendingDigestTimeoutSeconds, final int pendingDigestMax,
+			final int channelNum, final org.beepcore.beep.core.Session session,
+			final RecordDispatcher dispatcher) {
 
 		super(remoteAddress, recordType, digestMethod, xmlEncoding,
 				channelNum, session);
@@ -112,20 +157,27 @@ public class SubscriberSessionImpl extends SessionImpl implements
 					+ "must be a positive number.");
 		}
 
+		final MessageDigest md;
 		try {
-			this.listener = new SubscriberANSHandler(
-					MessageDigest
-							.getInstance(getDigestType(digestMethod.trim())),
-					this);
+			final String digestType = getDigestType(digestMethod.trim());
+			// journal records may be resumed, so their digest state must
+			// be available as a checkpoint
+			if (RecordType.Journal.equals(recordType)
+					&& Sha2Digest.isSupported(digestType)) {
+				md = Sha2Digest.create(digestType);
+			} else {
+				md = MessageDigest.getInstance(digestType);
+			}
 		} catch (final NoSuchAlgorithmException e) {
 			throw new IllegalArgumentException(
 					"'digestMethod' must be a valid DigestMethod", e);
 		}
+		this.listener = new SubscriberANSHandler(md, this, dispatcher);
 
 		this.subscriber = subscriber;
 		this.pendingDigestMax = pendingDigestMax;
 		this.pendingDigestTimeoutSeconds = pendingDigestTimeoutSeconds;
-		this.digestMap = new HashMap<String, String>();
+		this.digestLedger = new DigestLedger(md.getDigestLength());
 		this.journalResumeOffset = 0;
 	}
 
@@ -171,6 +223,85 @@ public class SubscriberSessionImpl extends SessionImpl implements
 		this.journalResumeIS = journalResumeIS;
 	}
 
+	/**
+	 * @return the journalResumeCheckpoint
+	 */
+	public DigestCheckpoint getJournalResumeCheckpoint() {
+		return this.journalResumeCheckpoint;
+	}
+
+	/**
+	 * @param journalResumeCheckpoint the {@link DigestCheckpoint} to set
+	 */
+	public void setJournalResumeCheckpoint(
+			final DigestCheckpoint journalResumeCheckpoint) {
+		this.journalResumeCheckpoint = journalResumeCheckpoint;
+	}
+
+	/**
+	 * @return the {@link ReceiveWindow} of the data channel, or
+	 *         <code>null</code> if the window is not tuned
+	 */
+	public ReceiveWindow getReceiveWindow() {
+		return this.receiveWindow;
+	}
+
+	/**
+	 * @param receiveWindow
+	 *            the {@link ReceiveWindow} of the data channel
+	 */
+	public void setReceiveWindow(final ReceiveWindow receiveWindow) {
+		this.receiveWindow = receiveWindow;
+	}
+
+	/**
+	 * Close the {@link ReceiveWindow} of the data channel, so the bytes it
+	 * reserved go back to the {@link com.tresys.jalop.jnl.impl.ReceiveWindowPolicy}
+	 * for other channels.
+	 */
+	@Override
+	public void release() {
+		final ReceiveWindow window = this.receiveWindow;
+		if (window != null) {
+			window.close();
+		}
+	}
+
+	/**
+	 * @return whether the records confirmed by a digest-response are synced
+	 *         with a single "sync-batch" message
+	 */
+	public boolean isSyncBatching() {
+		return this.syncBatching;
+	}
+
+	/**
+	 * @param syncBatching
+	 *            whether the remote agreed to receive "sync-batch" messages
+	 */
+	public void setSyncBatching(final boolean syncBatching) {
+		this.syncBatching = syncBatching;
+	}
+
+	/**
+	 * @return the {@link DigestBatcher} that decides when digests are sent,
+	 *         or <code>null</code> if they are sent once
+	 *         {@link #getPendingDigestMax()} are queued or after
+	 *         {@link #getPendingDigestTimeoutSeconds()}
+	 */
+	public DigestBatcher getDigestBatcher() {
+		return this.digestBatcher;
+	}
+
+	/**
+	 * @param digestBatcher
+	 *            the {@link DigestBatcher} that decides when digests are
+	 *            sent, or <code>null</code> for the fixed limits
+	 */
+	public void setDigestBatcher(final DigestBatcher digestBatcher) {
+		this.digestBatcher = digestBatcher;
+	}
+
 	@Override
 	public Role getRole() {
 		return Role.Subscriber;
@@ -218,44 +349,75 @@ public class SubscriberSessionImpl extends SessionImpl implements
 	}
 
 	/**
-	 * Adds a map of nonces and their related digests to the current map to
-	 * be sent to the publisher
+	 * Adds a ledger of nonces and their related digests to the current
+	 * ledger to be sent to the publisher. This is used to send digests
+	 * again that the publisher did not answer, so they are not counted as
+	 * newly received records by the {@link DigestBatcher}.
 	 *
 	 * @param toAdd
-	 *            A map of nonces and digests to add to the map to be sent.
+	 *            A ledger of nonces and digests to add to the ledger to be
+	 *            sent.
 	 */
-	public synchronized void addAllDigests(final Map<String, String> toAdd) {
-
-		this.digestMap.putAll(toAdd);
-		if (this.digestMap.size() >= this.pendingDigestMax) {
-			synchronized (this) {
-				this.notifyAll();
+	public synchronized void addAllDigests(final DigestLedger toAdd) {
+
+		final int start = this.digestLedger.size();
+		this.digestLedger.putAll(toAdd);
+		final DigestBatcher batcher = this.digestBatcher;
+		final boolean ready;
+		if (batcher != null) {
+			// nonces that were already queued only had their digest replaced
+			long bytes = 0;
+			for (int i = start; i < this.digestLedger.size(); i++) {
+				bytes += entryLength(this.digestLedger, i);
 			}
+			ready = batcher.requeue(this.digestLedger.size() - start, bytes,
+					System.nanoTime());
+		} else {
+			ready = this.digestLedger.size() >= this.pendingDigestMax;
+		}
+		if (ready) {
+			this.notifyAll();
 		}
 	}
 
 	/**
-	 * Adds a nonce and the related digest to a map to be sent to the
+	 * Adds a nonce and the related digest to a ledger to be sent to the
 	 * publisher
 	 *
 	 * @param nonce
-	 *            A String which is the nonce to be added to the map of
+	 *            A String which is the nonce to be added to the ledger of
 	 *            digests to send.
 	 * @param digest
-	 *            A String which is the digest for the nonce to be added to
-	 *            the map of digests to send.
+	 *            The digest for the nonce to be added to the ledger of
+	 *            digests to send. It is converted to hex when the digest
+	 *            message is sent.
 	 */
 	public synchronized void addDigest(final String nonce,
-			final String digest) {
-
-		this.digestMap.put(nonce, digest);
-		if (this.digestMap.size() >= this.pendingDigestMax) {
-			synchronized (this) {
-				this.notifyAll();
-			}
+			final byte[] digest) {
+
+		final boolean added = this.digestLedger.put(nonce, digest);
+		final DigestBatcher batcher = this.digestBatcher;
+		final boolean ready;
+		if (batcher != null) {
+			ready = added && batcher.add(1,
+					entryLength(this.digestLedger, this.digestLedger.size() - 1),
+					System.nanoTime());
+		} else {
+			ready = this.digestLedger.size() >= this.pendingDigestMax;
+		}
+		if (ready) {
+			this.notifyAll();
 		}
 	}
 
+	/**
+	 * The number of bytes an entry takes in a digest message: the hex
+	 * digest, '=', the nonce and CRLF.
+	 */
+	private static int entryLength(final DigestLedger ledger, final int index) {
+		return ledger.getDigestLength() * 2 + ledger.getNonceLength(index) + 3;
+	}
+
 	@Override
 	public InetAddress getAddress() {
 		return this.address;
@@ -271,28 +433,66 @@ public class SubscriberSessionImpl extends SessionImpl implements
 		try {
 
 			final Channel digestChannel = createDigestChannel();
+			final SegmentPool digestSegments = new SegmentPool(
+					BufferPool.getDefault(), digestChannel);
 
 			while (this.isOk()) {
 
-				if (this.digestMap.size() < this.pendingDigestMax) {
+				final DigestBatcher batcher = this.digestBatcher;
+				if (batcher != null) {
+					synchronized (this) {
+						final long now = System.nanoTime();
+						if (batcher.getFlushReason(now) == null) {
+							this.wait(Math.min(batcher.getWaitMillis(now),
+									this.pendingDigestTimeoutSeconds * 1000L));
+						}
+					}
+				} else if (this.digestLedger.size() < this.pendingDigestMax) {
 					synchronized (this) {
 						final long waitTime = this.pendingDigestTimeoutSeconds * 1000;
 						this.wait(waitTime);
 					}
 				}
 
-				Map<String, String> digestsToSend = new HashMap<String, String>();
+				final DigestLedger digestsToSend;
 				synchronized (this) {
-					if (this.digestMap.isEmpty()) {
+					if (this.digestLedger.isEmpty()) {
 						continue;
 					}
 
-					digestsToSend = this.digestMap;
-					this.digestMap = new HashMap<String, String>();
+					if (batcher != null) {
+						final long now = System.nanoTime();
+						final FlushReason reason = batcher.getFlushReason(now);
+						if (reason == null) {
+							continue;
+						}
+						digestsToSend = this.digestLedger;
+						final long maxBytes = batcher.getMaxBatchBytes();
+						int count = 0;
+						long bytes = 0;
+						while (count < digestsToSend.size()) {
+							final int len = entryLength(digestsToSend, count);
+							if (count > 0 && bytes + len > maxBytes) {
+								break;
+							}
+							bytes += len;
+							count++;
+						}
+						this.digestLedger = digestsToSend.splitAt(count);
+						if (log.isDebugEnabled()) {
+							log.debug("Sending " + count + " digests, reason: "
+									+ reason);
+						}
+						batcher.flushed(reason, count, bytes, now);
+					} else {
+						digestsToSend = this.digestLedger;
+						this.digestLedger = new DigestLedger(
+								digestsToSend.getDigestLength());
+					}
 				}
 
 				final OutputDataStream digestOds = Utils
-						.createDigestMessage(digestsToSend);
+						.createDigestMessage(digestsToSend, digestSegments);
 
 				digestChannel.sendMSG(digestOds, new DigestListener(this,
 						digestsToSend));
@@ -313,6 +513,8 @@ public class SubscriberSessionImpl extends SessionImpl implements
 				log.error(e.getMessage());
 			}
 			setErrored();
+		} finally {
+			release();
 		}
 	}
 
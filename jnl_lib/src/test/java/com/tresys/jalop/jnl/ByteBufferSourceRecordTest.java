@@ -0,0 +1,118 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tresys.jalop.jnl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ByteBufferSourceRecordTest {
+
+	@Before
+	public void setUp() {
+		// Disable logging so the build doesn't get spammed.
+		Logger.getRootLogger().setLevel(Level.OFF);
+	}
+
+	private static byte[] readAll(final InputStream in) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buf = new byte[3];
+		int n;
+		while ((n = in.read(buf, 0, buf.length)) >= 0) {
+			out.write(buf, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructorThrowsExceptionWithNullNonce() {
+		new ByteArraySourceRecord(null, RecordType.Log, null, null, null);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructorThrowsExceptionWithNullRecordType() {
+		new ByteArraySourceRecord("1", null, null, null, null);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructorThrowsExceptionWithNegativeOffset() {
+		new ByteArraySourceRecord("1", RecordType.Journal, null, null, null, -1);
+	}
+
+	@Test
+	public void testByteArraySourceRecordWorks() throws Exception {
+		final byte[] sys = { 1, 2, 3, 4, 5 };
+		final byte[] payload = { 6, 7 };
+		final ByteArraySourceRecord rec = new ByteArraySourceRecord("1",
+				RecordType.Journal, sys, null, payload, 1);
+
+		assertEquals("1", rec.getNonce());
+		assertEquals(RecordType.Journal, rec.getRecordType());
+		assertEquals(1, rec.getOffset());
+		assertEquals(5, rec.getSysMetaLength());
+		assertEquals(0, rec.getAppMetaLength());
+		assertEquals(2, rec.getPayloadLength());
+		assertSame(sys, rec.getSysMetadataBuffer().array());
+		assertSame(payload, rec.getPayloadBuffer().array());
+		assertArrayEquals(sys, readAll(rec.getSysMetadata()));
+		assertArrayEquals(new byte[0], readAll(rec.getAppMetadata()));
+		assertArrayEquals(payload, readAll(rec.getPayload()));
+	}
+
+	@Test
+	public void testByteBufferSourceRecordKeepsViewOfRemainingBytes() throws Exception {
+		final ByteBuffer payload = ByteBuffer.allocateDirect(10);
+		for (int i = 0; i < 10; i++) {
+			payload.put((byte) i);
+		}
+		payload.position(2);
+		payload.limit(6);
+		final ByteBufferSourceRecord rec = new ByteBufferSourceRecord("1",
+				RecordType.Audit, null, null, payload);
+
+		// later changes to the position of the buffer are not seen
+		payload.position(0);
+		payload.limit(10);
+
+		assertEquals(4, rec.getPayloadLength());
+		assertArrayEquals(new byte[] { 2, 3, 4, 5 }, readAll(rec.getPayload()));
+
+		// reading does not consume the record
+		final ByteBuffer view = rec.getPayloadBuffer();
+		view.get();
+		assertEquals(4, rec.getPayloadBuffer().remaining());
+		assertArrayEquals(new byte[] { 2, 3, 4, 5 }, readAll(rec.getPayload()));
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tresys.jalop.jnl.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class BufferPoolTest {
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructorThrowsExceptionWithZeroMinSize() {
+		new BufferPool(0, 1024, 1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructorThrowsExceptionWhenMaxSizeIsBelowMinSize() {
+		new BufferPool(1024, 512, 1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructorThrowsExceptionWithNegativeMaxFree() {
+		new BufferPool(256, 1024, -1);
+	}
+
+	@Test
+	public void testAcquireRoundsUpToSizeClass() {
+		final BufferPool pool = new BufferPool(256, 4096, 4);
+		assertEquals(256, pool.acquire(0).length);
+		assertEquals(256, pool.acquire(100).length);
+		assertEquals(512, pool.acquire(257).length);
+		assertEquals(4096, pool.acquire(4096).length);
+		assertEquals(5000, pool.acquire(5000).length);
+		assertEquals(5, pool.getAllocatedCount());
+	}
+
+	@Test
+	public void testReleasedBufferIsReused() {
+		final BufferPool pool = new BufferPool(256, 4096, 4);
+		final byte[] buf = pool.acquire(4096);
+		pool.release(buf);
+		assertSame(buf, pool.acquire(3000));
+		assertEquals(1, pool.getReusedCount());
+		assertNotSame(buf, pool.acquire(3000));
+	}
+
+	@Test
+	public void testReleaseIgnoresForeignSizes() {
+		final BufferPool pool = new BufferPool(256, 4096, 4);
+		pool.release(new byte[300]);
+		pool.release(new byte[128]);
+		pool.release(new byte[8192]);
+		pool.acquire(300);
+		pool.acquire(128);
+		assertEquals(0, pool.getReusedCount());
+	}
+
+	@Test
+	public void testReleaseKeepsAtMostMaxFree() {
+		final BufferPool pool = new BufferPool(256, 256, 2);
+		pool.release(new byte[256]);
+		pool.release(new byte[256]);
+		pool.release(new byte[256]);
+		pool.acquire(256);
+		pool.acquire(256);
+		pool.acquire(256);
+		assertEquals(2, pool.getReusedCount());
+		assertEquals(1, pool.getAllocatedCount());
+	}
+
+	@Test
+	public void testGetDefaultReturnsSameInstance() {
+		assertSame(BufferPool.getDefault(), BufferPool.getDefault());
+	}
+}
@@ -25,6 +25,7 @@ package com.tresys.jalop.jnl.impl;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -64,6 +65,7 @@ import com.tresys.jalop.jnl.Subscriber;
 import com.tresys.jalop.jnl.exceptions.ConnectionException;
 import com.tresys.jalop.jnl.exceptions.JNLException;
 import com.tresys.jalop.jnl.impl.ContextImpl.ConnectionState;
+import com.tresys.jalop.jnl.impl.messages.RecordBatch;
 import com.tresys.jalop.jnl.impl.messages.Utils;
 import com.tresys.jalop.jnl.impl.publisher.PublisherSessionImpl;
 import com.tresys.jalop.jnl.impl.subscriber.SubscriberSessionImpl;
@@ -209,6 +211,78 @@ public class ContextImplTest {
 
     }
 
+    @Test
+    public final void testGetRecordDispatcherUsesConfiguration(@Mocked final Subscriber subscriber)
+            throws BEEPException {
+        final ContextImpl c = new ContextImpl(null, subscriber, null, 100, 150, null, digests, encodings, null);
+        c.setRecordDispatch(3, 16, 512);
+        final RecordDispatcher rd = c.getRecordDispatcher();
+        assertEquals(3, rd.getThreads());
+        assertEquals(16, rd.getQueueDepth());
+        assertEquals(512, rd.getInlineThreshold());
+        assertEquals(rd, c.getRecordDispatcher());
+        c.shutdown();
+    }
+
+    @Test
+    public final void testSetDigestOffloadThresholdWorks(@Mocked final Subscriber subscriber)
+            throws BEEPException {
+        final ContextImpl c = new ContextImpl(null, subscriber, null, 100, 150, null, digests, encodings, null);
+        c.setDigestOffloadThreshold(1048576);
+        assertEquals(1048576, c.getRecordDispatcher().getDigestOffloadThreshold());
+        c.shutdown();
+    }
+
+    @Test
+    public final void testSetCoalescingLimitWorks(@Mocked final Subscriber subscriber)
+            throws BEEPException {
+        final ContextImpl c = new ContextImpl(null, subscriber, null, 100, 150, null, digests, encodings, null);
+        assertEquals(0, c.getCoalescingLimit());
+        c.setCoalescingLimit(RecordBatch.MAX_RECORD_SIZE);
+        assertEquals(RecordBatch.MAX_RECORD_SIZE, c.getCoalescingLimit());
+    }
+
+    @Test
+    public final void testSetDigestBatchPolicyWorks(@Mocked final Subscriber subscriber)
+            throws BEEPException {
+        final ContextImpl c = new ContextImpl(null, subscriber, null, 100, 150, null, digests, encodings, null);
+        assertNull(c.getDigestBatchPolicy());
+        final DigestBatchPolicy policy = new DigestBatchPolicy(500, 4096);
+        c.setDigestBatchPolicy(policy);
+        assertEquals(policy, c.getDigestBatchPolicy());
+    }
+
+    @Test
+    public final void testSetSyncBatchingWorks(@Mocked final Subscriber subscriber)
+            throws BEEPException {
+        final ContextImpl c = new ContextImpl(null, subscriber, null, 100, 150, null, digests, encodings, null);
+        assertFalse(c.isSyncBatching());
+        c.setSyncBatching(true);
+        assertTrue(c.isSyncBatching());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public final void testSetCoalescingLimitThrowsExceptionWhenTooLarge(@Mocked final Subscriber subscriber)
+            throws BEEPException {
+        final ContextImpl c = new ContextImpl(null, subscriber, null, 100, 150, null, digests, encodings, null);
+        c.setCoalescingLimit(RecordBatch.MAX_RECORD_SIZE + 1);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public final void testSetRecordDispatchThrowsExceptionAfterCreation(@Mocked final Subscriber subscriber)
+            throws BEEPException {
+        final ContextImpl c = new ContextImpl(null, subscriber, null, 100, 150, null, digests, encodings, null);
+        c.getRecordDispatcher();
+        c.setRecordDispatch(1, 1, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public final void testSetRecordDispatchThrowsExceptionWithZeroThreads(@Mocked final Subscriber subscriber)
+            throws BEEPException {
+        final ContextImpl c = new ContextImpl(null, subscriber, null, 100, 150, null, digests, encodings, null);
+        c.setRecordDispatch(0, 1, 0);
+    }
+
     @Test
     public final void testContextImplConstructorWorksWithTlsRequired(@Mocked final Publisher publisher, @Mocked final Subscriber subscriber,
             @Mocked final ConnectionHandler connectionHandler, @Mocked final ProfileConfiguration sslProfile) throws IllegalArgumentException, IllegalAccessException, BEEPException {
@@ -0,0 +1,221 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.tresys.jalop.jnl.impl.DigestBatchPolicy.FlushReason;
+
+public class DigestBatcherTest {
+
+	private static final long MILLIS = 1000 * 1000;
+
+	/**
+	 * The number of bytes a digest takes in a digest message.
+	 */
+	private static final int ENTRY = 70;
+
+	@Before
+	public void setUp() {
+		// Disable logging so the build doesn't get spammed.
+		Logger.getRootLogger().setLevel(Level.OFF);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testPolicyThrowsExceptionWithZeroLatency() {
+		new DigestBatchPolicy(0, 1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testPolicyThrowsExceptionWithZeroMaxBatchBytes() {
+		new DigestBatchPolicy(1, 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testGetFlushCountThrowsExceptionWithNullReason() {
+		new DigestBatchPolicy(1, 1).getFlushCount(null);
+	}
+
+	@Test
+	public void testEmptyBatchIsNeverSent() {
+		final DigestBatcher b = new DigestBatcher(new DigestBatchPolicy(1000, 1024), 0);
+		assertNull(b.getFlushReason(Long.MAX_VALUE / 2));
+		assertEquals(Long.MAX_VALUE, b.getWaitMillis(0));
+	}
+
+	@Test
+	public void testAddReportsFirstDigest() {
+		final DigestBatcher b = new DigestBatcher(new DigestBatchPolicy(1000, 1024 * 1024), 0);
+		assertTrue(b.add(1, ENTRY, 0));
+		assertFalse(b.add(1, ENTRY, 1));
+		assertEquals(2, b.getPending());
+	}
+
+	@Test
+	public void testBatchIsSentWhenOldestDigestIsDue() {
+		final DigestBatcher b = new DigestBatcher(new DigestBatchPolicy(1000, 1024 * 1024), 0);
+		b.add(1, ENTRY, 100 * MILLIS);
+		b.add(1, ENTRY, 600 * MILLIS);
+
+		assertEquals(500, b.getWaitMillis(600 * MILLIS));
+		assertNull(b.getFlushReason(1099 * MILLIS));
+		assertEquals(FlushReason.Latency, b.getFlushReason(1100 * MILLIS));
+	}
+
+	@Test
+	public void testBatchIsSentWhenTooLarge() {
+		final DigestBatchPolicy policy = new DigestBatchPolicy(1000, 10 * ENTRY);
+		final DigestBatcher b = new DigestBatcher(policy, 0);
+		for (int i = 0; i < 9; i++) {
+			b.add(1, ENTRY, 0);
+		}
+		assertNull(b.getFlushReason(0));
+		assertTrue(b.add(1, ENTRY, 0));
+		assertEquals(FlushReason.Bytes, b.getFlushReason(0));
+	}
+
+	@Test
+	public void testBatchSizeFollowsArrivalRate() {
+		final DigestBatchPolicy policy = new DigestBatchPolicy(1000, 1024 * 1024);
+		final DigestBatcher b = new DigestBatcher(policy, 0);
+		assertEquals(Integer.MAX_VALUE, b.getTargetBatch());
+
+		// 200 digests in a second
+		b.add(200, 200 * ENTRY, 0);
+		b.flushed(FlushReason.Latency, 1000 * MILLIS);
+		assertEquals(200, b.getArrivalRate());
+		assertEquals(200, b.getTargetBatch());
+
+		// a burst fills the batch before the oldest digest is due
+		b.add(199, 199 * ENTRY, 1000 * MILLIS);
+		assertNull(b.getFlushReason(1001 * MILLIS));
+		assertTrue(b.add(1, ENTRY, 1001 * MILLIS));
+		assertEquals(FlushReason.Size, b.getFlushReason(1001 * MILLIS));
+	}
+
+	@Test
+	public void testRoundTripShortensWait() {
+		final DigestBatchPolicy policy = new DigestBatchPolicy(1000, 1024 * 1024);
+		final DigestBatcher b = new DigestBatcher(policy, 0);
+		b.add(100, 100 * ENTRY, 0);
+		b.flushed(FlushReason.Latency, 1000 * MILLIS);
+		assertEquals(100, b.getTargetBatch());
+
+		b.updateRoundTrip(400 * MILLIS);
+		assertEquals(400, b.getRoundTripMillis());
+		assertEquals(60, b.getTargetBatch());
+
+		b.add(1, ENTRY, 2000 * MILLIS);
+		assertEquals(600, b.getWaitMillis(2000 * MILLIS));
+	}
+
+	@Test
+	public void testSlowRoundTripStillBatches() {
+		final DigestBatchPolicy policy = new DigestBatchPolicy(1000, 1024 * 1024);
+		final DigestBatcher b = new DigestBatcher(policy, 0);
+		b.updateRoundTrip(5000 * MILLIS);
+
+		b.add(1, ENTRY, 0);
+		assertEquals((long) (1000 * DigestBatcher.MIN_WAIT_FRACTION), b.getWaitMillis(0));
+	}
+
+	@Test
+	public void testArrivalRateIsSampledOverShortIntervals() {
+		final DigestBatchPolicy policy = new DigestBatchPolicy(1000, 1024 * 1024);
+		final DigestBatcher b = new DigestBatcher(policy, 0);
+
+		b.add(50, 50 * ENTRY, 0);
+		b.flushed(FlushReason.Bytes, DigestBatcher.MIN_SAMPLE_NANOS / 2);
+		assertEquals(0, b.getArrivalRate());
+
+		b.add(50, 50 * ENTRY, DigestBatcher.MIN_SAMPLE_NANOS / 2);
+		b.flushed(FlushReason.Bytes, 1000 * MILLIS);
+		assertEquals(100, b.getArrivalRate());
+	}
+
+	@Test
+	public void testRequeuedDigestsAreNotSampled() {
+		final DigestBatchPolicy policy = new DigestBatchPolicy(1000, 1024 * 1024);
+		final DigestBatcher b = new DigestBatcher(policy, 0);
+
+		assertTrue(b.requeue(100, 100 * ENTRY, 0));
+		b.add(100, 100 * ENTRY, 0);
+		assertEquals(200, b.getPending());
+		b.flushed(FlushReason.Latency, 1000 * MILLIS);
+		assertEquals(100, b.getArrivalRate());
+		assertEquals(200, b.getLastBatch());
+	}
+
+	@Test
+	public void testPartialFlushKeepsRestOfBatch() {
+		final DigestBatchPolicy policy = new DigestBatchPolicy(1000, 4 * ENTRY);
+		final DigestBatcher b = new DigestBatcher(policy, 0);
+
+		b.add(10, 10 * ENTRY, 0);
+		assertEquals(FlushReason.Bytes, b.getFlushReason(0));
+		b.flushed(FlushReason.Bytes, 4, 4 * ENTRY, 0);
+		assertEquals(6, b.getPending());
+		assertEquals(4, b.getLastBatch());
+		assertEquals(FlushReason.Bytes, b.getFlushReason(0));
+
+		b.flushed(FlushReason.Bytes, 4, 4 * ENTRY, 0);
+		assertNull(b.getFlushReason(0));
+		// the rest keeps the time its oldest digest was added
+		assertEquals(FlushReason.Latency, b.getFlushReason(1000 * MILLIS));
+		b.flushed(FlushReason.Latency, 1000 * MILLIS);
+		assertEquals(0, b.getPending());
+		assertEquals(10, policy.getDigestCount());
+	}
+
+	@Test
+	public void testFlushedUpdatesPolicyMetrics() {
+		final DigestBatchPolicy policy = new DigestBatchPolicy(1000, 1024 * 1024);
+		final DigestBatcher first = policy.open();
+		final DigestBatcher second = policy.open();
+
+		first.add(3, 3 * ENTRY, 0);
+		first.flushed(FlushReason.Latency, 0);
+		second.add(7, 7 * ENTRY, 0);
+		second.flushed(FlushReason.Size, 0);
+		second.add(2, 2 * ENTRY, 0);
+		second.flushed(FlushReason.Latency, 0);
+
+		assertEquals(3, policy.getBatchCount());
+		assertEquals(12, policy.getDigestCount());
+		assertEquals(7, policy.getLargestBatch());
+		assertEquals(2, policy.getFlushCount(FlushReason.Latency));
+		assertEquals(1, policy.getFlushCount(FlushReason.Size));
+		assertEquals(0, policy.getFlushCount(FlushReason.Bytes));
+		assertEquals(2, second.getLastBatch());
+		assertEquals(0, second.getPending());
+	}
+}
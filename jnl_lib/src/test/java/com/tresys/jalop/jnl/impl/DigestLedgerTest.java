@@ -0,0 +1,201 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tresys.jalop.jnl.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DigestLedgerTest {
+
+	@Before
+	public void setUp() {
+		// Disable logging so the build doesn't get spammed.
+		Logger.getRootLogger().setLevel(Level.OFF);
+	}
+
+	private static byte[] digest(final int value) {
+		final byte[] ret = new byte[4];
+		ret[0] = (byte) (value >>> 24);
+		ret[1] = (byte) (value >>> 16);
+		ret[2] = (byte) (value >>> 8);
+		ret[3] = (byte) value;
+		return ret;
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructorThrowsExceptionWithZeroLength() {
+		new DigestLedger(0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testPutThrowsExceptionWithWrongLength() {
+		new DigestLedger(4).put("1", new byte[3]);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testPutThrowsExceptionWithEmptyNonce() {
+		new DigestLedger(4).put("", new byte[4]);
+	}
+
+	@Test
+	public void testPutAndGetWork() {
+		final DigestLedger ledger = new DigestLedger(4);
+		assertTrue(ledger.isEmpty());
+		assertTrue(ledger.put("1", digest(1)));
+		assertTrue(ledger.put("007", digest(7)));
+		assertTrue(ledger.put("abc", digest(3)));
+		assertFalse(ledger.put("1", digest(11)));
+
+		assertEquals(3, ledger.size());
+		assertArrayEquals(digest(11), ledger.get("1"));
+		assertArrayEquals(digest(7), ledger.get("007"));
+		assertArrayEquals(digest(3), ledger.get("abc"));
+		assertNull(ledger.get("7"));
+		assertFalse(ledger.contains("01"));
+	}
+
+	@Test
+	public void testTakeAndRemoveWork() {
+		final DigestLedger ledger = new DigestLedger(4);
+		ledger.put("1", digest(1));
+		ledger.put("2", digest(2));
+		ledger.put("x", digest(3));
+
+		assertArrayEquals(digest(1), ledger.take("1"));
+		assertNull(ledger.take("1"));
+		assertTrue(ledger.remove("x"));
+		assertFalse(ledger.remove("x"));
+		assertEquals(1, ledger.size());
+		assertEquals("2", ledger.getNonce(0));
+		assertArrayEquals(digest(2), ledger.get("2"));
+	}
+
+	@Test
+	public void testPutAllWorks() {
+		final DigestLedger ledger = new DigestLedger(4);
+		ledger.put("1", digest(1));
+		final DigestLedger other = new DigestLedger(4);
+		other.put("1", digest(10));
+		other.put("nonce", digest(2));
+
+		ledger.putAll(other);
+		assertEquals(2, ledger.size());
+		assertArrayEquals(digest(10), ledger.get("1"));
+		assertArrayEquals(digest(2), ledger.get("nonce"));
+	}
+
+	@Test
+	public void testSplitAtWorks() {
+		final DigestLedger ledger = new DigestLedger(4);
+		ledger.put("1", digest(1));
+		ledger.put("nonce", digest(2));
+		ledger.put("3", digest(3));
+		ledger.put("4", digest(4));
+
+		final DigestLedger rest = ledger.splitAt(1);
+		assertEquals(1, ledger.size());
+		assertArrayEquals(digest(1), ledger.get("1"));
+		assertFalse(ledger.contains("nonce"));
+		assertFalse(ledger.contains("3"));
+		assertEquals(3, rest.size());
+		assertEquals("nonce", rest.getNonce(0));
+		assertEquals("3", rest.getNonce(1));
+		assertArrayEquals(digest(4), rest.get("4"));
+
+		assertEquals(0, ledger.splitAt(1).size());
+		assertEquals(1, ledger.size());
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testSplitAtThrowsExceptionPastEnd() {
+		new DigestLedger(4).splitAt(1);
+	}
+
+	@Test
+	public void testWriteHexAndNonceWork() {
+		final DigestLedger ledger = new DigestLedger(4);
+		ledger.put("1234567890", digest(0x01abcdef));
+		ledger.put("n\u00e9", digest(0));
+
+		final byte[] buf = new byte[32];
+		assertEquals(8, ledger.writeHex(0, buf, 0));
+		assertEquals("01abcdef", new String(buf, 0, 8));
+		assertEquals(10, ledger.getNonceLength(0));
+		assertEquals(10, ledger.writeNonce(0, buf, 0));
+		assertEquals("1234567890", new String(buf, 0, 10));
+		assertEquals(3, ledger.getNonceLength(1));
+		assertEquals(4, ledger.writeNonce(1, buf, 1));
+	}
+
+	@Test
+	public void testDecodeHexWorks() {
+		assertArrayEquals(new byte[] { 0x01, (byte) 0xab }, DigestLedger.decodeHex("01AB"));
+		assertArrayEquals(new byte[] { 0x01, (byte) 0xab }, DigestLedger.decodeHex("1ab"));
+		assertArrayEquals(new byte[0], DigestLedger.decodeHex(""));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testDecodeHexThrowsExceptionWithBadDigit() {
+		DigestLedger.decodeHex("0g");
+	}
+
+	@Test
+	public void testMatchesMapUnderRandomOperations() {
+		final DigestLedger ledger = new DigestLedger(4);
+		final Map<String, Integer> expected = new HashMap<String, Integer>();
+		final Random random = new Random(1234);
+
+		for (int i = 0; i < 20000; i++) {
+			final int n = random.nextInt(500);
+			final String nonce = n % 7 == 0 ? "n" + n : String.valueOf(n);
+			if (random.nextBoolean()) {
+				assertEquals(!expected.containsKey(nonce), ledger.put(nonce, digest(i)));
+				expected.put(nonce, i);
+			} else {
+				assertEquals(expected.remove(nonce) != null, ledger.remove(nonce));
+			}
+		}
+
+		assertEquals(expected.size(), ledger.size());
+		for (final Map.Entry<String, Integer> e : expected.entrySet()) {
+			assertArrayEquals(digest(e.getValue()), ledger.get(e.getKey()));
+		}
+		for (int i = 0; i < ledger.size(); i++) {
+			assertTrue(expected.containsKey(ledger.getNonce(i)));
+		}
+	}
+}
@@ -24,16 +24,20 @@
 package com.tresys.jalop.jnl.impl;
 
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.net.InetAddress;
-import java.util.HashMap;
-import java.util.Map;
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import javax.xml.crypto.dsig.DigestMethod;
-import javax.xml.soap.MimeHeaders;
 
 import mockit.*;
 
@@ -46,6 +50,7 @@ import org.beepcore.beep.core.InputDataStream;
 import org.beepcore.beep.core.InputDataStreamAdapter;
 import org.beepcore.beep.core.Message;
 import org.beepcore.beep.core.OutputDataStream;
+import org.beepcore.beep.util.BufferSegment;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -53,9 +58,6 @@ import org.junit.Test;
 import com.tresys.jalop.jnl.DigestStatus;
 import com.tresys.jalop.jnl.RecordType;
 import com.tresys.jalop.jnl.Subscriber;
-import com.tresys.jalop.jnl.exceptions.MissingMimeHeaderException;
-import com.tresys.jalop.jnl.exceptions.UnexpectedMimeValueException;
-import com.tresys.jalop.jnl.impl.messages.DigestResponse;
 import com.tresys.jalop.jnl.impl.messages.Utils;
 import com.tresys.jalop.jnl.impl.subscriber.SubscriberSessionImpl;
 
@@ -69,24 +71,23 @@ public class DigestListenerTest {
 	Logger.getRootLogger().setLevel(Level.OFF);
 	}
 
-	private static Field digestMapField;
+	private static Field digestLedgerField;
 
 	@BeforeClass
 	public static void setUpBeforeClass() throws SecurityException, NoSuchFieldException {
-		digestMapField = SubscriberSessionImpl.class.getDeclaredField("digestMap");
-		digestMapField.setAccessible(true);
+		digestLedgerField = SubscriberSessionImpl.class.getDeclaredField("digestLedger");
+		digestLedgerField.setAccessible(true);
 	}
 
-	@SuppressWarnings("unchecked")
-	private static Map<String, String> getDigestMap(final SubscriberSessionImpl s)
+	private static DigestLedger getDigestLedger(final SubscriberSessionImpl s)
 			throws IllegalArgumentException, IllegalAccessException {
-		return (Map<String, String>) digestMapField.get(s);
+		return (DigestLedger) digestLedgerField.get(s);
 	}
 
 	@Test (expected = AbortChannelException.class)
 	public void testDigestListenerReceiveErr(@Mocked final SubscriberSessionImpl subSess, @Mocked final Message message)
 			throws AbortChannelException {
-		final Map<String, String> map = new HashMap<String, String>();
+		final DigestLedger map = new DigestLedger(32);
 		final DigestListener digestListener = new DigestListener(subSess, map);
 		digestListener.receiveERR(message);
 	}
@@ -94,7 +95,7 @@ public class DigestListenerTest {
 	@Test (expected = AbortChannelException.class)
 	public void testDigestListenerThrowsExceptionOnReceiveAns(@Mocked final SubscriberSessionImpl subSess, @Mocked final Message message)
 			throws AbortChannelException {
-		final Map<String, String> map = new HashMap<String, String>();
+		final DigestLedger map = new DigestLedger(32);
 		final DigestListener digestListener = new DigestListener(subSess, map);
 		digestListener.receiveANS(message);
 	}
@@ -102,35 +103,67 @@ public class DigestListenerTest {
 	@Test
 	public void testDigestListenerDoesNothingOnReceiveNul(@Mocked final SubscriberSessionImpl subSess, @Mocked final Message message)
 			throws AbortChannelException {
-		final Map<String, String> map = new HashMap<String, String>();
+		final DigestLedger map = new DigestLedger(32);
 		final DigestListener digestListener = new DigestListener(subSess, map);
 		digestListener.receiveNUL(message);
 	}
 
+	private static final Method addMethod;
+	private static final Method completeMethod;
+
+	static {
+		try {
+			addMethod = InputDataStream.class.getDeclaredMethod("add", BufferSegment.class);
+			addMethod.setAccessible(true);
+			completeMethod = InputDataStream.class.getDeclaredMethod("setComplete");
+			completeMethod.setAccessible(true);
+		} catch (final NoSuchMethodException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Create an {@link InputDataStream} holding the first frame of a
+	 * digest-response.
+	 */
+	private static InputDataStream createDataStream(final String body,
+			final boolean complete) throws Exception {
+		final Constructor<InputDataStream> constructor = InputDataStream.class
+				.getDeclaredConstructor();
+		constructor.setAccessible(true);
+		final InputDataStream ds = constructor.newInstance();
+
+		final org.beepcore.beep.core.MimeHeaders mh = new org.beepcore.beep.core.MimeHeaders();
+		mh.setContentType(Utils.CT_JALOP);
+		addMethod.invoke(ds, mh.getBufferSegment());
+		addFrame(ds, body, complete);
+		return ds;
+	}
+
+	private static void addFrame(final InputDataStream ds, final String body,
+			final boolean complete) throws Exception {
+		addMethod.invoke(ds, new BufferSegment(body.getBytes("utf-8")));
+		if (complete) {
+			completeMethod.invoke(ds);
+		}
+	}
+
 	@Test
 	public void testDigestListenerReceiveRpy(@Mocked final SubscriberSessionImpl subSess, @Mocked final Message message, @Mocked final Channel channel,
-			@Mocked final InputDataStream ids, @Mocked final InputDataStreamAdapter isa, @Mocked final Subscriber subscriber)
-			throws IOException, MissingMimeHeaderException, UnexpectedMimeValueException, BEEPException {
+			@Mocked final Subscriber subscriber)
+			throws Exception {
 
-		final Map<String, DigestStatus> statusMap = new HashMap<String, DigestStatus>();
-		statusMap.put("1", DigestStatus.Confirmed);
-		final DigestResponse dr = new DigestResponse(statusMap, new MimeHeaders());
-		final Map<String, String> digestsSent = new HashMap<String, String>();
-		digestsSent.put("1", "digest");
+		final DigestLedger digestsSent = new DigestLedger(32);
+		digestsSent.put("1", new byte[32]);
 
-		final String m = new String("confirmed=1");
+		final InputDataStream ids = createDataStream("confirmed=1", true);
 		final int digestChannel = 7;
 		final int msgno = 3045;
 
 		new NonStrictExpectations() {
 			{
 				message.getDataStream(); result = ids;
-				ids.getInputStream(); result = isa;
-				isa.isComplete(); result = true;
-				isa.readMessage(); result = m;
-
-				Utils.processDigestResponse(isa, m); result = dr;
-				//dr.getMap(); result = statusMap;
+				Utils.processDigestResponseCount((InputDataStreamAdapter) any); result = 1;
 
 				subSess.getSubscriber(); result = subscriber;
 
@@ -152,23 +185,21 @@ public class DigestListenerTest {
 				channel.sendMSG((OutputDataStream) any, null);
 			}
 		};
+		assertTrue(digestsSent.isEmpty());
 	}
 
 	@Test
-	public void testDigestListenerAddsDigestsBackInReceiveRpy(@Mocked final Message message, @Mocked final InputDataStream ids, @Mocked final Channel channel,
-			@Mocked final InputDataStreamAdapter isa, @Mocked final Subscriber subscriber, @Mocked final org.beepcore.beep.core.Session sess, @Mocked final InetAddress address)
-			throws IOException, IllegalAccessException, MissingMimeHeaderException, UnexpectedMimeValueException,
-			BEEPException {
-
-		final Map<String, DigestStatus> statusMap = new HashMap<String, DigestStatus>();
-		statusMap.put("1", DigestStatus.Confirmed);
-		final DigestResponse dr = new DigestResponse(statusMap, new MimeHeaders());
+	public void testDigestListenerAddsDigestsBackInReceiveRpy(@Mocked final Message message, @Mocked final Channel channel,
+			@Mocked final Subscriber subscriber, @Mocked final org.beepcore.beep.core.Session sess, @Mocked final InetAddress address)
+			throws Exception {
 
-		final Map<String, String> digestsSent = new HashMap<String, String>();
-		digestsSent.put("1", "digest");
-		digestsSent.put("2", "anotherDigest");
+		final DigestLedger digestsSent = new DigestLedger(32);
+		digestsSent.put("1", new byte[32]);
+		final byte[] anotherDigest = new byte[32];
+		anotherDigest[0] = 2;
+		digestsSent.put("2", anotherDigest);
 
-		final String m = new String("confirmed=1");
+		final InputDataStream ids = createDataStream("confirmed=1", true);
 		final int digestChannel = 7;
 		final int msgno = 3045;
 
@@ -179,12 +210,7 @@ public class DigestListenerTest {
 		new NonStrictExpectations() {
 			{
 				message.getDataStream(); result = ids;
-				ids.getInputStream(); result = isa;
-				isa.isComplete(); result = true;
-				isa.readMessage(); result = m;
-
-				Utils.processDigestResponse(isa, m); result = dr;
-				//dr.getMap(); result = statusMap;
+				Utils.processDigestResponseCount((InputDataStreamAdapter) any); result = 1;
 
 				message.getChannel(); result = channel;
 				channel.getNumber(); result = digestChannel;
@@ -206,6 +232,235 @@ public class DigestListenerTest {
 			}
 		};
 
-		assertEquals(digestsSent, getDigestMap(subSess));
+		final DigestLedger ledger = getDigestLedger(subSess);
+		assertEquals(1, ledger.size());
+		assertArrayEquals(anotherDigest, ledger.get("2"));
+	}
+
+	@Test
+	public void testDigestListenerHandlesStatusesAsFramesArrive(@Mocked final SubscriberSessionImpl subSess,
+			@Mocked final Message message, @Mocked final Channel channel, @Mocked final Subscriber subscriber)
+			throws Exception {
+
+		final DigestLedger digestsSent = new DigestLedger(32);
+		digestsSent.put("1", new byte[32]);
+		digestsSent.put("22", new byte[32]);
+		digestsSent.put("333", new byte[32]);
+
+		final InputDataStream ids = createDataStream("confirmed=1\r\ninvalid=2", false);
+
+		new NonStrictExpectations() {
+			{
+				message.getDataStream(); result = ids;
+				Utils.processDigestResponseCount((InputDataStreamAdapter) any); result = 3;
+				subSess.getSubscriber(); result = subscriber;
+				message.getChannel(); result = channel;
+				message.getMsgno(); result = 1;
+				subscriber.notifyDigestResponse(subSess, anyString, (DigestStatus) any); result = true;
+			}
+		};
+
+		final DigestListener digestListener = new DigestListener(subSess, digestsSent);
+		digestListener.receiveRPY(message);
+
+		// the second pair is not complete until whitespace follows it
+		assertEquals(2, digestsSent.size());
+		assertFalse(digestsSent.contains("1"));
+
+		addFrame(ids, "2\r\nunknown=333\r\n", true);
+		digestListener.receiveRPY(message);
+
+		new VerificationsInOrder() {
+			{
+				subscriber.notifyDigestResponse(subSess, "1", DigestStatus.Confirmed);
+				subscriber.notifyDigestResponse(subSess, "22", DigestStatus.Invalid);
+				subscriber.notifyDigestResponse(subSess, "333", DigestStatus.Unknown);
+			}
+		};
+		assertTrue(digestsSent.isEmpty());
+	}
+
+	@Test
+	public void testDigestListenerSendsOneSyncBatchWhenBatching(@Mocked final SubscriberSessionImpl subSess,
+			@Mocked final Message message, @Mocked final Channel channel, @Mocked final Subscriber subscriber)
+			throws Exception {
+
+		final DigestLedger digestsSent = new DigestLedger(32);
+		digestsSent.put("1", new byte[32]);
+		digestsSent.put("22", new byte[32]);
+		digestsSent.put("333", new byte[32]);
+
+		final InputDataStream ids = createDataStream("confirmed=1\r\nconfirmed=22\r\ninvalid=333", true);
+
+		new NonStrictExpectations() {
+			{
+				message.getDataStream(); result = ids;
+				Utils.processDigestResponseCount((InputDataStreamAdapter) any); result = 3;
+				subSess.getSubscriber(); result = subscriber;
+				subSess.isSyncBatching(); result = true;
+				message.getChannel(); result = channel;
+				message.getMsgno(); result = 1;
+				subscriber.notifyDigestResponse(subSess, anyString, (DigestStatus) any); result = true;
+			}
+		};
+
+		final DigestListener digestListener = new DigestListener(subSess, digestsSent);
+		digestListener.receiveRPY(message);
+
+		new Verifications() {
+			{
+				Utils.createSyncMessage(anyString); times = 0;
+				List<String> nonces;
+				Utils.createSyncBatchMessage(nonces = withCapture()); times = 1;
+				assertEquals(Arrays.asList("1", "22"), nonces);
+				channel.sendMSG((OutputDataStream) any, digestListener); times = 1;
+			}
+		};
+		assertTrue(digestsSent.isEmpty());
+	}
+
+	@Test
+	public void testDigestListenerSplitsLargeSyncBatch(@Mocked final SubscriberSessionImpl subSess,
+			@Mocked final Message message, @Mocked final Channel channel, @Mocked final Subscriber subscriber)
+			throws Exception {
+
+		final int count = Utils.MAX_SYNC_BATCH_NONCES + 1;
+		final DigestLedger digestsSent = new DigestLedger(32);
+		final StringBuilder response = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			digestsSent.put(Integer.toString(i), new byte[32]);
+			response.append("confirmed=").append(i).append("\r\n");
+		}
+
+		final InputDataStream ids = createDataStream(response.toString(), true);
+
+		new NonStrictExpectations() {
+			{
+				message.getDataStream(); result = ids;
+				Utils.processDigestResponseCount((InputDataStreamAdapter) any); result = count;
+				subSess.getSubscriber(); result = subscriber;
+				subSess.isSyncBatching(); result = true;
+				message.getChannel(); result = channel;
+				message.getMsgno(); result = 1;
+				subscriber.notifyDigestResponse(subSess, anyString, (DigestStatus) any); result = true;
+			}
+		};
+
+		final DigestListener digestListener = new DigestListener(subSess, digestsSent);
+		digestListener.receiveRPY(message);
+
+		new Verifications() {
+			{
+				final List<List<String>> batches = new ArrayList<List<String>>();
+				Utils.createSyncBatchMessage(withCapture(batches)); times = 2;
+				assertEquals(Utils.MAX_SYNC_BATCH_NONCES, batches.get(0).size());
+				assertEquals(Arrays.asList(Integer.toString(count - 1)), batches.get(1));
+				channel.sendMSG((OutputDataStream) any, digestListener); times = 2;
+			}
+		};
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testDigestListenerSendsNoSyncBatchWithoutConfirmedDigests(@Mocked final SubscriberSessionImpl subSess,
+			@Mocked final Message message, @Mocked final Channel channel, @Mocked final Subscriber subscriber)
+			throws Exception {
+
+		final DigestLedger digestsSent = new DigestLedger(32);
+		digestsSent.put("1", new byte[32]);
+
+		final InputDataStream ids = createDataStream("invalid=1", true);
+
+		new NonStrictExpectations() {
+			{
+				message.getDataStream(); result = ids;
+				Utils.processDigestResponseCount((InputDataStreamAdapter) any); result = 1;
+				subSess.getSubscriber(); result = subscriber;
+				subSess.isSyncBatching(); result = true;
+				message.getChannel(); result = channel;
+				message.getMsgno(); result = 1;
+				subscriber.notifyDigestResponse(subSess, anyString, (DigestStatus) any); result = true;
+			}
+		};
+
+		new DigestListener(subSess, digestsSent).receiveRPY(message);
+
+		new Verifications() {
+			{
+				Utils.createSyncBatchMessage((List<String>) any); times = 0;
+				channel.sendMSG((OutputDataStream) any, (DigestListener) any); times = 0;
+			}
+		};
+	}
+
+	@Test
+	public void testDigestListenerUpdatesRoundTrip(@Mocked final SubscriberSessionImpl subSess,
+			@Mocked final Message message, @Mocked final Channel channel, @Mocked final Subscriber subscriber)
+			throws Exception {
+
+		final DigestLedger digestsSent = new DigestLedger(32);
+		digestsSent.put("1", new byte[32]);
+		final DigestBatcher batcher = new DigestBatchPolicy(1000, 1024).open();
+		final ReceiveWindow window = new ReceiveWindowPolicy(65536, 1 << 20, 1 << 24)
+				.open(new ReceiveWindowTest.FakeChannel());
+
+		final InputDataStream ids = createDataStream("confirmed=1", true);
+
+		new NonStrictExpectations() {
+			{
+				message.getDataStream(); result = ids;
+				Utils.processDigestResponseCount((InputDataStreamAdapter) any); result = 1;
+				subSess.getSubscriber(); result = subscriber;
+				subSess.getDigestBatcher(); result = batcher;
+				subSess.getReceiveWindow(); result = window;
+				message.getChannel(); result = channel;
+				message.getMsgno(); result = 1;
+				subscriber.notifyDigestResponse(subSess, anyString, (DigestStatus) any); result = true;
+			}
+		};
+
+		final DigestListener digestListener = new DigestListener(subSess, digestsSent);
+		Thread.sleep(5);
+		digestListener.receiveRPY(message);
+
+		assertTrue(batcher.getRoundTripMillis() >= 5);
+		assertTrue(window.getRoundTripMillis() >= 5);
+	}
+
+	@Test(expected = AbortChannelException.class)
+	public void testDigestListenerThrowsExceptionWhenCountDoesNotMatch(@Mocked final SubscriberSessionImpl subSess,
+			@Mocked final Message message, @Mocked final Channel channel, @Mocked final Subscriber subscriber)
+			throws Exception {
+
+		final InputDataStream ids = createDataStream("confirmed=1\r\n", true);
+
+		new NonStrictExpectations() {
+			{
+				message.getDataStream(); result = ids;
+				Utils.processDigestResponseCount((InputDataStreamAdapter) any); result = 2;
+				subSess.getSubscriber(); result = subscriber;
+				message.getChannel(); result = channel;
+			}
+		};
+
+		new DigestListener(subSess, new DigestLedger(32)).receiveRPY(message);
+	}
+
+	@Test(expected = AbortChannelException.class)
+	public void testDigestListenerThrowsExceptionWithBadStatus(@Mocked final SubscriberSessionImpl subSess,
+			@Mocked final Message message, @Mocked final Channel channel, @Mocked final Subscriber subscriber)
+			throws Exception {
+
+		final InputDataStream ids = createDataStream("nothing=1\r\n", true);
+
+		new NonStrictExpectations() {
+			{
+				message.getDataStream(); result = ids;
+				Utils.processDigestResponseCount((InputDataStreamAdapter) any); result = 1;
+				message.getChannel(); result = channel;
+			}
+		};
+
+		new DigestListener(subSess, new DigestLedger(32)).receiveRPY(message);
 	}
 }
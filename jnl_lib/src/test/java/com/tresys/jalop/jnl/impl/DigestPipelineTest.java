@@ -0,0 +1,125 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+import java.security.MessageDigest;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import mockit.Mock;
+import mockit.MockUp;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DigestPipelineTest {
+
+	@Before
+	public void setUp() {
+		// Disable logging so the build doesn't get spammed.
+		Logger.getRootLogger().setLevel(Level.OFF);
+	}
+
+	@Test
+	public void testPipelineDigestMatchesDirectDigest() throws Exception {
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		final MessageDigest md = MessageDigest.getInstance("SHA-256");
+		final MessageDigest expected = MessageDigest.getInstance("SHA-256");
+		final DigestPipeline pipeline = new DigestPipeline(md, executor);
+
+		for (int i = 0; i < 100; i++) {
+			final byte[] buf = pipeline.acquire();
+			final int len = (i * 977) % DigestPipeline.BUFFER_SIZE;
+			for (int j = 0; j < len; j++) {
+				buf[j] = (byte) (i + j);
+			}
+			expected.update(buf, 0, len);
+			pipeline.submit(len);
+		}
+		pipeline.join();
+
+		assertArrayEquals(expected.digest(), md.digest());
+		executor.shutdown();
+	}
+
+	@Test
+	public void testAcquireRotatesThroughBuffers() throws Exception {
+		final MessageDigest md = MessageDigest.getInstance("SHA-256");
+		final DigestPipeline pipeline = new DigestPipeline(md, new Executor() {
+			@Override
+			public void execute(final Runnable command) {
+				command.run();
+			}
+		});
+
+		final byte[] first = pipeline.acquire();
+		pipeline.submit(0);
+		final byte[] second = pipeline.acquire();
+		assertNotSame(first, second);
+		assertEquals(DigestPipeline.BUFFER_SIZE, second.length);
+	}
+
+	@Test
+	public void testSubmitHashesOnCallerWhenExecutorRejects() throws Exception {
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		executor.shutdown();
+		final MessageDigest md = MessageDigest.getInstance("SHA-256");
+		final DigestPipeline pipeline = new DigestPipeline(md, executor);
+
+		final byte[] buf = pipeline.acquire();
+		buf[0] = 'a';
+		pipeline.submit(1);
+		pipeline.join();
+
+		assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(new byte[] { 'a' }), md.digest());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testJoinThrowsHashingFailure() throws Exception {
+		final MessageDigest md = MessageDigest.getInstance("SHA-256");
+		new MockUp<MessageDigest>() {
+			@Mock
+			void update(final byte[] input, final int offset, final int len) {
+				throw new IllegalStateException();
+			}
+		};
+		final DigestPipeline pipeline = new DigestPipeline(md, new Executor() {
+			@Override
+			public void execute(final Runnable command) {
+				command.run();
+			}
+		});
+
+		pipeline.acquire();
+		pipeline.submit(1);
+		pipeline.join();
+	}
+}
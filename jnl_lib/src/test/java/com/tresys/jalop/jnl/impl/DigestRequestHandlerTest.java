@@ -24,11 +24,14 @@
 
 package com.tresys.jalop.jnl.impl;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
-import java.util.HashMap;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 
 import javax.xml.soap.MimeHeaders;
@@ -38,21 +41,21 @@ import mockit.*;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.beepcore.beep.core.BEEPException;
-import org.beepcore.beep.core.Channel;
 import org.beepcore.beep.core.InputDataStream;
 import org.beepcore.beep.core.InputDataStreamAdapter;
 import org.beepcore.beep.core.MessageMSG;
 import org.beepcore.beep.core.OutputDataStream;
-import org.beepcore.beep.core.Session;
+import org.beepcore.beep.util.BufferSegment;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.tresys.jalop.jnl.BatchSyncPublisher;
 import com.tresys.jalop.jnl.DigestPair;
 import com.tresys.jalop.jnl.DigestStatus;
 import com.tresys.jalop.jnl.Publisher;
 import com.tresys.jalop.jnl.RecordType;
 import com.tresys.jalop.jnl.exceptions.JNLException;
-import com.tresys.jalop.jnl.impl.messages.DigestMessage;
+import com.tresys.jalop.jnl.impl.messages.SyncBatchMessage;
 import com.tresys.jalop.jnl.impl.messages.SyncMessage;
 import com.tresys.jalop.jnl.impl.messages.Utils;
 import com.tresys.jalop.jnl.impl.publisher.PublisherSessionImpl;
@@ -77,35 +80,46 @@ public class DigestRequestHandlerTest {
 		assertEquals(sess, drh.sess);
 	}
 
+	private static InputDataStream createDigestStream(final String digests) throws Exception {
+		final Constructor<InputDataStream> constructor = InputDataStream.class
+				.getDeclaredConstructor();
+		constructor.setAccessible(true);
+		final InputDataStream ds = constructor.newInstance();
+
+		final org.beepcore.beep.core.MimeHeaders mh = new org.beepcore.beep.core.MimeHeaders();
+		mh.setContentType(Utils.CT_JALOP);
+		mh.setHeader(Utils.HDRS_MESSAGE, Utils.MSG_DIGEST);
+		mh.setHeader(Utils.HDRS_COUNT, "1");
+
+		final Method addMethod = InputDataStream.class.getDeclaredMethod("add",
+				BufferSegment.class);
+		addMethod.setAccessible(true);
+		addMethod.invoke(ds, mh.getBufferSegment());
+		addMethod.invoke(ds, new BufferSegment(digests.getBytes("us-ascii")));
+
+		final Method completeMethod = InputDataStream.class
+				.getDeclaredMethod("setComplete");
+		completeMethod.setAccessible(true);
+		completeMethod.invoke(ds);
+		return ds;
+	}
+
 	@SuppressWarnings("unchecked")
 	@Test
 	public void testReceiveMSGWorks(@Mocked final ContextImpl contextImpl, @Mocked final MessageMSG msg,
-			@Mocked final Publisher publisher, @Mocked final DigestMessage digestMessage,
-			@Mocked final PublisherSessionImpl publisherSessionImpl, @Mocked final Session sess,
-			@Mocked final InputDataStream ids, @Mocked final InputDataStreamAdapter isa, @Mocked final Channel channel,
-			@Mocked final OutputDataStream ods)
-			throws JNLException, SecurityException, NoSuchMethodException, InstantiationException,
-			IllegalAccessException, InvocationTargetException, BEEPException {
+			@Mocked final Publisher publisher, @Mocked final PublisherSessionImpl publisherSessionImpl,
+			@Mocked final OutputDataStream ods) throws Exception {
 
 		final DigestRequestHandler drh = new DigestRequestHandler(RecordType.Audit, contextImpl, publisherSessionImpl);
-		final Constructor<DigestMessage> constructor = DigestMessage.class.getDeclaredConstructor(Map.class, MimeHeaders.class);
-		constructor.setAccessible(true);
-		final DigestMessage dm = constructor.newInstance(new HashMap<String, String>(), new MimeHeaders());
-		final Map<String, String> map = new HashMap<String, String>();
-		map.put("nonce", "313233343536");
+		final InputDataStream ids = createDigestStream("313233343536=nonce\r\n");
 
 		new NonStrictExpectations() {
 			{
 				msg.getDataStream(); result = ids;
-                ids.getInputStream(); result = isa;
-                isa.getHeaderValue(Utils.HDRS_MESSAGE); result = Utils.MSG_DIGEST;
-                Utils.processDigestMessage(isa); result = dm;
-				msg.getChannel(); result = channel;
-                channel.getSession(); result = sess;
-                dm.getMap(); result = map;
-                publisherSessionImpl.fetchAndRemoveDigest(anyString); result = "123456".getBytes();
-                contextImpl.getPublisher(); result = publisher;
-                Utils.createDigestResponse((Map<String, DigestStatus>) any); result = ods;
+				Utils.processDigestMessageCount((InputDataStreamAdapter) any); result = 1;
+				publisherSessionImpl.fetchAndRemoveDigest("nonce"); result = "123456".getBytes();
+				contextImpl.getPublisher(); result = publisher;
+				Utils.createDigestResponse((Map<String, DigestStatus>) any, (SegmentPool) any); result = ods;
 			}
 		};
 
@@ -113,47 +127,81 @@ public class DigestRequestHandlerTest {
 
 		new VerificationsInOrder() {
 			{
-				publisher.notifyPeerDigest(publisherSessionImpl, (Map<String, DigestPair>) any);
+				Map<String, DigestPair> pairs;
+				publisher.notifyPeerDigest(publisherSessionImpl, pairs = withCapture());
+				assertEquals(1, pairs.size());
+				assertEquals(DigestStatus.Confirmed, pairs.get("nonce").getDigestStatus());
+
+				Map<String, DigestStatus> statuses;
+				Utils.createDigestResponse(statuses = withCapture(), (SegmentPool) any);
+				assertEquals(DigestStatus.Confirmed, statuses.get("nonce"));
+
 				msg.sendRPY(ods);
 			}
 		};
 	}
 
-	@SuppressWarnings("unchecked")
 	@Test
 	public void testReceiveMSGSetsInvalid(@Mocked final ContextImpl contextImpl, @Mocked final MessageMSG msg,
-			@Mocked final Publisher publisher, @Mocked final DigestMessage digestMessage,
-			@Mocked final PublisherSessionImpl publisherSessionImpl, @Mocked final Session sess,
-			@Mocked final InputDataStream ids, @Mocked final InputDataStreamAdapter isa, @Mocked final Channel channel, @Mocked final byte[] any, @Mocked final String anyString, @Mocked final Map<String, DigestPair> anymap )
-			throws JNLException, SecurityException, NoSuchMethodException, InstantiationException,
-			IllegalAccessException, InvocationTargetException, BEEPException {
+			@Mocked final Publisher publisher, @Mocked final PublisherSessionImpl publisherSessionImpl)
+			throws Exception {
 
 		final DigestRequestHandler drh = new DigestRequestHandler(RecordType.Audit, contextImpl, publisherSessionImpl);
-		final Constructor<DigestMessage> constructor = DigestMessage.class.getDeclaredConstructor(Map.class, MimeHeaders.class);
-		constructor.setAccessible(true);
-		final DigestMessage dm = constructor.newInstance(new HashMap<String, String>(), new MimeHeaders());
-		final Map<String, String> map = new HashMap<String, String>();
-		map.put("nonce1", "9876543210");
+		final InputDataStream ids = createDigestStream("9876543210=nonce1\r\n");
 
 		new NonStrictExpectations() {
 			{
 				msg.getDataStream(); result = ids;
-                ids.getInputStream(); result = isa;
-                isa.getHeaderValue(Utils.HDRS_MESSAGE); result = Utils.MSG_DIGEST;
-                Utils.processDigestMessage(isa); result = dm;
-				msg.getChannel(); result = channel;
-                channel.getSession(); result = sess;
-                dm.getMap(); result = map;
-             //This fails due to mocking java hashmap in this method which jmockit does not support
-             //   publisherSessionImpl.fetchAndRemoveDigest(anyString); result = "123456".getBytes();
-                contextImpl.getPublisher(); result = publisher;
+				Utils.processDigestMessageCount((InputDataStreamAdapter) any); result = 1;
+				publisherSessionImpl.fetchAndRemoveDigest("nonce1"); result = "123456".getBytes();
+				contextImpl.getPublisher(); result = publisher;
+			}
+		};
+
+		drh.receiveMSG(msg);
+
+		new Verifications() {
+			{
+				Map<String, DigestPair> pairs;
+				publisher.notifyPeerDigest(publisherSessionImpl, pairs = withCapture());
+				assertEquals(DigestStatus.Invalid, pairs.get("nonce1").getDigestStatus());
+				assertArrayEquals(new byte[] { (byte) 0x98, 0x76, 0x54, 0x32, 0x10 },
+						pairs.get("nonce1").getPeerDigest());
+			}
+		};
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testReceiveMSGRespondsForDigestsBeforeMalformedEntry(@Mocked final ContextImpl contextImpl,
+			@Mocked final MessageMSG msg, @Mocked final Publisher publisher,
+			@Mocked final PublisherSessionImpl publisherSessionImpl, @Mocked final OutputDataStream ods)
+			throws Exception {
+
+		final DigestRequestHandler drh = new DigestRequestHandler(RecordType.Audit, contextImpl, publisherSessionImpl);
+		final InputDataStream ids = createDigestStream("313233343536=nonce\r\nxyz=nonce2\r\n");
+
+		new NonStrictExpectations() {
+			{
+				msg.getDataStream(); result = ids;
+				Utils.processDigestMessageCount((InputDataStreamAdapter) any); result = 2;
+				publisherSessionImpl.fetchAndRemoveDigest("nonce"); result = "123456".getBytes();
+				contextImpl.getPublisher(); result = publisher;
+				Utils.createDigestResponse((Map<String, DigestStatus>) any, (SegmentPool) any); result = ods;
 			}
 		};
 
 		drh.receiveMSG(msg);
 
-		new DigestPairImpl(anyString, (byte[])any, (byte[])any, DigestStatus.Invalid);
-		publisher.notifyPeerDigest(publisherSessionImpl, anymap);
+		new Verifications() {
+			{
+				Map<String, DigestStatus> statuses;
+				Utils.createDigestResponse(statuses = withCapture(), (SegmentPool) any);
+				assertEquals(1, statuses.size());
+				assertEquals(DigestStatus.Confirmed, statuses.get("nonce"));
+				msg.sendRPY(ods);
+			}
+		};
 	}
 
 	@Test
@@ -188,4 +236,104 @@ public class DigestRequestHandlerTest {
 		};
 	}
 
+	private static SyncBatchMessage createSyncBatchMessage(final List<String> nonces)
+			throws Exception {
+		final Constructor<SyncBatchMessage> constructor = SyncBatchMessage.class
+				.getDeclaredConstructor(List.class, MimeHeaders.class);
+		constructor.setAccessible(true);
+		return constructor.newInstance(nonces, new MimeHeaders());
+	}
+
+	@Test
+	public void testReceiveMSGWorksForSyncBatch(@Mocked final ContextImpl contextImpl, @Mocked final MessageMSG msg,
+			@Mocked final BatchSyncPublisher publisher, @Mocked final PublisherSessionImpl publisherSessionImpl,
+			@Mocked final InputDataStream ids, @Mocked final InputDataStreamAdapter isa)
+			throws Exception {
+
+		final DigestRequestHandler drh = new DigestRequestHandler(RecordType.Audit, contextImpl, publisherSessionImpl);
+		final List<String> nonces = Arrays.asList("1", "22");
+		final SyncBatchMessage sbm = createSyncBatchMessage(nonces);
+
+		new NonStrictExpectations() {
+			{
+				msg.getDataStream(); result = ids;
+				ids.getInputStream(); result = isa;
+				isa.getHeaderValue(Utils.HDRS_MESSAGE); result = Utils.MSG_SYNC_BATCH;
+				Utils.processSyncBatchMessage(isa); result = sbm;
+				contextImpl.getPublisher(); result = publisher;
+			}
+		};
+
+		drh.receiveMSG(msg);
+
+		new VerificationsInOrder() {
+			{
+				publisher.syncBatch(publisherSessionImpl, nonces, (MimeHeaders) any); times = 1;
+				msg.sendNUL();
+			}
+		};
+		new Verifications() {
+			{
+				publisher.sync(publisherSessionImpl, anyString, (MimeHeaders) any); times = 0;
+			}
+		};
+	}
+
+	@Test
+	public void testReceiveMSGSyncsEachNonceOfSyncBatch(@Mocked final ContextImpl contextImpl, @Mocked final MessageMSG msg,
+			@Mocked final Publisher publisher, @Mocked final PublisherSessionImpl publisherSessionImpl,
+			@Mocked final InputDataStream ids, @Mocked final InputDataStreamAdapter isa)
+			throws Exception {
+
+		final DigestRequestHandler drh = new DigestRequestHandler(RecordType.Audit, contextImpl, publisherSessionImpl);
+		final SyncBatchMessage sbm = createSyncBatchMessage(Arrays.asList("1", "22"));
+
+		new NonStrictExpectations() {
+			{
+				msg.getDataStream(); result = ids;
+				ids.getInputStream(); result = isa;
+				isa.getHeaderValue(Utils.HDRS_MESSAGE); result = Utils.MSG_SYNC_BATCH;
+				Utils.processSyncBatchMessage(isa); result = sbm;
+				contextImpl.getPublisher(); result = publisher;
+			}
+		};
+
+		drh.receiveMSG(msg);
+
+		new VerificationsInOrder() {
+			{
+				publisher.sync(publisherSessionImpl, "1", (MimeHeaders) any);
+				publisher.sync(publisherSessionImpl, "22", (MimeHeaders) any);
+				msg.sendNUL();
+			}
+		};
+	}
+
+	@Test
+	public void testReceiveMSGDoesNotSyncMalformedSyncBatch(@Mocked final ContextImpl contextImpl, @Mocked final MessageMSG msg,
+			@Mocked final Publisher publisher, @Mocked final PublisherSessionImpl publisherSessionImpl,
+			@Mocked final InputDataStream ids, @Mocked final InputDataStreamAdapter isa)
+			throws Exception {
+
+		final DigestRequestHandler drh = new DigestRequestHandler(RecordType.Audit, contextImpl, publisherSessionImpl);
+
+		new NonStrictExpectations() {
+			{
+				msg.getDataStream(); result = ids;
+				ids.getInputStream(); result = isa;
+				isa.getHeaderValue(Utils.HDRS_MESSAGE); result = Utils.MSG_SYNC_BATCH;
+				Utils.processSyncBatchMessage(isa); result = new IllegalArgumentException("bad count");
+				contextImpl.getPublisher(); result = publisher;
+			}
+		};
+
+		drh.receiveMSG(msg);
+
+		new Verifications() {
+			{
+				publisher.sync(publisherSessionImpl, anyString, (MimeHeaders) any); times = 0;
+				msg.sendNUL(); times = 0;
+			}
+		};
+	}
 }
@@ -0,0 +1,283 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tresys.jalop.jnl.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.beepcore.beep.util.BufferSegment;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JNLOutputDataStreamTest {
+
+	@Before
+	public void setUp() {
+		// Disable logging so the build doesn't get spammed.
+		Logger.getRootLogger().setLevel(Level.OFF);
+	}
+
+	@Test
+	public void testHeadersAreTheFirstSegment() {
+		final BufferSegment headers = new BufferSegment(new byte[10]);
+		final JNLOutputDataStream ods = new JNLOutputDataStream(headers, 4);
+		ods.add(new BufferSegment(new byte[20]));
+		assertSame(headers.getData(), ods.getNextSegment(100).getData());
+		assertEquals(20, ods.getNextSegment(100).getLength());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testAddPooledThrowsExceptionWithoutSegmentPool() {
+		final JNLOutputDataStream ods = new JNLOutputDataStream(
+				new BufferSegment(new byte[1]), 4);
+		ods.addPooled(new byte[256], 10);
+	}
+
+	@Test
+	public void testPooledBufferIsReusedOnceFullySent() {
+		final BufferPool pool = new BufferPool(256, 256, 4);
+		final SegmentPool segments = new SegmentPool(pool, new Object());
+		final JNLOutputDataStream ods = new JNLOutputDataStream(
+				new BufferSegment(new byte[1]), 4, segments);
+
+		final byte[] buf = segments.acquire(256);
+		ods.addPooled(buf, 200);
+		// the headers
+		ods.getNextSegment(100);
+		ods.getNextSegment(100);
+
+		// only half of the buffer has been sent
+		final byte[] other = segments.acquire(256);
+		assertNotSame(buf, other);
+		segments.recycle(other);
+
+		final BufferSegment rest = ods.getNextSegment(100);
+		assertSame(buf, rest.getData());
+		assertEquals(100, rest.getOffset());
+		assertEquals(100, rest.getLength());
+
+		// the sent buffer is reclaimed on top of the recycled one
+		assertSame(buf, segments.acquire(256));
+		assertSame(other, segments.acquire(256));
+	}
+
+	@Test
+	public void testUnpooledSegmentsAreNotReused() {
+		final BufferPool pool = new BufferPool(256, 256, 4);
+		final SegmentPool segments = new SegmentPool(pool, new Object());
+		final JNLOutputDataStream ods = new JNLOutputDataStream(
+				new BufferSegment(new byte[256]), 4, segments);
+
+		final byte[] plain = new byte[256];
+		ods.add(new BufferSegment(plain));
+		ods.getNextSegment(1000);
+		ods.getNextSegment(1000);
+
+		segments.reclaim();
+		assertEquals(0, pool.getReusedCount());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructorThrowsExceptionWithZeroMaxBuffers() {
+		new JNLOutputDataStream(new BufferSegment(new byte[1]), 0);
+	}
+
+	@Test
+	public void testQueueDepthCountsPartlySentSegments() {
+		final JNLOutputDataStream ods = new JNLOutputDataStream(
+				new BufferSegment(new byte[1]), 4);
+		ods.add(new BufferSegment(new byte[100]));
+		assertEquals(2, ods.getQueueDepth());
+
+		ods.getNextSegment(100);
+		assertEquals(1, ods.getQueueDepth());
+		ods.getNextSegment(40);
+		ods.getNextSegment(40);
+		assertEquals(1, ods.getQueueDepth());
+		assertEquals(20, ods.getNextSegment(40).getLength());
+		assertEquals(0, ods.getQueueDepth());
+		assertEquals(2, ods.getPeakQueueDepth());
+	}
+
+	@Test
+	public void testAddWaitsForRoom() throws Exception {
+		final JNLOutputDataStream ods = new JNLOutputDataStream(
+				new BufferSegment(new byte[1]), 2);
+		ods.add(new BufferSegment(new byte[10]));
+		assertEquals(0, ods.getWaitCount());
+
+		final CountDownLatch added = new CountDownLatch(1);
+		final Thread t = new Thread() {
+			@Override
+			public void run() {
+				ods.add(new BufferSegment(new byte[20]));
+				added.countDown();
+			}
+		};
+		t.start();
+
+		assertFalse(added.await(200, TimeUnit.MILLISECONDS));
+		// the headers
+		ods.getNextSegment(100);
+		assertTrue(added.await(10, TimeUnit.SECONDS));
+
+		assertEquals(1, ods.getWaitCount());
+		assertTrue(ods.getWaitNanos() > 0);
+		assertEquals(2, ods.getQueueDepth());
+		assertEquals(10, ods.getNextSegment(100).getLength());
+		assertEquals(20, ods.getNextSegment(100).getLength());
+	}
+
+	@Test
+	public void testCancelReleasesWaitingProducer() throws Exception {
+		final BufferPool pool = new BufferPool(256, 256, 4);
+		final SegmentPool segments = new SegmentPool(pool, new Object());
+		final JNLOutputDataStream ods = new JNLOutputDataStream(
+				new BufferSegment(new byte[1]), 1, segments);
+		final byte[] buf = segments.acquire(256);
+
+		final CountDownLatch added = new CountDownLatch(1);
+		final Thread t = new Thread() {
+			@Override
+			public void run() {
+				ods.addPooled(buf, 10);
+				added.countDown();
+			}
+		};
+		t.start();
+
+		assertFalse(added.await(200, TimeUnit.MILLISECONDS));
+		ods.cancel();
+		assertTrue(added.await(10, TimeUnit.SECONDS));
+
+		assertTrue(ods.isCancelled());
+		assertEquals(1, ods.getNumSegments());
+		// the discarded buffer went straight back to the pool
+		assertSame(buf, segments.acquire(256));
+
+		ods.setComplete();
+		assertFalse(ods.isComplete());
+	}
+
+	@Test
+	public void testInterruptCancelsStream() throws Exception {
+		final JNLOutputDataStream ods = new JNLOutputDataStream(
+				new BufferSegment(new byte[1]), 1);
+		final boolean[] interrupted = new boolean[1];
+		final Thread t = new Thread() {
+			@Override
+			public void run() {
+				ods.add(new BufferSegment(new byte[10]));
+				interrupted[0] = Thread.currentThread().isInterrupted();
+			}
+		};
+		t.start();
+		t.interrupt();
+		t.join(10000);
+
+		assertFalse(t.isAlive());
+		assertTrue(interrupted[0]);
+		assertTrue(ods.isCancelled());
+		assertEquals(1, ods.getNumSegments());
+	}
+
+	@Test
+	public void testBytesSentCountsHandedOutBytes() throws Exception {
+		final JNLOutputDataStream ods = new JNLOutputDataStream(
+				new BufferSegment(new byte[5]), 4);
+		ods.add(new BufferSegment(new byte[100]));
+		assertEquals(0, ods.getBytesSent());
+
+		ods.getNextSegment(100);
+		Thread.sleep(5);
+		ods.getNextSegment(60);
+		ods.getNextSegment(60);
+		assertEquals(105, ods.getBytesSent());
+		assertTrue(ods.getSendNanos() > 0);
+	}
+
+	@Test
+	public void testStallIsOnlyMeasuredWhileSegmentsAreQueued() throws Exception {
+		final JNLOutputDataStream ods = new JNLOutputDataStream(
+				new BufferSegment(new byte[5]), 4);
+		ods.add(new BufferSegment(new byte[100]));
+
+		// beepcore leaves a queued segment alone while it waits for window
+		ods.getNextSegment(100);
+		Thread.sleep(5);
+		ods.getNextSegment(60);
+		ods.getNextSegment(60);
+		final long stall = ods.getStallNanos();
+		assertTrue(stall >= 5 * 1000 * 1000);
+
+		// waiting for the producer is not a stall
+		Thread.sleep(300);
+		ods.add(new BufferSegment(new byte[10]));
+		ods.getNextSegment(60);
+		assertEquals(stall, ods.getStallNanos());
+		assertTrue(stall < 300L * 1000 * 1000);
+	}
+
+	@Test
+	public void testUnderrunCountsFullQueueThatWasEmptied() throws Exception {
+		final JNLOutputDataStream ods = new JNLOutputDataStream(
+				new BufferSegment(new byte[1]), 2);
+		ods.add(new BufferSegment(new byte[10]));
+		ods.getNextSegment(100);
+		ods.getNextSegment(100);
+
+		// the queue never filled, so beepcore was not held back by it
+		ods.add(new BufferSegment(new byte[10]));
+		assertEquals(0, ods.getUnderrunCount());
+		ods.add(new BufferSegment(new byte[10]));
+
+		final CountDownLatch added = new CountDownLatch(1);
+		final Thread t = new Thread() {
+			@Override
+			public void run() {
+				ods.add(new BufferSegment(new byte[10]));
+				added.countDown();
+			}
+		};
+		t.start();
+		assertFalse(added.await(100, TimeUnit.MILLISECONDS));
+		ods.getNextSegment(100);
+		assertTrue(added.await(10, TimeUnit.SECONDS));
+		ods.getNextSegment(100);
+		ods.getNextSegment(100);
+		assertEquals(0, ods.getUnderrunCount());
+
+		ods.add(new BufferSegment(new byte[10]));
+		assertEquals(1, ods.getUnderrunCount());
+	}
+}
@@ -0,0 +1,182 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tresys.jalop.jnl.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MessageDigestPoolTest {
+
+	@Before
+	public void setUp() {
+		// Disable logging so the build doesn't get spammed.
+		Logger.getRootLogger().setLevel(Level.OFF);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructorThrowsExceptionWithNegativeMaxIdle() throws Exception {
+		new MessageDigestPool("SHA-256", -1);
+	}
+
+	@Test(expected = NoSuchAlgorithmException.class)
+	public void testConstructorThrowsExceptionWithUnknownAlgorithm() throws Exception {
+		new MessageDigestPool("NOT-A-DIGEST", 1);
+	}
+
+	@Test
+	public void testConstructorWorks() throws Exception {
+		final MessageDigestPool pool = new MessageDigestPool("SHA-256", 4);
+		assertEquals("SHA-256", pool.getAlgorithm());
+		assertEquals(32, pool.getDigestLength());
+		assertEquals(4, pool.getMaxIdle());
+		assertEquals(1, pool.getIdleCount());
+		assertEquals(1, pool.getCreatedCount());
+	}
+
+	@Test
+	public void testForAlgorithmReturnsSameInstance() throws Exception {
+		assertSame(MessageDigestPool.forAlgorithm("SHA-384"),
+				MessageDigestPool.forAlgorithm("SHA-384"));
+		assertNotSame(MessageDigestPool.forAlgorithm("SHA-384"),
+				MessageDigestPool.forAlgorithm("SHA-512"));
+	}
+
+	@Test
+	public void testReleasedEngineIsResetAndReused() throws Exception {
+		final MessageDigestPool pool = new MessageDigestPool("SHA-256", 4);
+		final MessageDigest md = pool.acquire();
+		md.update(new byte[] { 1, 2, 3 });
+		pool.release(md);
+
+		final MessageDigest again = pool.acquire();
+		assertSame(md, again);
+		assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(), again.digest());
+		assertEquals(1, pool.getCreatedCount());
+	}
+
+	@Test
+	public void testAcquireCreatesEngineWhenNoneIsIdle() throws Exception {
+		final MessageDigestPool pool = new MessageDigestPool("SHA-256", 4);
+		final MessageDigest first = pool.acquire();
+		final MessageDigest second = pool.acquire();
+		assertNotSame(first, second);
+		assertEquals(2, pool.getCreatedCount());
+		assertEquals(0, pool.getIdleCount());
+	}
+
+	@Test
+	public void testReleaseKeepsAtMostMaxIdleEngines() throws Exception {
+		final MessageDigestPool pool = new MessageDigestPool("SHA-256", 2);
+		final List<MessageDigest> engines = new ArrayList<MessageDigest>();
+		for (int i = 0; i < 5; i++) {
+			engines.add(pool.acquire());
+		}
+		for (final MessageDigest md : engines) {
+			pool.release(md);
+		}
+		assertEquals(2, pool.getIdleCount());
+	}
+
+	@Test
+	public void testReleaseIgnoresNullAndOtherAlgorithms() throws Exception {
+		final MessageDigestPool pool = new MessageDigestPool("SHA-256", 4);
+		pool.acquire();
+		pool.release(null);
+		pool.release(MessageDigest.getInstance("SHA-512"));
+		assertEquals(0, pool.getIdleCount());
+	}
+
+	@Test
+	public void testConcurrentUseProducesCorrectDigests() throws Exception {
+		final int threads = 16;
+		// keep an idle engine for every thread, so released engines are
+		// never dropped and the number created stays bounded
+		final MessageDigestPool pool = new MessageDigestPool("SHA-256", threads);
+		final int iterations = 500;
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicInteger mismatches = new AtomicInteger();
+		final List<Thread> workers = new ArrayList<Thread>();
+
+		for (int t = 0; t < threads; t++) {
+			final Random random = new Random(t);
+			final Thread worker = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						final MessageDigest reference = MessageDigest.getInstance("SHA-256");
+						for (int i = 0; i < iterations; i++) {
+							final byte[] data = new byte[random.nextInt(4096)];
+							random.nextBytes(data);
+							final MessageDigest md = pool.acquire();
+							try {
+								// hash in pieces so a shared engine would interleave
+								final int half = data.length / 2;
+								md.update(data, 0, half);
+								Thread.yield();
+								md.update(data, half, data.length - half);
+								if (!MessageDigest.isEqual(reference.digest(data), md.digest())) {
+									mismatches.incrementAndGet();
+								}
+							} finally {
+								pool.release(md);
+							}
+						}
+					} catch (final Exception e) {
+						mismatches.incrementAndGet();
+					}
+				}
+			};
+			worker.start();
+			workers.add(worker);
+		}
+
+		start.countDown();
+		for (final Thread worker : workers) {
+			worker.join(60000);
+			assertFalse(worker.isAlive());
+		}
+		assertEquals(0, mismatches.get());
+		assertTrue(pool.getCreatedCount() <= threads + 1);
+		assertTrue(pool.getIdleCount() <= pool.getMaxIdle());
+	}
+}
@@ -0,0 +1,350 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tresys.jalop.jnl.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import mockit.Mocked;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.beepcore.beep.core.BEEPException;
+import org.beepcore.beep.core.Channel;
+import org.beepcore.beep.core.MessageStatus;
+import org.beepcore.beep.core.OutputDataStream;
+import org.beepcore.beep.core.ReplyListener;
+import org.beepcore.beep.core.RequestHandler;
+import org.beepcore.beep.core.Session;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReceiveWindowTest {
+
+	/**
+	 * A {@link Channel} that records the receive window it is given, like
+	 * the beepcore channel implementation.
+	 */
+	public static class FakeChannel implements Channel {
+
+		int size = ReceiveWindowPolicy.BEEP_DEFAULT_WINDOW;
+		int calls;
+		boolean fail;
+
+		public void setReceiveBufferSize(final int size) throws BEEPException {
+			this.calls++;
+			if (this.fail) {
+				throw new BEEPException("Channel is closing");
+			}
+			this.size = size;
+		}
+
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public Object getAppData() {
+			return null;
+		}
+
+		@Override
+		public void setAppData(final Object data) {
+		}
+
+		@Override
+		public int getNumber() {
+			return 1;
+		}
+
+		@Override
+		public RequestHandler getRequestHandler() {
+			return null;
+		}
+
+		@Override
+		public RequestHandler setRequestHandler(final RequestHandler handler) {
+			return null;
+		}
+
+		@Override
+		public RequestHandler setRequestHandler(final RequestHandler handler,
+				final boolean tuningReset) {
+			return null;
+		}
+
+		@Override
+		public Session getSession() {
+			return null;
+		}
+
+		@Override
+		public int getState() {
+			return STATE_ACTIVE;
+		}
+
+		@Override
+		public MessageStatus sendMSG(final OutputDataStream ods,
+				final ReplyListener listener) {
+			return null;
+		}
+
+		@Override
+		@Deprecated
+		public void setStartData(final String data) {
+		}
+
+		@Override
+		@Deprecated
+		public String getStartData() {
+			return null;
+		}
+
+		@Override
+		public String getProfile() {
+			return null;
+		}
+	}
+
+	@Before
+	public void setUp() {
+		// Disable logging so the build doesn't get spammed.
+		Logger.getRootLogger().setLevel(Level.OFF);
+	}
+
+	private static final long ROUND_TRIP_NANOS = 50L * 1000 * 1000;
+
+	private long now = 1000L * 1000 * 1000;
+
+	/**
+	 * Open a window on <code>ch</code> whose round trip time is known, and
+	 * start its first sample.
+	 */
+	private ReceiveWindow open(final ReceiveWindowPolicy policy, final Channel ch) {
+		final ReceiveWindow window = policy.open(ch);
+		window.updateRoundTrip(ROUND_TRIP_NANOS);
+		window.received(0, this.now);
+		return window;
+	}
+
+	/**
+	 * Receive <code>bytes</code> over one round trip.
+	 */
+	private void roundTrip(final ReceiveWindow window, final long bytes) {
+		this.now += ROUND_TRIP_NANOS;
+		window.received(bytes, this.now);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructorThrowsExceptionWithSmallInitialWindow() {
+		new ReceiveWindowPolicy(1024, 65536, 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructorThrowsExceptionWhenMaxBelowInitial() {
+		new ReceiveWindowPolicy(65536, 8192, 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructorThrowsExceptionWithNegativeGlobalLimit() {
+		new ReceiveWindowPolicy(8192, 65536, -1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testOpenThrowsExceptionWithNullChannel() {
+		ReceiveWindowPolicy.getDefault().open(null);
+	}
+
+	@Test
+	public void testGetDefaultReturnsSameInstance() {
+		assertSame(ReceiveWindowPolicy.getDefault(), ReceiveWindowPolicy.getDefault());
+	}
+
+	@Test
+	public void testOpenAppliesInitialWindow() {
+		final ReceiveWindowPolicy policy = new ReceiveWindowPolicy(65536, 1 << 20, 1 << 24);
+		final FakeChannel ch = new FakeChannel();
+		final ReceiveWindow window = policy.open(ch);
+		assertEquals(65536, window.getSize());
+		assertEquals(65536, ch.size);
+		assertEquals(65536 - ReceiveWindowPolicy.BEEP_DEFAULT_WINDOW, policy.getReserved());
+	}
+
+	@Test
+	public void testOpenIsLimitedByGlobalBudget() {
+		final ReceiveWindowPolicy policy = new ReceiveWindowPolicy(65536, 1 << 20, 8192);
+		final FakeChannel ch1 = new FakeChannel();
+		final FakeChannel ch2 = new FakeChannel();
+		assertEquals(ReceiveWindowPolicy.BEEP_DEFAULT_WINDOW + 8192, policy.open(ch1).getSize());
+		final ReceiveWindow w2 = policy.open(ch2);
+		assertEquals(ReceiveWindowPolicy.BEEP_DEFAULT_WINDOW, w2.getSize());
+		assertEquals(0, ch2.calls);
+		assertEquals(8192, policy.getReserved());
+	}
+
+	@Test
+	public void testWindowIsNotTunedUntilRoundTripIsKnown() {
+		final ReceiveWindowPolicy policy = new ReceiveWindowPolicy(65536, 1 << 22, 1 << 26);
+		final FakeChannel ch = new FakeChannel();
+		final ReceiveWindow window = policy.open(ch);
+		final int calls = ch.calls;
+		for (int i = 0; i < 10; i++) {
+			roundTrip(window, 65536);
+		}
+		assertEquals(65536, window.getSize());
+		assertEquals(calls, ch.calls);
+		assertEquals(0, window.getRoundTripMillis());
+	}
+
+	@Test
+	public void testSaturatedWindowDoublesEachRoundTrip() {
+		final ReceiveWindowPolicy policy = new ReceiveWindowPolicy(65536, 1 << 22, 1 << 26);
+		final FakeChannel ch = new FakeChannel();
+		final ReceiveWindow window = open(policy, ch);
+
+		roundTrip(window, 65536);
+		assertEquals(1 << 17, window.getSize());
+		roundTrip(window, 1 << 17);
+		assertEquals(1 << 18, window.getSize());
+		assertEquals(1 << 18, ch.size);
+		assertEquals((1 << 18) - ReceiveWindowPolicy.BEEP_DEFAULT_WINDOW, policy.getReserved());
+		assertEquals((1L << 17) * 20, window.getReceiveRate());
+	}
+
+	@Test
+	public void testSaturatedWindowIsClampedToMaxWindow() {
+		final ReceiveWindowPolicy policy = new ReceiveWindowPolicy(65536, 1 << 20, 1 << 26);
+		final FakeChannel ch = new FakeChannel();
+		final ReceiveWindow window = open(policy, ch);
+		for (int i = 0; i < 10; i++) {
+			roundTrip(window, window.getSize());
+		}
+		assertEquals(1 << 20, window.getSize());
+		final int calls = ch.calls;
+		roundTrip(window, window.getSize());
+		assertEquals(calls, ch.calls);
+	}
+
+	@Test
+	public void testSmallRecordsCountTowardsSaturation() {
+		final ReceiveWindowPolicy policy = new ReceiveWindowPolicy(65536, 1 << 22, 1 << 26);
+		final ReceiveWindow window = open(policy, new FakeChannel());
+		for (int i = 0; i < 1024; i++) {
+			window.received(64, this.now + i);
+		}
+		roundTrip(window, 0);
+		assertEquals(1 << 17, window.getSize());
+	}
+
+	@Test
+	public void testWindowIsNotTunedWithinARoundTrip() {
+		final ReceiveWindowPolicy policy = new ReceiveWindowPolicy(65536, 1 << 22, 1 << 26);
+		final ReceiveWindow window = open(policy, new FakeChannel());
+		window.received(1 << 20, this.now + ROUND_TRIP_NANOS - 1);
+		assertEquals(65536, window.getSize());
+		assertEquals(0, window.getReceiveRate());
+	}
+
+	@Test
+	public void testWindowShrinksToTwiceWhatIsReceivedButNotBelowInitialWindow() {
+		final ReceiveWindowPolicy policy = new ReceiveWindowPolicy(65536, 1 << 22, 1 << 26);
+		final ReceiveWindow window = open(policy, new FakeChannel());
+		for (int i = 0; i < 6; i++) {
+			roundTrip(window, window.getSize());
+		}
+		assertEquals(1 << 22, window.getSize());
+
+		roundTrip(window, 1 << 19);
+		assertEquals(1 << 20, window.getSize());
+		assertEquals((1 << 20) - ReceiveWindowPolicy.BEEP_DEFAULT_WINDOW, policy.getReserved());
+
+		roundTrip(window, 1024);
+		assertEquals(65536, window.getSize());
+		assertEquals(65536 - ReceiveWindowPolicy.BEEP_DEFAULT_WINDOW, policy.getReserved());
+	}
+
+	@Test
+	public void testWindowThatIsNearlyFilledIsLeftAlone() {
+		final ReceiveWindowPolicy policy = new ReceiveWindowPolicy(65536, 1 << 22, 1 << 26);
+		final FakeChannel ch = new FakeChannel();
+		final ReceiveWindow window = open(policy, ch);
+		roundTrip(window, 65536);
+		roundTrip(window, 1 << 17);
+		final int calls = ch.calls;
+
+		// neither saturated nor far enough below the window to shrink it
+		roundTrip(window, 1 << 17);
+		roundTrip(window, 100000);
+		assertEquals(calls, ch.calls);
+		assertEquals(1 << 18, window.getSize());
+	}
+
+	@Test
+	public void testUpdateRoundTripIsSmoothed() {
+		final ReceiveWindow window = new ReceiveWindowPolicy(65536, 1 << 22, 1 << 26)
+				.open(new FakeChannel());
+		window.updateRoundTrip(100L * 1000 * 1000);
+		assertEquals(100, window.getRoundTripMillis());
+		window.updateRoundTrip(500L * 1000 * 1000);
+		assertEquals(200, window.getRoundTripMillis());
+		window.updateRoundTrip(0);
+		assertEquals(200, window.getRoundTripMillis());
+	}
+
+	@Test
+	public void testFailedResizeKeepsWindowAndReleasesBudget() {
+		final ReceiveWindowPolicy policy = new ReceiveWindowPolicy(65536, 1 << 22, 1 << 26);
+		final FakeChannel ch = new FakeChannel();
+		final ReceiveWindow window = open(policy, ch);
+		ch.fail = true;
+		roundTrip(window, 65536);
+		assertEquals(65536, window.getSize());
+		assertEquals(65536, ch.size);
+		assertEquals(65536 - ReceiveWindowPolicy.BEEP_DEFAULT_WINDOW, policy.getReserved());
+	}
+
+	@Test
+	public void testApplyReturnsFalseWithoutSetter(@Mocked final Channel ch) {
+		assertFalse(ReceiveWindow.apply(ch, 8192));
+		final ReceiveWindowPolicy policy = new ReceiveWindowPolicy(65536, 1 << 22, 1 << 26);
+		assertEquals(ReceiveWindowPolicy.BEEP_DEFAULT_WINDOW, policy.open(ch).getSize());
+		assertEquals(0, policy.getReserved());
+	}
+
+	@Test
+	public void testCloseReleasesBudget() {
+		final ReceiveWindowPolicy policy = new ReceiveWindowPolicy(65536, 1 << 22, 1 << 26);
+		final ReceiveWindow window = open(policy, new FakeChannel());
+		roundTrip(window, 65536);
+		window.close();
+		assertEquals(0, policy.getReserved());
+
+		// a closed window is no longer tuned
+		roundTrip(window, 1 << 17);
+		assertEquals(0, policy.getReserved());
+		assertEquals(1 << 17, window.getSize());
+	}
+}
@@ -0,0 +1,391 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tresys.jalop.jnl.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.beepcore.beep.core.InputDataStream;
+import org.beepcore.beep.util.BufferSegment;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RecordDispatcherTest {
+
+	@Before
+	public void setUp() {
+		// Disable logging so the build doesn't get spammed.
+		Logger.getRootLogger().setLevel(Level.OFF);
+	}
+
+	private static InputDataStream createDataStream(final int size,
+			final boolean complete) throws Exception {
+		final Constructor<InputDataStream> constructor = InputDataStream.class
+				.getDeclaredConstructor();
+		constructor.setAccessible(true);
+		final InputDataStream ds = constructor.newInstance();
+
+		final Method addMethod = InputDataStream.class.getDeclaredMethod("add",
+				BufferSegment.class);
+		addMethod.setAccessible(true);
+		addMethod.invoke(ds, new BufferSegment(new byte[size]));
+
+		if (complete) {
+			final Method completeMethod = InputDataStream.class
+					.getDeclaredMethod("setComplete");
+			completeMethod.setAccessible(true);
+			completeMethod.invoke(ds);
+		}
+		return ds;
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructorThrowsExceptionWithZeroThreads() {
+		new RecordDispatcher(0, 1, 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructorThrowsExceptionWithZeroQueueDepth() {
+		new RecordDispatcher(1, 0, 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructorThrowsExceptionWithNegativeInlineThreshold() {
+		new RecordDispatcher(1, 1, -1);
+	}
+
+	@Test
+	public void testRegisterSpreadsSessionsAcrossLanes() {
+		final RecordDispatcher rd = new RecordDispatcher(3, 4, 0);
+		assertEquals(0, rd.register().getLaneIndex());
+		assertEquals(1, rd.register().getLaneIndex());
+		assertEquals(2, rd.register().getLaneIndex());
+		assertEquals(0, rd.register().getLaneIndex());
+		rd.shutdown();
+	}
+
+	@Test
+	public void testGetDefaultReturnsSameInstance() {
+		assertSame(RecordDispatcher.getDefault(), RecordDispatcher.getDefault());
+	}
+
+	@Test
+	public void testDispatchKeepsSessionOrder() throws Exception {
+		final RecordDispatcher rd = new RecordDispatcher(2, 1000, 0);
+		final RecordDispatcher.SessionQueue sq = rd.register();
+		final List<Integer> seen = Collections.synchronizedList(new ArrayList<Integer>());
+		final CountDownLatch done = new CountDownLatch(500);
+
+		for (int i = 0; i < 500; i++) {
+			final int idx = i;
+			sq.dispatch(createDataStream(10, true), new Runnable() {
+				@Override
+				public void run() {
+					seen.add(idx);
+					done.countDown();
+				}
+			});
+		}
+
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		for (int i = 0; i < 500; i++) {
+			assertEquals(Integer.valueOf(i), seen.get(i));
+		}
+		rd.shutdown();
+	}
+
+	@Test
+	public void testDispatchRunsSmallCompleteRecordInline() throws Exception {
+		final RecordDispatcher rd = new RecordDispatcher(1, 4, 100);
+		final RecordDispatcher.SessionQueue sq = rd.register();
+		final Thread caller = Thread.currentThread();
+		final Thread[] ran = new Thread[1];
+
+		sq.dispatch(createDataStream(100, true), new Runnable() {
+			@Override
+			public void run() {
+				ran[0] = Thread.currentThread();
+			}
+		});
+
+		assertSame(caller, ran[0]);
+		assertEquals(1, rd.getInlineCount());
+		rd.shutdown();
+	}
+
+	@Test
+	public void testDispatchDoesNotRunLargeOrIncompleteRecordInline() throws Exception {
+		final RecordDispatcher rd = new RecordDispatcher(1, 4, 100);
+		final RecordDispatcher.SessionQueue sq = rd.register();
+		final Thread caller = Thread.currentThread();
+		final List<Thread> ran = Collections.synchronizedList(new ArrayList<Thread>());
+		final CountDownLatch done = new CountDownLatch(2);
+		final Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				ran.add(Thread.currentThread());
+				done.countDown();
+			}
+		};
+
+		sq.dispatch(createDataStream(101, true), task);
+		sq.dispatch(createDataStream(10, false), task);
+
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertNotSame(caller, ran.get(0));
+		assertNotSame(caller, ran.get(1));
+		assertEquals(0, rd.getInlineCount());
+		rd.shutdown();
+	}
+
+	@Test
+	public void testDispatchDoesNotRunInlineWhileSessionHasQueuedRecords() throws Exception {
+		final RecordDispatcher rd = new RecordDispatcher(1, 4, 100);
+		final RecordDispatcher.SessionQueue sq = rd.register();
+		final CountDownLatch release = new CountDownLatch(1);
+		final List<Integer> seen = Collections.synchronizedList(new ArrayList<Integer>());
+		final CountDownLatch done = new CountDownLatch(2);
+
+		sq.dispatch(createDataStream(1000, true), new Runnable() {
+			@Override
+			public void run() {
+				try {
+					release.await();
+				} catch (final InterruptedException e) {
+					// ignore
+				}
+				seen.add(0);
+				done.countDown();
+			}
+		});
+		sq.dispatch(createDataStream(10, true), new Runnable() {
+			@Override
+			public void run() {
+				seen.add(1);
+				done.countDown();
+			}
+		});
+
+		assertEquals(2, sq.getOutstanding());
+		release.countDown();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(Integer.valueOf(0), seen.get(0));
+		assertEquals(Integer.valueOf(1), seen.get(1));
+		assertEquals(0, rd.getInlineCount());
+		rd.shutdown();
+	}
+
+	@Test
+	public void testDispatchBlocksWhenLaneIsFull() throws Exception {
+		final RecordDispatcher rd = new RecordDispatcher(1, 1, 0);
+		final RecordDispatcher.SessionQueue sq = rd.register();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Runnable noop = new Runnable() {
+			@Override
+			public void run() {
+			}
+		};
+
+		sq.dispatch(createDataStream(10, true), new Runnable() {
+			@Override
+			public void run() {
+				started.countDown();
+				try {
+					release.await();
+				} catch (final InterruptedException e) {
+					// ignore
+				}
+			}
+		});
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		sq.dispatch(createDataStream(10, true), noop);
+
+		final CountDownLatch dispatched = new CountDownLatch(1);
+		final Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					sq.dispatch(createDataStream(10, true), noop);
+				} catch (final Exception e) {
+					// ignore
+				}
+				dispatched.countDown();
+			}
+		};
+		t.start();
+
+		assertFalse(dispatched.await(200, TimeUnit.MILLISECONDS));
+		release.countDown();
+		assertTrue(dispatched.await(10, TimeUnit.SECONDS));
+		assertEquals(1, rd.getBackpressureCount());
+		rd.shutdown();
+	}
+
+	@Test
+	public void testDispatchDoesNotBlockWhenLaneIsWaitingForFrames() throws Exception {
+		final RecordDispatcher rd = new RecordDispatcher(1, 1, 0);
+		final RecordDispatcher.SessionQueue sq = rd.register();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Runnable noop = new Runnable() {
+			@Override
+			public void run() {
+			}
+		};
+
+		sq.dispatch(createDataStream(10, false), new Runnable() {
+			@Override
+			public void run() {
+				started.countDown();
+				try {
+					release.await();
+				} catch (final InterruptedException e) {
+					// ignore
+				}
+			}
+		});
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		sq.dispatch(createDataStream(10, true), noop);
+		sq.dispatch(createDataStream(10, true), noop);
+
+		assertEquals(0, rd.getBackpressureCount());
+		assertEquals(3, sq.getOutstanding());
+		release.countDown();
+		rd.shutdown();
+	}
+
+	@Test
+	public void testDispatchBoundsQueueWithConcurrentProducers() throws Exception {
+		final RecordDispatcher rd = new RecordDispatcher(1, 4, 0);
+		final RecordDispatcher.SessionQueue sq = rd.register();
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger queued = new AtomicInteger();
+		final Runnable blocker = new Runnable() {
+			@Override
+			public void run() {
+				running.incrementAndGet();
+				try {
+					release.await();
+				} catch (final InterruptedException e) {
+					// ignore
+				}
+			}
+		};
+
+		final List<Thread> producers = new ArrayList<Thread>();
+		for (int i = 0; i < 16; i++) {
+			final Thread t = new Thread() {
+				@Override
+				public void run() {
+					try {
+						sq.dispatch(createDataStream(10, true), blocker);
+						queued.incrementAndGet();
+					} catch (final Exception e) {
+						// ignore
+					}
+				}
+			};
+			producers.add(t);
+			t.start();
+		}
+
+		// one record runs, at most queueDepth wait, the rest are blocked
+		Thread.sleep(300);
+		assertEquals(1, running.get());
+		assertEquals(5, queued.get());
+
+		release.countDown();
+		for (final Thread t : producers) {
+			t.join(10000);
+		}
+		assertEquals(16, queued.get());
+		rd.shutdown();
+	}
+
+	@Test
+	public void testDispatchBoundsQueueWhileLaneIsWaitingForFrames() throws Exception {
+		final RecordDispatcher rd = new RecordDispatcher(1, 1, 0);
+		final RecordDispatcher.SessionQueue sq = rd.register();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Runnable noop = new Runnable() {
+			@Override
+			public void run() {
+			}
+		};
+
+		sq.dispatch(createDataStream(10, false), new Runnable() {
+			@Override
+			public void run() {
+				started.countDown();
+				try {
+					release.await();
+				} catch (final InterruptedException e) {
+					// ignore
+				}
+			}
+		});
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		sq.dispatch(createDataStream(10, true), noop);
+		sq.dispatch(createDataStream(10, true), noop);
+
+		// the queue and the stall allowance are both used up
+		final CountDownLatch dispatched = new CountDownLatch(1);
+		final Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					sq.dispatch(createDataStream(10, true), noop);
+				} catch (final Exception e) {
+					// ignore
+				}
+				dispatched.countDown();
+			}
+		};
+		t.start();
+
+		assertFalse(dispatched.await(200, TimeUnit.MILLISECONDS));
+		assertEquals(1, rd.getBackpressureCount());
+		release.countDown();
+		assertTrue(dispatched.await(10, TimeUnit.SECONDS));
+		rd.shutdown();
+	}
+}
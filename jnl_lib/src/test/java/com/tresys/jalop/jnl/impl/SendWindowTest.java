@@ -0,0 +1,230 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tresys.jalop.jnl.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SendWindowTest {
+
+	private static final long MB = 1024 * 1024;
+	private static final long MILLIS = 1000 * 1000;
+
+	@Before
+	public void setUp() {
+		// Disable logging so the build doesn't get spammed.
+		Logger.getRootLogger().setLevel(Level.OFF);
+	}
+
+	private static SendWindowPolicy policy(final long globalLimit) {
+		return new SendWindowPolicy(4096, 65536, 10, 256, globalLimit);
+	}
+
+	/**
+	 * Create a window of <code>policy</code> whose round trip time is known.
+	 */
+	private static SendWindow window(final SendWindowPolicy policy, final long roundTripNanos) {
+		final SendWindow w = policy.newWindow();
+		w.updateRoundTrip(roundTripNanos);
+		return w;
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testPolicyThrowsExceptionWithZeroMinSegmentSize() {
+		new SendWindowPolicy(0, 65536, 10, 256, MB);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testPolicyThrowsExceptionWithMaxSegmentSizeBelowMin() {
+		new SendWindowPolicy(4096, 1024, 10, 256, MB);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testPolicyThrowsExceptionWithOneMinBuffer() {
+		new SendWindowPolicy(4096, 65536, 1, 256, MB);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testPolicyThrowsExceptionWithTooManyMaxBuffers() {
+		new SendWindowPolicy(4096, 65536, 10, JNLOutputDataStream.MAX_CAPACITY + 1, MB);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testPolicyThrowsExceptionWithNegativeGlobalLimit() {
+		new SendWindowPolicy(4096, 65536, 10, 256, -1);
+	}
+
+	@Test
+	public void testGetDefaultReturnsSameInstance() {
+		assertSame(SendWindowPolicy.getDefault(), SendWindowPolicy.getDefault());
+	}
+
+	@Test
+	public void testWindowStartsAtMinimum() {
+		final SendWindow w = policy(MB).newWindow();
+		assertEquals(4096, w.getSegmentSize());
+		assertEquals(10, w.getMaxBuffers());
+		assertEquals(0, w.getDrainRate());
+	}
+
+	@Test
+	public void testShortSamplesAreIgnored() {
+		final SendWindow w = policy(64 * MB).newWindow();
+		w.update(100, 100 * MILLIS, true);
+		w.update(10 * MB, MILLIS / 2, true);
+		assertEquals(0, w.getDrainRate());
+		assertEquals(4096, w.getSegmentSize());
+	}
+
+	@Test
+	public void testWindowIsKeptUntilRoundTripIsKnown() {
+		final SendWindowPolicy policy = policy(64 * MB);
+		final SendWindow w = policy.newWindow();
+		w.update(10 * MB, 100 * MILLIS, false);
+		assertEquals(100 * MB, w.getDrainRate());
+		assertEquals(4096, w.getSegmentSize());
+		assertEquals(10, w.getMaxBuffers());
+		assertEquals(0, w.getRoundTripMillis());
+		assertEquals(0, policy.getReserved());
+	}
+
+	@Test
+	public void testUpdateRoundTripIsSmoothed() {
+		final SendWindow w = policy(MB).newWindow();
+		w.updateRoundTrip(0);
+		assertEquals(0, w.getRoundTripMillis());
+		w.updateRoundTrip(100 * MILLIS);
+		assertEquals(100, w.getRoundTripMillis());
+		w.updateRoundTrip(500 * MILLIS);
+		assertEquals(200, w.getRoundTripMillis());
+	}
+
+	@Test
+	public void testWindowGrowsToTwiceBandwidthDelayProduct() {
+		final SendWindowPolicy policy = policy(64 * MB);
+		final SendWindow w = window(policy, 25 * MILLIS);
+
+		// 100 MB/s for two round trips of 25 ms is 5 MB
+		w.update(10 * MB, 100 * MILLIS, false);
+		assertEquals(100 * MB, w.getDrainRate());
+		assertEquals(65536, w.getSegmentSize());
+		assertEquals(80, w.getMaxBuffers());
+		assertEquals(65536 * 80 - 4096 * 10, policy.getReserved());
+	}
+
+	@Test
+	public void testSaturatedWindowDoubles() {
+		final SendWindowPolicy policy = policy(64 * MB);
+		final SendWindow w = policy.newWindow();
+		w.update(MB, 100 * MILLIS, true);
+		assertEquals(8192, w.getSegmentSize());
+		assertEquals(10, w.getMaxBuffers());
+		w.update(MB, 100 * MILLIS, true);
+		assertEquals(16384, w.getSegmentSize());
+		assertEquals(10, w.getMaxBuffers());
+		assertEquals(16384 * 10 - 4096 * 10, policy.getReserved());
+	}
+
+	@Test
+	public void testWindowIsCappedByMaxSegmentsAndBuffers() {
+		final SendWindowPolicy policy = policy(64 * MB);
+		final SendWindow w = window(policy, 50 * MILLIS);
+		w.update(1000 * MB, 100 * MILLIS, true);
+		assertEquals(65536, w.getSegmentSize());
+		assertEquals(256, w.getMaxBuffers());
+	}
+
+	@Test
+	public void testSlowChannelKeepsMinimum() {
+		final SendWindowPolicy policy = policy(64 * MB);
+		final SendWindow w = window(policy, 50 * MILLIS);
+		w.update(10000, 100 * MILLIS, false);
+		assertEquals(4096, w.getSegmentSize());
+		assertEquals(10, w.getMaxBuffers());
+		assertEquals(0, policy.getReserved());
+	}
+
+	@Test
+	public void testWindowShrinksWhenChannelSlowsDown() {
+		final SendWindowPolicy policy = policy(64 * MB);
+		final SendWindow w = window(policy, 50 * MILLIS);
+		w.update(10 * MB, 100 * MILLIS, false);
+		final long grown = policy.getReserved();
+
+		for (int i = 0; i < 50; i++) {
+			w.update(10000, 100 * MILLIS, false);
+		}
+		assertTrue(policy.getReserved() < grown);
+		assertEquals(4096, w.getSegmentSize());
+		assertEquals(10, w.getMaxBuffers());
+		assertEquals(0, policy.getReserved());
+	}
+
+	@Test
+	public void testGlobalLimitIsShared() {
+		final SendWindowPolicy policy = policy(MB);
+		final SendWindow first = window(policy, 50 * MILLIS);
+		final SendWindow second = window(policy, 50 * MILLIS);
+
+		first.update(10 * MB, 100 * MILLIS, false);
+		second.update(10 * MB, 100 * MILLIS, false);
+
+		assertTrue(policy.getReserved() <= MB);
+		final long firstBytes = (long) first.getSegmentSize() * first.getMaxBuffers();
+		final long secondBytes = (long) second.getSegmentSize() * second.getMaxBuffers();
+		assertTrue(firstBytes > 40960);
+		assertTrue(firstBytes + secondBytes <= 2 * 40960 + MB);
+	}
+
+	@Test
+	public void testResetReleasesBudget() {
+		final SendWindowPolicy policy = policy(64 * MB);
+		final SendWindow w = window(policy, 50 * MILLIS);
+		w.update(10 * MB, 100 * MILLIS, false);
+		assertTrue(policy.getReserved() > 0);
+
+		w.reset();
+		assertEquals(0, policy.getReserved());
+		assertEquals(4096, w.getSegmentSize());
+		assertEquals(10, w.getMaxBuffers());
+		assertEquals(0, w.getDrainRate());
+		assertEquals(0, w.getRoundTripMillis());
+	}
+
+	@Test
+	public void testFixedPolicyNeverAdapts() {
+		final SendWindow w = SendWindowPolicy.fixed(8192, 16).newWindow();
+		w.updateRoundTrip(50 * MILLIS);
+		w.update(10 * MB, 100 * MILLIS, true);
+		assertEquals(8192, w.getSegmentSize());
+		assertEquals(16, w.getMaxBuffers());
+	}
+}
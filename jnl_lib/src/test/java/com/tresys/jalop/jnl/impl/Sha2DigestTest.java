@@ -0,0 +1,166 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tresys.jalop.jnl.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.tresys.jalop.jnl.DigestCheckpoint;
+
+public class Sha2DigestTest {
+
+	private static final String[] ALGORITHMS = { Sha2Digest.SHA256,
+			Sha2Digest.SHA384, Sha2Digest.SHA512 };
+
+	@Before
+	public void setUp() {
+		// Disable logging so the build doesn't get spammed.
+		Logger.getRootLogger().setLevel(Level.OFF);
+	}
+
+	private static byte[] createData(final int size) {
+		final byte[] data = new byte[size];
+		new Random(size).nextBytes(data);
+		return data;
+	}
+
+	@Test(expected = NoSuchAlgorithmException.class)
+	public void testCreateThrowsExceptionWithUnknownAlgorithm() throws Exception {
+		Sha2Digest.create("MD5");
+	}
+
+	@Test
+	public void testDigestMatchesProvider() throws Exception {
+		for (final String algorithm : ALGORITHMS) {
+			final MessageDigest expected = MessageDigest.getInstance(algorithm);
+			final Sha2Digest md = Sha2Digest.create(algorithm);
+			assertEquals(expected.getDigestLength(), md.getDigestLength());
+
+			// cover every padding case around the block boundaries
+			for (int len = 0; len <= 300; len++) {
+				final byte[] data = createData(len);
+				assertArrayEquals(algorithm + " " + len, expected.digest(data), md.digest(data));
+			}
+		}
+	}
+
+	@Test
+	public void testUpdateInPiecesMatchesProvider() throws Exception {
+		final byte[] data = createData(10000);
+		for (final String algorithm : ALGORITHMS) {
+			final Sha2Digest md = Sha2Digest.create(algorithm);
+			final Random random = new Random(7);
+			int off = 0;
+			while (off < data.length) {
+				if (random.nextInt(4) == 0) {
+					md.update(data[off++]);
+				} else {
+					final int len = Math.min(random.nextInt(300), data.length - off);
+					md.update(data, off, len);
+					off += len;
+				}
+			}
+			assertArrayEquals(MessageDigest.getInstance(algorithm).digest(data), md.digest());
+		}
+	}
+
+	@Test
+	public void testCheckpointCanBeResumed() throws Exception {
+		final byte[] data = createData(5000);
+		for (final String algorithm : ALGORITHMS) {
+			final byte[] expected = MessageDigest.getInstance(algorithm).digest(data);
+			for (final int split : new int[] { 0, 1, 64, 127, 128, 1000, 4999 }) {
+				final Sha2Digest md = Sha2Digest.create(algorithm);
+				md.update(data, 0, split);
+				final DigestCheckpoint checkpoint = md.checkpoint(split);
+				assertEquals(split, md.getByteCount());
+
+				final Sha2Digest resumed = Sha2Digest.fromCheckpoint(
+						DigestCheckpoint.fromByteArray(checkpoint.toByteArray()));
+				resumed.update(data, split, data.length - split);
+				assertArrayEquals(algorithm + " " + split, expected, resumed.digest());
+
+				// taking a checkpoint does not disturb the digest
+				md.update(data, split, data.length - split);
+				assertArrayEquals(expected, md.digest());
+			}
+		}
+	}
+
+	@Test
+	public void testCheckpointIsSerializable() throws Exception {
+		final Sha2Digest md = Sha2Digest.create(Sha2Digest.SHA256);
+		md.update(createData(100));
+		final DigestCheckpoint checkpoint = md.checkpoint(42);
+
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		final ObjectOutputStream out = new ObjectOutputStream(bos);
+		out.writeObject(checkpoint);
+		out.close();
+		final ObjectInputStream in = new ObjectInputStream(
+				new ByteArrayInputStream(bos.toByteArray()));
+		final DigestCheckpoint copy = (DigestCheckpoint) in.readObject();
+
+		assertEquals(checkpoint, copy);
+		assertEquals(42, copy.getPayloadOffset());
+		assertEquals(Sha2Digest.SHA256, copy.getAlgorithm());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testFromCheckpointThrowsExceptionWithBadState() throws Exception {
+		Sha2Digest.fromCheckpoint(new DigestCheckpoint(Sha2Digest.SHA256, 0, new byte[12]));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testFromByteArrayThrowsExceptionWhenTruncated() throws Exception {
+		final byte[] encoded = Sha2Digest.create(Sha2Digest.SHA256).checkpoint(0).toByteArray();
+		DigestCheckpoint.fromByteArray(Arrays.copyOf(encoded, encoded.length - 1));
+	}
+
+	@Test
+	public void testCloneIsIndependent() throws Exception {
+		final byte[] data = createData(200);
+		final Sha2Digest md = Sha2Digest.create(Sha2Digest.SHA512);
+		md.update(data, 0, 100);
+		final MessageDigest copy = (MessageDigest) md.clone();
+		md.update(data, 100, 100);
+		copy.update(data, 100, 100);
+		assertArrayEquals(md.digest(), copy.digest());
+	}
+}
@@ -0,0 +1,280 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tresys.jalop.jnl.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SpillingDigestLedgerTest {
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		// Disable logging so the build doesn't get spammed.
+		Logger.getRootLogger().setLevel(Level.OFF);
+
+		this.dir = File.createTempFile("jnl-ledger-", "");
+		assertTrue(this.dir.delete());
+		assertTrue(this.dir.mkdir());
+	}
+
+	@After
+	public void tearDown() {
+		final File[] files = this.dir.listFiles();
+		if (files != null) {
+			for (final File f : files) {
+				f.delete();
+			}
+		}
+		this.dir.delete();
+	}
+
+	private static byte[] digest(final int i) {
+		final byte[] d = new byte[32];
+		d[0] = (byte) i;
+		d[1] = (byte) (i >> 8);
+		d[31] = (byte) (i >> 16);
+		return d;
+	}
+
+	private int spillFiles() {
+		return this.dir.listFiles().length;
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructorThrowsExceptionWithNegativeMemoryLimit() {
+		new SpillingDigestLedger(32, -1, this.dir);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testPutIfAbsentThrowsExceptionWithWrongDigestLength() {
+		new SpillingDigestLedger(32, 10, this.dir).putIfAbsent("1", new byte[20]);
+	}
+
+	@Test
+	public void testPutIfAbsentRejectsDuplicateInMemory() {
+		final SpillingDigestLedger ledger = new SpillingDigestLedger(32, 10, this.dir);
+		assertTrue(ledger.putIfAbsent("1", digest(1)));
+		assertFalse(ledger.putIfAbsent("1", digest(2)));
+		assertArrayEquals(digest(1), ledger.get("1"));
+		assertEquals(1, ledger.size());
+	}
+
+	@Test
+	public void testPutIfAbsentRejectsDuplicateInSpillFile() {
+		final SpillingDigestLedger ledger = new SpillingDigestLedger(32, 2, this.dir);
+		for (int i = 1; i <= 5; i++) {
+			ledger.putIfAbsent(Integer.toString(i), digest(i));
+		}
+		assertFalse(ledger.putIfAbsent("4", digest(40)));
+		assertEquals(5, ledger.size());
+		assertArrayEquals(digest(4), ledger.take("4"));
+	}
+
+	@Test
+	public void testZeroMemoryLimitNeverSpills() {
+		final SpillingDigestLedger ledger = new SpillingDigestLedger(32, 0, this.dir);
+		for (int i = 1; i <= 1000; i++) {
+			ledger.putIfAbsent(Integer.toString(i), digest(i));
+		}
+		assertEquals(1000, ledger.getMemorySize());
+		assertEquals(0, ledger.getSpillCount());
+		assertEquals(0, spillFiles());
+	}
+
+	@Test
+	public void testEntriesAboveLimitAreSpilledAndReadBackInOrder() {
+		final SpillingDigestLedger ledger = new SpillingDigestLedger(32, 100, this.dir);
+		for (int i = 1; i <= 10000; i++) {
+			assertTrue(ledger.putIfAbsent(Integer.toString(i), digest(i)));
+		}
+		assertEquals(10000, ledger.size());
+		assertEquals(100, ledger.getMemorySize());
+		assertEquals(9900, ledger.getSpilledSize());
+		assertEquals(1, spillFiles());
+
+		for (int i = 1; i <= 10000; i++) {
+			assertArrayEquals(digest(i), ledger.take(Integer.toString(i)));
+			assertTrue(ledger.getMemorySize() <= 100);
+		}
+		assertEquals(0, ledger.size());
+		assertEquals(9900, ledger.getSpillCount());
+		// the spill file is deleted once it has been read back
+		assertEquals(0, spillFiles());
+	}
+
+	@Test
+	public void testSpilledEntryCanBeTakenOutOfOrder() {
+		final SpillingDigestLedger ledger = new SpillingDigestLedger(32, 10, this.dir);
+		for (int i = 1; i <= 100; i++) {
+			ledger.putIfAbsent("nonce-" + i, digest(i));
+		}
+
+		assertArrayEquals(digest(90), ledger.take("nonce-90"));
+		assertNull(ledger.take("nonce-90"));
+		assertEquals(99, ledger.size());
+
+		for (int i = 1; i <= 100; i++) {
+			if (i != 90) {
+				assertArrayEquals(digest(i), ledger.take("nonce-" + i));
+			}
+		}
+		assertEquals(0, ledger.size());
+		assertEquals(0, spillFiles());
+	}
+
+	@Test
+	public void testNonceAddedAgainAfterOutOfOrderTakeKeepsNewDigest() {
+		final SpillingDigestLedger ledger = new SpillingDigestLedger(32, 2, this.dir);
+		for (int i = 1; i <= 5; i++) {
+			ledger.putIfAbsent(Integer.toString(i), digest(i));
+		}
+		assertArrayEquals(digest(3), ledger.take("3"));
+		// the old entry for "3" is still in the spill file ahead of the new one
+		assertTrue(ledger.putIfAbsent("3", digest(30)));
+		assertEquals(5, ledger.size());
+
+		assertArrayEquals(digest(1), ledger.take("1"));
+		assertArrayEquals(digest(2), ledger.take("2"));
+		assertArrayEquals(digest(30), ledger.take("3"));
+		assertArrayEquals(digest(4), ledger.take("4"));
+		assertArrayEquals(digest(5), ledger.take("5"));
+		assertEquals(0, ledger.size());
+		assertEquals(0, spillFiles());
+	}
+
+	@Test
+	public void testTakingEverySpilledEntryOutOfOrderDeletesSpillFile() {
+		final SpillingDigestLedger ledger = new SpillingDigestLedger(32, 2, this.dir);
+		for (int i = 1; i <= 5; i++) {
+			ledger.putIfAbsent(Integer.toString(i), digest(i));
+		}
+		for (int i = 5; i >= 3; i--) {
+			assertArrayEquals(digest(i), ledger.take(Integer.toString(i)));
+		}
+		assertEquals(0, ledger.getSpilledSize());
+		assertEquals(0, spillFiles());
+		assertArrayEquals(digest(1), ledger.take("1"));
+		assertArrayEquals(digest(2), ledger.take("2"));
+		assertEquals(0, ledger.size());
+	}
+
+	@Test
+	public void testTakeReturnsNullForUnknownNonce() {
+		final SpillingDigestLedger ledger = new SpillingDigestLedger(32, 2, this.dir);
+		for (int i = 1; i <= 5; i++) {
+			ledger.putIfAbsent(Integer.toString(i), digest(i));
+		}
+		assertNull(ledger.take("6"));
+		assertNull(ledger.take(null));
+		assertEquals(5, ledger.size());
+	}
+
+	@Test
+	public void testLedgerSpillsAgainAfterDraining() {
+		final SpillingDigestLedger ledger = new SpillingDigestLedger(32, 2, this.dir);
+		for (int round = 0; round < 3; round++) {
+			for (int i = 1; i <= 5; i++) {
+				ledger.putIfAbsent(round + "-" + i, digest(i));
+			}
+			assertEquals(3, ledger.getSpilledSize());
+			for (int i = 1; i <= 5; i++) {
+				assertArrayEquals(digest(i), ledger.take(round + "-" + i));
+			}
+			assertEquals(0, spillFiles());
+		}
+	}
+
+	@Test
+	public void testClearDeletesSpillFile() {
+		final SpillingDigestLedger ledger = new SpillingDigestLedger(32, 2, this.dir);
+		for (int i = 1; i <= 5; i++) {
+			ledger.putIfAbsent(Integer.toString(i), digest(i));
+		}
+		ledger.clear();
+		assertEquals(0, ledger.size());
+		assertEquals(0, spillFiles());
+	}
+
+	@Test
+	public void testCloseDeletesSpillFileAndStopsSpilling() {
+		final SpillingDigestLedger ledger = new SpillingDigestLedger(32, 2, this.dir);
+		for (int i = 1; i <= 5; i++) {
+			ledger.putIfAbsent(Integer.toString(i), digest(i));
+		}
+		ledger.close();
+		assertEquals(0, ledger.size());
+		assertEquals(0, spillFiles());
+
+		for (int i = 1; i <= 5; i++) {
+			assertTrue(ledger.putIfAbsent(Integer.toString(i), digest(i)));
+		}
+		assertEquals(5, ledger.getMemorySize());
+		assertEquals(0, spillFiles());
+	}
+
+	@Test
+	public void testAwaitBelowWaitsForTake() throws Exception {
+		final SpillingDigestLedger ledger = new SpillingDigestLedger(32, 2, this.dir);
+		for (int i = 1; i <= 4; i++) {
+			ledger.putIfAbsent(Integer.toString(i), digest(i));
+		}
+		assertFalse(ledger.awaitBelow(4, 20));
+		assertTrue(ledger.awaitBelow(5, 20));
+
+		final CountDownLatch below = new CountDownLatch(1);
+		final Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					if (ledger.awaitBelow(4, 10000)) {
+						below.countDown();
+					}
+				} catch (final InterruptedException e) {
+					// ignore
+				}
+			}
+		};
+		t.start();
+		assertFalse(below.await(100, TimeUnit.MILLISECONDS));
+		ledger.take("3");
+		assertTrue(below.await(10, TimeUnit.SECONDS));
+	}
+}
@@ -23,16 +23,24 @@
  */
 package com.tresys.jalop.jnl.impl;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.security.MessageDigest;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Vector;
@@ -49,17 +57,23 @@ import org.beepcore.beep.core.Channel;
 import org.beepcore.beep.core.InputDataStream;
 import org.beepcore.beep.core.InputDataStreamAdapter;
 import org.beepcore.beep.core.Message;
+import org.beepcore.beep.util.BufferSegment;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.tresys.jalop.jnl.DigestCheckpoint;
+import com.tresys.jalop.jnl.DigestCheckpointSource;
 import com.tresys.jalop.jnl.DigestStatus;
 import com.tresys.jalop.jnl.IncompleteRecordException;
 import com.tresys.jalop.jnl.Mode;
 import com.tresys.jalop.jnl.RecordInfo;
+import com.tresys.jalop.jnl.RecordType;
+import com.tresys.jalop.jnl.SinkSubscriber;
 import com.tresys.jalop.jnl.SubscribeRequest;
 import com.tresys.jalop.jnl.Subscriber;
 import com.tresys.jalop.jnl.SubscriberSession;
 import com.tresys.jalop.jnl.impl.SubscriberANSHandler.Dispatcher;
+import com.tresys.jalop.jnl.impl.messages.RecordBatch;
 import com.tresys.jalop.jnl.impl.messages.Utils;
 import com.tresys.jalop.jnl.impl.subscriber.SubscriberSessionImpl;
 
@@ -125,6 +139,38 @@ public class SubscriberANSHandlerTest {
 		}
 	}
 
+	public class FakeSinkSubscriber extends FakeGoodSubscriber implements SinkSubscriber {
+		final ByteArrayOutputStream sys = new ByteArrayOutputStream();
+		final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		byte[] digest;
+
+		@Override
+		public WritableByteChannel getSysMetadataSink(final SubscriberSession sess,
+				final RecordInfo recordInfo) {
+			return Channels.newChannel(this.sys);
+		}
+
+		@Override
+		public WritableByteChannel getAppMetadataSink(final SubscriberSession sess,
+				final RecordInfo recordInfo) {
+			// use the InputStream for this one
+			return null;
+		}
+
+		@Override
+		public WritableByteChannel getPayloadSink(final SubscriberSession sess,
+				final RecordInfo recordInfo) {
+			return Channels.newChannel(this.payload);
+		}
+
+		@Override
+		public boolean notifyDigest(final SubscriberSession sess,
+				final RecordInfo recordInfo, final byte[] digest) {
+			this.digest = digest;
+			return true;
+		}
+	}
+
 	@Test
 	public void testReceiveANSWorks(@Mocked final MessageDigest md,
 			@Mocked final SubscriberSessionImpl subsess, @Mocked final Message msg)
@@ -1150,6 +1196,544 @@ public class SubscriberANSHandlerTest {
 		((Dispatcher) dispatcher).getJalopDataStreamInstance(-1, ds, md);
 	}
 
+	/**
+	 * Build a complete {@link InputDataStream} with no MIME headers whose
+	 * body is split into segments of <code>segmentSize</code> bytes.
+	 */
+	private static InputDataStream createDataStream(final byte[] body,
+			final int segmentSize) throws Exception {
+		return createDataStream("", body, segmentSize);
+	}
+
+	private static InputDataStream createDataStream(final String headers,
+			final byte[] body, final int segmentSize) throws Exception {
+		final Constructor<InputDataStream> constructor = InputDataStream.class
+				.getDeclaredConstructor();
+		constructor.setAccessible(true);
+		final InputDataStream ds = constructor.newInstance();
+
+		final Method addMethod = InputDataStream.class.getDeclaredMethod("add",
+				BufferSegment.class);
+		addMethod.setAccessible(true);
+		addMethod.invoke(ds, new BufferSegment((headers + "\r\n").getBytes("utf-8")));
+		for (int off = 0; off < body.length; off += segmentSize) {
+			addMethod.invoke(ds, new BufferSegment(body, off,
+					Math.min(segmentSize, body.length - off)));
+		}
+
+		final Method completeMethod = InputDataStream.class
+				.getDeclaredMethod("setComplete");
+		completeMethod.setAccessible(true);
+		completeMethod.invoke(ds);
+		return ds;
+	}
+
+	private static byte[] createSections(final byte[]... sections) throws Exception {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (final byte[] section : sections) {
+			out.write(section);
+			out.write(Utils.BREAK_BYTES);
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] createData(final int size) {
+		final byte[] data = new byte[size];
+		for (int i = 0; i < size; i++) {
+			data[i] = (byte) (i * 31);
+		}
+		return data;
+	}
+
+	@Test
+	public void testJalopDataStreamByteReadsDigestSameAsBulkReads(
+			@Mocked final SubscriberSessionImpl subsess) throws Exception {
+		final byte[] sys = createData(10000);
+		final byte[] app = createData(7);
+		final InputDataStream ds = createDataStream(createSections(sys, app), 1000);
+
+		final MessageDigest md = MessageDigest.getInstance("SHA-256");
+		final SubscriberANSHandler sh = new SubscriberANSHandler(md, subsess);
+		final Object dispatcher = Deencapsulation.newInnerInstance("Dispatcher", sh, ds, md);
+
+		final InputStream jds = ((Dispatcher) dispatcher).getJalopDataStreamInstance(sys.length, ds, md);
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int b;
+		while ((b = jds.read()) != -1) {
+			out.write(b);
+		}
+		assertArrayEquals(sys, out.toByteArray());
+
+		final InputStream jds2 = ((Dispatcher) dispatcher).getJalopDataStreamInstance(app.length, ds, md);
+		final byte[] buf = new byte[100];
+		assertEquals(app.length, jds2.read(buf));
+		assertEquals(-1, jds2.read(buf));
+
+		final MessageDigest expected = MessageDigest.getInstance("SHA-256");
+		expected.update(sys);
+		expected.update(app);
+		assertArrayEquals(expected.digest(), md.digest());
+	}
+
+	@Test
+	public void testJalopDataStreamLargeReadWorks(@Mocked final SubscriberSessionImpl subsess)
+			throws Exception {
+		final byte[] payload = createData(3 * SubscriberANSHandler.BUFFER_SIZE + 17);
+		final InputDataStream ds = createDataStream(createSections(payload), 4096);
+
+		final MessageDigest md = MessageDigest.getInstance("SHA-256");
+		final SubscriberANSHandler sh = new SubscriberANSHandler(md, subsess);
+		final Object dispatcher = Deencapsulation.newInnerInstance("Dispatcher", sh, ds, md);
+		final InputStream jds = ((Dispatcher) dispatcher).getJalopDataStreamInstance(payload.length, ds, md);
+
+		final byte[] buf = new byte[payload.length + 10];
+		assertEquals(3, jds.read(buf, 0, 3));
+		assertEquals(payload.length - 3, jds.read(buf, 3, buf.length - 3));
+		assertEquals(-1, jds.read(buf, 0, buf.length));
+		assertArrayEquals(payload, Arrays.copyOf(buf, payload.length));
+		assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(payload), md.digest());
+	}
+
+	@Test
+	public void testJalopDataStreamSkipAndAvailableWork(@Mocked final SubscriberSessionImpl subsess)
+			throws Exception {
+		final byte[] sys = createData(5000);
+		final byte[] app = createData(20);
+		final InputDataStream ds = createDataStream(createSections(sys, app), 512);
+
+		final MessageDigest md = MessageDigest.getInstance("SHA-256");
+		final SubscriberANSHandler sh = new SubscriberANSHandler(md, subsess);
+		final Object dispatcher = Deencapsulation.newInnerInstance("Dispatcher", sh, ds, md);
+		final InputStream jds = ((Dispatcher) dispatcher).getJalopDataStreamInstance(sys.length, ds, md);
+
+		assertEquals(sys.length, jds.available());
+		assertEquals(100, jds.skip(100));
+		assertEquals(sys.length - 100, jds.available());
+		assertEquals(sys[100] & 0xff, jds.read());
+		assertEquals(sys.length - 101, jds.skip(Long.MAX_VALUE));
+		assertEquals(0, jds.available());
+		assertEquals(-1, jds.read());
+
+		final InputStream jds2 = ((Dispatcher) dispatcher).getJalopDataStreamInstance(app.length, ds, md);
+		assertEquals(app.length, jds2.available());
+		final Method flush = jds2.getClass().getDeclaredMethod("flush");
+		flush.setAccessible(true);
+		flush.invoke(jds2);
+		assertEquals(-1, jds2.read());
+		assertEquals(-1, ds.getInputStream().read());
+
+		final MessageDigest expected = MessageDigest.getInstance("SHA-256");
+		expected.update(sys);
+		expected.update(app);
+		assertArrayEquals(expected.digest(), md.digest());
+	}
+
+	@Test
+	public void testJalopDataStreamEmptySectionWorks(@Mocked final SubscriberSessionImpl subsess)
+			throws Exception {
+		final InputDataStream ds = createDataStream(createSections(new byte[0]), 512);
+
+		final MessageDigest md = MessageDigest.getInstance("SHA-256");
+		final SubscriberANSHandler sh = new SubscriberANSHandler(md, subsess);
+		final Object dispatcher = Deencapsulation.newInnerInstance("Dispatcher", sh, ds, md);
+		final InputStream jds = ((Dispatcher) dispatcher).getJalopDataStreamInstance(0, ds, md);
+
+		assertEquals(0, jds.available());
+		assertEquals(-1, jds.read());
+		assertEquals(-1, ds.getInputStream().read());
+	}
+
+	@Test
+	public void testJalopDataStreamTransferToWorks(@Mocked final SubscriberSessionImpl subsess)
+			throws Exception {
+		final byte[] payload = createData(2 * SubscriberANSHandler.BUFFER_SIZE + 3);
+		final InputDataStream ds = createDataStream(createSections(payload), 1000);
+
+		final MessageDigest md = MessageDigest.getInstance("SHA-256");
+		final SubscriberANSHandler sh = new SubscriberANSHandler(md, subsess);
+		final Object dispatcher = Deencapsulation.newInnerInstance("Dispatcher", sh, ds, md);
+		final InputStream jds = ((Dispatcher) dispatcher).getJalopDataStreamInstance(payload.length, ds, md);
+
+		assertEquals(10, jds.skip(10));
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final Method transferTo = jds.getClass().getDeclaredMethod("transferTo", WritableByteChannel.class);
+		transferTo.setAccessible(true);
+		assertEquals(Long.valueOf(payload.length - 10), transferTo.invoke(jds, Channels.newChannel(out)));
+		assertArrayEquals(Arrays.copyOfRange(payload, 10, payload.length), out.toByteArray());
+		assertEquals(-1, jds.read());
+		assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(payload), md.digest());
+	}
+
+	@Test
+	public void testDispatcherRunWritesToSinks(@Mocked final SubscriberSessionImpl subsess)
+			throws Exception {
+		final FakeSinkSubscriber sub = new FakeSinkSubscriber();
+		final byte[] sys = createData(5000);
+		final byte[] app = createData(10);
+		final byte[] payload = createData(9000);
+		final String headers = Utils.HDRS_SYS_META_LEN + ": " + sys.length + "\r\n"
+				+ Utils.HDRS_APP_META_LEN + ": " + app.length + "\r\n"
+				+ Utils.HDRS_MESSAGE + ": log-record\r\n"
+				+ Utils.HDRS_LOG_LEN + ": " + payload.length + "\r\n"
+				+ Utils.HDRS_NONCE + ": 1\r\n";
+		final InputDataStream ds = createDataStream(headers, createSections(sys, app, payload), 777);
+
+		new Expectations() {
+			{
+				subsess.getSubscriber();
+				result = sub;
+			}
+		};
+
+		final MessageDigest md = MessageDigest.getInstance("SHA-256");
+		final SubscriberANSHandler sh = new SubscriberANSHandler(md, subsess);
+		final Object dispatcher = Deencapsulation.newInnerInstance("Dispatcher", sh, ds, md);
+		((Dispatcher) dispatcher).run();
+
+		assertArrayEquals(sys, sub.sys.toByteArray());
+		assertArrayEquals(payload, sub.payload.toByteArray());
+
+		final MessageDigest expected = MessageDigest.getInstance("SHA-256");
+		expected.update(sys);
+		expected.update(app);
+		expected.update(payload);
+		assertArrayEquals(expected.digest(), sub.digest);
+	}
+
+	private static RecordInfo batchEntry(final String nonce, final byte[] sys,
+			final byte[] app, final byte[] payload) {
+		return new RecordInfo() {
+			@Override
+			public String getNonce() {
+				return nonce;
+			}
+
+			@Override
+			public long getOffset() {
+				return 0;
+			}
+
+			@Override
+			public RecordType getRecordType() {
+				return RecordType.Log;
+			}
+
+			@Override
+			public long getSysMetaLength() {
+				return sys.length;
+			}
+
+			@Override
+			public long getAppMetaLength() {
+				return app.length;
+			}
+
+			@Override
+			public long getPayloadLength() {
+				return payload.length;
+			}
+		};
+	}
+
+	@Test
+	public void testDispatcherRunUnpacksRecordBatch(@Mocked final SubscriberSessionImpl subsess)
+			throws Exception {
+		final FakeSinkSubscriber sub = new FakeSinkSubscriber();
+		final byte[] sys1 = createData(40);
+		final byte[] app1 = createData(3);
+		final byte[] payload1 = createData(100);
+		final byte[] sys2 = createData(41);
+		final byte[] app2 = new byte[0];
+		final byte[] payload2 = createData(7);
+
+		final BufferSegment table = RecordBatch.encodeTable(Arrays.asList(
+				batchEntry("1", sys1, app1, payload1),
+				batchEntry("2", sys2, app2, payload2)));
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		body.write(table.getData(), table.getOffset(), table.getLength());
+		for (final byte[] section : new byte[][] { sys1, app1, payload1, sys2, app2, payload2 }) {
+			body.write(section);
+		}
+		final String headers = Utils.HDRS_MESSAGE + ": " + Utils.MSG_RECORD_BATCH + "\r\n"
+				+ Utils.HDRS_COUNT + ": 2\r\n";
+		final InputDataStream ds = createDataStream(headers, body.toByteArray(), 50);
+
+		new Expectations() {
+			{
+				subsess.getSubscriber();
+				result = sub;
+				subsess.getRecordType();
+				result = RecordType.Log;
+			}
+		};
+
+		final MessageDigest md = MessageDigest.getInstance("SHA-256");
+		final SubscriberANSHandler sh = new SubscriberANSHandler(md, subsess);
+		final Object dispatcher = Deencapsulation.newInnerInstance("Dispatcher", sh, ds, md);
+		((Dispatcher) dispatcher).run();
+
+		final ByteArrayOutputStream sys = new ByteArrayOutputStream();
+		sys.write(sys1);
+		sys.write(sys2);
+		assertArrayEquals(sys.toByteArray(), sub.sys.toByteArray());
+		final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		payload.write(payload1);
+		payload.write(payload2);
+		assertArrayEquals(payload.toByteArray(), sub.payload.toByteArray());
+
+		final MessageDigest expected = MessageDigest.getInstance("SHA-256");
+		expected.update(sys1);
+		expected.update(app1);
+		expected.update(payload1);
+		final byte[] digest1 = expected.digest();
+		expected.update(sys2);
+		expected.update(app2);
+		expected.update(payload2);
+		final byte[] digest2 = expected.digest();
+		assertArrayEquals(digest2, sub.digest);
+
+		new Verifications() {
+			{
+				subsess.addDigest("1", withEqual(digest1));
+				subsess.addDigest("2", withEqual(digest2));
+			}
+		};
+	}
+
+	@Test
+	public void testDispatcherRunRejectsTruncatedRecordBatch(@Mocked final SubscriberSessionImpl subsess)
+			throws Exception {
+		final FakeSinkSubscriber sub = new FakeSinkSubscriber();
+		final byte[] payload = createData(100);
+		final BufferSegment table = RecordBatch.encodeTable(Arrays.asList(
+				batchEntry("1", new byte[0], new byte[0], payload)));
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		body.write(table.getData(), table.getOffset(), table.getLength());
+		body.write(payload, 0, 50);
+		final String headers = Utils.HDRS_MESSAGE + ": " + Utils.MSG_RECORD_BATCH + "\r\n"
+				+ Utils.HDRS_COUNT + ": 1\r\n";
+		final InputDataStream ds = createDataStream(headers, body.toByteArray(), 50);
+
+		new Expectations() {
+			{
+				subsess.getSubscriber();
+				result = sub;
+				subsess.getRecordType();
+				result = RecordType.Log;
+			}
+		};
+
+		final MessageDigest md = MessageDigest.getInstance("SHA-256");
+		final SubscriberANSHandler sh = new SubscriberANSHandler(md, subsess);
+		final Object dispatcher = Deencapsulation.newInnerInstance("Dispatcher", sh, ds, md);
+		((Dispatcher) dispatcher).run();
+
+		assertNull(sub.digest);
+		new Verifications() {
+			{
+				subsess.addDigest(anyString, (byte[]) any);
+				times = 0;
+			}
+		};
+	}
+
+	@Test
+	public void testDispatcherRunLogsRejectedRecordBatch(@Mocked final SubscriberSessionImpl subsess,
+			@Injectable final Logger logger) throws Exception {
+		final FakeSinkSubscriber sub = new FakeSinkSubscriber() {
+			@Override
+			public boolean notifyDigest(final SubscriberSession sess,
+					final RecordInfo recordInfo, final byte[] digest) {
+				super.notifyDigest(sess, recordInfo, digest);
+				return false;
+			}
+		};
+		final byte[] payload1 = createData(10);
+		final byte[] payload2 = createData(20);
+		final BufferSegment table = RecordBatch.encodeTable(Arrays.asList(
+				batchEntry("1", new byte[0], new byte[0], payload1),
+				batchEntry("2", new byte[0], new byte[0], payload2)));
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		body.write(table.getData(), table.getOffset(), table.getLength());
+		body.write(payload1);
+		body.write(payload2);
+		final String headers = Utils.HDRS_MESSAGE + ": " + Utils.MSG_RECORD_BATCH + "\r\n"
+				+ Utils.HDRS_COUNT + ": 2\r\n";
+		final InputDataStream ds = createDataStream(headers, body.toByteArray(), 50);
+
+		new NonStrictExpectations() {
+			{
+				subsess.getSubscriber();
+				result = sub;
+				subsess.getRecordType();
+				result = RecordType.Log;
+				logger.isEnabledFor(Level.ERROR);
+				result = true;
+			}
+		};
+
+		final Logger original = SubscriberANSHandler.log;
+		SubscriberANSHandler.log = logger;
+		try {
+			final MessageDigest md = MessageDigest.getInstance("SHA-256");
+			final SubscriberANSHandler sh = new SubscriberANSHandler(md, subsess);
+			final Object dispatcher = Deencapsulation.newInnerInstance("Dispatcher", sh, ds, md);
+			((Dispatcher) dispatcher).run();
+		} finally {
+			SubscriberANSHandler.log = original;
+		}
+
+		assertArrayEquals(payload1, sub.payload.toByteArray());
+		new Verifications() {
+			{
+				logger.error(withSubstring("Error in notifyDigest"));
+				times = 1;
+				subsess.addDigest(anyString, (byte[]) any);
+				times = 0;
+			}
+		};
+	}
+
+	@Test
+	public void testDispatcherRunOffloadsDigest(@Mocked final SubscriberSessionImpl subsess)
+			throws Exception {
+		final FakeSinkSubscriber sub = new FakeSinkSubscriber();
+		final byte[] sys = createData(100);
+		final byte[] app = createData(3);
+		final byte[] payload = createData(5 * DigestPipeline.BUFFER_SIZE + 11);
+		final String headers = Utils.HDRS_SYS_META_LEN + ": " + sys.length + "\r\n"
+				+ Utils.HDRS_APP_META_LEN + ": " + app.length + "\r\n"
+				+ Utils.HDRS_MESSAGE + ": log-record\r\n"
+				+ Utils.HDRS_LOG_LEN + ": " + payload.length + "\r\n"
+				+ Utils.HDRS_NONCE + ": 1\r\n";
+		final InputDataStream ds = createDataStream(headers, createSections(sys, app, payload), 4096);
+
+		new Expectations() {
+			{
+				subsess.getSubscriber();
+				result = sub;
+			}
+		};
+
+		final RecordDispatcher rd = new RecordDispatcher(1, 1, 0, 1);
+		final MessageDigest md = MessageDigest.getInstance("SHA-256");
+		final SubscriberANSHandler sh = new SubscriberANSHandler(md, subsess, rd);
+		final Object dispatcher = Deencapsulation.newInnerInstance("Dispatcher", sh, ds, md);
+		((Dispatcher) dispatcher).run();
+
+		assertArrayEquals(sys, sub.sys.toByteArray());
+		assertArrayEquals(payload, sub.payload.toByteArray());
+
+		final MessageDigest expected = MessageDigest.getInstance("SHA-256");
+		expected.update(sys);
+		expected.update(app);
+		expected.update(payload);
+		assertArrayEquals(expected.digest(), sub.digest);
+		rd.shutdown();
+	}
+
+	@Test
+	public void testDispatcherRunResumesFromCheckpoint(@Mocked final SubscriberSessionImpl subsess)
+			throws Exception {
+		final FakeSinkSubscriber sub = new FakeSinkSubscriber();
+		final byte[] sys = createData(300);
+		final byte[] app = createData(7);
+		final byte[] fullPayload = createData(20000);
+		final int resumeOffset = 8000;
+		final byte[] payload = Arrays.copyOfRange(fullPayload, resumeOffset, fullPayload.length);
+		final String headers = Utils.HDRS_SYS_META_LEN + ": " + sys.length + "\r\n"
+				+ Utils.HDRS_APP_META_LEN + ": " + app.length + "\r\n"
+				+ Utils.HDRS_MESSAGE + ": journal-record\r\n"
+				+ Utils.HDRS_JOURNAL_LEN + ": " + fullPayload.length + "\r\n"
+				+ Utils.HDRS_NONCE + ": 1\r\n";
+		final InputDataStream ds = createDataStream(headers, createSections(sys, app, payload), 1024);
+
+		final Sha2Digest partial = Sha2Digest.create(Sha2Digest.SHA256);
+		partial.update(sys);
+		partial.update(app);
+		partial.update(fullPayload, 0, 5000);
+		final DigestCheckpoint checkpoint = partial.checkpoint(5000);
+
+		// only the bytes after the checkpoint are valid, so using the whole
+		// stream would produce the wrong digest
+		final byte[] resumeData = Arrays.copyOf(fullPayload, resumeOffset);
+		Arrays.fill(resumeData, 0, 5000, (byte) 0);
+		final InputStream resumeIS = new ByteArrayInputStream(resumeData);
+
+		new NonStrictExpectations() {
+			{
+				subsess.getSubscriber(); result = sub;
+				subsess.getJournalResumeOffset(); result = (long) resumeOffset;
+				subsess.getJournalResumeIS(); result = resumeIS;
+				subsess.getJournalResumeCheckpoint(); result = checkpoint;
+			}
+		};
+
+		final MessageDigest md = Sha2Digest.create(Sha2Digest.SHA256);
+		final SubscriberANSHandler sh = new SubscriberANSHandler(md, subsess);
+		final Object dispatcher = Deencapsulation.newInnerInstance("Dispatcher", sh, ds, md);
+		((Dispatcher) dispatcher).run();
+
+		assertArrayEquals(payload, sub.payload.toByteArray());
+
+		final MessageDigest expected = MessageDigest.getInstance("SHA-256");
+		expected.update(sys);
+		expected.update(app);
+		expected.update(fullPayload);
+		assertArrayEquals(expected.digest(), sub.digest);
+	}
+
+	@Test
+	public void testJalopDataStreamCheckpointCanBeResumed(@Mocked final SubscriberSessionImpl subsess)
+			throws Exception {
+		final byte[] payload = createData(3 * SubscriberANSHandler.BUFFER_SIZE + 17);
+		final InputDataStream ds = createDataStream(createSections(payload), 1000);
+
+		final MessageDigest md = Sha2Digest.create(Sha2Digest.SHA256);
+		final SubscriberANSHandler sh = new SubscriberANSHandler(md, subsess);
+		final Object dispatcher = Deencapsulation.newInnerInstance("Dispatcher", sh, ds, md);
+		final InputStream jds = ((Dispatcher) dispatcher).getJalopDataStreamInstance(payload.length, ds, md);
+		assertNull(((DigestCheckpointSource) jds).getDigestCheckpoint());
+
+		final Field checkpointBase = jds.getClass().getDeclaredField("checkpointBase");
+		checkpointBase.setAccessible(true);
+		checkpointBase.setLong(jds, 0);
+
+		final byte[] buf = new byte[5000];
+		assertEquals(buf.length, jds.read(buf));
+		final DigestCheckpoint checkpoint = ((DigestCheckpointSource) jds).getDigestCheckpoint();
+		assertTrue(checkpoint.getPayloadOffset() >= buf.length);
+
+		final MessageDigest resumed = Sha2Digest.fromCheckpoint(
+				DigestCheckpoint.fromByteArray(checkpoint.toByteArray()));
+		resumed.update(payload, (int) checkpoint.getPayloadOffset(),
+				payload.length - (int) checkpoint.getPayloadOffset());
+		assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(payload), resumed.digest());
+	}
+
+	@Test
+	public void testJalopDataStreamMissingBreakThrowsIOException(
+			@Mocked final SubscriberSessionImpl subsess) throws Exception {
+		final InputDataStream ds = createDataStream("helloBREA!".getBytes("utf-8"), 512);
+
+		final MessageDigest md = MessageDigest.getInstance("SHA-256");
+		final SubscriberANSHandler sh = new SubscriberANSHandler(md, subsess);
+		final Object dispatcher = Deencapsulation.newInnerInstance("Dispatcher", sh, ds, md);
+		final InputStream jds = ((Dispatcher) dispatcher).getJalopDataStreamInstance(5, ds, md);
+
+		try {
+			jds.read();
+			assertTrue(false);
+		} catch (final IOException e) {
+			// expected
+		}
+
+		final Field payloadCorrect = dispatcher.getClass().getDeclaredField(
+				"payloadCorrect");
+		payloadCorrect.setAccessible(true);
+		assertFalse((Boolean) payloadCorrect.get(dispatcher));
+	}
+
 	@Test
 	public void testGetAdditionalHeadersWorks(@Mocked final InputDataStreamAdapter dsa,
 			@Mocked final MessageDigest md, @Mocked final SubscriberSessionImpl subsess,
@@ -0,0 +1,216 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl.impl.messages;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.beepcore.beep.core.BEEPException;
+import org.beepcore.beep.core.InputDataStream;
+import org.beepcore.beep.util.BufferSegment;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DigestMessageDecoderTest {
+
+	private List<String> nonces;
+	private List<byte[]> digests;
+	private DigestMessageDecoder decoder;
+
+	@Before
+	public void setUp() {
+		// Disable logging so the build doesn't get spammed.
+		Logger.getRootLogger().setLevel(Level.OFF);
+		this.nonces = new ArrayList<String>();
+		this.digests = new ArrayList<byte[]>();
+		this.decoder = new DigestMessageDecoder(new DigestMessageDecoder.Handler() {
+			@Override
+			public void handle(final String nonce, final byte[] digest) {
+				DigestMessageDecoderTest.this.nonces.add(nonce);
+				DigestMessageDecoderTest.this.digests.add(digest);
+			}
+		});
+	}
+
+	private void update(final String data) throws Exception {
+		final byte[] b = data.getBytes("utf-8");
+		this.decoder.update(b, 0, b.length);
+	}
+
+	private static String hex(final int i) {
+		return String.format("%064x", i);
+	}
+
+	private static byte[] bytes(final int i) {
+		final byte[] b = new byte[32];
+		b[28] = (byte) (i >>> 24);
+		b[29] = (byte) (i >>> 16);
+		b[30] = (byte) (i >>> 8);
+		b[31] = (byte) i;
+		return b;
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructorThrowsExceptionWithNullHandler() {
+		new DigestMessageDecoder(null);
+	}
+
+	@Test
+	public void testDecodesPairs() throws Exception {
+		update("0aff=1\r\nABCDEF=nonce2\r\n");
+		assertEquals(2, this.decoder.finish());
+		assertEquals("1", this.nonces.get(0));
+		assertArrayEquals(new byte[] { 0x0a, (byte) 0xff }, this.digests.get(0));
+		assertEquals("nonce2", this.nonces.get(1));
+		assertArrayEquals(new byte[] { (byte) 0xab, (byte) 0xcd, (byte) 0xef },
+				this.digests.get(1));
+	}
+
+	@Test
+	public void testOddNumberOfDigitsHasLeadingZero() throws Exception {
+		update("abc=1\r\nf=2\r\n");
+		assertEquals(2, this.decoder.finish());
+		assertArrayEquals(new byte[] { 0x0a, (byte) 0xbc }, this.digests.get(0));
+		assertArrayEquals(new byte[] { 0x0f }, this.digests.get(1));
+	}
+
+	@Test
+	public void testDecodesLastPairWithoutTrailingWhitespace() throws Exception {
+		update("0102=1");
+		assertEquals(0, this.nonces.size());
+		assertEquals(1, this.decoder.finish());
+		assertArrayEquals(new byte[] { 0x01, 0x02 }, this.digests.get(0));
+	}
+
+	@Test
+	public void testDecodesPairsSplitAtEveryOffset() throws Exception {
+		final byte[] body = "0aff=1\r\nabcdef=nonce2\r\n".getBytes("utf-8");
+		for (int split = 0; split <= body.length; split++) {
+			setUp();
+			this.decoder.update(body, 0, split);
+			this.decoder.update(body, split, body.length - split);
+			assertEquals(2, this.decoder.finish());
+			assertEquals("nonce2", this.nonces.get(1));
+			assertArrayEquals(new byte[] { (byte) 0xab, (byte) 0xcd, (byte) 0xef },
+					this.digests.get(1));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testThrowsExceptionWithInvalidHexDigit() throws Exception {
+		update("0g=1\r\n");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testThrowsExceptionWithEmptyDigest() throws Exception {
+		update("=1\r\n");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testThrowsExceptionWithEmptyNonce() throws Exception {
+		update("0102=\r\n");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testThrowsExceptionWithoutSeparator() throws Exception {
+		update("0102\r\n");
+	}
+
+	@Test(expected = BEEPException.class)
+	public void testHandlerExceptionStopsDecoding() throws Exception {
+		final DigestMessageDecoder failing = new DigestMessageDecoder(
+				new DigestMessageDecoder.Handler() {
+					@Override
+					public void handle(final String nonce, final byte[] digest)
+							throws BEEPException {
+						throw new BEEPException("stop");
+					}
+				});
+		final byte[] b = "01=1\r\n".getBytes("utf-8");
+		failing.update(b, 0, b.length);
+	}
+
+	@Test
+	public void testDecodeReadsWholeStream() throws Exception {
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			sb.append(hex(i)).append('=').append(i).append("\r\n");
+		}
+		final int count = this.decoder.decode(
+				new ByteArrayInputStream(sb.toString().getBytes("utf-8")));
+
+		assertEquals(10000, count);
+		for (int i = 0; i < 10000; i++) {
+			assertEquals(String.valueOf(i), this.nonces.get(i));
+			assertArrayEquals(bytes(i), this.digests.get(i));
+		}
+	}
+
+	@Test
+	public void testDecodeReadsEveryFrameOfTenThousandEntryMessage() throws Exception {
+		final Constructor<InputDataStream> constructor = InputDataStream.class
+				.getDeclaredConstructor();
+		constructor.setAccessible(true);
+		final InputDataStream ds = constructor.newInstance();
+		final Method addMethod = InputDataStream.class.getDeclaredMethod("add",
+				BufferSegment.class);
+		addMethod.setAccessible(true);
+		final Method completeMethod = InputDataStream.class
+				.getDeclaredMethod("setComplete");
+		completeMethod.setAccessible(true);
+
+		final org.beepcore.beep.core.MimeHeaders mh = new org.beepcore.beep.core.MimeHeaders();
+		mh.setContentType(Utils.CT_JALOP);
+		mh.setHeader(Utils.HDRS_MESSAGE, Utils.MSG_DIGEST);
+		mh.setHeader(Utils.HDRS_COUNT, "10000");
+		addMethod.invoke(ds, mh.getBufferSegment());
+
+		// frames of an odd size, so pairs and CRLFs are split between them
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			sb.append(hex(i)).append('=').append(i).append("\r\n");
+		}
+		final byte[] body = sb.toString().getBytes("utf-8");
+		for (int off = 0; off < body.length; off += 4093) {
+			addMethod.invoke(ds, new BufferSegment(body, off,
+					Math.min(4093, body.length - off)));
+		}
+		completeMethod.invoke(ds);
+
+		assertEquals(10000, Utils.processDigestMessageCount(ds.getInputStream()));
+		assertEquals(10000, this.decoder.decode(ds.getInputStream()));
+		for (int i = 0; i < 10000; i++) {
+			assertEquals(String.valueOf(i), this.nonces.get(i));
+			assertArrayEquals(bytes(i), this.digests.get(i));
+		}
+	}
+}
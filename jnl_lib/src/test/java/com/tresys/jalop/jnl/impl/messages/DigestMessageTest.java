@@ -36,9 +36,9 @@ import org.junit.Test;
 public class DigestMessageTest {
 	@Test
 	public void testDigestMessageWorks() {
-		Map<String, String> digests = new HashMap<String, String>();
-		digests.put("1", "123456789abcdef");
-		digests.put("2", "abcdef123456789");
+		Map<String, byte[]> digests = new HashMap<String, byte[]>();
+		digests.put("1", new byte[] { 0x12, 0x34 });
+		digests.put("2", new byte[] { (byte) 0xab, (byte) 0xcd });
 		
 		MimeHeaders mimeHeaders = new MimeHeaders();
 		DigestMessage dm = new DigestMessage(digests, mimeHeaders);
@@ -0,0 +1,174 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tresys.jalop.jnl.impl.messages;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.beepcore.beep.core.AbortChannelException;
+import org.beepcore.beep.core.BEEPException;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.tresys.jalop.jnl.DigestStatus;
+
+public class DigestResponseParserTest {
+
+	private List<String> pairs;
+	private DigestResponseParser parser;
+
+	@Before
+	public void setUp() {
+		// Disable logging so the build doesn't get spammed.
+		Logger.getRootLogger().setLevel(Level.OFF);
+		this.pairs = new ArrayList<String>();
+		this.parser = new DigestResponseParser(new DigestResponseParser.Handler() {
+			@Override
+			public void handle(final String nonce, final DigestStatus status) {
+				DigestResponseParserTest.this.pairs.add(status + " " + nonce);
+			}
+		});
+	}
+
+	private void update(final String data) throws Exception {
+		final byte[] b = data.getBytes("utf-8");
+		this.parser.update(b, 0, b.length);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructorThrowsExceptionWithNullHandler() {
+		new DigestResponseParser(null);
+	}
+
+	@Test
+	public void testParsesPairs() throws Exception {
+		update("confirmed=1\r\nINVALID=2\r\n  Unknown=3\t\r\n");
+		assertEquals(3, this.parser.finish());
+		assertEquals(Arrays.asList("Confirmed 1", "Invalid 2", "Unknown 3"), this.pairs);
+	}
+
+	@Test
+	public void testEmitsPairsOnlyOnceComplete() throws Exception {
+		update("confirmed=1\r\nconfirmed=2");
+		assertEquals(Arrays.asList("Confirmed 1"), this.pairs);
+		assertEquals(1, this.parser.getCount());
+		update("3");
+		assertEquals(1, this.parser.getCount());
+		assertEquals(2, this.parser.finish());
+		assertEquals(Arrays.asList("Confirmed 1", "Confirmed 23"), this.pairs);
+	}
+
+	@Test
+	public void testParsesDataSplitAtEveryOffset() throws Exception {
+		final byte[] b = "confirmed=abc\r\ninvalid=é中\r\nunknown=xyz".getBytes("utf-8");
+		for (int split = 0; split <= b.length; split++) {
+			setUp();
+			this.parser.update(b, 0, split);
+			this.parser.update(b, split, b.length - split);
+			assertEquals(3, this.parser.finish());
+			assertEquals(Arrays.asList("Confirmed abc", "Invalid é中",
+					"Unknown xyz"), this.pairs);
+		}
+	}
+
+	@Test
+	public void testParsesManyPairsByteByByte() throws Exception {
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			sb.append("confirmed=").append(i).append("\r\n");
+		}
+		final byte[] b = sb.toString().getBytes("utf-8");
+		for (int i = 0; i < b.length; i++) {
+			this.parser.update(b, i, 1);
+		}
+		assertEquals(10000, this.parser.finish());
+		assertEquals("Confirmed 9999", this.pairs.get(9999));
+	}
+
+	@Test
+	public void testFinishWithEmptyBody() throws Exception {
+		update("\r\n");
+		assertEquals(0, this.parser.finish());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testThrowsExceptionWithUnknownStatus() throws Exception {
+		update("nothing=1\r\n");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testThrowsExceptionWithPrefixOfStatus() throws Exception {
+		update("confirm=1\r\n");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testThrowsExceptionWithoutEquals() throws Exception {
+		update("confirmed 1\r\n");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testThrowsExceptionWithEmptyNonce() throws Exception {
+		update("confirmed=\r\n");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testThrowsExceptionWithEmptyStatus() throws Exception {
+		update("=1");
+		this.parser.finish();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testThrowsExceptionWhenPairIsTooLong() throws Exception {
+		final byte[] b = new byte[DigestResponseParser.MAX_PAIR_LENGTH + 1];
+		Arrays.fill(b, (byte) 'a');
+		this.parser.update(b, 0, b.length);
+	}
+
+	@Test
+	public void testAcceptsLongestPair() throws Exception {
+		final byte[] b = new byte[DigestResponseParser.MAX_PAIR_LENGTH];
+		Arrays.fill(b, (byte) 'a');
+		System.arraycopy("unknown=".getBytes("utf-8"), 0, b, 0, 8);
+		this.parser.update(b, 0, b.length);
+		assertEquals(1, this.parser.finish());
+	}
+
+	@Test(expected = AbortChannelException.class)
+	public void testHandlerExceptionIsThrown() throws Exception {
+		this.parser = new DigestResponseParser(new DigestResponseParser.Handler() {
+			@Override
+			public void handle(final String nonce, final DigestStatus status)
+					throws BEEPException {
+				throw new AbortChannelException("failed");
+			}
+		});
+		update("confirmed=1\r\n");
+	}
+}
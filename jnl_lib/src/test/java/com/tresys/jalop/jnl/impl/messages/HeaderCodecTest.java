@@ -0,0 +1,171 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tresys.jalop.jnl.impl.messages;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HeaderCodecTest {
+
+	private static final String[] HEADERS = { Utils.HDRS_ACCEPT_DIGEST,
+			Utils.HDRS_ACCEPT_ENCODING, Utils.HDRS_AGENT,
+			Utils.HDRS_APP_META_LEN, Utils.HDRS_AUDIT_LEN,
+			Utils.HDRS_CONTENT_TXFR_ENCODING, Utils.HDRS_CONTENT_TYPE,
+			Utils.HDRS_COUNT, Utils.HDRS_DATA_CLASS, Utils.HDRS_DIGEST,
+			Utils.HDRS_ENCODING, Utils.HDRS_JOURNAL_LEN,
+			Utils.HDRS_JOURNAL_OFFSET, Utils.HDRS_LOG_LEN, Utils.HDRS_MESSAGE,
+			Utils.HDRS_MODE, Utils.HDRS_NONCE, Utils.HDRS_SYS_META_LEN,
+			Utils.HDRS_UNAUTHORIZED_MODE, Utils.HDRS_UNSUPPORTED_DIGEST,
+			Utils.HDRS_UNSUPPORTED_ENCODING, Utils.HDRS_UNSUPPORTED_MODE,
+			Utils.HDRS_UNSUPPORTED_VERSION, Utils.HDRS_ACCEPT_COALESCING,
+			Utils.HDRS_COALESCING, Utils.HDRS_ACCEPT_SYNC_BATCHING,
+			Utils.HDRS_SYNC_BATCHING };
+
+	private static final String[] MESSAGES = { Utils.MSG_AUDIT,
+			Utils.MSG_DIGEST, Utils.MSG_DIGEST_RESP, Utils.MSG_INIT,
+			Utils.MSG_INIT_ACK, Utils.MSG_INIT_NACK, Utils.MSG_JOURNAL,
+			Utils.MSG_JOURNAL_RESUME, Utils.MSG_LOG, Utils.MSG_SYNC,
+			Utils.MSG_PUBLISH, Utils.MSG_SUBSCRIBE, Utils.MSG_PUBLISH_LIVE,
+			Utils.MSG_SUBSCRIBE_LIVE, Utils.MSG_PUBLISH_ARCHIVE,
+			Utils.MSG_SUBSCRIBE_ARCHIVE, Utils.MSG_RECORD_BATCH,
+			Utils.MSG_SYNC_BATCH };
+
+	@Test
+	public void testLookupHeaderFindsEveryKnownHeader() {
+		for (int id = 0; id < HEADERS.length; id++) {
+			assertEquals(id, HeaderCodec.lookupHeader(HEADERS[id]));
+			assertSame(HEADERS[id], HeaderCodec.headerName(id));
+		}
+	}
+
+	@Test
+	public void testLookupHeaderIgnoresCase() {
+		assertEquals(HeaderCodec.JOURNAL_LEN,
+				HeaderCodec.lookupHeader("jal-journal-length"));
+		assertEquals(HeaderCodec.JOURNAL_OFFSET,
+				HeaderCodec.lookupHeader("JAL-JOURNAL-OFFSET"));
+		assertEquals(HeaderCodec.CONTENT_TYPE,
+				HeaderCodec.lookupHeader("content-type"));
+	}
+
+	@Test
+	public void testLookupHeaderReturnsUnknown() {
+		assertEquals(HeaderCodec.UNKNOWN, HeaderCodec.lookupHeader(null));
+		assertEquals(HeaderCodec.UNKNOWN, HeaderCodec.lookupHeader(""));
+		assertEquals(HeaderCodec.UNKNOWN, HeaderCodec.lookupHeader("JAL-Ix"));
+		assertEquals(HeaderCodec.UNKNOWN,
+				HeaderCodec.lookupHeader("JAL-Journal-Lengthy"));
+		assertEquals(HeaderCodec.UNKNOWN, HeaderCodec.lookupHeader(
+				"JAL-Application-Metadata-Length-That-Is-Too-Long"));
+	}
+
+	@Test
+	public void testLookupMessageFindsEveryKnownMessage() {
+		for (int id = 0; id < MESSAGES.length; id++) {
+			assertEquals(id, HeaderCodec.lookupMessage(MESSAGES[id]));
+			assertEquals(id, HeaderCodec.lookupMessage(MESSAGES[id].toUpperCase()));
+			assertSame(MESSAGES[id], HeaderCodec.messageName(id));
+		}
+		assertEquals(HeaderCodec.UNKNOWN, HeaderCodec.lookupMessage("journal-records"));
+		assertEquals(HeaderCodec.UNKNOWN, HeaderCodec.lookupMessage(null));
+	}
+
+	@Test
+	public void testMaskOfAndContains() {
+		final long mask = HeaderCodec.maskOf(Utils.HDRS_MESSAGE, Utils.HDRS_NONCE);
+		assertTrue(HeaderCodec.contains(mask, "jal-message"));
+		assertTrue(HeaderCodec.contains(mask, Utils.HDRS_NONCE));
+		assertFalse(HeaderCodec.contains(mask, Utils.HDRS_COUNT));
+		assertFalse(HeaderCodec.contains(mask, "X-Other"));
+		assertTrue(HeaderCodec.contains(HeaderCodec.CONTENT_HEADERS,
+				org.beepcore.beep.core.MimeHeaders.CONTENT_TRANSFER_ENCODING));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMaskOfThrowsExceptionForUnknownHeader() {
+		HeaderCodec.maskOf(Utils.HDRS_MESSAGE, "X-Other");
+	}
+
+	@Test
+	public void testParseLengthWorks() {
+		assertEquals(0, HeaderCodec.parseLength("0"));
+		assertEquals(1234, HeaderCodec.parseLength(" 1234 "));
+		assertEquals(Long.MAX_VALUE,
+				HeaderCodec.parseLength(Long.toString(Long.MAX_VALUE)));
+	}
+
+	@Test(expected = NumberFormatException.class)
+	public void testParseLengthThrowsExceptionWithNull() {
+		HeaderCodec.parseLength(null);
+	}
+
+	@Test(expected = NumberFormatException.class)
+	public void testParseLengthThrowsExceptionWithEmptyString() {
+		HeaderCodec.parseLength("  ");
+	}
+
+	@Test(expected = NumberFormatException.class)
+	public void testParseLengthThrowsExceptionWithNegative() {
+		HeaderCodec.parseLength("-1");
+	}
+
+	@Test(expected = NumberFormatException.class)
+	public void testParseLengthThrowsExceptionWithNonDigit() {
+		HeaderCodec.parseLength("12a");
+	}
+
+	@Test(expected = NumberFormatException.class)
+	public void testParseLengthThrowsExceptionOnOverflow() {
+		HeaderCodec.parseLength("9223372036854775808");
+	}
+
+	@Test
+	public void testWriteDecimalWorks() {
+		final long[] values = { 0, 9, 10, 200, 4096, -1, -10, Long.MAX_VALUE,
+				Long.MIN_VALUE };
+		for (final long value : values) {
+			final String expected = Long.toString(value);
+			assertEquals(expected.length(), HeaderCodec.decimalLength(value));
+			final byte[] buf = new byte[expected.length() + 2];
+			assertEquals(expected.length() + 1,
+					HeaderCodec.writeDecimal(value, buf, 1));
+			assertEquals(expected, new String(buf, 1, expected.length()));
+		}
+	}
+
+	@Test
+	public void testFormatLengthWorks() {
+		assertEquals("0", HeaderCodec.formatLength(0));
+		assertSame(HeaderCodec.formatLength(200), HeaderCodec.formatLength(200));
+		assertEquals("4096", HeaderCodec.formatLength(4096));
+		assertEquals("-5", HeaderCodec.formatLength(-5));
+		assertEquals(Long.toString(Long.MAX_VALUE),
+				HeaderCodec.formatLength(Long.MAX_VALUE));
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl.impl.messages;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NonceListParserTest {
+
+	private List<String> nonces;
+	private NonceListParser parser;
+
+	@Before
+	public void setUp() {
+		// Disable logging so the build doesn't get spammed.
+		Logger.getRootLogger().setLevel(Level.OFF);
+		this.nonces = new ArrayList<String>();
+		this.parser = new NonceListParser(this.nonces);
+	}
+
+	private void update(final String data) throws Exception {
+		final byte[] b = data.getBytes("utf-8");
+		this.parser.update(b, 0, b.length);
+	}
+
+	@Test
+	public void testParsesNonces() throws Exception {
+		update("1\r\n  22\t\r\nn\u00e9=3\r\n");
+		assertEquals(3, this.parser.finish());
+		assertEquals(Arrays.asList("1", "22", "n\u00e9=3"), this.nonces);
+	}
+
+	@Test
+	public void testEmitsNoncesOnlyOnceComplete() throws Exception {
+		update("1\r\n2");
+		assertEquals(Arrays.asList("1"), this.nonces);
+		update("2\r\n");
+		assertEquals(Arrays.asList("1", "22"), this.nonces);
+	}
+
+	@Test
+	public void testFinishEmitsLastNonce() throws Exception {
+		update("1\r\n22");
+		assertEquals(2, this.parser.finish());
+		assertEquals(Arrays.asList("1", "22"), this.nonces);
+	}
+
+	@Test
+	public void testEmptyBodyHasNoNonces() throws Exception {
+		update("\r\n");
+		assertEquals(0, this.parser.finish());
+		assertEquals(0, this.nonces.size());
+	}
+}
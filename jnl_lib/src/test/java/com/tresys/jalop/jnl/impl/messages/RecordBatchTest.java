@@ -0,0 +1,210 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tresys.jalop.jnl.impl.messages;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.beepcore.beep.util.BufferSegment;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.tresys.jalop.jnl.RecordInfo;
+import com.tresys.jalop.jnl.RecordType;
+
+public class RecordBatchTest {
+
+	@Before
+	public void setUp() {
+		// Disable logging so the build doesn't get spammed.
+		Logger.getRootLogger().setLevel(Level.OFF);
+	}
+
+	private static byte[] toBytes(final BufferSegment seg) {
+		return Arrays.copyOfRange(seg.getData(), seg.getOffset(),
+				seg.getOffset() + seg.getLength());
+	}
+
+	private static RecordInfo record(final RecordType type, final String nonce,
+			final long offset, final long sys, final long app, final long payload) {
+		return new RecordInfo() {
+			@Override
+			public String getNonce() {
+				return nonce;
+			}
+
+			@Override
+			public long getOffset() {
+				return offset;
+			}
+
+			@Override
+			public RecordType getRecordType() {
+				return type;
+			}
+
+			@Override
+			public long getSysMetaLength() {
+				return sys;
+			}
+
+			@Override
+			public long getAppMetaLength() {
+				return app;
+			}
+
+			@Override
+			public long getPayloadLength() {
+				return payload;
+			}
+		};
+	}
+
+	@Test
+	public void testVarintRoundTrips() throws Exception {
+		final long[] values = { 0, 1, 127, 128, 300, 16383, 16384,
+				Integer.MAX_VALUE, Long.MAX_VALUE };
+		for (final long value : values) {
+			final byte[] buf = new byte[10];
+			final int len = RecordBatch.writeVarint(value, buf, 0);
+			assertEquals(RecordBatch.varintLength(value), len);
+			assertEquals(value, RecordBatch.readVarint(new ByteArrayInputStream(buf, 0, len)));
+		}
+	}
+
+	@Test(expected = EOFException.class)
+	public void testReadVarintThrowsExceptionWhenTruncated() throws Exception {
+		RecordBatch.readVarint(new ByteArrayInputStream(new byte[] { (byte) 0x80 }));
+	}
+
+	@Test(expected = IOException.class)
+	public void testReadVarintThrowsExceptionWhenTooLong() throws Exception {
+		final byte[] buf = new byte[10];
+		Arrays.fill(buf, (byte) 0xff);
+		RecordBatch.readVarint(new ByteArrayInputStream(buf));
+	}
+
+	@Test
+	public void testTableRoundTrips() throws Exception {
+		final List<RecordInfo> records = new ArrayList<RecordInfo>();
+		records.add(record(RecordType.Log, "1", 0, 10, 0, 200));
+		records.add(record(RecordType.Log, "nonce-\u00e9\u4e2d", 0, 300, 2, 0));
+
+		final byte[] table = toBytes(RecordBatch.encodeTable(records));
+		final ByteArrayInputStream in = new ByteArrayInputStream(table);
+		final List<RecordBatch.Entry> entries = RecordBatch.readTable(in, 2,
+				RecordType.Log);
+
+		assertEquals(0, in.available());
+		assertEquals(2, entries.size());
+		for (int i = 0; i < 2; i++) {
+			final RecordInfo rec = records.get(i);
+			final RecordBatch.Entry entry = entries.get(i);
+			assertEquals(rec.getNonce(), entry.getNonce());
+			assertEquals(RecordType.Log, entry.getRecordType());
+			assertEquals(0, entry.getOffset());
+			assertEquals(rec.getSysMetaLength(), entry.getSysMetaLength());
+			assertEquals(rec.getAppMetaLength(), entry.getAppMetaLength());
+			assertEquals(rec.getPayloadLength(), entry.getPayloadLength());
+		}
+	}
+
+	@Test(expected = EOFException.class)
+	public void testReadTableThrowsExceptionWhenTruncated() throws Exception {
+		final byte[] table = toBytes(RecordBatch.encodeTable(Arrays.asList(
+				record(RecordType.Log, "12345", 0, 1, 2, 3))));
+		RecordBatch.readTable(new ByteArrayInputStream(table, 0, 4), 1,
+				RecordType.Log);
+	}
+
+	@Test(expected = IOException.class)
+	public void testReadTableThrowsExceptionWithTooManyRecords() throws Exception {
+		RecordBatch.readTable(new ByteArrayInputStream(new byte[0]),
+				RecordBatch.MAX_RECORDS + 1, RecordType.Log);
+	}
+
+	@Test(expected = IOException.class)
+	public void testReadTableThrowsExceptionWithZeroRecords() throws Exception {
+		RecordBatch.readTable(new ByteArrayInputStream(new byte[0]), 0,
+				RecordType.Log);
+	}
+
+	@Test(expected = IOException.class)
+	public void testReadTableThrowsExceptionWithLargeRecord() throws Exception {
+		final byte[] table = toBytes(RecordBatch.encodeTable(Arrays.asList(
+				record(RecordType.Log, "1", 0, 1, 1, RecordBatch.MAX_RECORD_SIZE))));
+		RecordBatch.readTable(new ByteArrayInputStream(table), 1, RecordType.Log);
+	}
+
+	@Test(expected = IOException.class)
+	public void testReadTableThrowsExceptionWhenLengthsOverflow() throws Exception {
+		final byte[] table = toBytes(RecordBatch.encodeTable(Arrays.asList(
+				record(RecordType.Log, "1", 0, Long.MAX_VALUE, Long.MAX_VALUE, 2))));
+		RecordBatch.readTable(new ByteArrayInputStream(table), 1, RecordType.Log);
+	}
+
+	@Test
+	public void testEncodeHeadersWorks() throws Exception {
+		assertEquals(Utils.HDRS_CONTENT_TYPE + ": " + Utils.CT_JALOP + "\r\n"
+				+ Utils.HDRS_MESSAGE + ": " + Utils.MSG_RECORD_BATCH + "\r\n"
+				+ Utils.HDRS_COUNT + ": 42\r\n\r\n",
+				new String(toBytes(RecordBatch.encodeHeaders(42)), "US-ASCII"));
+	}
+
+	@Test
+	public void testIsCoalescable() {
+		assertTrue(RecordBatch.isCoalescable(record(RecordType.Log, "1", 0, 10, 10, 80), 100));
+		assertTrue(RecordBatch.isCoalescable(record(RecordType.Audit, "1", 0, 0, 0, 0), 100));
+		assertFalse(RecordBatch.isCoalescable(record(RecordType.Log, "1", 0, 10, 10, 81), 100));
+		assertFalse(RecordBatch.isCoalescable(record(RecordType.Journal, "1", 0, 1, 1, 1), 100));
+		assertFalse(RecordBatch.isCoalescable(record(RecordType.Log, "1", 5, 1, 1, 1), 100));
+		assertFalse(RecordBatch.isCoalescable(record(RecordType.Log, "1", 0, -1, 1, 1), 100));
+		assertFalse(RecordBatch.isCoalescable(record(RecordType.Log, "1", 0, 0, 0,
+				RecordBatch.MAX_RECORD_SIZE + 1), Long.MAX_VALUE));
+
+		final char[] nonce = new char[RecordBatch.MAX_NONCE_LENGTH / 2 + 1];
+		Arrays.fill(nonce, '\u00e9');
+		assertFalse(RecordBatch.isCoalescable(record(RecordType.Log,
+				new String(nonce), 0, 1, 1, 1), 100));
+	}
+
+	@Test
+	public void testReadFullyWorks() throws Exception {
+		final byte[] b = new byte[3];
+		RecordBatch.readFully(new ByteArrayInputStream(new byte[] { 1, 2, 3, 4 }), b);
+		assertArrayEquals(new byte[] { 1, 2, 3 }, b);
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tresys.jalop.jnl.impl.messages;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Enumeration;
+
+import org.beepcore.beep.core.InputDataStream;
+import org.beepcore.beep.core.InputDataStreamAdapter;
+import org.beepcore.beep.util.BufferSegment;
+import org.junit.Test;
+
+import com.tresys.jalop.jnl.RecordType;
+
+public class RecordHeaderTemplateTest {
+
+	private static InputDataStreamAdapter parse(final BufferSegment headers)
+			throws Exception {
+		final Constructor<InputDataStream> constructor = InputDataStream.class
+				.getDeclaredConstructor();
+		constructor.setAccessible(true);
+		final InputDataStream ds = constructor.newInstance();
+
+		final Method addMethod = InputDataStream.class.getDeclaredMethod("add",
+				BufferSegment.class);
+		addMethod.setAccessible(true);
+		addMethod.invoke(ds, headers);
+
+		final Method completeMethod = InputDataStream.class
+				.getDeclaredMethod("setComplete");
+		completeMethod.setAccessible(true);
+		completeMethod.invoke(ds);
+		return ds.getInputStream();
+	}
+
+	private static org.beepcore.beep.core.MimeHeaders expected(
+			final String messageType, final String payloadLengthHeader,
+			final String nonce, final long sysMetaLength,
+			final long appMetaLength, final long payloadLength) {
+		final org.beepcore.beep.core.MimeHeaders mh = new org.beepcore.beep.core.MimeHeaders();
+		mh.setContentType(Utils.CT_JALOP);
+		mh.setHeader(Utils.HDRS_NONCE, nonce);
+		mh.setHeader(Utils.HDRS_MESSAGE, messageType);
+		mh.setHeader(payloadLengthHeader, String.valueOf(payloadLength));
+		mh.setHeader(Utils.HDRS_SYS_META_LEN, String.valueOf(sysMetaLength));
+		mh.setHeader(Utils.HDRS_APP_META_LEN, String.valueOf(appMetaLength));
+		return mh;
+	}
+
+	private static void assertSameHeaders(
+			final org.beepcore.beep.core.MimeHeaders expected,
+			final BufferSegment actual) throws Exception {
+		final BufferSegment expectedSegment = expected.getBufferSegment();
+		assertEquals(expectedSegment.getLength(), actual.getLength());
+
+		final InputDataStreamAdapter exp = parse(expectedSegment);
+		final InputDataStreamAdapter act = parse(actual);
+		int count = 0;
+		for (@SuppressWarnings("unchecked")
+		final Enumeration<String> e = exp.getHeaderNames(); e.hasMoreElements();) {
+			final String name = e.nextElement();
+			assertEquals(exp.getHeaderValue(name), act.getHeaderValue(name));
+			count++;
+		}
+		for (@SuppressWarnings("unchecked")
+		final Enumeration<String> e = act.getHeaderNames(); e.hasMoreElements();) {
+			e.nextElement();
+			count--;
+		}
+		assertEquals(0, count);
+	}
+
+	@Test
+	public void testForTypeReturnsSharedTemplate() {
+		assertSame(RecordHeaderTemplate.forType(RecordType.Log),
+				RecordHeaderTemplate.forType(RecordType.Log));
+		assertNotSame(RecordHeaderTemplate.forType(RecordType.Log),
+				RecordHeaderTemplate.forType(RecordType.Audit));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testForTypeThrowsExceptionWithUnset() {
+		RecordHeaderTemplate.forType(RecordType.Unset);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testForTypeThrowsExceptionWithNull() {
+		RecordHeaderTemplate.forType(null);
+	}
+
+	@Test
+	public void testEncodeMatchesMimeHeadersForLog() throws Exception {
+		assertSameHeaders(expected(Utils.MSG_LOG, Utils.HDRS_LOG_LEN, "1234", 10, 0, 200),
+				RecordHeaderTemplate.forType(RecordType.Log).encode("1234", 10, 0, 200));
+	}
+
+	@Test
+	public void testEncodeMatchesMimeHeadersForAudit() throws Exception {
+		assertSameHeaders(expected(Utils.MSG_AUDIT, Utils.HDRS_AUDIT_LEN, "a-nonce", 1024, 7, 99999),
+				RecordHeaderTemplate.forType(RecordType.Audit).encode("a-nonce", 1024, 7, 99999));
+	}
+
+	@Test
+	public void testEncodeMatchesMimeHeadersForJournal() throws Exception {
+		assertSameHeaders(expected(Utils.MSG_JOURNAL, Utils.HDRS_JOURNAL_LEN, "9", 0, 0, Long.MAX_VALUE),
+				RecordHeaderTemplate.forType(RecordType.Journal).encode("9", 0, 0, Long.MAX_VALUE));
+	}
+
+	@Test
+	public void testEncodeWritesNonAsciiNonceAsUtf8() throws Exception {
+		final BufferSegment seg = RecordHeaderTemplate.forType(RecordType.Log)
+				.encode("caf\u00e9", 1, 2, 3);
+		final String headers = new String(seg.getData(), seg.getOffset(),
+				seg.getLength(), "utf-8");
+		assertTrue(headers.contains(Utils.HDRS_NONCE + ": caf\u00e9\r\n"));
+	}
+}
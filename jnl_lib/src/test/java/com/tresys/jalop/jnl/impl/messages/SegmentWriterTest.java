@@ -0,0 +1,146 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl.impl.messages;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.beepcore.beep.core.MimeHeaders;
+import org.beepcore.beep.core.OutputDataStream;
+import org.beepcore.beep.util.BufferSegment;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SegmentWriterTest {
+
+	@Before
+	public void setUp() {
+		// Disable logging so the build doesn't get spammed.
+		Logger.getRootLogger().setLevel(Level.OFF);
+	}
+
+	private static List<BufferSegment> readBody(final OutputDataStream ods) throws Exception {
+		final Method available = OutputDataStream.class.getDeclaredMethod("availableSegment");
+		available.setAccessible(true);
+		final Method getNextSegment = OutputDataStream.class.getDeclaredMethod(
+				"getNextSegment", int.class);
+		getNextSegment.setAccessible(true);
+
+		final List<BufferSegment> segments = new ArrayList<BufferSegment>();
+		while ((Boolean) available.invoke(ods)) {
+			segments.add((BufferSegment) getNextSegment.invoke(ods, Integer.MAX_VALUE));
+		}
+		return segments.subList(1, segments.size());
+	}
+
+	private static void write(final SegmentWriter writer, final byte[] entry) {
+		final byte[] buf = writer.reserve(entry.length);
+		final int pos = writer.position();
+		System.arraycopy(entry, 0, buf, pos, entry.length);
+		writer.commit(pos + entry.length);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructorThrowsExceptionWithNegativeLength() {
+		new SegmentWriter(-1, null);
+	}
+
+	@Test
+	public void testEntriesSpanSegmentBoundaries() throws Exception {
+		// 3 entries that do not divide the segment size evenly
+		final int entryLength = SegmentWriter.SEGMENT_SIZE / 2 + 7;
+		final SegmentWriter writer = new SegmentWriter(3L * entryLength, null);
+		final byte[] expected = new byte[3 * entryLength];
+		for (int i = 0; i < 3; i++) {
+			final byte[] entry = new byte[entryLength];
+			for (int j = 0; j < entryLength; j++) {
+				entry[j] = (byte) (i * 31 + j);
+			}
+			System.arraycopy(entry, 0, expected, i * entryLength, entryLength);
+			write(writer, entry);
+		}
+
+		final List<BufferSegment> body = readBody(writer.finish(new MimeHeaders()));
+		assertEquals(2, body.size());
+		assertEquals(SegmentWriter.SEGMENT_SIZE, body.get(0).getLength());
+		assertEquals(3 * entryLength - SegmentWriter.SEGMENT_SIZE, body.get(1).getLength());
+
+		final byte[] actual = new byte[expected.length];
+		int pos = 0;
+		for (final BufferSegment bs : body) {
+			System.arraycopy(bs.getData(), bs.getOffset(), actual, pos, bs.getLength());
+			pos += bs.getLength();
+		}
+		assertArrayEquals(expected, actual);
+	}
+
+	@Test
+	public void testLargeBodyIsSplitIntoAtMostMaxSegments() throws Exception {
+		final long length = (long) SegmentWriter.SEGMENT_SIZE * SegmentWriter.MAX_SEGMENTS * 2;
+		final SegmentWriter writer = new SegmentWriter(length, null);
+		final byte[] entry = new byte[SegmentWriter.SEGMENT_SIZE];
+		for (long i = 0; i < length / entry.length; i++) {
+			write(writer, entry);
+		}
+		assertEquals(SegmentWriter.MAX_SEGMENTS, readBody(writer.finish(new MimeHeaders())).size());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testFinishThrowsExceptionWhenBodyIsShort() {
+		final SegmentWriter writer = new SegmentWriter(10, null);
+		write(writer, new byte[9]);
+		writer.finish(new MimeHeaders());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testCommitThrowsExceptionWhenBodyIsLong() {
+		final SegmentWriter writer = new SegmentWriter(10, null);
+		write(writer, new byte[11]);
+	}
+
+	@Test
+	public void testEmptyBody() throws Exception {
+		final OutputDataStream ods = new SegmentWriter(0, null).finish(new MimeHeaders());
+		assertTrue(ods.isComplete());
+		assertEquals(0, readBody(ods).get(0).getLength());
+	}
+
+	@Test
+	public void testWriteUtf8MatchesStringEncoding() throws Exception {
+		final String s = "a\u00e9\u4e2d\ud83d\ude00\ud83d!";
+		final byte[] expected = s.getBytes("utf-8");
+		assertEquals(expected.length, SegmentWriter.utf8Length(s, 0, s.length()));
+
+		final byte[] actual = new byte[expected.length];
+		assertEquals(expected.length, SegmentWriter.writeUtf8(s, 0, s.length(), actual, 0));
+		assertArrayEquals(expected, actual);
+	}
+}
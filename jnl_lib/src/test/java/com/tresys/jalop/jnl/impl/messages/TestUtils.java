@@ -24,6 +24,7 @@
 
 package com.tresys.jalop.jnl.impl.messages;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
@@ -35,6 +36,7 @@ import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -58,6 +60,10 @@ import com.tresys.jalop.jnl.RecordType;
 import com.tresys.jalop.jnl.Role;
 import com.tresys.jalop.jnl.exceptions.MissingMimeHeaderException;
 import com.tresys.jalop.jnl.exceptions.UnexpectedMimeValueException;
+import com.tresys.jalop.jnl.impl.BufferPool;
+import com.tresys.jalop.jnl.impl.DigestLedger;
+import com.tresys.jalop.jnl.impl.JNLOutputDataStream;
+import com.tresys.jalop.jnl.impl.SegmentPool;
 
 /**
  * Tests for common utility class.
@@ -242,6 +248,56 @@ public class TestUtils {
 		assertEquals(msg.getRecordType(), RecordType.Log);
 	}
 
+	@Test
+	public void testProcessInitMessageWorksWithAcceptCoalescing() throws Exception {
+
+		final org.beepcore.beep.core.MimeHeaders headers = new org.beepcore.beep.core.MimeHeaders(
+				Utils.CT_JALOP,
+				org.beepcore.beep.core.MimeHeaders.DEFAULT_CONTENT_TRANSFER_ENCODING);
+
+		headers.setHeader(Utils.HDRS_MESSAGE, Utils.MSG_INIT);
+		headers.setHeader(Utils.HDRS_ACCEPT_ENCODING, Utils.BINARY);
+		headers.setHeader(Utils.HDRS_ACCEPT_DIGEST, Utils.DGST_SHA256);
+		headers.setHeader(Utils.HDRS_MODE, Utils.MSG_SUBSCRIBE_LIVE);
+		headers.setHeader(Utils.HDRS_DATA_CLASS, Utils.LOG);
+		headers.setHeader(Utils.HDRS_ACCEPT_COALESCING, "other, "
+				+ Utils.COALESCE_LENGTH_TABLE);
+
+		createDataStream(headers);
+
+		final InputDataStreamAdapter ids = data.getInputStream();
+		final InitMessage msg = Utils.processInitMessage(ids);
+
+		assertEquals(Arrays.asList("other", Utils.COALESCE_LENGTH_TABLE),
+				msg.getAcceptCoalescing());
+		assertNull(msg.getOtherHeaders().getHeader(Utils.HDRS_ACCEPT_COALESCING));
+	}
+
+	@Test
+	public void testProcessInitMessageWorksWithAcceptSyncBatching() throws Exception {
+
+		final org.beepcore.beep.core.MimeHeaders headers = new org.beepcore.beep.core.MimeHeaders(
+				Utils.CT_JALOP,
+				org.beepcore.beep.core.MimeHeaders.DEFAULT_CONTENT_TRANSFER_ENCODING);
+
+		headers.setHeader(Utils.HDRS_MESSAGE, Utils.MSG_INIT);
+		headers.setHeader(Utils.HDRS_ACCEPT_ENCODING, Utils.BINARY);
+		headers.setHeader(Utils.HDRS_ACCEPT_DIGEST, Utils.DGST_SHA256);
+		headers.setHeader(Utils.HDRS_MODE, Utils.MSG_SUBSCRIBE_LIVE);
+		headers.setHeader(Utils.HDRS_DATA_CLASS, Utils.LOG);
+		headers.setHeader(Utils.HDRS_ACCEPT_SYNC_BATCHING, Utils.SYNC_BATCH_NONCE_LIST);
+
+		createDataStream(headers);
+
+		final InputDataStreamAdapter ids = data.getInputStream();
+		final InitMessage msg = Utils.processInitMessage(ids);
+
+		assertEquals(Arrays.asList(Utils.SYNC_BATCH_NONCE_LIST),
+				msg.getAcceptSyncBatching());
+		assertTrue(msg.getAcceptCoalescing().isEmpty());
+		assertNull(msg.getOtherHeaders().getHeader(Utils.HDRS_ACCEPT_SYNC_BATCHING));
+	}
+
 	@Test
 	public void testProcessInitArchiveMessageWorks() throws Exception {
 
@@ -619,6 +675,59 @@ public class TestUtils {
 				Utils.LOG);
 	}
 
+	@Test
+	public void testCreateInitMessageWorksWithCoalescing() throws Exception {
+
+		final OutputDataStream ods = Utils.createInitMessage(Role.Publisher,
+				Mode.Live, RecordType.Log, Arrays.asList(Utils.BINARY),
+				Arrays.asList(Utils.DGST_SHA256), "agent",
+				Utils.COALESCE_LENGTH_TABLE);
+		assertTrue(ods.isComplete());
+		assertEquals(Utils.COALESCE_LENGTH_TABLE,
+				getMimeHeader(ods, Utils.HDRS_ACCEPT_COALESCING));
+	}
+
+	@Test
+	public void testCreateInitMessageOmitsCoalescingByDefault() throws Exception {
+
+		final OutputDataStream ods = Utils.createInitMessage(Role.Publisher,
+				Mode.Live, RecordType.Log, Arrays.asList(Utils.BINARY),
+				Arrays.asList(Utils.DGST_SHA256), "agent");
+		assertNull(getMimeHeader(ods, Utils.HDRS_ACCEPT_COALESCING));
+	}
+
+	@Test
+	public void testCreateInitAckMessageWorksWithCoalescing() throws Exception {
+		final OutputDataStream ods = Utils.createInitAckMessage(Utils.DGST_SHA256,
+				Utils.BINARY, Utils.COALESCE_LENGTH_TABLE);
+		assertTrue(ods.isComplete());
+		assertEquals(Utils.COALESCE_LENGTH_TABLE,
+				getMimeHeader(ods, Utils.HDRS_COALESCING));
+	}
+
+	@Test
+	public void testCreateInitMessageWorksWithSyncBatching() throws Exception {
+
+		final OutputDataStream ods = Utils.createInitMessage(Role.Subscriber,
+				Mode.Live, RecordType.Log, Arrays.asList(Utils.BINARY),
+				Arrays.asList(Utils.DGST_SHA256), "agent", null,
+				Utils.SYNC_BATCH_NONCE_LIST);
+		assertTrue(ods.isComplete());
+		assertEquals(Utils.SYNC_BATCH_NONCE_LIST,
+				getMimeHeader(ods, Utils.HDRS_ACCEPT_SYNC_BATCHING));
+		assertNull(getMimeHeader(ods, Utils.HDRS_ACCEPT_COALESCING));
+	}
+
+	@Test
+	public void testCreateInitAckMessageWorksWithSyncBatching() throws Exception {
+		final OutputDataStream ods = Utils.createInitAckMessage(Utils.DGST_SHA256,
+				Utils.BINARY, null, Utils.SYNC_BATCH_NONCE_LIST);
+		assertTrue(ods.isComplete());
+		assertEquals(Utils.SYNC_BATCH_NONCE_LIST,
+				getMimeHeader(ods, Utils.HDRS_SYNC_BATCHING));
+		assertNull(getMimeHeader(ods, Utils.HDRS_COALESCING));
+	}
+
 	@Test
 	public void testCreateInitMessageWorksWithSubscribeAudit()
 			throws SecurityException, NoSuchFieldException,
@@ -817,6 +926,66 @@ public class TestUtils {
 		assertEquals(msg.getEncoding(), Utils.BINARY);
 	}
 
+	@Test
+	public void testProcessInitAckWorksWithCoalescing() throws Exception {
+
+		final org.beepcore.beep.core.MimeHeaders headers = new org.beepcore.beep.core.MimeHeaders(
+				Utils.CT_JALOP,
+				org.beepcore.beep.core.MimeHeaders.DEFAULT_CONTENT_TRANSFER_ENCODING);
+
+		headers.setHeader(Utils.HDRS_MESSAGE, Utils.MSG_INIT_ACK);
+		headers.setHeader(Utils.HDRS_ENCODING, Utils.BINARY);
+		headers.setHeader(Utils.HDRS_DIGEST, Utils.DGST_SHA256);
+		headers.setHeader(Utils.HDRS_COALESCING, Utils.COALESCE_LENGTH_TABLE);
+
+		createDataStream(headers);
+
+		final InputDataStreamAdapter ids = data.getInputStream();
+		final InitAckMessage msg = Utils.processInitAck(ids);
+
+		assertEquals(Utils.COALESCE_LENGTH_TABLE, msg.getCoalescing());
+		assertFalse(msg.getOtherHeaders().getAllHeaders().hasNext());
+	}
+
+	@Test
+	public void testProcessInitAckWorksWithSyncBatching() throws Exception {
+
+		final org.beepcore.beep.core.MimeHeaders headers = new org.beepcore.beep.core.MimeHeaders(
+				Utils.CT_JALOP,
+				org.beepcore.beep.core.MimeHeaders.DEFAULT_CONTENT_TRANSFER_ENCODING);
+
+		headers.setHeader(Utils.HDRS_MESSAGE, Utils.MSG_INIT_ACK);
+		headers.setHeader(Utils.HDRS_ENCODING, Utils.BINARY);
+		headers.setHeader(Utils.HDRS_DIGEST, Utils.DGST_SHA256);
+		headers.setHeader(Utils.HDRS_SYNC_BATCHING, Utils.SYNC_BATCH_NONCE_LIST);
+
+		createDataStream(headers);
+
+		final InputDataStreamAdapter ids = data.getInputStream();
+		final InitAckMessage msg = Utils.processInitAck(ids);
+
+		assertEquals(Utils.SYNC_BATCH_NONCE_LIST, msg.getSyncBatching());
+		assertNull(msg.getCoalescing());
+		assertFalse(msg.getOtherHeaders().getAllHeaders().hasNext());
+	}
+
+	@Test
+	public void testProcessInitAckWorksWithoutCoalescing() throws Exception {
+
+		final org.beepcore.beep.core.MimeHeaders headers = new org.beepcore.beep.core.MimeHeaders(
+				Utils.CT_JALOP,
+				org.beepcore.beep.core.MimeHeaders.DEFAULT_CONTENT_TRANSFER_ENCODING);
+
+		headers.setHeader(Utils.HDRS_MESSAGE, Utils.MSG_INIT_ACK);
+		headers.setHeader(Utils.HDRS_ENCODING, Utils.BINARY);
+		headers.setHeader(Utils.HDRS_DIGEST, Utils.DGST_SHA256);
+
+		createDataStream(headers);
+
+		final InputDataStreamAdapter ids = data.getInputStream();
+		assertNull(Utils.processInitAck(ids).getCoalescing());
+	}
+
 	@Test(expected = MissingMimeHeaderException.class)
 	public void testProcessInitAckThrowsExceptionWithNoDigest()
 			throws Exception {
@@ -1214,6 +1383,229 @@ public class TestUtils {
 		Utils.createDigestMessage(digests);
 	}
 
+	@Test
+	public void testCreateDigestMessageFromLedgerWorks() throws Exception {
+		final DigestLedger ledger = new DigestLedger(2);
+		ledger.put("1", new byte[] { 0x01, (byte) 0xab });
+		ledger.put("nonce", new byte[] { 0x7f, 0x00 });
+
+		final OutputDataStream ods = Utils.createDigestMessage(ledger);
+		assertNotNull(ods);
+		assertTrue(ods.isComplete());
+
+		final org.beepcore.beep.core.MimeHeaders mh =
+			(org.beepcore.beep.core.MimeHeaders) odsMimeHeaders.get(ods);
+		assertEquals(Utils.MSG_DIGEST, mh.getHeaderValue(Utils.HDRS_MESSAGE));
+		assertEquals("2", mh.getHeaderValue(Utils.HDRS_COUNT));
+
+		final Method getNextSegment = OutputDataStream.class.getDeclaredMethod(
+				"getNextSegment", int.class);
+		getNextSegment.setAccessible(true);
+		// the first segment holds the MIME headers
+		getNextSegment.invoke(ods, Integer.MAX_VALUE);
+		final BufferSegment bs = (BufferSegment) getNextSegment.invoke(ods, Integer.MAX_VALUE);
+		assertEquals("01ab=1\r\n7f00=nonce\r\n",
+				new String(bs.getData(), bs.getOffset(), bs.getLength(), "utf-8"));
+	}
+
+	/**
+	 * Read every segment of the body of a complete {@link OutputDataStream}.
+	 */
+	private static List<BufferSegment> readBody(final OutputDataStream ods) throws Exception {
+		final Method available = OutputDataStream.class.getDeclaredMethod("availableSegment");
+		available.setAccessible(true);
+		final Method getNextSegment = OutputDataStream.class.getDeclaredMethod(
+				"getNextSegment", int.class);
+		getNextSegment.setAccessible(true);
+
+		final List<BufferSegment> segments = new ArrayList<BufferSegment>();
+		while ((Boolean) available.invoke(ods)) {
+			segments.add((BufferSegment) getNextSegment.invoke(ods, Integer.MAX_VALUE));
+		}
+		// the first segment holds the MIME headers
+		return segments.subList(1, segments.size());
+	}
+
+	private static String toString(final List<BufferSegment> segments) throws Exception {
+		final StringBuilder sb = new StringBuilder();
+		for (final BufferSegment bs : segments) {
+			sb.append(new String(bs.getData(), bs.getOffset(), bs.getLength(), "utf-8"));
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void testCreateDigestMessageFromLedgerSplitsLargeBody() throws Exception {
+		final DigestLedger ledger = new DigestLedger(32);
+		final StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 50000; i++) {
+			final byte[] digest = new byte[32];
+			digest[31] = (byte) i;
+			digest[30] = (byte) (i >> 8);
+			ledger.put(String.valueOf(i), digest);
+			expected.append(String.format("%064x", i & 0xffff)).append('=').append(i).append("\r\n");
+		}
+
+		final List<BufferSegment> body = readBody(Utils.createDigestMessage(ledger));
+		assertTrue(body.size() > 1);
+		for (final BufferSegment bs : body) {
+			assertTrue(bs.getLength() <= SegmentWriter.SEGMENT_SIZE);
+		}
+		assertEquals(expected.toString(), toString(body));
+	}
+
+	@Test
+	public void testCreateDigestMessageFromLedgerReturnsBuffersToPool() throws Exception {
+		final BufferPool pool = new BufferPool(256, SegmentWriter.SEGMENT_SIZE, 16);
+		final SegmentPool segmentPool = new SegmentPool(pool, new Object());
+		final DigestLedger ledger = new DigestLedger(32);
+		for (int i = 0; i < 5000; i++) {
+			ledger.put(String.valueOf(i), new byte[32]);
+		}
+
+		final OutputDataStream ods = Utils.createDigestMessage(ledger, segmentPool);
+		assertTrue(ods instanceof JNLOutputDataStream);
+		assertTrue(ods.isComplete());
+		final List<BufferSegment> body = readBody(ods);
+		// nonces 0 to 4999 take 10 * 1 + 90 * 2 + 900 * 3 + 4000 * 4 bytes
+		assertEquals(5000 * (64 + 3) + 18890, lengthOf(body));
+		final long allocated = pool.getAllocatedCount();
+
+		Utils.createDigestMessage(ledger, segmentPool);
+		assertEquals(allocated, pool.getAllocatedCount());
+		assertTrue(pool.getReusedCount() > 0);
+	}
+
+	private static int lengthOf(final List<BufferSegment> segments) {
+		int len = 0;
+		for (final BufferSegment bs : segments) {
+			len += bs.getLength();
+		}
+		return len;
+	}
+
+	@Test
+	public void testCreateDigestMessageWritesTrimmedPairs() throws Exception {
+		final Map<String, String> digests = new HashMap<String, String>();
+		digests.put(" n\u00e9 ", "\tabcdef ");
+
+		assertEquals("abcdef=n\u00e9\r\n", toString(readBody(Utils.createDigestMessage(digests))));
+	}
+
+	@Test
+	public void testCreateDigestResponseWritesPairs() throws Exception {
+		final Map<String, DigestStatus> statuses = new HashMap<String, DigestStatus>();
+		statuses.put(" 12345", DigestStatus.Confirmed);
+
+		assertEquals("Confirmed=12345\r\n", toString(readBody(Utils.createDigestResponse(statuses))));
+	}
+
+	@Test
+	public void testCreateDigestResponseWithNoStatusesHasEmptyBody() throws Exception {
+		final OutputDataStream ods = Utils.createDigestResponse(
+				new HashMap<String, DigestStatus>());
+		assertTrue(ods.isComplete());
+		assertEquals("", toString(readBody(ods)));
+	}
+
+	@Test
+	public void testCreateSyncBatchMessageWritesTrimmedNonces() throws Exception {
+		final OutputDataStream ods = Utils.createSyncBatchMessage(
+				Arrays.asList(" 1", "n\u00e9\t", "3"));
+		assertTrue(ods.isComplete());
+		assertEquals(Utils.MSG_SYNC_BATCH, getMimeHeader(ods, Utils.HDRS_MESSAGE));
+		assertEquals("3", getMimeHeader(ods, Utils.HDRS_COUNT));
+		assertEquals("1\r\nn\u00e9\r\n3\r\n", toString(readBody(ods)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCreateSyncBatchMessageThrowsExceptionForNullNonces() {
+		Utils.createSyncBatchMessage(null);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCreateSyncBatchMessageThrowsExceptionForEmptyNonce() {
+		Utils.createSyncBatchMessage(Arrays.asList("1", "  "));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCreateSyncBatchMessageThrowsExceptionForTooManyNonces() {
+		Utils.createSyncBatchMessage(Collections.nCopies(Utils.MAX_SYNC_BATCH_NONCES + 1, "1"));
+	}
+
+	@Test
+	public void testProcessSyncBatchMessageWorks() throws Exception {
+		final org.beepcore.beep.core.MimeHeaders mh = new org.beepcore.beep.core.MimeHeaders();
+		mh.setContentType(Utils.CT_JALOP);
+		mh.setHeader(Utils.HDRS_MESSAGE, Utils.MSG_SYNC_BATCH);
+		mh.setHeader(Utils.HDRS_COUNT, "3");
+
+		createDataStream(mh, "1\r\n22\r\n333\r\n");
+
+		final SyncBatchMessage msg = Utils.processSyncBatchMessage(data.getInputStream());
+		assertEquals(Arrays.asList("1", "22", "333"), msg.getNonces());
+		assertFalse(msg.getOtherHeaders().getAllHeaders().hasNext());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testProcessSyncBatchMessageThrowsExceptionWhenCountDoesNotMatch() throws Exception {
+		final org.beepcore.beep.core.MimeHeaders mh = new org.beepcore.beep.core.MimeHeaders();
+		mh.setContentType(Utils.CT_JALOP);
+		mh.setHeader(Utils.HDRS_MESSAGE, Utils.MSG_SYNC_BATCH);
+		mh.setHeader(Utils.HDRS_COUNT, "3");
+
+		createDataStream(mh, "1\r\n22\r\n");
+
+		Utils.processSyncBatchMessage(data.getInputStream());
+	}
+
+	@Test(expected = UnexpectedMimeValueException.class)
+	public void testProcessSyncBatchMessageThrowsExceptionWithHugeCount() throws Exception {
+		final org.beepcore.beep.core.MimeHeaders mh = new org.beepcore.beep.core.MimeHeaders();
+		mh.setContentType(Utils.CT_JALOP);
+		mh.setHeader(Utils.HDRS_MESSAGE, Utils.MSG_SYNC_BATCH);
+		mh.setHeader(Utils.HDRS_COUNT, "2000000000");
+
+		createDataStream(mh, "1\r\n");
+
+		Utils.processSyncBatchMessage(data.getInputStream());
+	}
+
+	@Test(expected = UnexpectedMimeValueException.class)
+	public void testProcessSyncBatchMessageThrowsExceptionWithNegativeCount() throws Exception {
+		final org.beepcore.beep.core.MimeHeaders mh = new org.beepcore.beep.core.MimeHeaders();
+		mh.setContentType(Utils.CT_JALOP);
+		mh.setHeader(Utils.HDRS_MESSAGE, Utils.MSG_SYNC_BATCH);
+		mh.setHeader(Utils.HDRS_COUNT, "-1");
+
+		createDataStream(mh, "1\r\n");
+
+		Utils.processSyncBatchMessage(data.getInputStream());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testProcessSyncBatchMessageThrowsExceptionWithMoreNoncesThanCount() throws Exception {
+		final org.beepcore.beep.core.MimeHeaders mh = new org.beepcore.beep.core.MimeHeaders();
+		mh.setContentType(Utils.CT_JALOP);
+		mh.setHeader(Utils.HDRS_MESSAGE, Utils.MSG_SYNC_BATCH);
+		mh.setHeader(Utils.HDRS_COUNT, "1");
+
+		createDataStream(mh, "1\r\n22\r\n333\r\n");
+
+		Utils.processSyncBatchMessage(data.getInputStream());
+	}
+
+	@Test(expected = MissingMimeHeaderException.class)
+	public void testProcessSyncBatchMessageThrowsExceptionWhenMissingCount() throws Exception {
+		final org.beepcore.beep.core.MimeHeaders mh = new org.beepcore.beep.core.MimeHeaders();
+		mh.setContentType(Utils.CT_JALOP);
+		mh.setHeader(Utils.HDRS_MESSAGE, Utils.MSG_SYNC_BATCH);
+
+		createDataStream(mh, "1\r\n");
+
+		Utils.processSyncBatchMessage(data.getInputStream());
+	}
+
 	@Test
 	public void testProcessDigestMessageWorks() throws Exception {
 
@@ -1230,13 +1622,66 @@ public class TestUtils {
 		final DigestMessage dm = Utils.processDigestMessage(ids);
 		assertNotNull(dm);
 
-		final HashMap<String, String> digestsMap = (HashMap<String, String>) dm.getMap();
+		final HashMap<String, byte[]> digestsMap = (HashMap<String, byte[]>) dm.getMap();
 		assertNotNull(digestsMap);
 		assertFalse(digestsMap.isEmpty());
 		assertTrue(digestsMap.containsKey("1"));
 		assertTrue(digestsMap.containsKey("2"));
-		assertEquals("abcdef123456789", digestsMap.get("1"));
-		assertEquals("123456789abcdef", digestsMap.get("2"));
+		assertArrayEquals(DigestLedger.decodeHex("abcdef123456789"), digestsMap.get("1"));
+		assertArrayEquals(DigestLedger.decodeHex("123456789abcdef"), digestsMap.get("2"));
+	}
+
+	@Test
+	public void testProcessDigestMessageReadsEveryFrame() throws Exception {
+
+		final org.beepcore.beep.core.MimeHeaders mh = new org.beepcore.beep.core.MimeHeaders();
+		mh.setContentType(Utils.CT_JALOP);
+		mh.setHeader(Utils.HDRS_MESSAGE, Utils.MSG_DIGEST);
+		mh.setHeader(Utils.HDRS_COUNT, "3");
+
+		final Method addMethod = InputDataStream.class.getDeclaredMethod("add",
+				BufferSegment.class);
+		addMethod.setAccessible(true);
+		addMethod.invoke(data, mh.getBufferSegment());
+		addMethod.invoke(data, new BufferSegment("0a0b=1\r\n0c".getBytes("us-ascii")));
+		addMethod.invoke(data, new BufferSegment("0d=2\r".getBytes("us-ascii")));
+		addMethod.invoke(data, new BufferSegment("\nFF=3\r\n".getBytes("us-ascii")));
+		final Method completeMethod = InputDataStream.class
+				.getDeclaredMethod("setComplete");
+		completeMethod.setAccessible(true);
+		completeMethod.invoke(data);
+
+		final Map<String, byte[]> digestsMap = Utils.processDigestMessage(data.getInputStream()).getMap();
+		assertEquals(3, digestsMap.size());
+		assertArrayEquals(new byte[] { 0x0a, 0x0b }, digestsMap.get("1"));
+		assertArrayEquals(new byte[] { 0x0c, 0x0d }, digestsMap.get("2"));
+		assertArrayEquals(new byte[] { (byte) 0xff }, digestsMap.get("3"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testProcessDigestMessageThrowsExceptionWhenCountDoesNotMatch() throws Exception {
+
+		final org.beepcore.beep.core.MimeHeaders mh = new org.beepcore.beep.core.MimeHeaders();
+		mh.setContentType(Utils.CT_JALOP);
+		mh.setHeader(Utils.HDRS_MESSAGE, Utils.MSG_DIGEST);
+		mh.setHeader(Utils.HDRS_COUNT, "3");
+
+		createDataStream(mh, "abcdef=1\r\n123456=2\r\n");
+
+		Utils.processDigestMessage(data.getInputStream());
+	}
+
+	@Test
+	public void testProcessDigestMessageCountWorks() throws Exception {
+
+		final org.beepcore.beep.core.MimeHeaders mh = new org.beepcore.beep.core.MimeHeaders();
+		mh.setContentType(Utils.CT_JALOP);
+		mh.setHeader(Utils.HDRS_MESSAGE, Utils.MSG_DIGEST);
+		mh.setHeader(Utils.HDRS_COUNT, " 2 ");
+
+		createDataStream(mh, "abcdef=1\r\n123456=2\r\n");
+
+		assertEquals(2, Utils.processDigestMessageCount(data.getInputStream()));
 	}
 
 	@Test(expected = MissingMimeHeaderException.class)
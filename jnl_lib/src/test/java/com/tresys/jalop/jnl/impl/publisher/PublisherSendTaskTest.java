@@ -0,0 +1,377 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tresys.jalop.jnl.impl.publisher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.crypto.dsig.DigestMethod;
+import javax.xml.soap.MimeHeaders;
+
+import mockit.Expectations;
+import mockit.Mock;
+import mockit.MockUp;
+import mockit.Mocked;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.beepcore.beep.core.MessageMSG;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.tresys.jalop.jnl.DigestPair;
+import com.tresys.jalop.jnl.Mode;
+import com.tresys.jalop.jnl.PublisherSession;
+import com.tresys.jalop.jnl.PullPublisher;
+import com.tresys.jalop.jnl.RecordType;
+import com.tresys.jalop.jnl.SourceRecord;
+import com.tresys.jalop.jnl.impl.ContextImpl;
+import com.tresys.jalop.jnl.impl.SendWindowPolicy;
+
+public class PublisherSendTaskTest {
+
+	/**
+	 * What the mocked session was asked to do, in order.
+	 */
+	private List<String> calls;
+
+	@Before
+	public void setUp() {
+		// Disable logging so the build doesn't get spammed.
+		Logger.getRootLogger().setLevel(Level.OFF);
+
+		this.calls = Collections.synchronizedList(new ArrayList<String>());
+		final List<String> log = this.calls;
+		new MockUp<PublisherSessionImpl>() {
+			@Mock
+			void submitRecord(final SourceRecord rec) {
+				log.add("submit " + rec.getNonce());
+			}
+
+			@Mock
+			void sendRecord(final SourceRecord rec) {
+				log.add("send " + rec.getNonce());
+			}
+
+			@Mock
+			void complete() {
+				log.add("complete");
+			}
+
+			@Mock
+			void sendERR(final MessageMSG message) {
+				log.add("err");
+			}
+		};
+	}
+
+	/**
+	 * Hands out the records it was given, in order, and remembers the last
+	 * nonce it was asked about.
+	 */
+	private static class ListPublisher implements PullPublisher {
+		final LinkedList<SourceRecord> records = new LinkedList<SourceRecord>();
+		final List<String> lastNonces = Collections.synchronizedList(new ArrayList<String>());
+		SourceRecord resumeRecord;
+
+		@Override
+		public SourceRecord getNextRecord(final PublisherSession sess,
+				final String lastNonce) {
+			this.lastNonces.add(lastNonce);
+			return this.records.poll();
+		}
+
+		@Override
+		public SourceRecord getResumeRecord(final PublisherSession sess,
+				final String nonce, final long offset) {
+			return this.resumeRecord;
+		}
+
+		@Override
+		public boolean onJournalResume(final PublisherSession sess,
+				final String nonce, final long offset, final MimeHeaders headers) {
+			return true;
+		}
+
+		@Override
+		public boolean onSubscribe(final PublisherSession sess,
+				final String nonce, final Mode mode, final MimeHeaders headers) {
+			return true;
+		}
+
+		@Override
+		public boolean onRecordComplete(final PublisherSession sess,
+				final String serailId, final SourceRecord record) {
+			return true;
+		}
+
+		@Override
+		public boolean sync(final PublisherSession sess, final String nonce,
+				final MimeHeaders headers) {
+			return true;
+		}
+
+		@Override
+		public void notifyDigest(final PublisherSession sess,
+				final String nonce, final byte[] digest) {
+		}
+
+		@Override
+		public void notifyPeerDigest(final PublisherSession sess,
+				final Map<String, DigestPair> digestPairs) {
+		}
+	}
+
+	private static PublisherSessionImpl createSession(final InetAddress address,
+			final PullPublisher publisher, final org.beepcore.beep.core.Session sess) {
+		new Expectations() {
+			{
+				sess.getState(); result = org.beepcore.beep.core.Session.SESSION_STATE_ACTIVE; minTimes = 0;
+			}
+		};
+		return new PublisherSessionImpl(address, RecordType.Log, publisher,
+				DigestMethod.SHA256, "xml", 0, sess, null);
+	}
+
+	@Test
+	public void testRunSubmitsRecordsInOrderThenCompletes(@Mocked final InetAddress address,
+			@Mocked final org.beepcore.beep.core.Session sess) {
+		final ListPublisher publisher = new ListPublisher();
+		publisher.records.add(new StreamSourceRecord("1"));
+		publisher.records.add(new StreamSourceRecord("2"));
+		publisher.records.add(new StreamSourceRecord("3"));
+		final PublisherSessionImpl p = createSession(address, publisher, sess);
+
+		final PublisherSendTask task = new PublisherSendTask(p, publisher, "0", -1);
+		task.run();
+
+		assertEquals("[submit 1, submit 2, submit 3, complete]", this.calls.toString());
+		assertEquals("[0, 1, 2, 3]", publisher.lastNonces.toString());
+		assertEquals(3, task.getSentCount());
+		assertEquals("3", task.getLastNonce());
+	}
+
+	@Test
+	public void testRunSendsResumedRecordFirst(@Mocked final InetAddress address,
+			@Mocked final org.beepcore.beep.core.Session sess) {
+		final ListPublisher publisher = new ListPublisher();
+		publisher.resumeRecord = new StreamSourceRecord("5");
+		publisher.records.add(new StreamSourceRecord("6"));
+		final PublisherSessionImpl p = createSession(address, publisher, sess);
+
+		final PublisherSendTask task = new PublisherSendTask(p, publisher, "5", 100);
+		task.run();
+
+		assertEquals("[send 5, submit 6, complete]", this.calls.toString());
+		assertEquals("[5, 6]", publisher.lastNonces.toString());
+		assertEquals(2, task.getSentCount());
+	}
+
+	@Test
+	public void testRunSendsErrWhenResumedRecordIsMissing(@Mocked final InetAddress address,
+			@Mocked final org.beepcore.beep.core.Session sess) {
+		final ListPublisher publisher = new ListPublisher();
+		publisher.records.add(new StreamSourceRecord("6"));
+		final PublisherSessionImpl p = createSession(address, publisher, sess);
+
+		new PublisherSendTask(p, publisher, "5", 100).run();
+
+		assertEquals("[err]", this.calls.toString());
+		assertTrue(publisher.lastNonces.isEmpty());
+	}
+
+	@Test
+	public void testRunStopsOnceSessionIsErrored(@Mocked final InetAddress address,
+			@Mocked final org.beepcore.beep.core.Session sess) {
+		final ListPublisher publisher = new ListPublisher() {
+			@Override
+			public SourceRecord getNextRecord(final PublisherSession s,
+					final String lastNonce) {
+				if ("2".equals(lastNonce)) {
+					s.setErrored();
+				}
+				return super.getNextRecord(s, lastNonce);
+			}
+		};
+		publisher.records.add(new StreamSourceRecord("1"));
+		publisher.records.add(new StreamSourceRecord("2"));
+		publisher.records.add(new StreamSourceRecord("3"));
+		publisher.records.add(new StreamSourceRecord("4"));
+		final PublisherSessionImpl p = createSession(address, publisher, sess);
+
+		new PublisherSendTask(p, publisher, "0", -1).run();
+
+		// the record pulled while the session errored is still handed over
+		assertEquals("[submit 1, submit 2, submit 3]", this.calls.toString());
+	}
+
+	@Test
+	public void testRunStopsOnceDataChannelIsReleased(@Mocked final InetAddress address,
+			@Mocked final org.beepcore.beep.core.Session sess) throws Exception {
+		// a live publisher that always has another record
+		final ListPublisher publisher = new ListPublisher() {
+			@Override
+			public SourceRecord getNextRecord(final PublisherSession s,
+					final String lastNonce) {
+				this.lastNonces.add(lastNonce);
+				return new StreamSourceRecord(String.valueOf(Integer.parseInt(lastNonce) + 1));
+			}
+		};
+		final PublisherSessionImpl p = createSession(address, publisher, sess);
+
+		final CountDownLatch done = new CountDownLatch(1);
+		final Thread t = new Thread() {
+			@Override
+			public void run() {
+				new PublisherSendTask(p, publisher, "0", -1).run();
+				done.countDown();
+			}
+		};
+		t.start();
+
+		final long deadline = System.currentTimeMillis() + 10000;
+		while (this.calls.size() < 3 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+		p.release();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+
+		assertTrue(p.isReleased());
+		assertFalse(p.isOk());
+		assertFalse(this.calls.contains("complete"));
+		final int submitted = this.calls.size();
+		Thread.sleep(50);
+		assertEquals(submitted, this.calls.size());
+	}
+
+	@Test
+	public void testRunSendsErrWhenPublisherThrows(@Mocked final InetAddress address,
+			@Mocked final org.beepcore.beep.core.Session sess) {
+		final ListPublisher publisher = new ListPublisher() {
+			@Override
+			public SourceRecord getNextRecord(final PublisherSession s,
+					final String lastNonce) {
+				throw new RuntimeException("no records");
+			}
+		};
+		final PublisherSessionImpl p = createSession(address, publisher, sess);
+
+		new PublisherSendTask(p, publisher, "0", -1).run();
+
+		assertEquals("[err]", this.calls.toString());
+		assertFalse(p.isOk());
+	}
+
+	@Test
+	public void testStartSendingRunsOffCallingThread(@Mocked final InetAddress address,
+			@Mocked final org.beepcore.beep.core.Session sess) throws Exception {
+		final CountDownLatch pulled = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Thread[] ran = new Thread[1];
+		final ListPublisher publisher = new ListPublisher() {
+			@Override
+			public SourceRecord getNextRecord(final PublisherSession s,
+					final String lastNonce) {
+				ran[0] = Thread.currentThread();
+				pulled.countDown();
+				try {
+					release.await();
+				} catch (final InterruptedException e) {
+					// ignore
+				}
+				return null;
+			}
+		};
+		final PublisherSessionImpl p = createSession(address, publisher, sess);
+
+		assertTrue(p.startSending(publisher, "0", -1));
+		assertTrue(pulled.await(10, TimeUnit.SECONDS));
+		assertNotSame(Thread.currentThread(), ran[0]);
+
+		// only one transfer may run on a session at a time
+		final PublisherSendTask task = p.getSendTask();
+		assertFalse(p.startSending(publisher, "0", -1));
+		assertSame(task, p.getSendTask());
+
+		release.countDown();
+		final long deadline = System.currentTimeMillis() + 10000;
+		while (p.getSendTask() != null && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertNull(p.getSendTask());
+		assertEquals("[complete]", this.calls.toString());
+	}
+
+	@Test
+	public void testRunIsHeldBackByUnconfirmedDigests(@Mocked final InetAddress address,
+			@Mocked final org.beepcore.beep.core.Session sess,
+			@Mocked final ContextImpl contextImpl) throws Exception {
+		new Expectations() {
+			{
+				sess.getState(); result = org.beepcore.beep.core.Session.SESSION_STATE_ACTIVE; minTimes = 0;
+				contextImpl.getSendWindowPolicy(); result = SendWindowPolicy.getDefault();
+				contextImpl.getPublisherDigestMemoryLimit(); result = 0;
+				contextImpl.getPublisherOutstandingDigestLimit(); result = 2;
+			}
+		};
+		final ListPublisher publisher = new ListPublisher();
+		publisher.records.add(new StreamSourceRecord("3"));
+		final PublisherSessionImpl p = new PublisherSessionImpl(address,
+				RecordType.Log, publisher, DigestMethod.SHA256, "xml", 0, sess,
+				contextImpl);
+		p.addDigest("1", new byte[32]);
+		p.addDigest("2", new byte[32]);
+
+		final CountDownLatch done = new CountDownLatch(1);
+		final Thread t = new Thread() {
+			@Override
+			public void run() {
+				new PublisherSendTask(p, publisher, "2", -1).run();
+				done.countDown();
+			}
+		};
+		t.start();
+
+		assertFalse(done.await(300, TimeUnit.MILLISECONDS));
+		assertTrue(publisher.lastNonces.isEmpty());
+		p.fetchAndRemoveDigest("1");
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals("[submit 3, complete]", this.calls.toString());
+		assertEquals(1, p.getThrottleCount());
+		assertTrue(p.getThrottleNanos() > 0);
+	}
+}
@@ -24,13 +24,34 @@
 
 package com.tresys.jalop.jnl.impl.publisher;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.net.InetAddress;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import javax.xml.crypto.dsig.DigestMethod;
 
@@ -40,22 +61,33 @@ import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.beepcore.beep.core.BEEPException;
 import org.beepcore.beep.core.Channel;
+import org.beepcore.beep.core.MessageMSG;
+import org.beepcore.beep.core.MessageStatus;
+import org.beepcore.beep.core.OutputDataStream;
 import org.beepcore.beep.core.RequestHandler;
+import org.beepcore.beep.util.BufferSegment;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.tresys.jalop.jnl.ByteArraySourceRecord;
 import com.tresys.jalop.jnl.Publisher;
 import com.tresys.jalop.jnl.RecordType;
 import com.tresys.jalop.jnl.Role;
 import com.tresys.jalop.jnl.exceptions.JNLException;
+import com.tresys.jalop.jnl.impl.BufferPool;
 import com.tresys.jalop.jnl.impl.ContextImpl;
+import com.tresys.jalop.jnl.impl.JNLOutputDataStream;
+import com.tresys.jalop.jnl.impl.SegmentPool;
+import com.tresys.jalop.jnl.impl.SendWindowPolicy;
 import com.tresys.jalop.jnl.impl.SessionImpl;
+import com.tresys.jalop.jnl.impl.SpillingDigestLedger;
+import com.tresys.jalop.jnl.impl.messages.Utils;
 
 public class PublisherSessionImplTest {
 
 	private static Field errored;
-	private static Field digestMapField;
+	private static Field digestLedgerField;
 
 	@BeforeClass
 	public static void setupBeforeClass() throws SecurityException,
@@ -63,14 +95,13 @@ public class PublisherSessionImplTest {
 		errored = SessionImpl.class.getDeclaredField("errored");
 		errored.setAccessible(true);
 
-		digestMapField = PublisherSessionImpl.class.getDeclaredField("digestMap");
-        digestMapField.setAccessible(true);
+		digestLedgerField = PublisherSessionImpl.class.getDeclaredField("digestLedger");
+        digestLedgerField.setAccessible(true);
 	}
 
-	@SuppressWarnings("unchecked")
-	private static Map<String, byte[]> getDigestMap(final PublisherSessionImpl p)
+	private static SpillingDigestLedger getDigestLedger(final PublisherSessionImpl p)
 			throws IllegalArgumentException, IllegalAccessException {
-		return (Map<String,  byte[]>) digestMapField.get(p);
+		return (SpillingDigestLedger) digestLedgerField.get(p);
 	}
 
 	@Before
@@ -128,6 +159,62 @@ public class PublisherSessionImplTest {
 		};
 	}
 
+	@Test
+	public final void testSetErroredCancelsActiveStream(@Mocked final ContextImpl contextImpl,
+			@Mocked final Publisher publisher, @Mocked final org.beepcore.beep.core.Session sess,
+			@Mocked final InetAddress address) throws Exception {
+
+		final PublisherSessionImpl p = new PublisherSessionImpl(address, RecordType.Log, publisher,
+				DigestMethod.SHA256, "xml", 0, sess, contextImpl);
+		final JNLOutputDataStream ods = new JNLOutputDataStream(
+				new BufferSegment(new byte[1]), 4);
+		final Field activeStreams = PublisherSessionImpl.class.getDeclaredField("activeStreams");
+		activeStreams.setAccessible(true);
+		@SuppressWarnings("unchecked")
+		final Set<JNLOutputDataStream> streams = (Set<JNLOutputDataStream>) activeStreams.get(p);
+		streams.add(ods);
+
+		p.setErrored();
+		assertTrue(errored.getBoolean(p));
+		assertTrue(ods.isCancelled());
+	}
+
+	@Test
+	public final void testSetErroredClosesDigestLedger(@Mocked final ContextImpl contextImpl,
+			@Mocked final Publisher publisher, @Mocked final org.beepcore.beep.core.Session sess,
+			@Mocked final InetAddress address) throws Exception {
+
+		final PublisherSessionImpl p = new PublisherSessionImpl(address, RecordType.Log, publisher,
+				DigestMethod.SHA256, "xml", 0, sess, contextImpl);
+		p.addDigest("nonce", new byte[32]);
+
+		p.setErrored();
+		assertEquals(0, getDigestLedger(p).size());
+	}
+
+	@Test
+	public final void testReleaseReturnsSendWindowBudget(@Mocked final ContextImpl contextImpl,
+			@Mocked final Publisher publisher, @Mocked final org.beepcore.beep.core.Session sess,
+			@Mocked final InetAddress address) throws Exception {
+
+		final SendWindowPolicy policy = new SendWindowPolicy(4096, 65536, 10, 256, 1 << 24);
+		new NonStrictExpectations() {
+			{
+				contextImpl.getSendWindowPolicy(); result = policy;
+				contextImpl.getPublisherDigestMemoryLimit(); result = 0;
+			}
+		};
+		final PublisherSessionImpl p = new PublisherSessionImpl(address, RecordType.Log, publisher,
+				DigestMethod.SHA256, "xml", 0, sess, contextImpl);
+		p.getSendWindow().update(1 << 20, 100L * 1000 * 1000, true);
+		assertTrue(policy.getReserved() > 0);
+
+		// the data channel of a live subscription closed without an error
+		p.release();
+		assertEquals(0, policy.getReserved());
+		assertEquals(4096, p.getSendWindow().getSegmentSize());
+	}
+
 	@Test
 	public final void testAddDigestWorks(@Mocked final ContextImpl contextImpl, @Mocked final Publisher publisher,
 			@Mocked final org.beepcore.beep.core.Session sess, @Mocked final InetAddress address)
@@ -135,12 +222,13 @@ public class PublisherSessionImplTest {
 
 		final PublisherSessionImpl p = new PublisherSessionImpl(address, RecordType.Log, publisher,
 				DigestMethod.SHA256, "xml", 0, sess, contextImpl);
-		final byte[] local = "local".getBytes();
+		final byte[] local = new byte[32];
+		local[0] = 1;
 		final String nonce = "nonce";
 		p.addDigest(nonce, local);
-		final Map<String, byte[]> map = getDigestMap(p);
-		assertTrue(map.containsKey(nonce));
-		assertEquals(local, map.get(nonce));
+		final SpillingDigestLedger ledger = getDigestLedger(p);
+		assertTrue(ledger.contains(nonce));
+		assertArrayEquals(local, ledger.get(nonce));
 	}
 
 	@Test(expected = JNLException.class)
@@ -150,7 +238,8 @@ public class PublisherSessionImplTest {
 
 		final PublisherSessionImpl p = new PublisherSessionImpl(address, RecordType.Log, publisher,
 				DigestMethod.SHA256, "xml", 0, sess, contextImpl);
-		final byte[] local = "local".getBytes();
+		final byte[] local = new byte[32];
+		local[0] = 1;
 		final String nonce = "nonce";
 		p.addDigest(nonce, local);
 		p.addDigest(nonce, local);
@@ -163,13 +252,348 @@ public class PublisherSessionImplTest {
 
 		final PublisherSessionImpl p = new PublisherSessionImpl(address, RecordType.Log, publisher,
 				DigestMethod.SHA256, "xml", 0, sess, contextImpl);
-		final byte[] local = "local".getBytes();
+		final byte[] local = new byte[32];
+		local[0] = 1;
 		final String nonce = "nonce";
 		p.addDigest(nonce, local);
 		final byte[] fetched = p.fetchAndRemoveDigest(nonce);
-		assertEquals(local, fetched);
-		final Map<String, byte[]> map = getDigestMap(p);
-		assertFalse(map.containsKey(nonce));
+		assertArrayEquals(local, fetched);
+		final SpillingDigestLedger ledger = getDigestLedger(p);
+		assertFalse(ledger.contains(nonce));
+	}
+
+
+	/**
+	 * Collects everything sent on a stream.
+	 */
+	private static final class CollectingStream extends JNLOutputDataStream {
+
+		private final SegmentPool segments;
+
+		CollectingStream(final SegmentPool segments) {
+			super(new BufferSegment(new byte[0]), Integer.MAX_VALUE, segments);
+			this.segments = segments;
+			// the empty headers
+			getNextSegment(Integer.MAX_VALUE);
+		}
+
+		SegmentPool segments() {
+			return this.segments;
+		}
+
+		BufferSegment next() {
+			return getNextSegment(Integer.MAX_VALUE);
+		}
+
+		byte[] drain() {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			while (getNumSegments() > 0) {
+				final BufferSegment b = getNextSegment(Integer.MAX_VALUE);
+				out.write(b.getData(), b.getOffset(), b.getLength());
+			}
+			return out.toByteArray();
+		}
+	}
+
+	/**
+	 * @return the sections of a record, separated and ended by BREAK, as
+	 *         they are sent after the MIME headers
+	 */
+	private static String expectedBody(final StreamSourceRecord rec) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final InputStream[] sections = { rec.getSysMetadata(), rec.getAppMetadata(), rec.getPayload() };
+		final byte[] buf = new byte[4096];
+		for (final InputStream in : sections) {
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				out.write(buf, 0, n);
+			}
+			in.close();
+			out.write(Utils.BREAK_BYTES);
+		}
+		return new String(out.toByteArray(), "ISO-8859-1");
+	}
+
+	private static File createFile(final int size) throws IOException {
+		final byte[] data = new byte[size];
+		new Random(size).nextBytes(data);
+		final File f = File.createTempFile("jnl-", ".bin");
+		f.deleteOnExit();
+		final FileOutputStream out = new FileOutputStream(f);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+		return f;
+	}
+
+	private static byte[] readFile(final File f) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			final byte[] data = new byte[(int) raf.length()];
+			raf.readFully(data);
+			return data;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static void assertSendChannelWorks(final int size, final int start,
+			final int offset) throws Exception {
+		final File f = createFile(size);
+		final byte[] data = readFile(f);
+		final CollectingStream ods = new CollectingStream(new SegmentPool(
+				new BufferPool(256, 65536, 4), new Object()));
+		final MessageDigest md = MessageDigest.getInstance("SHA-256");
+		final FileChannel ch = new RandomAccessFile(f, "r").getChannel();
+
+		PublisherSessionImpl.sendChannel(ods, ods.segments(), ch, start, offset, md);
+
+		assertFalse(ch.isOpen());
+		assertArrayEquals(Arrays.copyOfRange(data, offset, size), ods.drain());
+		final MessageDigest expected = MessageDigest.getInstance("SHA-256");
+		expected.update(data, start, size - start);
+		assertArrayEquals(expected.digest(), md.digest());
+	}
+
+	@Test
+	public void testSendChannelSendsSmallFile() throws Exception {
+		assertSendChannelWorks(100000, 0, 0);
 	}
 
+	@Test
+	public void testSendChannelSendsMappedFileFromOffset() throws Exception {
+		assertSendChannelWorks((int) PublisherSessionImpl.MAP_THRESHOLD + 12345, 100, 70000);
+	}
+
+	@Test
+	public void testSendChannelSendsSmallFileFromOffset() throws Exception {
+		assertSendChannelWorks(5000, 10, 4000);
+	}
+
+	@Test
+	public void testSendChannelThrowsExceptionWhenOffsetIsPastEnd() throws Exception {
+		final File f = createFile(10);
+		final CollectingStream ods = new CollectingStream(new SegmentPool(
+				new BufferPool(256, 65536, 4), new Object()));
+		final FileChannel ch = new RandomAccessFile(f, "r").getChannel();
+		try {
+			PublisherSessionImpl.sendChannel(ods, ods.segments(), ch, 0, 11,
+					MessageDigest.getInstance("SHA-256"));
+			fail("Expected an IOException");
+		} catch (final IOException e) {
+			// expected
+		}
+		assertFalse(ch.isOpen());
+	}
+
+	@Test
+	public void testConcurrentSendRecordDigestsEachRecordSeparately(@Mocked final Publisher publisher,
+			@Mocked final org.beepcore.beep.core.Session sess, @Mocked final InetAddress address,
+			@Mocked final MessageMSG message) throws Exception {
+
+		// hand every stream to a single writer, like beepcore does, which
+		// takes the segments under the channel lock so the buffers are
+		// reused while the senders keep going
+		final LinkedBlockingQueue<JNLOutputDataStream> streams = new LinkedBlockingQueue<JNLOutputDataStream>();
+		new Expectations() {
+			{
+				message.sendANS((OutputDataStream) any); minTimes = 0;
+				result = new Delegate<Object>() {
+					@SuppressWarnings("unused")
+					MessageStatus sendANS(final OutputDataStream ods) {
+						streams.add((JNLOutputDataStream) ods);
+						return null;
+					}
+				};
+			}
+		};
+		final Object channel = message.getChannel();
+		final Method nextSegment = JNLOutputDataStream.class.getDeclaredMethod(
+				"getNextSegment", int.class);
+		nextSegment.setAccessible(true);
+
+		final PublisherSessionImpl p = new PublisherSessionImpl(address, RecordType.Log, publisher,
+				DigestMethod.SHA256, "xml", 0, sess, null);
+		p.msg = message;
+		final long created = p.getDigestPool().getCreatedCount();
+
+		final int threads = 8;
+		final int perThread = 200;
+		final StreamSourceRecord[][] records = new StreamSourceRecord[threads][perThread];
+		final Random random = new Random(18);
+		for (int t = 0; t < threads; t++) {
+			for (int i = 0; i < perThread; i++) {
+				final byte[] sys = new byte[1 + random.nextInt(200)];
+				final byte[] app = new byte[random.nextInt(200)];
+				final byte[] payload = new byte[1 + random.nextInt(2000)];
+				random.nextBytes(sys);
+				random.nextBytes(app);
+				random.nextBytes(payload);
+				records[t][i] = new StreamSourceRecord(t + "-" + i, 0, sys, app, payload);
+			}
+		}
+
+		final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+		final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+		final Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					for (int i = 0; i < threads * perThread; i++) {
+						final JNLOutputDataStream ods = streams.take();
+						final ByteArrayOutputStream out = new ByteArrayOutputStream();
+						while (true) {
+							final boolean complete = ods.isComplete();
+							synchronized (channel) {
+								while (ods.getNumSegments() > 0) {
+									final BufferSegment b = (BufferSegment) nextSegment.invoke(ods, 4096);
+									out.write(b.getData(), b.getOffset(), b.getLength());
+								}
+							}
+							if (complete) {
+								break;
+							}
+							Thread.yield();
+						}
+						written.add(new String(out.toByteArray(), "ISO-8859-1"));
+					}
+				} catch (final Throwable t) {
+					failures.add(t);
+				}
+			}
+		};
+		writer.start();
+
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Thread> senders = new ArrayList<Thread>();
+		for (int t = 0; t < threads; t++) {
+			final StreamSourceRecord[] mine = records[t];
+			final Thread sender = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (final InterruptedException e) {
+						return;
+					}
+					for (final StreamSourceRecord rec : mine) {
+						p.sendRecord(rec);
+					}
+				}
+			};
+			sender.start();
+			senders.add(sender);
+		}
+		start.countDown();
+		for (final Thread sender : senders) {
+			sender.join(60000);
+			assertFalse(sender.isAlive());
+		}
+		writer.join(60000);
+		assertFalse(writer.isAlive());
+		assertEquals(Collections.emptyList(), failures);
+
+		// no buffer was reused while it still backed another record
+		final Set<String> bodies = new HashSet<String>();
+		for (final String w : written) {
+			bodies.add(w.substring(w.indexOf("\r\n\r\n") + 4));
+		}
+		for (final StreamSourceRecord[] mine : records) {
+			for (final StreamSourceRecord rec : mine) {
+				assertTrue(rec.getNonce(), bodies.contains(expectedBody(rec)));
+			}
+		}
+
+		final SpillingDigestLedger ledger = getDigestLedger(p);
+		assertEquals(threads * perThread, ledger.size());
+		for (final StreamSourceRecord[] mine : records) {
+			for (final StreamSourceRecord rec : mine) {
+				assertArrayEquals(rec.getNonce(), rec.expectedDigest(),
+						ledger.get(rec.getNonce()));
+			}
+		}
+		// each sender holds at most one engine at a time
+		assertTrue(p.getDigestPool().getCreatedCount() - created <= threads);
+	}
+
+	@Test
+	public void testSendBufferWrapsBackingArrayWithoutCopying() throws Exception {
+		final byte[] data = new byte[10000];
+		new Random(19).nextBytes(data);
+		final CollectingStream ods = new CollectingStream(new SegmentPool(
+				new BufferPool(256, 65536, 4), new Object()));
+		final MessageDigest md = MessageDigest.getInstance("SHA-256");
+		final ByteBuffer buf = ByteBuffer.wrap(data, 100, 9000);
+
+		PublisherSessionImpl.sendBuffer(ods, ods.segments(), buf, 0, 0, md, 4096);
+
+		int pos = 100;
+		for (final int len : new int[] { 4096, 4096, 808 }) {
+			final BufferSegment seg = ods.next();
+			assertSame(data, seg.getData());
+			assertEquals(pos, seg.getOffset());
+			assertEquals(len, seg.getLength());
+			pos += len;
+		}
+		assertEquals(0, ods.drain().length);
+		assertEquals(100, buf.position());
+		assertEquals(9100, buf.limit());
+		final MessageDigest expected = MessageDigest.getInstance("SHA-256");
+		expected.update(data, 100, 9000);
+		assertArrayEquals(expected.digest(), md.digest());
+	}
+
+	@Test
+	public void testSendBufferSendsDirectBufferFromOffset() throws Exception {
+		final byte[] data = new byte[10000];
+		new Random(20).nextBytes(data);
+		final ByteBuffer buf = ByteBuffer.allocateDirect(data.length);
+		buf.put(data);
+		buf.flip();
+		final CollectingStream ods = new CollectingStream(new SegmentPool(
+				new BufferPool(256, 65536, 4), new Object()));
+		final MessageDigest md = MessageDigest.getInstance("SHA-256");
+
+		PublisherSessionImpl.sendBuffer(ods, ods.segments(), buf, 10, 5000, md, 4096);
+
+		assertArrayEquals(Arrays.copyOfRange(data, 5000, data.length), ods.drain());
+		assertEquals(0, buf.position());
+		assertEquals(data.length, buf.limit());
+		final MessageDigest expected = MessageDigest.getInstance("SHA-256");
+		expected.update(data, 10, data.length - 10);
+		assertArrayEquals(expected.digest(), md.digest());
+	}
+
+	@Test
+	public void testSendBufferThrowsExceptionWhenOffsetIsPastEnd() throws Exception {
+		final CollectingStream ods = new CollectingStream(new SegmentPool(
+				new BufferPool(256, 65536, 4), new Object()));
+		try {
+			PublisherSessionImpl.sendBuffer(ods, ods.segments(),
+					ByteBuffer.wrap(new byte[10]), 0, 11,
+					MessageDigest.getInstance("SHA-256"), 4096);
+			fail("Expected an IOException");
+		} catch (final IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testSendRecordDigestsByteArraySourceRecord(@Mocked final Publisher publisher,
+			@Mocked final org.beepcore.beep.core.Session sess, @Mocked final InetAddress address,
+			@Mocked final MessageMSG message) throws Exception {
+
+		final PublisherSessionImpl p = new PublisherSessionImpl(address, RecordType.Log, publisher,
+				DigestMethod.SHA256, "xml", 0, sess, null);
+		p.msg = message;
+		final StreamSourceRecord expected = new StreamSourceRecord("1", 0, new byte[] { 1, 2, 3 },
+				new byte[0], new byte[] { 4, 5, 6, 7 });
+
+		p.sendRecord(new ByteArraySourceRecord("1", RecordType.Log,
+				new byte[] { 1, 2, 3 }, null, new byte[] { 4, 5, 6, 7 }));
+
+		assertArrayEquals(expected.expectedDigest(), getDigestLedger(p).get("1"));
+	}
 }
@@ -0,0 +1,582 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tresys.jalop.jnl.impl.publisher;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.crypto.dsig.DigestMethod;
+
+import mockit.Expectations;
+import mockit.Mock;
+import mockit.MockUp;
+import mockit.Mocked;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.beepcore.beep.core.MessageMSG;
+import org.beepcore.beep.util.BufferSegment;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.tresys.jalop.jnl.DigestedSourceRecord;
+import com.tresys.jalop.jnl.Publisher;
+import com.tresys.jalop.jnl.RecordType;
+import com.tresys.jalop.jnl.SourceRecord;
+import com.tresys.jalop.jnl.impl.ContextImpl;
+import com.tresys.jalop.jnl.impl.MessageDigestPool;
+import com.tresys.jalop.jnl.impl.SendWindowPolicy;
+
+public class RecordPipelineTest {
+
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() {
+		// Disable logging so the build doesn't get spammed.
+		Logger.getRootLogger().setLevel(Level.OFF);
+		this.executor = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void tearDown() {
+		this.executor.shutdown();
+	}
+
+	private static class DigestedTestRecord extends StreamSourceRecord
+			implements DigestedSourceRecord {
+		private final byte[] digest;
+
+		DigestedTestRecord(final StreamSourceRecord rec, final byte[] digest) {
+			super(rec.nonce, rec.offset, rec.sys, rec.app, rec.payload);
+			this.digest = digest;
+		}
+
+		@Override
+		public byte[] getDigest(final String digestMethod) {
+			return DigestMethod.SHA256.equals(digestMethod) ? this.digest : null;
+		}
+	}
+
+	private static StreamSourceRecord record(final String nonce, final int payloadSize) {
+		final byte[] payload = new byte[payloadSize];
+		for (int i = 0; i < payloadSize; i++) {
+			payload[i] = (byte) (i + nonce.hashCode());
+		}
+		return new StreamSourceRecord(nonce, 0, ("sys" + nonce).getBytes(),
+				("app" + nonce).getBytes(), payload);
+	}
+
+	private static PublisherSessionImpl createSession(final InetAddress address,
+			final Publisher publisher, final org.beepcore.beep.core.Session sess) {
+		return new PublisherSessionImpl(address, RecordType.Log, publisher,
+				DigestMethod.SHA256, "xml", 0, sess, null);
+	}
+
+	private RecordPipeline createPipeline(final PublisherSessionImpl p,
+			final int depth, final long prefetchLimit) throws Exception {
+		return new RecordPipeline(p, this.executor, depth, prefetchLimit);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructorThrowsExceptionWithZeroDepth(@Mocked final InetAddress address,
+			@Mocked final Publisher publisher, @Mocked final org.beepcore.beep.core.Session sess) throws Exception {
+		createPipeline(createSession(address, publisher, sess), 0, 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructorThrowsExceptionWithNegativePrefetchLimit(@Mocked final InetAddress address,
+			@Mocked final Publisher publisher, @Mocked final org.beepcore.beep.core.Session sess) throws Exception {
+		createPipeline(createSession(address, publisher, sess), 1, -1);
+	}
+
+	@Test
+	public void testSmallRecordsArePrefetchedAndSentInOrder(@Mocked final InetAddress address,
+			@Mocked final Publisher publisher, @Mocked final org.beepcore.beep.core.Session sess) throws Exception {
+
+		final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+		final List<byte[]> digests = Collections.synchronizedList(new ArrayList<byte[]>());
+		final List<byte[]> contents = Collections.synchronizedList(new ArrayList<byte[]>());
+		final List<Integer> breaks = Collections.synchronizedList(new ArrayList<Integer>());
+		new MockUp<PublisherSessionImpl>() {
+			@Mock
+			void sendPrefetched(final SourceRecord rec,
+					final List<BufferSegment> segments, final byte[] digest) {
+				final ByteArrayOutputStream out = new ByteArrayOutputStream();
+				int count = 0;
+				for (final BufferSegment seg : segments) {
+					if (seg == PublisherSessionImpl.BREAK_SEGMENT) {
+						count++;
+					} else {
+						out.write(seg.getData(), seg.getOffset(), seg.getLength());
+					}
+				}
+				sent.add(rec.getNonce());
+				digests.add(digest);
+				contents.add(out.toByteArray());
+				breaks.add(count);
+			}
+		};
+
+		final RecordPipeline pipeline = createPipeline(
+				createSession(address, publisher, sess), 4, 1024 * 1024);
+		final List<StreamSourceRecord> records = new ArrayList<StreamSourceRecord>();
+		for (int i = 1; i <= 50; i++) {
+			final StreamSourceRecord rec = record(Integer.toString(i), i * 500);
+			records.add(rec);
+			pipeline.submit(rec);
+		}
+		pipeline.flush();
+
+		assertEquals(50, sent.size());
+		for (int i = 0; i < 50; i++) {
+			final StreamSourceRecord rec = records.get(i);
+			assertEquals(rec.getNonce(), sent.get(i));
+			assertArrayEquals(rec.expectedDigest(), digests.get(i));
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			out.write(rec.sys);
+			out.write(rec.app);
+			out.write(rec.payload);
+			assertArrayEquals(out.toByteArray(), contents.get(i));
+			assertEquals(Integer.valueOf(3), breaks.get(i));
+		}
+		assertEquals(0, pipeline.getInFlight());
+		assertEquals(50, pipeline.getPrefetchStage().getProcessedCount());
+		assertEquals(50, pipeline.getHashStage().getProcessedCount());
+		assertEquals(50, pipeline.getSendStage().getProcessedCount());
+		assertEquals(0, pipeline.getSendStage().getQueueDepth());
+		assertTrue(pipeline.getPrefetchStage().getPeakQueueDepth() <= 4);
+	}
+
+	@Test
+	public void testHashStageOnlyHoldsAnEngineWhileHashing(@Mocked final InetAddress address,
+			@Mocked final Publisher publisher, @Mocked final org.beepcore.beep.core.Session sess) throws Exception {
+
+		new MockUp<PublisherSessionImpl>() {
+			@Mock
+			void sendPrefetched(final SourceRecord rec,
+					final List<BufferSegment> segments, final byte[] digest) {
+			}
+		};
+
+		final PublisherSessionImpl p = createSession(address, publisher, sess);
+		final MessageDigestPool pool = p.getDigestPool();
+		final RecordPipeline pipeline = createPipeline(p, 4, 1024 * 1024);
+		final long created = pool.getCreatedCount();
+		final int idle = pool.getIdleCount();
+		for (int i = 0; i < 20; i++) {
+			pipeline.submit(record(Integer.toString(i), 100));
+		}
+		pipeline.flush();
+
+		// the single hash stage needs at most one engine, which is back
+		assertTrue(pool.getCreatedCount() - created <= 1);
+		assertEquals(Math.max(idle, 1), pool.getIdleCount());
+	}
+
+	@Test
+	public void testLargeAndResumedRecordsAreSentDirectly(@Mocked final InetAddress address,
+			@Mocked final Publisher publisher, @Mocked final org.beepcore.beep.core.Session sess) throws Exception {
+
+		final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+		new MockUp<PublisherSessionImpl>() {
+			@Mock
+			void sendPrefetched(final SourceRecord rec,
+					final List<BufferSegment> segments, final byte[] digest) {
+				sent.add("prefetched " + rec.getNonce());
+			}
+
+			@Mock
+			void sendRecord(final SourceRecord rec) {
+				sent.add("direct " + rec.getNonce());
+			}
+		};
+
+		final RecordPipeline pipeline = createPipeline(
+				createSession(address, publisher, sess), 2, 1000);
+		pipeline.submit(record("1", 100));
+		pipeline.submit(record("2", 5000));
+		pipeline.submit(new StreamSourceRecord("3", 10, new byte[1], new byte[1], new byte[100]));
+		pipeline.submit(record("4", 100));
+		pipeline.flush();
+
+		assertEquals(4, sent.size());
+		assertEquals("prefetched 1", sent.get(0));
+		assertEquals("direct 2", sent.get(1));
+		assertEquals("direct 3", sent.get(2));
+		assertEquals("prefetched 4", sent.get(3));
+	}
+
+	@Test
+	public void testQueuedSmallRecordsAreCoalesced(@Mocked final InetAddress address,
+			@Mocked final Publisher publisher, @Mocked final org.beepcore.beep.core.Session sess) throws Exception {
+
+		final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		new MockUp<PublisherSessionImpl>() {
+			@Mock
+			void sendPrefetched(final SourceRecord rec,
+					final List<BufferSegment> segments, final byte[] digest) {
+				sent.add(rec.getNonce());
+				started.countDown();
+				try {
+					release.await();
+				} catch (final InterruptedException e) {
+					// ignore
+				}
+			}
+
+			@Mock
+			void sendCoalesced(final List<SourceRecord> recs,
+					final List<List<BufferSegment>> segments, final List<byte[]> digests)
+					throws Exception {
+				final StringBuilder sb = new StringBuilder();
+				for (int i = 0; i < recs.size(); i++) {
+					assertArrayEquals(((StreamSourceRecord) recs.get(i)).expectedDigest(), digests.get(i));
+					sb.append(i == 0 ? "" : ",").append(recs.get(i).getNonce());
+				}
+				sent.add(sb.toString());
+			}
+		};
+
+		final PublisherSessionImpl p = createSession(address, publisher, sess);
+		p.setCoalescingLimit(1000);
+		final RecordPipeline pipeline = createPipeline(p, 8, 1024 * 1024);
+		pipeline.submit(record("1", 10));
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		for (int i = 2; i <= 5; i++) {
+			pipeline.submit(record(Integer.toString(i), 10));
+		}
+		pipeline.submit(record("6", 5000));
+		pipeline.submit(record("7", 10));
+		while (pipeline.getSendStage().getQueueDepth() < 6) {
+			Thread.sleep(10);
+		}
+		release.countDown();
+		pipeline.flush();
+
+		assertEquals(Arrays.asList("1", "2,3,4,5", "6", "7"), sent);
+		assertEquals(0, pipeline.getInFlight());
+		assertEquals(7, pipeline.getSendStage().getProcessedCount());
+		assertEquals(0, pipeline.getSendStage().getQueueDepth());
+	}
+
+	@Test
+	public void testSubmitBlocksWhenPipelineIsFull(@Mocked final InetAddress address,
+			@Mocked final Publisher publisher, @Mocked final org.beepcore.beep.core.Session sess) throws Exception {
+
+		final CountDownLatch release = new CountDownLatch(1);
+		new MockUp<PublisherSessionImpl>() {
+			@Mock
+			void sendPrefetched(final SourceRecord rec,
+					final List<BufferSegment> segments, final byte[] digest) {
+				try {
+					release.await();
+				} catch (final InterruptedException e) {
+					// ignore
+				}
+			}
+		};
+
+		final RecordPipeline pipeline = createPipeline(
+				createSession(address, publisher, sess), 2, 1024);
+		pipeline.submit(record("1", 10));
+		pipeline.submit(record("2", 10));
+
+		final CountDownLatch submitted = new CountDownLatch(1);
+		final Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					pipeline.submit(record("3", 10));
+				} catch (final InterruptedException e) {
+					// ignore
+				}
+				submitted.countDown();
+			}
+		};
+		t.start();
+
+		assertFalse(submitted.await(200, TimeUnit.MILLISECONDS));
+		assertEquals(2, pipeline.getInFlight());
+		release.countDown();
+		assertTrue(submitted.await(10, TimeUnit.SECONDS));
+		pipeline.flush();
+		assertEquals(1, pipeline.getSubmitWaitCount());
+		assertEquals(3, pipeline.getSendStage().getProcessedCount());
+	}
+
+	@Test
+	public void testCancelDropsQueuedRecordsAndWakesSubmitter(@Mocked final InetAddress address,
+			@Mocked final Publisher publisher, @Mocked final org.beepcore.beep.core.Session sess) throws Exception {
+
+		final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		new MockUp<PublisherSessionImpl>() {
+			@Mock
+			void sendPrefetched(final SourceRecord rec,
+					final List<BufferSegment> segments, final byte[] digest) {
+				sent.add(rec.getNonce());
+				started.countDown();
+				try {
+					release.await();
+				} catch (final InterruptedException e) {
+					// ignore
+				}
+			}
+		};
+
+		final RecordPipeline pipeline = createPipeline(
+				createSession(address, publisher, sess), 2, 1024);
+		pipeline.submit(record("1", 10));
+		pipeline.submit(record("2", 10));
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+
+		final CountDownLatch submitted = new CountDownLatch(1);
+		final Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					pipeline.submit(record("3", 10));
+				} catch (final InterruptedException e) {
+					// ignore
+				}
+				submitted.countDown();
+			}
+		};
+		t.start();
+		assertFalse(submitted.await(200, TimeUnit.MILLISECONDS));
+
+		pipeline.cancel();
+		assertTrue(submitted.await(10, TimeUnit.SECONDS));
+		pipeline.submit(record("4", 10));
+		release.countDown();
+		pipeline.flush();
+
+		assertTrue(pipeline.isCancelled());
+		assertEquals("[1]", sent.toString());
+		assertEquals(0, pipeline.getInFlight());
+		assertEquals(2, pipeline.getSendStage().getProcessedCount());
+	}
+
+	@Test
+	public void testReadFailureSendsErr(@Mocked final InetAddress address,
+			@Mocked final Publisher publisher, @Mocked final org.beepcore.beep.core.Session sess) throws Exception {
+
+		final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+		final int[] errs = new int[1];
+		new MockUp<PublisherSessionImpl>() {
+			@Mock
+			void sendPrefetched(final SourceRecord rec,
+					final List<BufferSegment> segments, final byte[] digest) {
+				sent.add(rec.getNonce());
+			}
+
+			@Mock
+			void sendERR(final MessageMSG message) {
+				synchronized (errs) {
+					errs[0]++;
+				}
+			}
+		};
+
+		final RecordPipeline pipeline = createPipeline(
+				createSession(address, publisher, sess), 4, 1024);
+		pipeline.submit(new StreamSourceRecord("1", 0, new byte[1], new byte[1], new byte[1]) {
+			@Override
+			public InputStream getPayload() {
+				return new InputStream() {
+					@Override
+					public int read() throws IOException {
+						throw new IOException("read failed");
+					}
+				};
+			}
+		});
+		pipeline.submit(record("2", 10));
+		pipeline.flush();
+
+		synchronized (errs) {
+			assertEquals(1, errs[0]);
+		}
+		assertEquals(1, sent.size());
+		assertEquals("2", sent.get(0));
+		assertEquals(0, pipeline.getInFlight());
+	}
+
+	@Test
+	public void testGetRecordPipelineUsesContextSettings(@Mocked final InetAddress address,
+			@Mocked final Publisher publisher, @Mocked final org.beepcore.beep.core.Session sess,
+			@Mocked final ContextImpl contextImpl) throws Exception {
+
+		new MockUp<PublisherSessionImpl>() {
+			@Mock
+			void sendPrefetched(final SourceRecord rec,
+					final List<BufferSegment> segments, final byte[] digest) {
+			}
+		};
+		final AtomicInteger executed = new AtomicInteger();
+		final Executor executor = new Executor() {
+			@Override
+			public void execute(final Runnable command) {
+				executed.incrementAndGet();
+				RecordPipelineTest.this.executor.execute(command);
+			}
+		};
+		new Expectations() {
+			{
+				contextImpl.getPublisherPipelineDepth(); result = 3;
+				contextImpl.getPublisherPrefetchLimit(); result = 12345L;
+				contextImpl.getPublisherExecutor(); result = executor;
+				contextImpl.getSendWindowPolicy(); result = SendWindowPolicy.getDefault();
+			}
+		};
+
+		final PublisherSessionImpl p = new PublisherSessionImpl(address, RecordType.Log, publisher,
+				DigestMethod.SHA256, "xml", 0, sess, contextImpl);
+		final RecordPipeline pipeline = p.getRecordPipeline();
+		assertEquals(3, pipeline.getDepth());
+		assertEquals(12345, pipeline.getPrefetchLimit());
+		assertSame(pipeline, p.getRecordPipeline());
+
+		// the stages run on the executor of the context
+		pipeline.submit(record("1", 100));
+		pipeline.flush();
+		assertEquals(3, executed.get());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSubmitThrowsExceptionWithNullRecord(@Mocked final InetAddress address,
+			@Mocked final Publisher publisher, @Mocked final org.beepcore.beep.core.Session sess) throws Exception {
+
+		final RecordPipeline pipeline = createPipeline(
+				createSession(address, publisher, sess), 1, 0);
+		pipeline.submit(null);
+	}
+
+	@Test
+	public void testSuppliedDigestsAreSpotChecked(@Mocked final InetAddress address,
+			@Mocked final Publisher publisher, @Mocked final org.beepcore.beep.core.Session sess) throws Exception {
+
+		final List<byte[]> digests = Collections.synchronizedList(new ArrayList<byte[]>());
+		new MockUp<PublisherSessionImpl>() {
+			@Mock
+			void sendPrefetched(final SourceRecord rec,
+					final List<BufferSegment> segments, final byte[] digest) {
+				digests.add(digest);
+			}
+		};
+
+		final PublisherSessionImpl p = createSession(address, publisher, sess);
+		final RecordPipeline pipeline = createPipeline(p, 4, 1024 * 1024);
+		final List<byte[]> supplied = new ArrayList<byte[]>();
+		for (int i = 0; i < 5; i++) {
+			final StreamSourceRecord rec = record(Integer.toString(i + 1), 1000);
+			// only the first record is hashed, so the others can supply anything
+			final byte[] digest = i == 0 ? rec.expectedDigest() : new byte[32];
+			if (i > 0) {
+				digest[0] = (byte) i;
+			}
+			supplied.add(digest);
+			pipeline.submit(new DigestedTestRecord(rec, digest));
+		}
+		pipeline.flush();
+
+		assertEquals(5, digests.size());
+		for (int i = 0; i < 5; i++) {
+			assertArrayEquals(supplied.get(i), digests.get(i));
+		}
+		assertEquals(5, p.getSuppliedDigestCount());
+		assertEquals(1, p.getVerifiedDigestCount());
+		assertEquals(0, p.getDigestMismatchCount());
+	}
+
+	@Test
+	public void testMismatchedSuppliedDigestIsNeverTrustedAgain(@Mocked final InetAddress address,
+			@Mocked final Publisher publisher, @Mocked final org.beepcore.beep.core.Session sess) throws Exception {
+
+		final List<byte[]> digests = Collections.synchronizedList(new ArrayList<byte[]>());
+		new MockUp<PublisherSessionImpl>() {
+			@Mock
+			void sendPrefetched(final SourceRecord rec,
+					final List<BufferSegment> segments, final byte[] digest) {
+				digests.add(digest);
+			}
+		};
+
+		final PublisherSessionImpl p = createSession(address, publisher, sess);
+		final RecordPipeline pipeline = createPipeline(p, 4, 1024 * 1024);
+		final List<StreamSourceRecord> records = new ArrayList<StreamSourceRecord>();
+		for (int i = 0; i < 3; i++) {
+			final StreamSourceRecord rec = record(Integer.toString(i + 1), 1000);
+			records.add(rec);
+			pipeline.submit(new DigestedTestRecord(rec, new byte[32]));
+		}
+		pipeline.flush();
+
+		for (int i = 0; i < 3; i++) {
+			assertArrayEquals(records.get(i).expectedDigest(), digests.get(i));
+		}
+		assertEquals(1, p.getSuppliedDigestCount());
+		assertEquals(3, p.getVerifiedDigestCount());
+		assertEquals(3, p.getDigestMismatchCount());
+	}
+
+	@Test
+	public void testSuppliedDigestOfWrongLengthIsIgnored(@Mocked final InetAddress address,
+			@Mocked final Publisher publisher, @Mocked final org.beepcore.beep.core.Session sess) throws Exception {
+
+		final PublisherSessionImpl p = createSession(address, publisher, sess);
+		final StreamSourceRecord rec = record("1", 10);
+		// the first record is always checked
+		assertNull(p.getTrustedDigest(new DigestedTestRecord(rec, new byte[32])));
+		assertNull(p.getTrustedDigest(new DigestedTestRecord(rec, new byte[20])));
+		assertNull(p.getTrustedDigest(rec));
+		assertArrayEquals(new byte[32], p.getTrustedDigest(new DigestedTestRecord(rec, new byte[32])));
+		assertEquals(2, p.getSuppliedDigestCount());
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012,2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tresys.jalop.jnl.impl.publisher;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.tresys.jalop.jnl.RecordType;
+import com.tresys.jalop.jnl.SourceRecord;
+
+/**
+ * A log {@link SourceRecord} whose sections are fixed byte arrays, read
+ * through {@link InputStream}s, for the publisher tests.
+ */
+class StreamSourceRecord implements SourceRecord {
+	final String nonce;
+	final long offset;
+	final byte[] sys;
+	final byte[] app;
+	final byte[] payload;
+
+	StreamSourceRecord(final String nonce) {
+		this(nonce, 0, new byte[0], new byte[0], new byte[0]);
+	}
+
+	StreamSourceRecord(final String nonce, final long offset, final byte[] sys,
+			final byte[] app, final byte[] payload) {
+		this.nonce = nonce;
+		this.offset = offset;
+		this.sys = sys;
+		this.app = app;
+		this.payload = payload;
+	}
+
+	@Override
+	public String getNonce() {
+		return this.nonce;
+	}
+
+	@Override
+	public long getOffset() {
+		return this.offset;
+	}
+
+	@Override
+	public RecordType getRecordType() {
+		return RecordType.Log;
+	}
+
+	@Override
+	public long getSysMetaLength() {
+		return this.sys.length;
+	}
+
+	@Override
+	public long getAppMetaLength() {
+		return this.app.length;
+	}
+
+	@Override
+	public long getPayloadLength() {
+		return this.payload.length;
+	}
+
+	@Override
+	public InputStream getSysMetadata() {
+		return new ByteArrayInputStream(this.sys);
+	}
+
+	@Override
+	public InputStream getAppMetadata() {
+		return new ByteArrayInputStream(this.app);
+	}
+
+	@Override
+	public InputStream getPayload() {
+		return new ByteArrayInputStream(this.payload);
+	}
+
+	/**
+	 * @return the SHA-256 digest of the whole record
+	 */
+	byte[] expectedDigest() throws NoSuchAlgorithmException {
+		final MessageDigest md = MessageDigest.getInstance("SHA-256");
+		md.update(this.sys);
+		md.update(this.app);
+		md.update(this.payload);
+		return md.digest();
+	}
+}
@@ -23,6 +23,7 @@
  */
 package com.tresys.jalop.jnl.impl.subscriber;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
@@ -31,8 +32,6 @@ import static org.junit.Assert.assertTrue;
 import java.io.InputStream;
 import java.lang.reflect.Field;
 import java.net.InetAddress;
-import java.util.HashMap;
-import java.util.Map;
 
 import javax.xml.crypto.dsig.DigestMethod;
 
@@ -51,28 +50,33 @@ import org.junit.Test;
 import com.tresys.jalop.jnl.RecordType;
 import com.tresys.jalop.jnl.Role;
 import com.tresys.jalop.jnl.Subscriber;
+import com.tresys.jalop.jnl.impl.DigestBatchPolicy;
+import com.tresys.jalop.jnl.impl.DigestBatchPolicy.FlushReason;
+import com.tresys.jalop.jnl.impl.DigestBatcher;
+import com.tresys.jalop.jnl.impl.DigestLedger;
 import com.tresys.jalop.jnl.impl.DigestListener;
+import com.tresys.jalop.jnl.impl.ReceiveWindowPolicy;
+import com.tresys.jalop.jnl.impl.ReceiveWindowTest.FakeChannel;
 import com.tresys.jalop.jnl.impl.SessionImpl;
 
 public class SubscriberSessionImplTest {
 
 	private static Field errored;
-	private static Field digestMapField;
+	private static Field digestLedgerField;
 
 	@BeforeClass
 	public static void setupBeforeClass() throws SecurityException,
 			NoSuchFieldException {
 		errored = SessionImpl.class.getDeclaredField("errored");
 		errored.setAccessible(true);
-		digestMapField = SubscriberSessionImpl.class.getDeclaredField("digestMap");
-		digestMapField.setAccessible(true);
+		digestLedgerField = SubscriberSessionImpl.class.getDeclaredField("digestLedger");
+		digestLedgerField.setAccessible(true);
 	}
 
-	@SuppressWarnings("unchecked")
-	private static Map<String, String> getDigestMap(
+	private static DigestLedger getDigestLedger(
 			final SubscriberSessionImpl s) throws IllegalArgumentException,
 			IllegalAccessException {
-		return (Map<String, String>) digestMapField.get(s);
+		return (DigestLedger) digestLedgerField.get(s);
 	}
 
 	@Before
@@ -359,15 +363,19 @@ public class SubscriberSessionImplTest {
 		final SubscriberSessionImpl s = new SubscriberSessionImpl(address,
 				RecordType.Audit, subscriber, DigestMethod.SHA256, "barfoo", 1,
 				1, 0, sess);
-		final Map<String, String> mapToAdd = new HashMap<String, String>();
-		mapToAdd.put("key1", "value1");
-		mapToAdd.put("key2", "value2");
-		s.addAllDigests(mapToAdd);
-		final Map<String, String> map = getDigestMap(s);
-		assertTrue(map.containsKey("key1"));
-		assertEquals("value1", map.get("key1"));
-		assertTrue(map.containsKey("key2"));
-		assertEquals("value2", map.get("key2"));
+		final byte[] value1 = new byte[32];
+		value1[0] = 1;
+		final byte[] value2 = new byte[32];
+		value2[0] = 2;
+		final DigestLedger toAdd = new DigestLedger(32);
+		toAdd.put("key1", value1);
+		toAdd.put("2", value2);
+		s.addAllDigests(toAdd);
+		final DigestLedger ledger = getDigestLedger(s);
+		assertTrue(ledger.contains("key1"));
+		assertArrayEquals(value1, ledger.get("key1"));
+		assertTrue(ledger.contains("2"));
+		assertArrayEquals(value2, ledger.get("2"));
 	}
 
 	@Test
@@ -377,10 +385,111 @@ public class SubscriberSessionImplTest {
 		final SubscriberSessionImpl s = new SubscriberSessionImpl(address,
 				RecordType.Audit, subscriber, DigestMethod.SHA256, "barfoo", 1,
 				1, 0, sess);
-		s.addDigest("nonce", "digest");
-		final Map<String, String> map = getDigestMap(s);
-		assertTrue(map.containsKey("nonce"));
-		assertEquals("digest", map.get("nonce"));
+		final byte[] digest = new byte[32];
+		digest[0] = 1;
+		s.addDigest("nonce", digest);
+		final DigestLedger ledger = getDigestLedger(s);
+		assertTrue(ledger.contains("nonce"));
+		assertArrayEquals(digest, ledger.get("nonce"));
+	}
+
+	@Test
+	public void testAddDigestCountsDigestsInBatcher(@Mocked final Subscriber subscriber,
+			@Mocked final org.beepcore.beep.core.Session sess, @Mocked final InetAddress address) {
+		final SubscriberSessionImpl s = new SubscriberSessionImpl(address,
+				RecordType.Audit, subscriber, DigestMethod.SHA256, "barfoo", 1,
+				1, 0, sess);
+		final DigestBatcher batcher = new DigestBatchPolicy(1000, 1024 * 1024).open();
+		s.setDigestBatcher(batcher);
+		assertEquals(batcher, s.getDigestBatcher());
+
+		s.addDigest("nonce", new byte[32]);
+		s.addDigest("nonce", new byte[32]);
+		assertEquals(1, batcher.getPending());
+
+		// a digest that is already queued is not counted again
+		final DigestLedger toAdd = new DigestLedger(32);
+		toAdd.put("1", new byte[32]);
+		toAdd.put("nonce", new byte[32]);
+		toAdd.put("2", new byte[32]);
+		s.addAllDigests(toAdd);
+		assertEquals(3, batcher.getPending());
+	}
+
+	@Test
+	public void testRunSendsBatchWhenOldestDigestIsDue(@Mocked final Subscriber subscriber,
+			@Mocked final org.beepcore.beep.core.Session sess, @Mocked final Channel channel,
+			@Mocked final InetAddress address, @Mocked final DigestListener listener)
+			throws Exception {
+
+		final SubscriberSessionImpl s = new SubscriberSessionImpl(address,
+				RecordType.Audit, subscriber, DigestMethod.SHA256, "barfoo", 1,
+				1000, 0, sess);
+		final DigestBatchPolicy policy = new DigestBatchPolicy(10, 1024 * 1024);
+		s.setDigestBatcher(policy.open());
+
+		new NonStrictExpectations(s) {
+			{
+				sess.startChannel(anyString, false, anyString);
+				result = channel;
+				s.isOk();
+				returns(true, false);
+			}
+		};
+
+		s.addDigest("nonce1", new byte[32]);
+
+		s.run();
+
+		new Verifications() {
+			{
+				channel.sendMSG((OutputDataStream) any, (DigestListener) any); times = 1;
+			}
+		};
+		assertEquals(1, policy.getFlushCount(FlushReason.Latency));
+		assertEquals(0, s.getDigestBatcher().getPending());
+	}
+
+	@Test
+	public void testRunSplitsBatchAtMaxBatchBytes(@Mocked final Subscriber subscriber,
+			@Mocked final org.beepcore.beep.core.Session sess, @Mocked final Channel channel,
+			@Mocked final InetAddress address, @Mocked final DigestListener listener)
+			throws Exception {
+
+		final SubscriberSessionImpl s = new SubscriberSessionImpl(address,
+				RecordType.Audit, subscriber, DigestMethod.SHA256, "barfoo", 1,
+				1000, 0, sess);
+		// each entry is 64 hex digits, '=', a 6 byte nonce and CRLF
+		final DigestBatchPolicy policy = new DigestBatchPolicy(10, 2 * 73);
+		s.setDigestBatcher(policy.open());
+
+		new NonStrictExpectations(s) {
+			{
+				sess.startChannel(anyString, false, anyString);
+				result = channel;
+				s.isOk();
+				returns(true, true, true, false);
+			}
+		};
+
+		for (int i = 1; i <= 5; i++) {
+			s.addDigest("nonce" + i, new byte[32]);
+		}
+
+		s.run();
+
+		new Verifications() {
+			{
+				channel.sendMSG((OutputDataStream) any, (DigestListener) any); times = 3;
+			}
+		};
+		// the last digest is sent for its latency, or for the batch size
+		// once the arrival rate has been sampled
+		assertEquals(2, policy.getFlushCount(FlushReason.Bytes));
+		assertEquals(3, policy.getBatchCount());
+		assertEquals(2, policy.getLargestBatch());
+		assertEquals(5, policy.getDigestCount());
+		assertEquals(0, s.getDigestBatcher().getPending());
 	}
 
 	@Test
@@ -394,8 +503,8 @@ public class SubscriberSessionImplTest {
 				RecordType.Audit, subscriber, DigestMethod.SHA256, "barfoo", 1,
 				2, 0, sess);
 
-		final Map<String, String> digestMap = new HashMap<String, String>();
-		digestMap.put("nonce1", "digest");
+		final DigestLedger digestLedger = new DigestLedger(32);
+		digestLedger.put("nonce1", new byte[32]);
 
 		new Expectations(s) {
 			{
@@ -408,7 +517,7 @@ public class SubscriberSessionImplTest {
 			}
 		};
 
-		s.addAllDigests(digestMap);
+		s.addAllDigests(digestLedger);
 
 		s.run();
 
@@ -465,4 +574,23 @@ public class SubscriberSessionImplTest {
 		assertTrue(errored.getBoolean(s));
 	}
 
+	@Test
+	public void testSetErroredReleasesReceiveWindow(@Mocked final Subscriber subscriber,
+			@Mocked final org.beepcore.beep.core.Session sess, @Mocked final InetAddress address) {
+
+		final SubscriberSessionImpl s = new SubscriberSessionImpl(address,
+				RecordType.Audit, subscriber, DigestMethod.SHA256, "barfoo", 1,
+				2, 0, sess);
+		final ReceiveWindowPolicy policy = new ReceiveWindowPolicy(65536, 1 << 20, 1 << 24);
+		s.setReceiveWindow(policy.open(new FakeChannel()));
+		assertTrue(policy.getReserved() > 0);
+
+		s.setErrored();
+		assertEquals(0, policy.getReserved());
+
+		// Closing the channel afterwards must not release the bytes twice.
+		s.release();
+		assertEquals(0, policy.getReserved());
+	}
+
 }
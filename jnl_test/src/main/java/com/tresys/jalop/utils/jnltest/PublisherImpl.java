@@ -36,6 +36,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
+import java.nio.channels.FileChannel;
 import java.text.DecimalFormat;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -51,13 +52,15 @@ import org.json.simple.parser.ParseException;
 
 import com.google.common.io.PatternFilenameFilter;
 import com.tresys.jalop.jnl.DigestPair;
+import com.tresys.jalop.jnl.FileSourceRecord;
 import com.tresys.jalop.jnl.Mode;
 import com.tresys.jalop.jnl.Publisher;
 import com.tresys.jalop.jnl.PublisherSession;
+import com.tresys.jalop.jnl.PullPublisher;
 import com.tresys.jalop.jnl.RecordType;
 import com.tresys.jalop.jnl.SourceRecord;
 
-public class PublisherImpl implements Publisher {
+public class PublisherImpl implements PullPublisher {
 
 	/** A logger for this class. */
 	private static final Logger LOGGER = Logger.getLogger(PublisherImpl.class);
@@ -165,6 +168,7 @@ public class PublisherImpl implements Publisher {
 		return new SourceRecordImpl(nonce, offset);
 	}
 
+	@Override
 	public SourceRecord getNextRecord(final PublisherSession sess, final String lastNonce) {
 
 		final long nextNonce;
@@ -229,25 +233,22 @@ public class PublisherImpl implements Publisher {
 	public boolean onJournalResume(final PublisherSession sess, final String nonce,
 					final long offset, final MimeHeaders headers) {
 
-		// Get the Journal record.
-		SourceRecord rec = getJournalRecord(nonce, offset);
-		if (rec == null) {
+		// Only check the Journal record exists, the library pulls it with getResumeRecord.
+		if (getJournalRecord(nonce, offset) == null) {
 			if(LOGGER.isEnabledFor(Level.ERROR)) {
 				LOGGER.error("Journal record does not exist");
 			}
 			return false;
 		}
-		sess.sendRecord(rec);
-
-		rec = getNextRecord(sess, nonce);
-		while ( rec != null ){
-			String currNonce = rec.getNonce();
-			sess.sendRecord(rec);
-			rec = getNextRecord(sess, currNonce);
-		}
 		return true;
 	}
 
+	@Override
+	public SourceRecord getResumeRecord(final PublisherSession sess, final String nonce,
+					final long offset) {
+		return getJournalRecord(nonce, offset);
+	}
+
 	@Override
 	public boolean onSubscribe(final PublisherSession sess, final String nonce, Mode mode,
 			final MimeHeaders headers) {
@@ -266,19 +267,13 @@ public class PublisherImpl implements Publisher {
 				}
 				return false;
 			}
-			SourceRecord rec = getNextRecord(sess, nonce);
-			while (rec != null) {
-				final String currNonce = rec.getNonce();
-				sess.sendRecord(rec);
-				rec = getNextRecord(sess, currNonce);
-			}
 		} catch (final NumberFormatException nfe) {
 			if(LOGGER.isEnabledFor(Level.ERROR)) {
 				LOGGER.error("nonce sent is not numeric - " + nonce);
 			}
 			return false;
 		}
-		sess.complete();
+		// the library pulls the records with getNextRecord on its own thread
 		return true;
 	}
 
@@ -394,7 +389,7 @@ public class PublisherImpl implements Publisher {
         return true;
     }
 
-	private class SourceRecordImpl implements SourceRecord {
+	private class SourceRecordImpl implements FileSourceRecord {
 
 		private final String nonce;
 		private final long offset;
@@ -508,6 +503,31 @@ public class PublisherImpl implements Publisher {
 				return null;
 			}
 		}
+
+		@Override
+		public FileChannel getSysMetadataChannel() {
+			try {
+				return new FileInputStream(this.sysFile).getChannel();
+			} catch (final FileNotFoundException e) {
+				if(LOGGER.isEnabledFor(Level.ERROR)) {
+					LOGGER.error("No SysMetadata file has been set.");
+				}
+				//Throw an error since sysmetadata file is required
+				throw new RuntimeException("SysMetadata file does not exist.");
+			}
+		}
+
+		@Override
+		public FileChannel getAppMetadataChannel() {
+			final InputStream is = getAppMetadata();
+			return is != null ? ((FileInputStream) is).getChannel() : null;
+		}
+
+		@Override
+		public FileChannel getPayloadChannel() {
+			final InputStream is = getPayload();
+			return is != null ? ((FileInputStream) is).getChannel() : null;
+		}
 	}
 
 }